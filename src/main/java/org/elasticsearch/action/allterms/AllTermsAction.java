@@ -29,6 +29,11 @@ public class AllTermsAction extends Action<AllTermsRequest, AllTermsResponse, Al
     public static final AllTermsAction INSTANCE = new AllTermsAction();
     public static final String NAME = "indices:data/read/allterms";
 
+    /**
+     * Name of the thread pool that enumerates terms on the shards and merges shard responses
+     */
+    public static final String THREAD_POOL_NAME = "allterms";
+
     private AllTermsAction() {
         super(NAME);
     }
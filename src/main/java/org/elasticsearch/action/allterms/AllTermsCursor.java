@@ -0,0 +1,95 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.allterms;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Continuation token for paging through the terms of a field.
+ * <p>
+ * Since every page contains the smallest terms of the union of all shard dictionaries that follow the previous page, the
+ * last returned term is a valid starting point for every shard. In addition the cursor remembers which shards have no
+ * terms left after it, so that these shards are not asked again. The token is opaque to clients.
+ */
+public final class AllTermsCursor {
+
+    private static final int VERSION = 3;
+
+    private final BytesRef lastTerm;
+
+    // sorted
+    private final ShardId[] exhaustedShards;
+
+    public AllTermsCursor(BytesRef lastTerm, ShardId[] exhaustedShards) {
+        this.lastTerm = lastTerm;
+        this.exhaustedShards = exhaustedShards.clone();
+        Arrays.sort(this.exhaustedShards);
+    }
+
+    /**
+     * The last term returned to the client, next page starts after it
+     */
+    public BytesRef lastTerm() {
+        return lastTerm;
+    }
+
+    public boolean isExhausted(ShardId shardId) {
+        return Arrays.binarySearch(exhaustedShards, shardId) >= 0;
+    }
+
+    public String encode() {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            out.writeVInt(VERSION);
+            out.writeBytesRef(lastTerm);
+            out.writeVInt(exhaustedShards.length);
+            for (ShardId shardId : exhaustedShards) {
+                shardId.writeTo(out);
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(BytesReference.toBytes(out.bytes()));
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot encode cursor", e);
+        }
+    }
+
+    public static AllTermsCursor decode(String cursor) {
+        try (StreamInput in = StreamInput.wrap(Base64.getUrlDecoder().decode(cursor))) {
+            int version = in.readVInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("unsupported cursor version [" + version + "]");
+            }
+            BytesRef lastTerm = in.readBytesRef();
+            ShardId[] exhaustedShards = new ShardId[in.readVInt()];
+            for (int i = 0; i < exhaustedShards.length; i++) {
+                exhaustedShards[i] = ShardId.readShardId(in);
+            }
+            return new AllTermsCursor(lastTerm, exhaustedShards);
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("cannot parse cursor [" + cursor + "]", e);
+        }
+    }
+}
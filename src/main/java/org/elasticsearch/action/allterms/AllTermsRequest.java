@@ -19,22 +19,101 @@
 
 package org.elasticsearch.action.allterms;
 
+import org.apache.lucene.util.automaton.RegExp;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.IndicesRequest;
 import org.elasticsearch.action.ValidateActions;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.unit.TimeValue;
 
 import java.io.IOException;
+import java.util.Locale;
 
-public class AllTermsRequest extends ActionRequest<AllTermsRequest> {
+public class AllTermsRequest extends ActionRequest<AllTermsRequest> implements IndicesRequest.Replaceable {
 
     String preference;
     private String field;
-    private String index;
+    private String[] indices = Strings.EMPTY_ARRAY;
+    private IndicesOptions indicesOptions = IndicesOptions.strictExpandOpen();
+    private TimeValue timeout;
     private int size;
     private String from;
     private long minDocFreq;
+    private String cursor;
+    private MinDocFreqMode minDocFreqMode = MinDocFreqMode.SHARD;
+    private String prefix;
+    private String include;
+    private String exclude;
+    private Sort sort = Sort.TERM;
+    private int shardSize;
+    private Long seed;
+
+    /**
+     * Whether min_doc_freq is checked against the doc freq of a term in each shard or in the whole index
+     */
+    public enum MinDocFreqMode {
+        /**
+         * Each shard drops terms below min_doc_freq on its own. Cheap, but terms that are spread over many shards can be
+         * dropped although they are frequent enough in the index.
+         */
+        SHARD,
+        /**
+         * Shards return all terms with their doc freqs and min_doc_freq is applied to the sums on the coordinating node.
+         */
+        INDEX;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        public static MinDocFreqMode fromString(String s) {
+            for (MinDocFreqMode mode : values()) {
+                if (mode.toString().equals(s)) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("min_doc_freq_mode must be one of [shard, index] but was [" + s + "]");
+        }
+    }
+
+    /**
+     * The order of the returned terms
+     */
+    public enum Sort {
+        /**
+         * The next terms in the terms dictionary
+         */
+        TERM,
+        /**
+         * The terms with the highest doc freqs in the index. Each shard returns its shard_size most frequent terms and the
+         * coordinating node sums them up, so the doc freqs of the returned terms can be too low by up to the reported error bound.
+         */
+        DOC_FREQ,
+        /**
+         * A uniform random sample of the terms of each shard, combined into a sample of the index. Terms that exist in more
+         * than one shard are slightly more likely to be picked.
+         */
+        RANDOM;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        public static Sort fromString(String s) {
+            for (Sort sort : values()) {
+                if (sort.toString().equals(s)) {
+                    return sort;
+                }
+            }
+            throw new IllegalArgumentException("sort must be one of [term, doc_freq, random] but was [" + s + "]");
+        }
+    }
 
     @Override
     public ActionRequestValidationException validate() {
@@ -42,6 +121,31 @@ public class AllTermsRequest extends ActionRequest<AllTermsRequest> {
         if (field == null) {
             validationException = ValidateActions.addValidationError("all terms request need a field name", validationException);
         }
+        if (cursor != null && from != null) {
+            validationException = ValidateActions.addValidationError("all terms request cannot have both a cursor and from",
+                    validationException);
+        }
+        validationException = validateRegex("include", include, validationException);
+        validationException = validateRegex("exclude", exclude, validationException);
+        if (cursor != null && sort != Sort.TERM) {
+            validationException = ValidateActions.addValidationError("all terms request sorted by " + sort + " cannot have a cursor",
+                    validationException);
+        }
+        if (sort == Sort.RANDOM && minDocFreqMode == MinDocFreqMode.INDEX) {
+            validationException = ValidateActions.addValidationError("min_doc_freq_mode [index] is not supported with sort [random]",
+                    validationException);
+        }
+        if (sort == Sort.RANDOM && size < 0) {
+            validationException = ValidateActions.addValidationError("size must not be negative with sort [random]",
+                    validationException);
+        }
+        if (shardSize < 0) {
+            validationException = ValidateActions.addValidationError("shard_size must not be negative", validationException);
+        }
+        if (cursor != null && size <= 0) {
+            validationException = ValidateActions.addValidationError("all terms request with a cursor needs a positive size",
+                    validationException);
+        }
         return validationException;
     }
 
@@ -50,11 +154,20 @@ public class AllTermsRequest extends ActionRequest<AllTermsRequest> {
         super.readFrom(in);
         preference = in.readOptionalString();
         field = in.readString();
-        index = in.readString();
+        indices = in.readStringArray();
+        indicesOptions = IndicesOptions.readIndicesOptions(in);
+        timeout = in.readOptionalWriteable(TimeValue::new);
         size = in.readInt();
         from = in.readOptionalString();
         minDocFreq = in.readLong();
-
+        cursor = in.readOptionalString();
+        minDocFreqMode = MinDocFreqMode.values()[in.readVInt()];
+        prefix = in.readOptionalString();
+        include = in.readOptionalString();
+        exclude = in.readOptionalString();
+        sort = Sort.values()[in.readVInt()];
+        shardSize = in.readVInt();
+        seed = in.readOptionalLong();
     }
 
     @Override
@@ -62,10 +175,20 @@ public class AllTermsRequest extends ActionRequest<AllTermsRequest> {
         super.writeTo(out);
         out.writeOptionalString(preference);
         out.writeString(field);
-        out.writeString(index);
+        out.writeStringArray(indices);
+        indicesOptions.writeIndicesOptions(out);
+        out.writeOptionalWriteable(timeout);
         out.writeInt(size);
         out.writeOptionalString(from);
         out.writeLong(minDocFreq);
+        out.writeOptionalString(cursor);
+        out.writeVInt(minDocFreqMode.ordinal());
+        out.writeOptionalString(prefix);
+        out.writeOptionalString(include);
+        out.writeOptionalString(exclude);
+        out.writeVInt(sort.ordinal());
+        out.writeVInt(shardSize);
+        out.writeOptionalLong(seed);
     }
 
     public void field(String field) {
@@ -73,7 +196,34 @@ public class AllTermsRequest extends ActionRequest<AllTermsRequest> {
     }
 
     public void index(String index) {
-        this.index = index;
+        this.indices = new String[]{index};
+    }
+
+    @Override
+    public AllTermsRequest indices(String... indices) {
+        this.indices = indices;
+        return this;
+    }
+
+    public void indicesOptions(IndicesOptions indicesOptions) {
+        this.indicesOptions = indicesOptions;
+    }
+
+    @Override
+    public IndicesOptions indicesOptions() {
+        return indicesOptions;
+    }
+
+    /**
+     * Limits the time the request waits for shards. Shards that didn't respond in time are reported as failed and the
+     * response contains the terms of the shards that did.
+     */
+    public void timeout(TimeValue timeout) {
+        this.timeout = timeout;
+    }
+
+    public TimeValue timeout() {
+        return timeout;
     }
 
     public void size(int size) {
@@ -88,8 +238,8 @@ public class AllTermsRequest extends ActionRequest<AllTermsRequest> {
         return size;
     }
 
+    @Override
     public String[] indices() {
-        String[] indices = {index};
         return indices;
     }
 
@@ -108,4 +258,100 @@ public class AllTermsRequest extends ActionRequest<AllTermsRequest> {
     public long minDocFreq() {
         return minDocFreq;
     }
+
+    /**
+     * Continues paging from a cursor returned by a previous response
+     */
+    public void cursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public String cursor() {
+        return cursor;
+    }
+
+    public void minDocFreqMode(MinDocFreqMode minDocFreqMode) {
+        this.minDocFreqMode = minDocFreqMode;
+    }
+
+    public MinDocFreqMode minDocFreqMode() {
+        return minDocFreqMode;
+    }
+
+    /**
+     * Only return terms that start with the given prefix
+     */
+    public void prefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String prefix() {
+        return prefix;
+    }
+
+    /**
+     * Only return terms that match the given regular expression
+     */
+    public void include(String include) {
+        this.include = include;
+    }
+
+    public String include() {
+        return include;
+    }
+
+    /**
+     * Don't return terms that match the given regular expression
+     */
+    public void exclude(String exclude) {
+        this.exclude = exclude;
+    }
+
+    public String exclude() {
+        return exclude;
+    }
+
+    public void sort(Sort sort) {
+        this.sort = sort;
+    }
+
+    public Sort sort() {
+        return sort;
+    }
+
+    /**
+     * The number of terms each shard returns when sorting by doc freq. Higher values make the result more accurate, 0 picks a
+     * default based on size and the number of shards.
+     */
+    public void shardSize(int shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    public int shardSize() {
+        return shardSize;
+    }
+
+    /**
+     * The seed for sort=random. Requests with the same seed return the same sample as long as the index doesn't change.
+     */
+    public void seed(Long seed) {
+        this.seed = seed;
+    }
+
+    public Long seed() {
+        return seed;
+    }
+
+    private static ActionRequestValidationException validateRegex(String name, String regex,
+                                                                  ActionRequestValidationException validationException) {
+        if (regex != null) {
+            try {
+                new RegExp(regex);
+            } catch (IllegalArgumentException e) {
+                validationException = ValidateActions.addValidationError("invalid " + name + " regular expression [" + regex + "]: "
+                        + e.getMessage(), validationException);
+            }
+        }
+        return validationException;
+    }
 }
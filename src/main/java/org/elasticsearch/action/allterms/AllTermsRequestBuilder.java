@@ -23,6 +23,7 @@ import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequestBuilder;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.unit.TimeValue;
 
 public class AllTermsRequestBuilder extends ActionRequestBuilder<AllTermsRequest, AllTermsResponse, AllTermsRequestBuilder> {
     public AllTermsRequestBuilder(ElasticsearchClient client) {
@@ -40,6 +41,16 @@ public class AllTermsRequestBuilder extends ActionRequestBuilder<AllTermsRequest
         return this;
     }
 
+    public AllTermsRequestBuilder indices(String... indices) {
+        request.indices(indices);
+        return this;
+    }
+
+    public AllTermsRequestBuilder timeout(TimeValue timeout) {
+        request.timeout(timeout);
+        return this;
+    }
+
     public AllTermsRequestBuilder size(int size) {
         request.size(size);
         return this;
@@ -59,4 +70,44 @@ public class AllTermsRequestBuilder extends ActionRequestBuilder<AllTermsRequest
         request.from(from);
         return this;
     }
+
+    public AllTermsRequestBuilder cursor(String cursor) {
+        request.cursor(cursor);
+        return this;
+    }
+
+    public AllTermsRequestBuilder minDocFreqMode(AllTermsRequest.MinDocFreqMode minDocFreqMode) {
+        request.minDocFreqMode(minDocFreqMode);
+        return this;
+    }
+
+    public AllTermsRequestBuilder prefix(String prefix) {
+        request.prefix(prefix);
+        return this;
+    }
+
+    public AllTermsRequestBuilder include(String include) {
+        request.include(include);
+        return this;
+    }
+
+    public AllTermsRequestBuilder exclude(String exclude) {
+        request.exclude(exclude);
+        return this;
+    }
+
+    public AllTermsRequestBuilder sort(AllTermsRequest.Sort sort) {
+        request.sort(sort);
+        return this;
+    }
+
+    public AllTermsRequestBuilder shardSize(int shardSize) {
+        request.shardSize(shardSize);
+        return this;
+    }
+
+    public AllTermsRequestBuilder seed(long seed) {
+        request.seed(seed);
+        return this;
+    }
 }
@@ -19,129 +19,311 @@
 
 package org.elasticsearch.action.allterms;
 
-import org.elasticsearch.action.ActionResponse;
+import com.carrotsearch.hppc.LongArrayList;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.PriorityQueue;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastResponse;
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.action.support.RestActions;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
-public class AllTermsResponse extends ActionResponse implements ToXContent {
+public class AllTermsResponse extends BroadcastResponse implements ToXContent {
 
     public List<String> getAllTerms() {
         return allTerms;
     }
 
+    /**
+     * Returns the doc freqs of the terms in {@link #getAllTerms()} summed up over all shards that returned the term
+     */
+    public long[] getDocFreqs() {
+        return docFreqs;
+    }
+
+    /**
+     * Returns the cursor to pass to the next request in order to get the following page of terms or null if there
+     * are no more terms
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Returns the maximum amount by which the doc freqs of terms sorted by doc freq might be too low, because shards that
+     * returned the term were not the only ones that have it. Returns -1 if the terms are not sorted by doc freq.
+     */
+    public long getDocFreqErrorUpperBound() {
+        return docFreqErrorUpperBound;
+    }
+
     List<String> allTerms = new ArrayList<>();
 
+    // sum of the shard doc freqs of each term in allTerms
+    long[] docFreqs = new long[0];
+
+    String cursor;
+
+    long docFreqErrorUpperBound = -1;
+
     public AllTermsResponse() {
 
     }
 
+    /**
+     * Merges the sorted shard term lists into the first size unique terms and sums up their doc freqs over all shards.
+     */
     public AllTermsResponse(AllTermsSingleShardResponse[] responses, long size) {
-        int numResponses = responses.length;
-        int[] indices = new int[numResponses];
-        for (int i = 0; i < indices.length; i++) {
-            indices[i] = 0;
-        }
+        LongArrayList docFreqs = new LongArrayList();
+        merge(responses, null, 0, size, allTerms, docFreqs);
+        this.docFreqs = docFreqs.toArray();
+    }
+
+    AllTermsResponse(List<String> allTerms, long[] docFreqs, String cursor, long docFreqErrorUpperBound, int totalShards,
+                     int successfulShards, int failedShards, List<ShardOperationFailedException> shardFailures) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.allTerms = allTerms;
+        this.docFreqs = docFreqs;
+        this.cursor = cursor;
+        this.docFreqErrorUpperBound = docFreqErrorUpperBound;
+    }
 
-        String lastTerm = null;
-
-        //find the first twerm
-        for (int j = 0; j < numResponses; j++) {
-            if (responses[j] != null && responses[j].shardTerms != null) {
-                if (indices[j] < responses[j].shardTerms.size()) {
-                    if (lastTerm == null) {
-                        lastTerm = responses[j].shardTerms.get(indices[j]);
-                        indices[j]++;
-                    } else {
-                        if (responses[j].shardTerms.get(indices[j]).compareTo(lastTerm) == 0) {
-                            //move one further
-                            indices[j]++;
-                        }
-                        if (indices[j] < responses[j].shardTerms.size()) {
-                            String candidate = responses[j].shardTerms.get(indices[j]);
-                            if (candidate == null) {
-                                continue;
-                            }
-
-                            if (candidate.compareTo(lastTerm) < 0) {
-                                lastTerm = candidate;
-                            }
-                        }
+    /**
+     * Merges the sorted shard term lists and appends the unique terms, whose doc freq summed up over all shards is at least
+     * minDocFreq, to terms until terms contains size terms. If upTo is not null terms greater than upTo are not added.
+     * Returns a copy of the last added term or null if no term was added.
+     */
+    static BytesRef merge(AllTermsSingleShardResponse[] responses, @Nullable BytesRef upTo, long minDocFreq, long size,
+                          List<String> terms, LongArrayList docFreqs) {
+        ShardTermsQueue queue = new ShardTermsQueue(Math.max(1, responses.length));
+        for (AllTermsSingleShardResponse response : responses) {
+            if (response != null && response.shardTerms != null && response.shardTerms.size() > 0) {
+                queue.add(new ShardTerms(response.shardTerms));
+            }
+        }
+        BytesRefBuilder term = new BytesRefBuilder();
+        BytesRefBuilder lastAdded = null;
+        while (terms.size() < size && queue.size() > 0) {
+            ShardTerms top = queue.top();
+            if (upTo != null && top.term.compareTo(upTo) > 0) {
+                break;
+            }
+            term.copyBytes(top.term);
+            long docFreq = 0;
+            do {
+                docFreq += top.docFreq();
+                if (top.next()) {
+                    queue.updateTop();
+                } else {
+                    queue.pop();
+                }
+                top = queue.top();
+            } while (top != null && top.term.bytesEquals(term.get()));
+            if (docFreq >= minDocFreq) {
+                terms.add(term.get().utf8ToString());
+                docFreqs.add(docFreq);
+                if (lastAdded == null) {
+                    lastAdded = new BytesRefBuilder();
+                }
+                lastAdded.copyBytes(term);
+            }
+        }
+        return lastAdded == null ? null : lastAdded.toBytesRef();
+    }
 
+    /**
+     * Sums up the doc freqs of the top terms returned by each shard and appends the size terms with the highest sums that are at
+     * least minDocFreq to terms, ordered by descending doc freq. Returns an upper bound for the error of the summed doc freqs:
+     * a shard that returned shardSize terms might have a term that it did not return with a doc freq up to the one of its least
+     * frequent returned term, like the doc count error of the terms aggregation.
+     */
+    static long mergeTopTerms(AllTermsSingleShardResponse[] responses, int shardSize, long minDocFreq, int size, List<String> terms,
+                              LongArrayList docFreqs) {
+        long errorUpperBound = 0;
+        long numShardTerms = 0;
+        ShardTermsQueue queue = new ShardTermsQueue(Math.max(1, responses.length));
+        for (AllTermsSingleShardResponse response : responses) {
+            if (response != null && response.shardTerms != null && response.shardTerms.size() > 0) {
+                queue.add(new ShardTerms(response.shardTerms));
+                numShardTerms += response.shardTerms.size();
+                if (response.shardTerms.size() >= shardSize) {
+                    long minShardDocFreq = Long.MAX_VALUE;
+                    for (int i = 0; i < response.shardTerms.size(); i++) {
+                        minShardDocFreq = Math.min(minShardDocFreq, response.shardTerms.docFreq(i));
                     }
+                    errorUpperBound += minShardDocFreq;
+                }
+            }
+        }
+        TopTermsQueue topTerms = new TopTermsQueue(size, numShardTerms);
+        BytesRefBuilder term = new BytesRefBuilder();
+        while (queue.size() > 0) {
+            ShardTerms top = queue.top();
+            term.copyBytes(top.term);
+            long docFreq = 0;
+            do {
+                docFreq += top.docFreq();
+                if (top.next()) {
+                    queue.updateTop();
+                } else {
+                    queue.pop();
                 }
+                top = queue.top();
+            } while (top != null && top.term.bytesEquals(term.get()));
+            if (docFreq >= minDocFreq) {
+                topTerms.insert(term.get(), docFreq);
             }
         }
-        if (lastTerm != null) {
-            allTerms.add(lastTerm);
+        for (TopTermsQueue.Entry entry : topTerms.drain()) {
+            terms.add(entry.term.get().utf8ToString());
+            docFreqs.add(entry.docFreq);
         }
-        for (int i = 0; i < size; i++) {
-
-            String curTerm = null;
-            for (int j = 0; j < numResponses; j++) {
-                if (responses[j] != null && responses[j].shardTerms != null) {
-                    if (indices[j] < responses[j].shardTerms.size()) {
-                        if (lastTerm == null) {
-                            curTerm = responses[j].shardTerms.get(indices[j]);
-                            indices[j]++;
-                        } else {
-                            if (responses[j].shardTerms.get(indices[j]).compareTo(lastTerm) == 0) {
-                                //move one further
-                                indices[j]++;
-                                if (indices[j] >= responses[j].shardTerms.size()) {
-                                    continue;
-                                }
-                            }
-                            String candidate = responses[j].shardTerms.get(indices[j]);
-                            if (candidate == null) {
-                                continue;
-                            }
-                            if (curTerm == null) {
-                                curTerm = candidate;
-                            } else {
-                                if (candidate.compareTo(curTerm) < 0) {
-                                    curTerm = candidate;
-                                }
-                            }
-                        }
-                    }
+        return errorUpperBound;
+    }
+
+    /**
+     * Combines the random samples of the shards into a sample of size terms, sorted by term. Each shard sample is a uniform sample
+     * of the shard's candidate terms, so picking the shard of every term with a probability proportional to the number of its
+     * candidates that were not picked yet samples the union of all candidates uniformly. A term picked from several shards is
+     * only added once and its doc freqs are summed up.
+     */
+    static void mergeSamples(AllTermsSingleShardResponse[] responses, int size, Random random, List<String> terms,
+                             LongArrayList docFreqs) {
+        long[] remaining = new long[responses.length];
+        // the terms of shard i that were not picked yet are the first unpicked[i] entries of order[i]
+        int[][] order = new int[responses.length][];
+        int[] unpicked = new int[responses.length];
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i] != null && responses[i].shardTerms.size() > 0) {
+                remaining[i] = Math.max(responses[i].sampledFrom, responses[i].shardTerms.size());
+                unpicked[i] = responses[i].shardTerms.size();
+                order[i] = new int[unpicked[i]];
+                for (int j = 0; j < unpicked[i]; j++) {
+                    order[i][j] = j;
                 }
             }
-            if (curTerm != null) {
-                allTerms.add(curTerm);
-                lastTerm = curTerm;
-            } else {
+        }
+        Map<BytesRef, Long> sample = new HashMap<>();
+        BytesRef spare = new BytesRef();
+        while (sample.size() < size) {
+            long total = 0;
+            for (int i = 0; i < responses.length; i++) {
+                if (unpicked[i] > 0) {
+                    total += remaining[i];
+                }
+            }
+            if (total == 0) {
                 break;
             }
+            long pick = (long) (random.nextDouble() * total);
+            int shard = 0;
+            while (unpicked[shard] == 0 || pick >= remaining[shard]) {
+                if (unpicked[shard] > 0) {
+                    pick -= remaining[shard];
+                }
+                shard++;
+            }
+            int j = random.nextInt(unpicked[shard]);
+            int termIndex = order[shard][j];
+            order[shard][j] = order[shard][--unpicked[shard]];
+            remaining[shard]--;
+            responses[shard].shardTerms.term(termIndex, spare);
+            long shardDocFreq = responses[shard].shardTerms.docFreq(termIndex);
+            if (sample.computeIfPresent(spare, (term, docFreq) -> docFreq + shardDocFreq) == null) {
+                sample.put(BytesRef.deepCopyOf(spare), shardDocFreq);
+            }
+        }
+        BytesRef[] sorted = sample.keySet().toArray(new BytesRef[sample.size()]);
+        Arrays.sort(sorted);
+        for (BytesRef term : sorted) {
+            terms.add(term.utf8ToString());
+            docFreqs.add(sample.get(term));
         }
     }
 
+    private static final class ShardTerms {
+        private final TermsWithDocFreqs terms;
+        private final BytesRef term = new BytesRef();
+        private int index;
+
+        ShardTerms(TermsWithDocFreqs terms) {
+            this.terms = terms;
+            terms.term(0, term);
+        }
+
+        long docFreq() {
+            return terms.docFreq(index);
+        }
+
+        boolean next() {
+            if (++index < terms.size()) {
+                terms.term(index, term);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class ShardTermsQueue extends PriorityQueue<ShardTerms> {
+
+        ShardTermsQueue(int size) {
+            super(size);
+        }
+
+        @Override
+        protected boolean lessThan(ShardTerms a, ShardTerms b) {
+            return a.term.compareTo(b.term) < 0;
+        }
+    }
 
     @Override
     public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        RestActions.buildBroadcastShardsHeader(builder, params, this);
         builder.field(Fields.TERMS, allTerms);
+        if (docFreqErrorUpperBound >= 0) {
+            builder.field(Fields.DOC_FREQS, docFreqs);
+            builder.field(Fields.DOC_FREQ_ERROR_UPPER_BOUND, docFreqErrorUpperBound);
+        }
+        if (cursor != null) {
+            builder.field(Fields.CURSOR, cursor);
+        }
         return builder;
     }
 
     static final class Fields {
         static final String TERMS = "terms";
+        static final String CURSOR = "cursor";
+        static final String DOC_FREQS = "doc_freqs";
+        static final String DOC_FREQ_ERROR_UPPER_BOUND = "doc_freq_error_upper_bound";
     }
 
     @Override
     public void readFrom(StreamInput in) throws IOException {
         super.readFrom(in);
         allTerms = Arrays.asList(in.readStringArray());
+        docFreqs = in.readVLongArray();
+        cursor = in.readOptionalString();
+        docFreqErrorUpperBound = in.readLong();
     }
 
     @Override
     public void writeTo(StreamOutput out) throws IOException {
         super.writeTo(out);
         out.writeStringArray(allTerms.toArray(new String[allTerms.size()]));
+        out.writeVLongArray(docFreqs);
+        out.writeOptionalString(cursor);
+        out.writeLong(docFreqErrorUpperBound);
     }
 }
\ No newline at end of file
@@ -19,6 +19,7 @@
 
 package org.elasticsearch.action.allterms;
 
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.action.ActionRequestValidationException;
 import org.elasticsearch.action.support.single.shard.SingleShardRequest;
 import org.elasticsearch.common.io.stream.StreamInput;
@@ -28,7 +29,7 @@ import java.io.IOException;
 
 public class AllTermsShardRequest extends SingleShardRequest<AllTermsShardRequest> {
 
-    private String from;
+    private BytesRef from;
     private int shardId;
     private String preference;
 
@@ -36,13 +37,18 @@ public class AllTermsShardRequest extends SingleShardRequest<AllTermsShardReques
 
     int size = 0;
     private long minDocFreq = 0;
+    private String prefix;
+    private String include;
+    private String exclude;
+    private AllTermsRequest.Sort sort = AllTermsRequest.Sort.TERM;
+    private long seed;
 
     @Override
     public ActionRequestValidationException validate() {
         return null;
     }
 
-    protected AllTermsShardRequest(AllTermsRequest request, String index, int shardId, String field, int size, String from,
+    protected AllTermsShardRequest(AllTermsRequest request, String index, int shardId, String field, int size, BytesRef from,
                                    long minDocFreq) {
         super(index);
         this.shardId = shardId;
@@ -50,6 +56,10 @@ public class AllTermsShardRequest extends SingleShardRequest<AllTermsShardReques
         this.size = size;
         this.from = from;
         this.minDocFreq = minDocFreq;
+        this.prefix = request.prefix();
+        this.include = request.include();
+        this.exclude = request.exclude();
+        this.sort = request.sort();
     }
 
     public AllTermsShardRequest() {
@@ -81,8 +91,13 @@ public class AllTermsShardRequest extends SingleShardRequest<AllTermsShardReques
         preference = in.readOptionalString();
         field = in.readString();
         size = in.readInt();
-        from = in.readOptionalString();
+        from = in.readBoolean() ? in.readBytesRef() : null;
         minDocFreq = in.readLong();
+        prefix = in.readOptionalString();
+        include = in.readOptionalString();
+        exclude = in.readOptionalString();
+        sort = AllTermsRequest.Sort.values()[in.readVInt()];
+        seed = in.readLong();
     }
 
     @Override
@@ -91,8 +106,16 @@ public class AllTermsShardRequest extends SingleShardRequest<AllTermsShardReques
         out.writeOptionalString(preference);
         out.writeString(field);
         out.writeInt(size);
-        out.writeOptionalString(from);
+        out.writeBoolean(from != null);
+        if (from != null) {
+            out.writeBytesRef(from);
+        }
         out.writeLong(minDocFreq);
+        out.writeOptionalString(prefix);
+        out.writeOptionalString(include);
+        out.writeOptionalString(exclude);
+        out.writeVInt(sort.ordinal());
+        out.writeLong(seed);
     }
 
     public String field() {
@@ -103,11 +126,38 @@ public class AllTermsShardRequest extends SingleShardRequest<AllTermsShardReques
         return size;
     }
 
-    public String from() {
+    public BytesRef from() {
         return from;
     }
 
     public long minDocFreq() {
         return minDocFreq;
     }
+
+    public String prefix() {
+        return prefix;
+    }
+
+    public String include() {
+        return include;
+    }
+
+    public String exclude() {
+        return exclude;
+    }
+
+    public AllTermsRequest.Sort sort() {
+        return sort;
+    }
+
+    /**
+     * Sets the seed for sampling the terms of this shard
+     */
+    void seed(long seed) {
+        this.seed = seed;
+    }
+
+    public long seed() {
+        return seed;
+    }
 }
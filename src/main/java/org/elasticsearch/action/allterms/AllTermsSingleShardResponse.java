@@ -24,33 +24,40 @@ import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 public class AllTermsSingleShardResponse extends ActionResponse {
 
 
-    List<String> shardTerms = new ArrayList<>();
+    TermsWithDocFreqs shardTerms = new TermsWithDocFreqs();
+
+    // for sort=random the number of terms the shard terms were sampled from
+    long sampledFrom;
 
     AllTermsSingleShardResponse() {
 
     }
 
-    AllTermsSingleShardResponse(List<String> shardTerms) {
+    AllTermsSingleShardResponse(TermsWithDocFreqs shardTerms) {
+        this.shardTerms = shardTerms;
+    }
+
+    AllTermsSingleShardResponse(TermsWithDocFreqs shardTerms, long sampledFrom) {
         this.shardTerms = shardTerms;
+        this.sampledFrom = sampledFrom;
     }
 
 
     @Override
     public void readFrom(StreamInput in) throws IOException {
         super.readFrom(in);
-        shardTerms = Arrays.asList(in.readStringArray());
+        shardTerms = new TermsWithDocFreqs(in);
+        sampledFrom = in.readVLong();
     }
 
     @Override
     public void writeTo(StreamOutput out) throws IOException {
         super.writeTo(out);
-        out.writeStringArray(shardTerms.toArray(new String[shardTerms.size()]));
+        shardTerms.writeTo(out);
+        out.writeVLong(sampledFrom);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.allterms;
+
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+
+import java.io.IOException;
+
+/**
+ * The terms and doc freqs of a field in a single segment, copied to heap together with the statistics of the field.
+ * <p>
+ * The terms enum supports seeking by term and by ord, so {@link Terms#intersect} works through the default automaton based
+ * implementation and random samples can be drawn by ord. Postings are not available.
+ */
+final class CachedSegmentTerms extends Terms {
+
+    private final TermsWithDocFreqs terms;
+    private final CircuitBreaker breaker;
+    private final long sumTotalTermFreq;
+    private final long sumDocFreq;
+    private final int docCount;
+    private final boolean hasFreqs;
+    private final boolean hasOffsets;
+    private final boolean hasPositions;
+    private final boolean hasPayloads;
+
+    /**
+     * Wraps terms that were copied from the given segment terms. The copy is accounted on the given breaker.
+     */
+    CachedSegmentTerms(Terms segmentTerms, TermsWithDocFreqs terms, CircuitBreaker breaker) throws IOException {
+        this.terms = terms;
+        this.breaker = breaker;
+        sumTotalTermFreq = segmentTerms.getSumTotalTermFreq();
+        sumDocFreq = segmentTerms.getSumDocFreq();
+        docCount = segmentTerms.getDocCount();
+        hasFreqs = segmentTerms.hasFreqs();
+        hasOffsets = segmentTerms.hasOffsets();
+        hasPositions = segmentTerms.hasPositions();
+        hasPayloads = segmentTerms.hasPayloads();
+    }
+
+    CircuitBreaker breaker() {
+        return breaker;
+    }
+
+    long ramBytesUsed() {
+        return terms.ramBytesUsed();
+    }
+
+    @Override
+    public TermsEnum iterator() throws IOException {
+        return new CachedTermsEnum();
+    }
+
+    @Override
+    public long size() throws IOException {
+        return terms.size();
+    }
+
+    @Override
+    public long getSumTotalTermFreq() throws IOException {
+        return sumTotalTermFreq;
+    }
+
+    @Override
+    public long getSumDocFreq() throws IOException {
+        return sumDocFreq;
+    }
+
+    @Override
+    public int getDocCount() throws IOException {
+        return docCount;
+    }
+
+    @Override
+    public boolean hasFreqs() {
+        return hasFreqs;
+    }
+
+    @Override
+    public boolean hasOffsets() {
+        return hasOffsets;
+    }
+
+    @Override
+    public boolean hasPositions() {
+        return hasPositions;
+    }
+
+    @Override
+    public boolean hasPayloads() {
+        return hasPayloads;
+    }
+
+    private final class CachedTermsEnum extends TermsEnum {
+
+        private final BytesRef term = new BytesRef();
+        private int ord = -1;
+
+        @Override
+        public SeekStatus seekCeil(BytesRef text) throws IOException {
+            ord = terms.ceil(text);
+            if (ord == terms.size()) {
+                return SeekStatus.END;
+            }
+            return terms.term(ord, term).bytesEquals(text) ? SeekStatus.FOUND : SeekStatus.NOT_FOUND;
+        }
+
+        @Override
+        public void seekExact(long ord) throws IOException {
+            assert ord >= 0 && ord < terms.size();
+            this.ord = (int) ord;
+            terms.term(this.ord, term);
+        }
+
+        @Override
+        public BytesRef next() throws IOException {
+            if (ord + 1 >= terms.size()) {
+                ord = terms.size();
+                return null;
+            }
+            return terms.term(++ord, term);
+        }
+
+        @Override
+        public BytesRef term() throws IOException {
+            return term;
+        }
+
+        @Override
+        public long ord() throws IOException {
+            return ord;
+        }
+
+        @Override
+        public int docFreq() throws IOException {
+            return (int) terms.docFreq(ord);
+        }
+
+        @Override
+        public long totalTermFreq() throws IOException {
+            return -1;
+        }
+
+        @Override
+        public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+            throw new UnsupportedOperationException("cached terms have no postings");
+        }
+    }
+}
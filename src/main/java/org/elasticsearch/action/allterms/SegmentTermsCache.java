@@ -0,0 +1,286 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.allterms;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Node level cache of the terms dictionaries of segments.
+ * <p>
+ * Segments never change, so the terms and doc freqs of a field in a segment that were read once can be reused by every
+ * following _allterms request until the segment is closed. Entries are keyed by the core cache key of the segment and the
+ * field, are evicted least recently used first when the cache is full and are invalidated as soon as the segment core is
+ * closed. Only segments with at most {@link #MAX_TERMS_PER_ENTRY_SETTING} terms are cached, so that a request for a few
+ * terms doesn't pay for copying a large dictionary.
+ * <p>
+ * The heap used by the copies is accounted on the circuit breaker passed to {@link #terms}, while they are being copied and
+ * until they are removed from the cache. A copy is abandoned as soon as the breaker trips or the copy gets larger than the
+ * whole cache, and the segment is then read directly.
+ */
+public class SegmentTermsCache extends AbstractComponent implements LeafReader.CoreClosedListener {
+
+    public static final Setting<ByteSizeValue> CACHE_SIZE_SETTING =
+            Setting.byteSizeSetting("allterms.terms_cache.size", "1%", Property.NodeScope);
+    public static final Setting<Integer> MAX_TERMS_PER_ENTRY_SETTING =
+            Setting.intSetting("allterms.terms_cache.max_terms_per_entry", 100000, 0, Property.NodeScope);
+
+    private final Cache<Key, CachedSegmentTerms> cache;
+    private final int maxTermsPerEntry;
+    private final long maxWeight;
+    private final Set<Object> registeredCores = ConcurrentCollections.newConcurrentSet();
+    private final CounterMetric hits = new CounterMetric();
+    private final CounterMetric misses = new CounterMetric();
+    private final CounterMetric evictions = new CounterMetric();
+
+    public SegmentTermsCache(Settings settings) {
+        super(settings);
+        this.maxTermsPerEntry = MAX_TERMS_PER_ENTRY_SETTING.get(settings);
+        this.maxWeight = CACHE_SIZE_SETTING.get(settings).bytes();
+        this.cache = CacheBuilder.<Key, CachedSegmentTerms>builder()
+                .setMaximumWeight(maxWeight)
+                .weigher((key, terms) -> terms.ramBytesUsed())
+                .removalListener(this::onRemoval)
+                .build();
+    }
+
+    /**
+     * Returns the terms of the field in the segment, served from the cache if possible. Returns null if the segment doesn't
+     * have the field. Terms that are copied to the cache are accounted on the given breaker.
+     */
+    public Terms terms(LeafReader reader, String field, CircuitBreaker breaker) throws IOException {
+        Key key = new Key(reader.getCoreCacheKey(), field);
+        CachedSegmentTerms cached = cache.get(key);
+        if (cached != null) {
+            hits.inc();
+            return cached;
+        }
+        misses.inc();
+        Terms terms = reader.terms(field);
+        if (terms == null || terms.size() < 0 || terms.size() > maxTermsPerEntry) {
+            return terms;
+        }
+        if (registeredCores.add(key.coreKey)) {
+            reader.addCoreClosedListener(this);
+        }
+        try {
+            return cache.computeIfAbsent(key, k -> new CachedSegmentTerms(terms, copyTerms(terms, field, breaker), breaker));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CircuitBreakingException) {
+                logger.debug("not caching the terms of field [{}]: {}", field, e.getCause().getMessage());
+                return terms;
+            }
+            throw new ElasticsearchException("failed to load terms of field [{}]", e.getCause(), field);
+        }
+    }
+
+    /**
+     * Copies the terms and doc freqs, adding to the breaker whenever the copy grows. Releases what was added and throws
+     * {@link CircuitBreakingException} if the breaker trips or the copy wouldn't fit in the cache.
+     */
+    private TermsWithDocFreqs copyTerms(Terms segmentTerms, String field, CircuitBreaker breaker) throws IOException {
+        TermsWithDocFreqs terms = new TermsWithDocFreqs();
+        long accounted = 0;
+        boolean success = false;
+        try {
+            TermsEnum termsEnum = segmentTerms.iterator();
+            for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                terms.add(term, termsEnum.docFreq());
+                long used = terms.ramBytesUsed();
+                if (used > accounted) {
+                    if (used > maxWeight) {
+                        throw new CircuitBreakingException("terms of field [" + field + "] are larger than the terms cache",
+                                used, maxWeight);
+                    }
+                    breaker.addEstimateBytesAndMaybeBreak(used - accounted, field);
+                    accounted = used;
+                }
+            }
+            success = true;
+            return terms;
+        } finally {
+            if (success == false) {
+                breaker.addWithoutBreaking(-accounted);
+            }
+        }
+    }
+
+    @Override
+    public void onClose(Object ownerCoreCacheKey) throws IOException {
+        registeredCores.remove(ownerCoreCacheKey);
+        List<Key> closed = new ArrayList<>();
+        for (Key key : cache.keys()) {
+            if (key.coreKey == ownerCoreCacheKey) {
+                closed.add(key);
+            }
+        }
+        for (Key key : closed) {
+            cache.invalidate(key);
+        }
+    }
+
+    private void onRemoval(RemovalNotification<Key, CachedSegmentTerms> notification) {
+        CachedSegmentTerms terms = notification.getValue();
+        terms.breaker().addWithoutBreaking(-terms.ramBytesUsed());
+        if (notification.getRemovalReason() == RemovalNotification.RemovalReason.EVICTED) {
+            evictions.inc();
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(cache.count(), cache.weight(), hits.count(), misses.count(), evictions.count());
+    }
+
+    private static final class Key {
+        private final Object coreKey;
+        private final String field;
+
+        Key(Object coreKey, String field) {
+            this.coreKey = coreKey;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return coreKey == key.coreKey && field.equals(key.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(coreKey), field);
+        }
+    }
+
+    public static class Stats implements Writeable, ToXContent {
+
+        private final long count;
+        private final long memorySizeInBytes;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        public Stats(long count, long memorySizeInBytes, long hits, long misses, long evictions) {
+            this.count = count;
+            this.memorySizeInBytes = memorySizeInBytes;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public Stats(StreamInput in) throws IOException {
+            count = in.readVLong();
+            memorySizeInBytes = in.readVLong();
+            hits = in.readVLong();
+            misses = in.readVLong();
+            evictions = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(count);
+            out.writeVLong(memorySizeInBytes);
+            out.writeVLong(hits);
+            out.writeVLong(misses);
+            out.writeVLong(evictions);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMemorySizeInBytes() {
+            return memorySizeInBytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * The share of lookups that were served from the cache
+         */
+        public double getHitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field(Fields.COUNT, count);
+            builder.byteSizeField(Fields.MEMORY_SIZE_IN_BYTES, Fields.MEMORY_SIZE, memorySizeInBytes);
+            builder.field(Fields.HITS, hits);
+            builder.field(Fields.MISSES, misses);
+            builder.field(Fields.HIT_RATE, getHitRate());
+            builder.field(Fields.EVICTIONS, evictions);
+            return builder;
+        }
+
+        static final class Fields {
+            static final String COUNT = "count";
+            static final String MEMORY_SIZE = "memory_size";
+            static final String MEMORY_SIZE_IN_BYTES = "memory_size_in_bytes";
+            static final String HITS = "hits";
+            static final String MISSES = "misses";
+            static final String HIT_RATE = "hit_rate";
+            static final String EVICTIONS = "evictions";
+        }
+    }
+}
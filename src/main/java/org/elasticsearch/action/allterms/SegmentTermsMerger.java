@@ -0,0 +1,133 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.allterms;
+
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PriorityQueue;
+import org.elasticsearch.common.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Merges the sorted term dictionaries of several segments into a single sorted stream of unique terms.
+ * <p>
+ * Segment iterators are kept in a priority queue ordered by their current term, so producing the next term costs
+ * O(log(segments)) per segment that contains it instead of a scan over all segments. The doc freq of every merged
+ * term is summed up across segments while the term is being popped from the queue.
+ * <p>
+ * The {@link BytesRef} returned by {@link #next()} points into one of the underlying {@link TermsEnum}s and is
+ * only valid until the following call to {@link #next()}.
+ */
+final class SegmentTermsMerger {
+
+    private final TermsQueue queue;
+
+    // segments positioned on the current term, they are advanced at the beginning of the next call
+    private final SegmentTerms[] top;
+    private int numTop;
+    private long docFreq;
+
+    /**
+     * @param termsEnums unpositioned terms enums, one per segment
+     * @param from       if not null, only terms after this term are returned; if the term itself doesn't exist in a
+     *                   segment, the segment starts from the smallest term greater than it
+     */
+    SegmentTermsMerger(List<TermsEnum> termsEnums, @Nullable BytesRef from) throws IOException {
+        queue = new TermsQueue(Math.max(1, termsEnums.size()));
+        top = new SegmentTerms[termsEnums.size()];
+        for (TermsEnum termsEnum : termsEnums) {
+            BytesRef term;
+            if (from == null) {
+                term = termsEnum.next();
+            } else {
+                TermsEnum.SeekStatus seekStatus = termsEnum.seekCeil(from);
+                if (seekStatus == TermsEnum.SeekStatus.END) {
+                    term = null;
+                } else if (seekStatus == TermsEnum.SeekStatus.FOUND) {
+                    term = termsEnum.next();
+                } else {
+                    term = termsEnum.term();
+                }
+            }
+            if (term != null) {
+                queue.add(new SegmentTerms(termsEnum, term));
+            }
+        }
+    }
+
+    /**
+     * Returns the next smallest term across all segments or null if all segments are exhausted.
+     */
+    BytesRef next() throws IOException {
+        for (int i = 0; i < numTop; i++) {
+            SegmentTerms segmentTerms = top[i];
+            segmentTerms.current = segmentTerms.termsEnum.next();
+            if (segmentTerms.current != null) {
+                queue.add(segmentTerms);
+            }
+            top[i] = null;
+        }
+        numTop = 0;
+        docFreq = 0;
+        if (queue.size() == 0) {
+            return null;
+        }
+        SegmentTerms first = queue.pop();
+        top[numTop++] = first;
+        docFreq += first.termsEnum.docFreq();
+        while (queue.size() > 0 && queue.top().current.bytesEquals(first.current)) {
+            SegmentTerms same = queue.pop();
+            top[numTop++] = same;
+            docFreq += same.termsEnum.docFreq();
+        }
+        return first.current;
+    }
+
+    /**
+     * The sum of doc freqs of the term last returned by {@link #next()} over all segments.
+     */
+    long docFreq() {
+        return docFreq;
+    }
+
+    private static final class SegmentTerms {
+        private final TermsEnum termsEnum;
+        private BytesRef current;
+
+        SegmentTerms(TermsEnum termsEnum, BytesRef current) {
+            this.termsEnum = termsEnum;
+            this.current = current;
+        }
+    }
+
+    private static final class TermsQueue extends PriorityQueue<SegmentTerms> {
+
+        TermsQueue(int size) {
+            super(size);
+        }
+
+        @Override
+        protected boolean lessThan(SegmentTerms a, SegmentTerms b) {
+            return a.current.compareTo(b.current) < 0;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.allterms;
+
+import com.carrotsearch.hppc.LongHashSet;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Draws a uniform random sample of the unique terms of a shard whose doc freq is at least minDocFreq.
+ * <p>
+ * If all segments support seeking by ord the sample is drawn by seeking to random ords, which takes time proportional to the
+ * sample size and not to the size of the terms dictionary. A term that exists in several segments is only accepted when it
+ * was drawn from the first segment that contains it, so every unique term has the same chance to be picked. Otherwise, as with
+ * the default terms dictionary, all terms are enumerated once and sampled with a reservoir of the sample size.
+ */
+final class TermsSampler {
+
+    // bounds the number of ords that are tried when many of them are rejected, for example because of min_doc_freq
+    static final int MAX_DRAWS_PER_TERM = 16;
+
+    private final int size;
+    private final long minDocFreq;
+    private final Random random;
+    private long numCandidates;
+
+    TermsSampler(int size, long minDocFreq, Random random) {
+        this.size = size;
+        this.minDocFreq = minDocFreq;
+        this.random = random;
+    }
+
+    /**
+     * The number of terms the last sample was drawn from. Estimated if the sample was drawn by ord and not all ords were tried.
+     */
+    long numCandidates() {
+        return numCandidates;
+    }
+
+    /**
+     * Samples the terms returned by the merger with a reservoir. The reservoir grows with the number of candidates, so a large
+     * sample size doesn't allocate more than the terms need.
+     */
+    TermsWithDocFreqs sample(SegmentTermsMerger merger) throws IOException {
+        BytesRefBuilder[] reservoir = new BytesRefBuilder[0];
+        long[] docFreqs = new long[0];
+        int sampled = 0;
+        numCandidates = 0;
+        BytesRef term;
+        while ((term = merger.next()) != null) {
+            if (merger.docFreq() < minDocFreq) {
+                continue;
+            }
+            long slot = numCandidates < size ? numCandidates : (long) (random.nextDouble() * (numCandidates + 1));
+            numCandidates++;
+            if (slot < size) {
+                int i = (int) slot;
+                if (i >= reservoir.length) {
+                    int newLength = Math.min(size, ArrayUtil.oversize(i + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+                    reservoir = Arrays.copyOf(reservoir, newLength);
+                    docFreqs = Arrays.copyOf(docFreqs, newLength);
+                }
+                if (reservoir[i] == null) {
+                    reservoir[i] = new BytesRefBuilder();
+                    sampled++;
+                }
+                reservoir[i].copyBytes(term);
+                docFreqs[i] = merger.docFreq();
+            }
+        }
+        return toTermsWithDocFreqs(reservoir, docFreqs, sampled);
+    }
+
+    /**
+     * Samples the terms by seeking to random ords. Returns null if a segment doesn't support ords or doesn't know its number of
+     * terms, in which case {@link #sample(SegmentTermsMerger)} has to be used.
+     */
+    @Nullable
+    TermsWithDocFreqs sampleByOrd(List<Terms> segments) throws IOException {
+        TermsEnum[] termsEnums = new TermsEnum[segments.size()];
+        // ords of segment i start at starts[i] in the concatenation of all segment ords
+        long[] starts = new long[segments.size() + 1];
+        for (int i = 0; i < termsEnums.length; i++) {
+            Terms terms = segments.get(i);
+            if (terms.size() < 0) {
+                return null;
+            }
+            termsEnums[i] = terms.iterator();
+            if (terms.size() > 0) {
+                try {
+                    termsEnums[i].seekExact(0);
+                } catch (UnsupportedOperationException e) {
+                    return null;
+                }
+            }
+            starts[i + 1] = starts[i] + terms.size();
+        }
+        long numPositions = starts[termsEnums.length];
+        long maxDraws = Math.min(numPositions, Math.max(1024, (long) MAX_DRAWS_PER_TERM * size));
+        LongHashSet drawn = new LongHashSet();
+        // there can't be more terms than positions
+        int capacity = (int) Math.min(size, numPositions);
+        BytesRefBuilder[] sample = new BytesRefBuilder[capacity];
+        long[] docFreqs = new long[capacity];
+        int sampled = 0;
+        long accepted = 0;
+        BytesRefBuilder term = new BytesRefBuilder();
+        while (sampled < capacity && drawn.size() < maxDraws) {
+            long position = (long) (random.nextDouble() * numPositions);
+            if (drawn.add(position) == false) {
+                continue;
+            }
+            int segment = Arrays.binarySearch(starts, position);
+            // positions are the start of a segment or fall between two starts, skip over empty segments
+            segment = segment >= 0 ? segment : -segment - 2;
+            while (starts[segment + 1] == position) {
+                segment++;
+            }
+            termsEnums[segment].seekExact(position - starts[segment]);
+            term.copyBytes(termsEnums[segment].term());
+            long docFreq = termsEnums[segment].docFreq();
+            boolean first = true;
+            for (int i = 0; i < segment && first; i++) {
+                first = termsEnums[i].seekExact(term.get()) == false;
+            }
+            if (first == false) {
+                continue;
+            }
+            for (int i = segment + 1; i < termsEnums.length; i++) {
+                if (termsEnums[i].seekExact(term.get())) {
+                    docFreq += termsEnums[i].docFreq();
+                }
+            }
+            if (docFreq < minDocFreq) {
+                continue;
+            }
+            accepted++;
+            sample[sampled] = new BytesRefBuilder();
+            sample[sampled].copyBytes(term);
+            docFreqs[sampled] = docFreq;
+            sampled++;
+        }
+        // the share of accepted draws estimates the share of positions that hold a candidate term
+        numCandidates = drawn.size() == numPositions ? accepted : Math.round((double) accepted * numPositions / drawn.size());
+        return toTermsWithDocFreqs(sample, docFreqs, sampled);
+    }
+
+    private static TermsWithDocFreqs toTermsWithDocFreqs(BytesRefBuilder[] terms, long[] docFreqs, int size) {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> terms[i].get()));
+        TermsWithDocFreqs sorted = new TermsWithDocFreqs();
+        for (int i : order) {
+            sorted.add(terms[i].get(), docFreqs[i]);
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.allterms;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.StringHelper;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+
+import java.io.IOException;
+
+/**
+ * A sorted list of terms and their doc freqs as returned by a shard.
+ * <p>
+ * Terms are kept as raw bytes in one flat array, so neither the shard nor the coordinating node need to create an object
+ * per term or convert terms to strings. On the wire each term is front coded against the previous one: the length of the
+ * prefix shared with the previous term, the remaining suffix and the doc freq. Since terms are sorted neighbouring terms
+ * often share long prefixes.
+ */
+final class TermsWithDocFreqs implements Writeable {
+
+    private byte[] bytes;
+    // term i is stored in bytes[offsets[i]] to bytes[offsets[i + 1]]
+    private int[] offsets;
+    private long[] docFreqs;
+    private int size;
+
+    TermsWithDocFreqs() {
+        bytes = new byte[0];
+        offsets = new int[1];
+        docFreqs = new long[0];
+    }
+
+    TermsWithDocFreqs(StreamInput in) throws IOException {
+        size = in.readVInt();
+        offsets = new int[size + 1];
+        docFreqs = new long[size];
+        bytes = new byte[in.readVInt()];
+        for (int i = 0; i < size; i++) {
+            int start = offsets[i];
+            int prefix = in.readVInt();
+            int suffix = in.readVInt();
+            if (prefix > 0) {
+                System.arraycopy(bytes, offsets[i - 1], bytes, start, prefix);
+            }
+            in.readBytes(bytes, start + prefix, suffix);
+            offsets[i + 1] = start + prefix + suffix;
+            docFreqs[i] = in.readVLong();
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(size);
+        out.writeVInt(offsets[size]);
+        BytesRef previous = new BytesRef();
+        BytesRef current = new BytesRef();
+        for (int i = 0; i < size; i++) {
+            term(i, current);
+            int prefix = i == 0 ? 0 : StringHelper.bytesDifference(previous, current);
+            out.writeVInt(prefix);
+            out.writeVInt(current.length - prefix);
+            out.writeBytes(current.bytes, current.offset + prefix, current.length - prefix);
+            out.writeVLong(docFreqs[i]);
+            BytesRef tmp = previous;
+            previous = current;
+            current = tmp;
+        }
+    }
+
+    /**
+     * Appends a copy of the term. Terms must be added in sorted order.
+     */
+    void add(BytesRef term, long docFreq) {
+        assert size == 0 || term(size - 1, new BytesRef()).compareTo(term) < 0 : "terms must be unique and sorted";
+        int start = offsets[size];
+        bytes = ArrayUtil.grow(bytes, start + term.length);
+        System.arraycopy(term.bytes, term.offset, bytes, start, term.length);
+        offsets = ArrayUtil.grow(offsets, size + 2);
+        offsets[size + 1] = start + term.length;
+        docFreqs = ArrayUtil.grow(docFreqs, size + 1);
+        docFreqs[size] = docFreq;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Points spare to the i-th term and returns it. The bytes must not be modified.
+     */
+    BytesRef term(int i, BytesRef spare) {
+        spare.bytes = bytes;
+        spare.offset = offsets[i];
+        spare.length = offsets[i + 1] - offsets[i];
+        return spare;
+    }
+
+    long docFreq(int i) {
+        return docFreqs[i];
+    }
+
+    /**
+     * Returns the index of the smallest term that is greater than or equal to the given term, or {@link #size()} if there is
+     * no such term.
+     */
+    int ceil(BytesRef term) {
+        BytesRef spare = new BytesRef();
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (term(mid, spare).compareTo(term) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(bytes) + RamUsageEstimator.sizeOf(offsets) + RamUsageEstimator.sizeOf(docFreqs);
+    }
+}
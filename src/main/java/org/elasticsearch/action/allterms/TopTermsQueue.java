@@ -0,0 +1,95 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.allterms;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * Keeps the terms with the highest doc freqs seen so far, ties are broken in favour of the smaller term.
+ * <p>
+ * The queue is a min-heap of bounded size, so a term that cannot make it into the top terms costs a single comparison
+ * against the head of the queue. Terms are only copied when they are inserted and the entry that drops out of the queue
+ * is reused for the next insertion.
+ */
+final class TopTermsQueue extends PriorityQueue<TopTermsQueue.Entry> {
+
+    static final class Entry {
+        final BytesRefBuilder term = new BytesRefBuilder();
+        long docFreq;
+    }
+
+    private final int maxSize;
+
+    /**
+     * @param size     the number of top terms to keep
+     * @param maxTerms an upper bound for the number of terms that will be inserted or -1 if unknown, the queue allocates
+     *                 its heap up front so it should not be larger than needed
+     */
+    TopTermsQueue(int size, long maxTerms) {
+        this(maxTerms < 0 ? size : (int) Math.min(size, maxTerms));
+    }
+
+    private TopTermsQueue(int maxSize) {
+        super(maxSize);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean lessThan(Entry a, Entry b) {
+        return lessThan(a.term.get(), a.docFreq, b.term.get(), b.docFreq);
+    }
+
+    private static boolean lessThan(BytesRef aTerm, long aDocFreq, BytesRef bTerm, long bDocFreq) {
+        if (aDocFreq != bDocFreq) {
+            return aDocFreq < bDocFreq;
+        }
+        return aTerm.compareTo(bTerm) > 0;
+    }
+
+    /**
+     * Adds a copy of the term if it is among the top terms seen so far.
+     */
+    void insert(BytesRef term, long docFreq) {
+        if (size() < maxSize) {
+            Entry entry = new Entry();
+            entry.term.copyBytes(term);
+            entry.docFreq = docFreq;
+            add(entry);
+        } else if (size() > 0 && lessThan(top().term.get(), top().docFreq, term, docFreq)) {
+            Entry entry = top();
+            entry.term.copyBytes(term);
+            entry.docFreq = docFreq;
+            updateTop();
+        }
+    }
+
+    /**
+     * Empties the queue and returns its entries ordered by descending doc freq and ascending term.
+     */
+    Entry[] drain() {
+        Entry[] entries = new Entry[size()];
+        for (int i = entries.length - 1; i >= 0; i--) {
+            entries[i] = pop();
+        }
+        return entries;
+    }
+}
@@ -19,23 +19,41 @@
 
 package org.elasticsearch.action.allterms;
 
+import com.carrotsearch.hppc.BitMixer;
+import com.carrotsearch.hppc.LongArrayList;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchTimeoutException;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ShardOperationFailedException;
 import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
 import org.elasticsearch.action.support.HandledTransportAction;
 import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
 import org.elasticsearch.cluster.block.ClusterBlockLevel;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.routing.GroupShardsIterator;
 import org.elasticsearch.cluster.routing.ShardIterator;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Randomness;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
 import org.elasticsearch.common.util.concurrent.AtomicArray;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.aggregations.bucket.BucketUtils;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Supplier;
 
 public class TransportAllTermsAction extends HandledTransportAction<AllTermsRequest, AllTermsResponse> {
 
@@ -43,6 +61,10 @@ public class TransportAllTermsAction extends HandledTransportAction<AllTermsRequ
 
     private final TransportAllTermsShardAction shardAction;
 
+    // bounds the number of terms a round of an index wide min_doc_freq request may pull from all shards together
+    static final int MAX_TERMS_PER_ROUND = 100000;
+    static final int MIN_SHARD_SIZE = 100;
+
     @Inject
     public TransportAllTermsAction(Settings settings, ThreadPool threadPool, TransportService transportService,
                                    ClusterService clusterService, TransportAllTermsShardAction shardAction, ActionFilters actionFilters,
@@ -58,38 +80,308 @@ public class TransportAllTermsAction extends HandledTransportAction<AllTermsRequ
         ClusterState clusterState = clusterService.state();
 
         clusterState.blocks().globalBlockedRaiseException(ClusterBlockLevel.READ);
+        String[] concreteIndices = indexNameExpressionResolver.concreteIndexNames(clusterState, request);
+        ClusterBlockException blockException = clusterState.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+        if (blockException != null) {
+            throw blockException;
+        }
+
+        final AllTermsCursor cursor;
+        try {
+            cursor = request.cursor() == null ? null : AllTermsCursor.decode(request.cursor());
+        } catch (IllegalArgumentException e) {
+            listener.onFailure(e);
+            return;
+        }
+        final BytesRef from;
+        if (cursor != null) {
+            from = cursor.lastTerm();
+        } else {
+            from = request.from() == null ? null : new BytesRef(request.from());
+        }
 
-        final GroupShardsIterator groupShardsIterator = clusterService.operationRouting().searchShards(clusterState, request.indices(),
+        final GroupShardsIterator groupShardsIterator = clusterService.operationRouting().searchShards(clusterState, concreteIndices,
                 null, null);
-        final AtomicArray<AllTermsSingleShardResponse> shardResponses = new AtomicArray<>(groupShardsIterator.size());
-        final AtomicInteger shardCounter = new AtomicInteger(shardResponses.length());
-        for (final ShardIterator shardIterator : groupShardsIterator) {
-            final AllTermsShardRequest shardRequest = new AllTermsShardRequest(request, request.indices()[0], shardIterator.shardId().id(),
-                    request.field(), request.size(), request.from(), request.minDocFreq());
-            shardAction.execute(shardRequest, new ActionListener<AllTermsSingleShardResponse>() {
-                @Override
-                public void onResponse(AllTermsSingleShardResponse response) {
-                    shardResponses.set(shardIterator.shardId().id(), response);
-                    if (shardCounter.decrementAndGet() == 0) {
-                        finish();
+        new AsyncAllTermsAction(request, groupShardsIterator, cursor, listener).start(from);
+    }
+
+    /**
+     * Collects terms in rounds. In every round each shard that might still have terms returns the next shardSize terms after
+     * from together with their doc freqs. The summed up doc freqs are only complete for terms up to the smallest last term
+     * returned by a shard that has more terms, so only these terms are added to the response and the next round starts after
+     * that term. With per shard min_doc_freq each shard returns size terms and the first round is always enough. With index
+     * wide min_doc_freq shards return all terms and further rounds are needed until enough terms pass the threshold. Each round
+     * holds at most shardSize terms per shard, which keeps memory on the coordinating node bounded regardless of how many
+     * terms need to be skipped.
+     * <p>
+     * When sorting by doc freq there is a single round in which every shard enumerates all of its terms and returns the shardSize
+     * most frequent ones, which are then summed up like the buckets of a terms aggregation. Random samples also need a single
+     * round in which every shard returns a sample of size terms.
+     * <p>
+     * Shards that fail or don't respond before the request times out are not asked again and are reported in the response.
+     */
+    private class AsyncAllTermsAction {
+
+        private final AllTermsRequest request;
+        private final ActionListener<AllTermsResponse> listener;
+
+        // sorted by shard id, all other per shard state is indexed by the position in this array
+        private final ShardIterator[] shardIterators;
+        // exhausted shards have no terms after the ones already added to the response
+        private final boolean[] exhausted;
+        private final AtomicArray<ShardOperationFailedException> shardFailures;
+
+        private final int shardSize;
+        private final long shardMinDocFreq;
+        private final long minDocFreq;
+        private final long startTimeNanos = System.nanoTime();
+
+        private final List<String> terms = new ArrayList<>();
+        private final LongArrayList docFreqs = new LongArrayList();
+        private BytesRef lastTerm;
+        private long docFreqErrorUpperBound = -1;
+        private final long seed;
+
+        AsyncAllTermsAction(AllTermsRequest request, GroupShardsIterator groupShardsIterator, AllTermsCursor cursor,
+                            ActionListener<AllTermsResponse> listener) {
+            this.request = request;
+            this.listener = listener;
+            List<ShardIterator> sorted = new ArrayList<>();
+            for (ShardIterator shardIterator : groupShardsIterator) {
+                sorted.add(shardIterator);
+            }
+            sorted.sort(Comparator.comparing(ShardIterator::shardId));
+            shardIterators = sorted.toArray(new ShardIterator[sorted.size()]);
+            exhausted = new boolean[shardIterators.length];
+            shardFailures = new AtomicArray<>(shardIterators.length);
+            for (int i = 0; i < shardIterators.length; i++) {
+                exhausted[i] = cursor != null && cursor.isExhausted(shardIterators[i].shardId());
+            }
+            seed = request.seed() != null ? request.seed() : Randomness.get().nextLong();
+            if (request.sort() == AllTermsRequest.Sort.RANDOM) {
+                shardSize = request.size();
+                shardMinDocFreq = request.minDocFreq();
+                minDocFreq = 0;
+            } else if (request.sort() == AllTermsRequest.Sort.DOC_FREQ) {
+                shardSize = request.shardSize() > 0 ? request.shardSize() :
+                        BucketUtils.suggestShardSideQueueSize(request.size(), shardIterators.length);
+                boolean indexWide = request.minDocFreqMode() == AllTermsRequest.MinDocFreqMode.INDEX;
+                shardMinDocFreq = indexWide ? 0 : request.minDocFreq();
+                minDocFreq = indexWide ? request.minDocFreq() : 0;
+            } else if (request.minDocFreqMode() == AllTermsRequest.MinDocFreqMode.INDEX) {
+                shardSize = Math.max(MIN_SHARD_SIZE, Math.min(request.size(), MAX_TERMS_PER_ROUND / Math.max(1, shardIterators.length)));
+                shardMinDocFreq = 0;
+                minDocFreq = request.minDocFreq();
+            } else {
+                shardSize = request.size();
+                shardMinDocFreq = request.minDocFreq();
+                minDocFreq = 0;
+            }
+        }
+
+        void start(BytesRef from) {
+            if (request.size() <= 0) {
+                finish(new AllTermsSingleShardResponse[shardIterators.length]);
+                return;
+            }
+            round(from);
+        }
+
+        private void round(BytesRef from) {
+            List<Integer> targets = new ArrayList<>();
+            for (int i = 0; i < shardIterators.length; i++) {
+                if (exhausted[i] == false && shardFailures.get(i) == null) {
+                    targets.add(i);
+                }
+            }
+            if (targets.isEmpty()) {
+                finish(new AllTermsSingleShardResponse[shardIterators.length]);
+                return;
+            }
+            new Round(targets).start(from);
+        }
+
+        private void onRoundDone(AllTermsSingleShardResponse[] shardResponses) {
+            if (request.sort() == AllTermsRequest.Sort.DOC_FREQ) {
+                // a single round: every shard already enumerated all of its terms
+                docFreqErrorUpperBound = AllTermsResponse.mergeTopTerms(shardResponses, shardSize, minDocFreq, request.size(), terms,
+                        docFreqs);
+                finish(shardResponses);
+                return;
+            }
+            if (request.sort() == AllTermsRequest.Sort.RANDOM) {
+                AllTermsResponse.mergeSamples(shardResponses, request.size(), new Random(BitMixer.mix64(seed)), terms, docFreqs);
+                finish(shardResponses);
+                return;
+            }
+            BytesRef horizon = null;
+            for (AllTermsSingleShardResponse shardResponse : shardResponses) {
+                if (shardResponse != null && shardResponse.shardTerms.size() >= shardSize) {
+                    BytesRef shardLastTerm = shardResponse.shardTerms.term(shardResponse.shardTerms.size() - 1, new BytesRef());
+                    if (horizon == null || shardLastTerm.compareTo(horizon) < 0) {
+                        horizon = shardLastTerm;
                     }
                 }
+            }
+            BytesRef lastAdded = AllTermsResponse.merge(shardResponses, horizon, minDocFreq, request.size(), terms, docFreqs);
+            if (lastAdded != null) {
+                lastTerm = lastAdded;
+            }
+            if (terms.size() >= request.size() || horizon == null || timedOut()) {
+                finish(shardResponses);
+            } else {
+                markExhausted(exhausted, shardResponses, horizon, shardSize);
+                round(horizon);
+            }
+        }
+
+        private boolean timedOut() {
+            return request.timeout() != null && System.nanoTime() - startTimeNanos >= request.timeout().nanos();
+        }
+
+        private void finish(AllTermsSingleShardResponse[] lastRound) {
+            String cursor = null;
+            if (lastTerm != null) {
+                ShardId[] shardIds = new ShardId[shardIterators.length];
+                for (int i = 0; i < shardIterators.length; i++) {
+                    shardIds[i] = shardIterators[i].shardId();
+                }
+                cursor = nextCursor(exhausted, shardIds, lastRound, lastTerm, shardSize);
+            }
+            List<ShardOperationFailedException> failures = new ArrayList<>();
+            for (int i = 0; i < shardIterators.length; i++) {
+                if (shardFailures.get(i) != null) {
+                    failures.add(shardFailures.get(i));
+                }
+            }
+            listener.onResponse(new AllTermsResponse(terms, docFreqs.toArray(), cursor, docFreqErrorUpperBound, shardIterators.length,
+                    shardIterators.length - failures.size(), failures.size(), failures));
+        }
+
+        /**
+         * Sends one request to each target shard and waits until all of them responded or the request timed out.
+         */
+        private class Round {
+
+            private final List<Integer> targets;
+            private final AtomicArray<AllTermsSingleShardResponse> shardResponses;
+            private final AtomicInteger pending;
+            private final AtomicBoolean completed = new AtomicBoolean();
+            private volatile ScheduledFuture<?> timeoutFuture;
 
-                @Override
-                public void onFailure(Exception e) {
-                    if (shardCounter.decrementAndGet() == 0) {
-                        finish();
+            Round(List<Integer> targets) {
+                this.targets = targets;
+                this.shardResponses = new AtomicArray<>(shardIterators.length);
+                this.pending = new AtomicInteger(targets.size());
+            }
+
+            void start(BytesRef from) {
+                if (request.timeout() != null) {
+                    long remainingNanos = request.timeout().nanos() - (System.nanoTime() - startTimeNanos);
+                    if (remainingNanos <= 0) {
+                        complete();
+                        return;
                     }
+                    timeoutFuture = threadPool.schedule(TimeValue.timeValueNanos(remainingNanos), ThreadPool.Names.SAME, this::complete);
+                }
+                for (final int shardIndex : targets) {
+                    final ShardId shardId = shardIterators[shardIndex].shardId();
+                    final AllTermsShardRequest shardRequest = new AllTermsShardRequest(request, shardId.getIndexName(), shardId.id(),
+                            request.field(), shardSize, from, shardMinDocFreq);
+                    // every shard draws a different sample, but the same one for the same seed
+                    shardRequest.seed(seed + 31L * shardId.getIndexName().hashCode() + shardId.id());
+                    shardAction.execute(shardRequest, new ActionListener<AllTermsSingleShardResponse>() {
+                        @Override
+                        public void onResponse(AllTermsSingleShardResponse response) {
+                            shardResponses.set(shardIndex, response);
+                            onShardDone();
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            if (completed.get() == false) {
+                                shardFailures.set(shardIndex, new DefaultShardOperationFailedException(shardId.getIndexName(),
+                                        shardId.id(), e));
+                            }
+                            onShardDone();
+                        }
+                    });
+                }
+            }
+
+            private void onShardDone() {
+                if (pending.decrementAndGet() == 0) {
+                    complete();
                 }
+            }
 
-                public void finish() {
-                    AllTermsResponse response = new AllTermsResponse(shardResponses.toArray(
-                            new AllTermsSingleShardResponse[shardResponses.length()]), request.size());
-                    listener.onResponse(response);
+            private void complete() {
+                if (completed.compareAndSet(false, true) == false) {
+                    return;
                 }
-            });
+                if (timeoutFuture != null) {
+                    timeoutFuture.cancel(false);
+                }
+                final AllTermsSingleShardResponse[] responses = shardResponses.toArray(
+                        new AllTermsSingleShardResponse[shardResponses.length()]);
+                for (int shardIndex : targets) {
+                    if (responses[shardIndex] == null && shardFailures.get(shardIndex) == null) {
+                        ShardId shardId = shardIterators[shardIndex].shardId();
+                        shardFailures.set(shardIndex, new DefaultShardOperationFailedException(shardId.getIndexName(), shardId.id(),
+                                new ElasticsearchTimeoutException("shard did not respond within [{}]", request.timeout())));
+                    }
+                }
+                // merging can be expensive and must not happen on a network thread
+                threadPool.executor(AllTermsAction.THREAD_POOL_NAME).execute(new AbstractRunnable() {
+                    @Override
+                    protected void doRun() throws Exception {
+                        onRoundDone(responses);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        listener.onFailure(e);
+                    }
+                });
+            }
         }
+    }
 
+    /**
+     * Marks shards as exhausted that returned less than shardSize terms and don't have any terms after lastTerm.
+     */
+    static void markExhausted(boolean[] exhausted, AllTermsSingleShardResponse[] responses, BytesRef lastTerm, int shardSize) {
+        BytesRef spare = new BytesRef();
+        for (int i = 0; i < responses.length; i++) {
+            AllTermsSingleShardResponse shardResponse = responses[i];
+            if (shardResponse == null || shardResponse.shardTerms.size() >= shardSize) {
+                continue;
+            }
+            TermsWithDocFreqs shardTerms = shardResponse.shardTerms;
+            if (shardTerms.size() == 0 || shardTerms.term(shardTerms.size() - 1, spare).compareTo(lastTerm) <= 0) {
+                exhausted[i] = true;
+            }
+        }
     }
 
+    /**
+     * Builds the cursor for the page that follows lastTerm given the responses of the last round. Returns null if all shards are
+     * exhausted.
+     */
+    static String nextCursor(boolean[] exhausted, ShardId[] shardIds, AllTermsSingleShardResponse[] lastRound, BytesRef lastTerm,
+                             int shardSize) {
+        boolean[] exhaustedAfterLastTerm = exhausted.clone();
+        markExhausted(exhaustedAfterLastTerm, lastRound, lastTerm, shardSize);
+        ShardId[] exhaustedShards = new ShardId[shardIds.length];
+        int numExhausted = 0;
+        for (int i = 0; i < shardIds.length; i++) {
+            if (exhaustedAfterLastTerm[i]) {
+                exhaustedShards[numExhausted++] = shardIds[i];
+            }
+        }
+        if (numExhausted == shardIds.length) {
+            return null;
+        }
+        return new AllTermsCursor(lastTerm, Arrays.copyOf(exhaustedShards, numExhausted)).encode();
+    }
 }
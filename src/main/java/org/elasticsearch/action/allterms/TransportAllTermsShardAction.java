@@ -19,11 +19,17 @@
 
 package org.elasticsearch.action.allterms;
 
+import com.carrotsearch.hppc.BitMixer;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.RegExp;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.support.ActionFilters;
 import org.elasticsearch.action.support.single.shard.TransportSingleShardAction;
@@ -31,6 +37,8 @@ import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.routing.ShardIterator;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.index.IndexService;
@@ -38,16 +46,21 @@ import org.elasticsearch.index.engine.Engine;
 import org.elasticsearch.index.shard.IndexShard;
 import org.elasticsearch.index.shard.ShardId;
 import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 public class TransportAllTermsShardAction extends TransportSingleShardAction<AllTermsShardRequest, AllTermsSingleShardResponse> {
 
     private final IndicesService indicesService;
+    private final SegmentTermsCache termsCache;
+    private final CircuitBreakerService breakerService;
 
     private static final String ACTION_NAME = AllTermsAction.NAME + "[s]";
 
@@ -55,10 +68,13 @@ public class TransportAllTermsShardAction extends TransportSingleShardAction<All
     @Inject
     public TransportAllTermsShardAction(Settings settings, ClusterService clusterService, TransportService transportService,
                                         IndicesService indicesService, ThreadPool threadPool, ActionFilters actionFilters,
-                                        IndexNameExpressionResolver indexNameExpressionResolver) {
+                                        IndexNameExpressionResolver indexNameExpressionResolver, SegmentTermsCache termsCache,
+                                        CircuitBreakerService breakerService) {
         super(settings, ACTION_NAME, threadPool, clusterService, transportService, actionFilters, indexNameExpressionResolver,
-                AllTermsShardRequest::new, ThreadPool.Names.GENERIC);
+                AllTermsShardRequest::new, AllTermsAction.THREAD_POOL_NAME);
         this.indicesService = indicesService;
+        this.termsCache = termsCache;
+        this.breakerService = breakerService;
     }
 
     @Override
@@ -68,7 +84,7 @@ public class TransportAllTermsShardAction extends TransportSingleShardAction<All
 
     @Override
     protected AllTermsSingleShardResponse newResponse() {
-        return new AllTermsSingleShardResponse(null);
+        return new AllTermsSingleShardResponse();
     }
 
     @Override
@@ -84,7 +100,6 @@ public class TransportAllTermsShardAction extends TransportSingleShardAction<All
 
     @Override
     protected AllTermsSingleShardResponse shardOperation(AllTermsShardRequest request, ShardId shardId) throws ElasticsearchException {
-        List<String> terms = new ArrayList<>();
         IndexService indexService = indicesService.indexServiceSafe(shardId.getIndex());
         IndexShard indexShard = indexService.getShard(shardId.id());
         final Engine.Searcher searcher = indexShard.acquireSearcher("all_terms");
@@ -93,163 +108,186 @@ public class TransportAllTermsShardAction extends TransportSingleShardAction<All
         List<LeafReaderContext> leaves = topLevelReader.leaves();
 
         try {
-            if (leaves.size() == 0) {
-                return new AllTermsSingleShardResponse(terms);
-            }
-            getTerms(request, terms, leaves);
-
-            return new AllTermsSingleShardResponse(terms);
+            return getTerms(request, leaves, termsCache, breakerService.getBreaker(CircuitBreaker.FIELDDATA));
         } finally {
             searcher.close();
         }
     }
 
-    protected static void getTerms(AllTermsShardRequest request, List<String> terms, List<LeafReaderContext> leaves) {
-        List<TermsEnum> termIters = getTermsEnums(request, leaves);
-        CharsRefBuilder spare = new CharsRefBuilder();
-        BytesRef lastTerm = null;
-        int[] exhausted = new int[termIters.size()];
-        for (int i = 0; i < exhausted.length; i++) {
-            exhausted[i] = 0;
+    protected static AllTermsSingleShardResponse getTerms(AllTermsShardRequest request, List<LeafReaderContext> leaves) {
+        return getTerms(request, leaves, null, null);
+    }
+
+    /**
+     * Returns the terms of the shard, reading the segments through the cache if one is given. The breaker accounts for the
+     * terms that are copied to the cache and is only needed with a cache.
+     */
+    protected static AllTermsSingleShardResponse getTerms(AllTermsShardRequest request, List<LeafReaderContext> leaves,
+                                                          @Nullable SegmentTermsCache termsCache,
+                                                          @Nullable CircuitBreaker breaker) {
+        List<Terms> segments = getSegmentTerms(request.field(), leaves, termsCache, breaker);
+        CompiledAutomaton filter = compileFilter(request);
+        if (request.sort() == AllTermsRequest.Sort.RANDOM) {
+            return sampleTerms(request, filter, segments);
         }
+        List<TermsEnum> termIters = getTermsEnums(request, filter, segments);
+        TermsWithDocFreqs terms = new TermsWithDocFreqs();
         try {
-            lastTerm = findSmallestTermAfter(request, termIters, lastTerm, exhausted);
-
-            if (lastTerm == null) {
-                return;
+            // filtered enums only return terms after from, see compileFilter
+            SegmentTermsMerger merger = new SegmentTermsMerger(termIters, filter == null ? request.from() : null);
+            if (request.sort() == AllTermsRequest.Sort.DOC_FREQ) {
+                return new AllTermsSingleShardResponse(getTopTerms(merger, (int) request.size(), request.minDocFreq(),
+                        maxNumTerms(segments)));
+            }
+            BytesRef term;
+            while (terms.size() < request.size() && (term = merger.next()) != null) {
+                if (merger.docFreq() >= request.minDocFreq()) {
+                    terms.add(term, merger.docFreq());
+                }
             }
-            findNMoreTerms(request, terms, termIters, spare, lastTerm, exhausted);
         } catch (IOException e) {
+            throw new ElasticsearchException("failed to retrieve terms for field [{}]", e, request.field());
         }
+        return new AllTermsSingleShardResponse(terms);
     }
 
-    protected static void findNMoreTerms(AllTermsShardRequest request, List<String> terms, List<TermsEnum> termIters, CharsRefBuilder spare,
-                                         BytesRef lastTerm, int[] exhausted) {
-        if (getDocFreq(termIters, lastTerm, exhausted) >= request.minDocFreq()) {
-            spare.copyUTF8Bytes(lastTerm);
-            terms.add(spare.toString());
-        }
-        BytesRef bytesRef = new BytesRef(lastTerm.utf8ToString());
-        lastTerm = bytesRef;
-        while (terms.size() < request.size() && lastTerm != null) {
-            moveIterators(exhausted, termIters, lastTerm);
-            lastTerm = findMinimum(exhausted, termIters);
-            if (lastTerm != null) {
-                if (getDocFreq(termIters, lastTerm, exhausted) >= request.minDocFreq()) {
-                    spare.copyUTF8Bytes(lastTerm);
-                    terms.add(spare.toString());
-                }
+    /**
+     * Enumerates all terms and returns the size terms with the highest doc freqs, sorted by term like any other shard response.
+     */
+    static TermsWithDocFreqs getTopTerms(SegmentTermsMerger merger, int size, long minDocFreq, long maxNumTerms) throws IOException {
+        TopTermsQueue queue = new TopTermsQueue(size, maxNumTerms);
+        BytesRef term;
+        while ((term = merger.next()) != null) {
+            if (merger.docFreq() >= minDocFreq) {
+                queue.insert(term, merger.docFreq());
             }
         }
+        TopTermsQueue.Entry[] entries = queue.drain();
+        Arrays.sort(entries, (a, b) -> a.term.get().compareTo(b.term.get()));
+        TermsWithDocFreqs terms = new TermsWithDocFreqs();
+        for (TopTermsQueue.Entry entry : entries) {
+            terms.add(entry.term.get(), entry.docFreq);
+        }
+        return terms;
     }
 
-    protected static List<TermsEnum> getTermsEnums(AllTermsShardRequest request, List<LeafReaderContext> leaves) {
-        List<TermsEnum> termIters = new ArrayList<>();
+    private static AllTermsSingleShardResponse sampleTerms(AllTermsShardRequest request, @Nullable CompiledAutomaton filter,
+                                                           List<Terms> segments) {
+        // the first numbers drawn by java.util.Random for close seeds are correlated
+        TermsSampler sampler = new TermsSampler((int) request.size(), request.minDocFreq(),
+                new Random(BitMixer.mix64(request.seed())));
         try {
-            for (LeafReaderContext reader : leaves) {
-                termIters.add(reader.reader().terms(request.field()).iterator());
+            TermsWithDocFreqs sample = null;
+            if (filter == null && request.from() == null) {
+                sample = sampler.sampleByOrd(segments);
+            }
+            if (sample == null) {
+                SegmentTermsMerger merger = new SegmentTermsMerger(getTermsEnums(request, filter, segments),
+                        filter == null ? request.from() : null);
+                sample = sampler.sample(merger);
             }
+            return new AllTermsSingleShardResponse(sample, sampler.numCandidates());
         } catch (IOException e) {
+            throw new ElasticsearchException("failed to retrieve terms for field [{}]", e, request.field());
         }
-        return termIters;
     }
 
-    protected static BytesRef findSmallestTermAfter(AllTermsShardRequest request, List<TermsEnum> termIters, BytesRef lastTerm,
-                                                    int[] exhausted) throws IOException {
-        for (int i = 0; i < termIters.size(); i++) {
-            BytesRef curTerm = null;
-            if (request.from() != null) {
-                // move to the term we want to start after
-                TermsEnum.SeekStatus seekStatus = termIters.get(i).seekCeil(new BytesRef(request.from()));
-                if (seekStatus.equals(TermsEnum.SeekStatus.END)) {
-                    exhausted[i] = 1;
-                } else if (seekStatus.equals(TermsEnum.SeekStatus.FOUND)) {
-                    curTerm = termIters.get(i).next();
-                    if (curTerm == null) {
-                        exhausted[i] = 1;
-                    }
-                } else {
-                    curTerm = termIters.get(i).term(); // otherwise we are good
-                }
-
-            } else {
-                curTerm = termIters.get(i).next();
-                if (curTerm == null) {
-                    exhausted[i] = 1;// which means there were no terms at all which is odd but I am not sure this cannot happen
-                }
-            }
-            // see it it is the smallest term
-            if (exhausted[i] != 1) {
-                if (lastTerm == null) {
-                    lastTerm = curTerm;
-                } else {
-                    if (curTerm.compareTo(lastTerm) < 0) {
-                        lastTerm = curTerm;
-                    }
-                }
+    /**
+     * Returns the sum of the number of terms of all segments, which bounds the number of unique terms, or -1 if a segment
+     * doesn't know its number of terms.
+     */
+    static long maxNumTerms(List<Terms> segments) throws IOException {
+        long numTerms = 0;
+        for (Terms terms : segments) {
+            if (terms.size() < 0) {
+                return -1;
             }
+            numTerms += terms.size();
         }
-        return lastTerm;
-    }
-
-    protected static long getDocFreq(List<TermsEnum> termIters, BytesRef lastTerm, int[] exhausted) {
-        long docFreq = 0;
-        for (int i = 0; i < termIters.size(); i++) {
-            if (exhausted[i] == 0) {
-                try {
-                    if (termIters.get(i).term().compareTo(lastTerm) == 0) {
-                        docFreq += termIters.get(i).docFreq();
-                    }
-                } catch (IOException e) {
+        return numTerms;
+    }
+
+    /**
+     * Returns the terms of the field of every segment that has the field, taken from the cache if one is given.
+     */
+    static List<Terms> getSegmentTerms(String field, List<LeafReaderContext> leaves, @Nullable SegmentTermsCache termsCache,
+                                       @Nullable CircuitBreaker breaker) {
+        List<Terms> segments = new ArrayList<>();
+        try {
+            for (LeafReaderContext reader : leaves) {
+                Terms terms = termsCache == null ? reader.reader().terms(field) : termsCache.terms(reader.reader(), field, breaker);
+                if (terms != null) {
+                    segments.add(terms);
                 }
             }
+        } catch (IOException e) {
+            throw new ElasticsearchException("failed to retrieve terms for field [{}]", e, field);
         }
-        return docFreq;
+        return segments;
     }
 
-    // returns  copy of the lexicographically smallest term found
-    protected static BytesRef findMinimum(int[] exhausted, List<TermsEnum> termIters) {
-        BytesRef minTerm = null;
-        for (int i = 0; i < termIters.size(); i++) {
-            if (exhausted[i] == 1) {
-                continue;
-            }
-            BytesRef candidate = null;
-            try {
-                candidate = termIters.get(i).term();
-            } catch (IOException e) {
-            }
-            if (minTerm == null) {
-                minTerm = candidate;
+    protected static List<TermsEnum> getTermsEnums(AllTermsShardRequest request, List<LeafReaderContext> leaves) {
+        return getTermsEnums(request, null, getSegmentTerms(request.field(), leaves, null, null));
+    }
 
-            } else {
-                //it is actually smaller, so we use it
-                if (minTerm.compareTo(candidate) > 0) {
-                    minTerm = candidate;
-                }
+    /**
+     * Returns one terms enum per segment. If a filter is given, the enums come from
+     * {@link Terms#intersect(CompiledAutomaton, BytesRef)} and only visit the matching terms, the terms dictionary skips
+     * whole blocks of terms that cannot match. The filter already rejects the terms up to {@code from}, which is not passed as
+     * start term because block tree terms require the automaton to accept the start term.
+     */
+    protected static List<TermsEnum> getTermsEnums(AllTermsShardRequest request, @Nullable CompiledAutomaton filter,
+                                                   List<Terms> segments) {
+        List<TermsEnum> termIters = new ArrayList<>();
+        try {
+            for (Terms terms : segments) {
+                termIters.add(filter == null ? terms.iterator() : terms.intersect(filter, null));
             }
+        } catch (IOException e) {
+            throw new ElasticsearchException("failed to retrieve terms for field [{}]", e, request.field());
         }
-        if (minTerm != null) {
-            BytesRef ret = new BytesRef(minTerm.utf8ToString());
-            return ret;
+        return termIters;
+    }
+
+    /**
+     * Builds a single automaton out of the prefix, include and exclude parameters of the request or returns null if the
+     * request has none of them. The automaton only accepts terms after the from parameter of the request.
+     */
+    @Nullable
+    static CompiledAutomaton compileFilter(AllTermsShardRequest request) {
+        if (request.prefix() == null && request.include() == null && request.exclude() == null) {
+            return null;
+        }
+        Automaton automaton = request.include() == null ? Automata.makeAnyString() : new RegExp(request.include()).toAutomaton();
+        if (request.prefix() != null) {
+            Automaton prefix = Operations.concatenate(Automata.makeString(request.prefix()), Automata.makeAnyString());
+            automaton = Operations.intersection(automaton, prefix);
+        }
+        if (request.exclude() != null) {
+            automaton = Operations.minus(automaton, new RegExp(request.exclude()).toAutomaton(),
+                    Operations.DEFAULT_MAX_DETERMINIZED_STATES);
         }
-        return null;
+        if (request.from() != null) {
+            automaton = Operations.intersection(automaton, after(request.from().utf8ToString()));
+        }
+        // intersect only works with NORMAL automata, so don't let it be simplified into a single term or prefix
+        return new CompiledAutomaton(automaton, null, false, Operations.DEFAULT_MAX_DETERMINIZED_STATES, false);
     }
 
-    // last term is expected to be a copy of a term not just some reference into a terms iterator
-    protected static void moveIterators(int[] exhausted, List<TermsEnum> termIters, BytesRef lastTerm) {
-        try {
-            for (int i = 0; i < termIters.size(); i++) {
-                if (exhausted[i] == 1) {
-                    continue;
-                }
-                if (termIters.get(i).term().compareTo(lastTerm) == 0) {
-                    if (termIters.get(i).next() == null) {
-                        exhausted[i] = 1;
-                    }
-                }
+    /**
+     * Accepts the strings that sort after from: from followed by at least one more character, or a common prefix followed
+     * by a greater character. Unicode code point order is the order of the UTF-8 terms.
+     */
+    static Automaton after(String from) {
+        int[] codePoints = from.codePoints().toArray();
+        List<Automaton> after = new ArrayList<>();
+        after.add(Operations.concatenate(Arrays.asList(Automata.makeString(from), Automata.makeAnyChar(), Automata.makeAnyString())));
+        for (int i = 0; i < codePoints.length; i++) {
+            if (codePoints[i] < Character.MAX_CODE_POINT) {
+                after.add(Operations.concatenate(Arrays.asList(Automata.makeString(codePoints, 0, i),
+                        Automata.makeCharRange(codePoints[i] + 1, Character.MAX_CODE_POINT), Automata.makeAnyString())));
             }
-        } catch (IOException e) {
         }
+        return Operations.union(after);
     }
 }
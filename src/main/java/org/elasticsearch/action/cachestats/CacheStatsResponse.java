@@ -0,0 +1,116 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.cachestats;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.allterms.SegmentTermsCache;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.script.pmml.VectorizerCache;
+
+import java.io.IOException;
+import java.util.List;
+
+public class CacheStatsResponse extends BaseNodesResponse<CacheStatsResponse.NodeStats> implements ToXContent {
+
+    CacheStatsResponse() {
+    }
+
+    public CacheStatsResponse(ClusterName clusterName, List<NodeStats> nodes, List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeStats> readNodesFrom(StreamInput in) throws IOException {
+        return in.readList(NodeStats::readNodeStats);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NodeStats> nodes) throws IOException {
+        out.writeStreamableList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("nodes");
+        for (NodeStats nodeStats : getNodes()) {
+            builder.startObject(nodeStats.getNode().getId());
+            builder.field("name", nodeStats.getNode().getName());
+            builder.startObject("terms_cache");
+            nodeStats.getTermsCacheStats().toXContent(builder, params);
+            builder.endObject();
+            builder.startObject("vectorizer_cache");
+            nodeStats.getVectorizerCacheStats().toXContent(builder, params);
+            builder.endObject();
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    public static class NodeStats extends BaseNodeResponse {
+
+        private SegmentTermsCache.Stats termsCacheStats;
+        private VectorizerCache.Stats vectorizerCacheStats;
+
+        NodeStats() {
+        }
+
+        NodeStats(DiscoveryNode node, SegmentTermsCache.Stats termsCacheStats, VectorizerCache.Stats vectorizerCacheStats) {
+            super(node);
+            this.termsCacheStats = termsCacheStats;
+            this.vectorizerCacheStats = vectorizerCacheStats;
+        }
+
+        public SegmentTermsCache.Stats getTermsCacheStats() {
+            return termsCacheStats;
+        }
+
+        public VectorizerCache.Stats getVectorizerCacheStats() {
+            return vectorizerCacheStats;
+        }
+
+        static NodeStats readNodeStats(StreamInput in) throws IOException {
+            NodeStats nodeStats = new NodeStats();
+            nodeStats.readFrom(in);
+            return nodeStats;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            termsCacheStats = new SegmentTermsCache.Stats(in);
+            vectorizerCacheStats = new VectorizerCache.Stats(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            termsCacheStats.writeTo(out);
+            vectorizerCacheStats.writeTo(out);
+        }
+    }
+}
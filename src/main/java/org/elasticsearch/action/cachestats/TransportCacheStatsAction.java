@@ -0,0 +1,90 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.cachestats;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.allterms.SegmentTermsCache;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.script.pmml.VectorizerCache;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+
+public class TransportCacheStatsAction extends TransportNodesAction<CacheStatsRequest, CacheStatsResponse,
+        TransportCacheStatsAction.NodeRequest, CacheStatsResponse.NodeStats> {
+
+    private final SegmentTermsCache termsCache;
+    private final VectorizerCache vectorizerCache;
+
+    @Inject
+    public TransportCacheStatsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                     TransportService transportService, ActionFilters actionFilters,
+                                     IndexNameExpressionResolver indexNameExpressionResolver, SegmentTermsCache termsCache,
+                                     VectorizerCache vectorizerCache) {
+        super(settings, CacheStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, CacheStatsRequest::new, NodeRequest::new, ThreadPool.Names.MANAGEMENT,
+                CacheStatsResponse.NodeStats.class);
+        this.termsCache = termsCache;
+        this.vectorizerCache = vectorizerCache;
+    }
+
+    @Override
+    protected CacheStatsResponse newResponse(CacheStatsRequest request, List<CacheStatsResponse.NodeStats> nodes,
+                                             List<FailedNodeException> failures) {
+        return new CacheStatsResponse(clusterService.getClusterName(), nodes, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, CacheStatsRequest request) {
+        return new NodeRequest(nodeId);
+    }
+
+    @Override
+    protected CacheStatsResponse.NodeStats newNodeResponse() {
+        return new CacheStatsResponse.NodeStats();
+    }
+
+    @Override
+    protected CacheStatsResponse.NodeStats nodeOperation(NodeRequest request) {
+        return new CacheStatsResponse.NodeStats(clusterService.localNode(), termsCache.stats(), vectorizerCache.stats());
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId) {
+            super(nodeId);
+        }
+    }
+}
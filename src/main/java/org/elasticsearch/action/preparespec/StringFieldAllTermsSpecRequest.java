@@ -20,32 +20,75 @@
 package org.elasticsearch.action.preparespec;
 
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.allterms.AllTermsRequest;
 import org.elasticsearch.action.allterms.AllTermsRequestBuilder;
 import org.elasticsearch.action.allterms.AllTermsResponse;
 import org.elasticsearch.client.Client;
 
-public class StringFieldAllTermsSpecRequest implements FieldSpecRequest {
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StringFieldAllTermsSpecRequest extends StringFieldSpecRequest {
+
+    static final int PAGE_SIZE = 10000;
 
     private long min_doc_freq;
-    private String field;
     String index;
-    String number;
+    // if set only the size most frequent terms are used
+    Integer size;
 
     public StringFieldAllTermsSpecRequest(long min_doc_freq, String index, String number, String field) {
+        this(min_doc_freq, index, number, field, null);
+    }
+
+    public StringFieldAllTermsSpecRequest(long min_doc_freq, String index, String number, String field, Integer size) {
+        super(number, field);
         this.min_doc_freq = min_doc_freq;
         this.index = index;
-        this.number = number;
-        this.field = field;
+        this.size = size;
     }
 
     @Override
     public void process(final TransportPrepareSpecAction.FieldSpecActionListener fieldSpecActionListener, Client client) {
-        new AllTermsRequestBuilder(client).field(field).minDocFreq(min_doc_freq).index(index).size(Integer.MAX_VALUE).execute(
+        if (size != null) {
+            fetchTopTerms(fieldSpecActionListener, client);
+        } else {
+            fetchPage(new ArrayList<>(), null, fieldSpecActionListener, client);
+        }
+    }
+
+    private void fetchTopTerms(final TransportPrepareSpecAction.FieldSpecActionListener fieldSpecActionListener, final Client client) {
+        new AllTermsRequestBuilder(client).field(field).minDocFreq(min_doc_freq).minDocFreqMode(AllTermsRequest.MinDocFreqMode.INDEX)
+                .index(index).size(size).sort(AllTermsRequest.Sort.DOC_FREQ).execute(new ActionListener<AllTermsResponse>() {
+            @Override
+            public void onResponse(AllTermsResponse allTerms) {
+                String[] terms = allTerms.getAllTerms().toArray(new String[allTerms.getAllTerms().size()]);
+                // keep the spec in the same order as the one built from all terms
+                Arrays.sort(terms);
+                fieldSpecActionListener.onResponse(createSpec(terms));
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                fieldSpecActionListener.onFailure(exception);
+            }
+        });
+    }
+
+    // pages through the dictionary so that neither the shards nor the coordinating node have to hold all terms of the field at once
+    private void fetchPage(final List<String> terms, String cursor, final TransportPrepareSpecAction.FieldSpecActionListener
+            fieldSpecActionListener, final Client client) {
+        new AllTermsRequestBuilder(client).field(field).minDocFreq(min_doc_freq).index(index).size(PAGE_SIZE).cursor(cursor).execute(
                 new ActionListener<AllTermsResponse>() {
             @Override
             public void onResponse(AllTermsResponse allTerms) {
-                fieldSpecActionListener.onResponse(new StringFieldSpec(allTerms.getAllTerms().toArray(
-                        new String[allTerms.getAllTerms().size()]), number, field));
+                terms.addAll(allTerms.getAllTerms());
+                if (allTerms.getCursor() != null) {
+                    fetchPage(terms, allTerms.getCursor(), fieldSpecActionListener, client);
+                } else {
+                    fieldSpecActionListener.onResponse(createSpec(terms.toArray(new String[terms.size()])));
+                }
             }
 
             @Override
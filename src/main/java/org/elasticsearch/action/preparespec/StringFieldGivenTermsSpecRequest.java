@@ -23,21 +23,18 @@ import org.elasticsearch.client.Client;
 
 import java.util.Arrays;
 
-public class StringFieldGivenTermsSpecRequest implements FieldSpecRequest {
+public class StringFieldGivenTermsSpecRequest extends StringFieldSpecRequest {
 
     private String[] terms;
-    private String field;
-    String number;
 
     public StringFieldGivenTermsSpecRequest(String[] terms, String number, String field) {
+        super(number, field);
         this.terms = terms;
-        this.number = number;
-        this.field = field;
     }
 
     @Override
     public void process(final TransportPrepareSpecAction.FieldSpecActionListener fieldSpecActionListener, Client client) {
         Arrays.sort(terms);
-        fieldSpecActionListener.onResponse(new StringFieldSpec(terms, number, field));
+        fieldSpecActionListener.onResponse(createSpec(terms));
     }
 }
@@ -32,18 +32,15 @@ import java.util.HashSet;
 import java.util.Set;
 
 
-public class StringFieldSignificantTermsSpecRequest implements FieldSpecRequest {
+public class StringFieldSignificantTermsSpecRequest extends StringFieldSpecRequest {
 
     SearchSourceBuilder searchRequest;
     String index;
-    String number;
-    private String field;
 
     public StringFieldSignificantTermsSpecRequest(SearchSourceBuilder searchRequest, String index, String number, String field) {
+        super(number, field);
         this.searchRequest = searchRequest;
         this.index = index;
-        this.number = number;
-        this.field = field;
     }
 
     private Set<String> extractTerms(Aggregation aggregation) {
@@ -75,7 +72,7 @@ public class StringFieldSignificantTermsSpecRequest implements FieldSpecRequest
                 Set<String> terms = extractTerms(termsAgg);
                 String[] finalTerms = terms.toArray(new String[terms.size()]);
                 Arrays.sort(finalTerms);
-                fieldSpecActionListener.onResponse(new StringFieldSpec(finalTerms, number, field));
+                fieldSpecActionListener.onResponse(createSpec(finalTerms));
             }
 
             @Override
@@ -28,12 +28,20 @@ public class StringFieldSpec extends FieldSpec {
     String[] terms;
     String field;
     String number;
+    Double k1;
+    Double b;
 
     public StringFieldSpec(String[] terms, String number, String field) {
+        this(terms, number, field, null, null);
+    }
+
+    public StringFieldSpec(String[] terms, String number, String field, Double k1, Double b) {
         super();
         this.number = number;
         this.field = field;
         this.terms = terms;
+        this.k1 = k1;
+        this.b = b;
     }
 
     @Override
@@ -43,6 +51,12 @@ public class StringFieldSpec extends FieldSpec {
         xContentBuilder.field("field", field);
         xContentBuilder.field("terms", terms);
         xContentBuilder.field("type", "terms");
+        if (k1 != null) {
+            xContentBuilder.field("k1", k1);
+        }
+        if (b != null) {
+            xContentBuilder.field("b", b);
+        }
         xContentBuilder.endObject();
         return xContentBuilder;
     }
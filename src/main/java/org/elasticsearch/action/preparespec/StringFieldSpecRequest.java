@@ -0,0 +1,49 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.preparespec;
+
+/**
+ * Base class of the requests that collect the terms of a string field and turn them into a {@link StringFieldSpec}
+ */
+public abstract class StringFieldSpecRequest implements FieldSpecRequest {
+
+    final String number;
+    final String field;
+    // bm25 parameters, null to use the defaults
+    Double k1;
+    Double b;
+
+    protected StringFieldSpecRequest(String number, String field) {
+        this.number = number;
+        this.field = field;
+    }
+
+    /**
+     * Sets the k1 and b parameters of a bm25 feature
+     */
+    public void bm25(Double k1, Double b) {
+        this.k1 = k1;
+        this.b = b;
+    }
+
+    StringFieldSpec createSpec(String[] terms) {
+        return new StringFieldSpec(terms, number, field, k1, b);
+    }
+}
@@ -25,6 +25,7 @@ import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.indices.query.IndicesQueriesRegistry;
+import org.elasticsearch.script.modelinput.AnalyzedTextVectorRange;
 import org.elasticsearch.search.aggregations.AggregatorParsers;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.suggest.Suggesters;
@@ -51,6 +52,19 @@ public class StringFieldSpecRequestFactory {
         if (number == null) {
             throw new ElasticsearchException("number parameter missing from prepare spec request");
         }
+        Double k1 = parseBm25Parameter(parameters.remove("k1"), "k1", number);
+        Double b = parseBm25Parameter(parameters.remove("b"), "b", number);
+        AnalyzedTextVectorRange.checkBm25Parameters(k1 == null ? AnalyzedTextVectorRange.DEFAULT_BM25_K1 : k1,
+                b == null ? AnalyzedTextVectorRange.DEFAULT_BM25_B : b);
+        StringFieldSpecRequest request = createRequest(queryRegistry, aggParsers, suggesters, parseFieldMatcher, parameters, field,
+                tokens, number);
+        request.bm25(k1, b);
+        return request;
+    }
+
+    private static StringFieldSpecRequest createRequest(IndicesQueriesRegistry queryRegistry, AggregatorParsers aggParsers,
+                                                        Suggesters suggesters, ParseFieldMatcher parseFieldMatcher,
+                                                        Map<String, Object> parameters, String field, String tokens, String number) {
         if (TokenGenerateMethod.fromString(tokens).equals(TokenGenerateMethod.SIGNIFICANT_TERMS)) {
             String searchRequest = (String) parameters.remove("request");
             if (searchRequest == null) {
@@ -75,8 +89,10 @@ public class StringFieldSpecRequestFactory {
                 throw new ElasticsearchException("min_doc_freq parameter missing from prepare spec request");
             }
             long min_doc_freq = ((Number) min_doc_freq_obj).longValue();
+            Object size_obj = parameters.remove("size");
+            Integer size = size_obj == null ? null : ((Number) size_obj).intValue();
             assertParametersEmpty(parameters);
-            return new StringFieldAllTermsSpecRequest(min_doc_freq, index, number, field);
+            return new StringFieldAllTermsSpecRequest(min_doc_freq, index, number, field, size);
         }
         if (TokenGenerateMethod.fromString(tokens).equals(TokenGenerateMethod.GIVEN)) {
             @SuppressWarnings("unchecked")
@@ -90,6 +106,19 @@ public class StringFieldSpecRequestFactory {
         throw new UnsupportedOperationException("Have not implemented given yet!");
     }
 
+    private static Double parseBm25Parameter(Object value, String name, String number) {
+        if (value == null) {
+            return null;
+        }
+        if (AnalyzedTextVectorRange.FeatureType.BM25.toString().equals(number) == false) {
+            throw new ElasticsearchException(name + " parameter is only supported with number [bm25]");
+        }
+        if (value instanceof Number == false) {
+            throw new ElasticsearchException(name + " parameter must be a number but was [" + value + "]");
+        }
+        return ((Number) value).doubleValue();
+    }
+
     private static void assertParametersEmpty(Map<String, Object> parameters) {
         if (parameters.isEmpty() == false) {
             throw new IllegalStateException("found additional parameters and don't know what to do with them!" +
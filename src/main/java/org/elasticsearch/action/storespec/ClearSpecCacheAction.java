@@ -0,0 +1,47 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.storespec;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Drops the vectorizer of a stored spec from the cache of every node, so that the next script reloads the spec. If the request
+ * has the new version of the spec, nodes replace the vectorizer with the one of the new version instead.
+ */
+public class ClearSpecCacheAction extends Action<ClearSpecCacheRequest, ClearSpecCacheResponse, ClearSpecCacheRequestBuilder> {
+
+    public static final ClearSpecCacheAction INSTANCE = new ClearSpecCacheAction();
+    public static final String NAME = "cluster:admin/store_spec/clear_cache";
+
+    private ClearSpecCacheAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ClearSpecCacheResponse newResponse() {
+        return new ClearSpecCacheResponse();
+    }
+
+    @Override
+    public ClearSpecCacheRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new ClearSpecCacheRequestBuilder(client);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.storespec;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.Map;
+
+public class ClearSpecCacheRequest extends BaseNodesRequest<ClearSpecCacheRequest> {
+
+    private String specId;
+    private Map<String, Object> spec;
+
+    public ClearSpecCacheRequest() {
+    }
+
+    public ClearSpecCacheRequest(String specId, String... nodesIds) {
+        super(nodesIds);
+        this.specId = specId;
+    }
+
+    public String specId() {
+        return specId;
+    }
+
+    public ClearSpecCacheRequest specId(String specId) {
+        this.specId = specId;
+        return this;
+    }
+
+    public Map<String, Object> spec() {
+        return spec;
+    }
+
+    /**
+     * The new version of the spec. Nodes build and cache its vectorizer instead of dropping the cached one, so that no
+     * script has to load the spec.
+     */
+    public ClearSpecCacheRequest spec(Map<String, Object> spec) {
+        this.spec = spec;
+        return this;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        specId = in.readString();
+        spec = in.readBoolean() ? in.readMap() : null;
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(specId);
+        out.writeBoolean(spec != null);
+        if (spec != null) {
+            out.writeMap(spec);
+        }
+    }
+}
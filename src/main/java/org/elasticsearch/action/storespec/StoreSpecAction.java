@@ -0,0 +1,49 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.storespec;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class StoreSpecAction extends Action<StoreSpecRequest, StoreSpecResponse, StoreSpecRequestBuilder> {
+
+    public static final StoreSpecAction INSTANCE = new StoreSpecAction();
+    public static final String NAME = "cluster:admin/store_spec";
+
+    /**
+     * The index that holds the stored specs, one document per spec with the spec under the {@code spec} field
+     */
+    public static final String SPEC_INDEX = ".vector_specs";
+    public static final String SPEC_TYPE = "spec";
+
+    private StoreSpecAction() {
+        super(NAME);
+    }
+
+    @Override
+    public StoreSpecResponse newResponse() {
+        return new StoreSpecResponse();
+    }
+
+    @Override
+    public StoreSpecRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new StoreSpecRequestBuilder(client);
+    }
+}
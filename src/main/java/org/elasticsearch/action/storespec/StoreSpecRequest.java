@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.storespec;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ValidateActions;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+public class StoreSpecRequest extends ActionRequest<StoreSpecRequest> {
+
+    private String id;
+    private BytesReference source;
+
+    public StoreSpecRequest() {
+
+    }
+
+    public StoreSpecRequest(String id, BytesReference source) {
+        this.id = id;
+        this.source = source;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = null;
+        if (id == null) {
+            validationException = ValidateActions.addValidationError("store_spec needs an id", validationException);
+        }
+        if (source == null) {
+            validationException = ValidateActions.addValidationError("store_spec needs a source", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        id = in.readOptionalString();
+        source = in.readBytesReference();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeOptionalString(id);
+        out.writeBytesReference(source);
+    }
+
+    public StoreSpecRequest id(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    /**
+     * The spec, either as returned in the {@code spec} field of a _prepare_spec response or the whole response
+     */
+    public StoreSpecRequest source(BytesReference source) {
+        this.source = source;
+        return this;
+    }
+
+    public BytesReference source() {
+        return source;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.storespec;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.script.pmml.VectorizerCache;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+public class TransportClearSpecCacheAction extends TransportNodesAction<ClearSpecCacheRequest, ClearSpecCacheResponse,
+        TransportClearSpecCacheAction.NodeRequest, ClearSpecCacheResponse.NodeResponse> {
+
+    private final VectorizerCache vectorizerCache;
+
+    @Inject
+    public TransportClearSpecCacheAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                         TransportService transportService, ActionFilters actionFilters,
+                                         IndexNameExpressionResolver indexNameExpressionResolver, VectorizerCache vectorizerCache) {
+        super(settings, ClearSpecCacheAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, ClearSpecCacheRequest::new, NodeRequest::new, ThreadPool.Names.MANAGEMENT,
+                ClearSpecCacheResponse.NodeResponse.class);
+        this.vectorizerCache = vectorizerCache;
+    }
+
+    @Override
+    protected ClearSpecCacheResponse newResponse(ClearSpecCacheRequest request, List<ClearSpecCacheResponse.NodeResponse> nodes,
+                                                 List<FailedNodeException> failures) {
+        return new ClearSpecCacheResponse(clusterService.getClusterName(), nodes, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, ClearSpecCacheRequest request) {
+        return new NodeRequest(nodeId, request.specId(), request.spec());
+    }
+
+    @Override
+    protected ClearSpecCacheResponse.NodeResponse newNodeResponse() {
+        return new ClearSpecCacheResponse.NodeResponse();
+    }
+
+    @Override
+    protected ClearSpecCacheResponse.NodeResponse nodeOperation(NodeRequest request) {
+        if (request.spec != null) {
+            vectorizerCache.putStoredSpec(request.specId, request.spec);
+        } else {
+            vectorizerCache.invalidateStoredSpec(request.specId);
+        }
+        return new ClearSpecCacheResponse.NodeResponse(clusterService.localNode());
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        private String specId;
+        private Map<String, Object> spec;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, String specId, Map<String, Object> spec) {
+            super(nodeId);
+            this.specId = specId;
+            this.spec = spec;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            specId = in.readString();
+            spec = in.readBoolean() ? in.readMap() : null;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(specId);
+            out.writeBoolean(spec != null);
+            if (spec != null) {
+                out.writeMap(spec);
+            }
+        }
+    }
+}
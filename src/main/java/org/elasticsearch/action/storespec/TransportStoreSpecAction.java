@@ -0,0 +1,190 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.storespec;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.script.modelinput.VectorRangesToVectorJSON;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Stores a spec in the spec index and then sends it to all nodes, which build its vectorizer and replace the cached one, so
+ * that scripts that reference the spec by id pick up the new version without loading it.
+ */
+public class TransportStoreSpecAction extends HandledTransportAction<StoreSpecRequest, StoreSpecResponse> {
+
+    private final Client client;
+    private final ClusterService clusterService;
+
+    @Inject
+    public TransportStoreSpecAction(Settings settings, ThreadPool threadPool, TransportService transportService,
+                                    ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver,
+                                    ClusterService clusterService, Client client) {
+        super(settings, StoreSpecAction.NAME, threadPool, transportService, actionFilters, indexNameExpressionResolver,
+                StoreSpecRequest::new);
+        this.client = client;
+        this.clusterService = clusterService;
+    }
+
+    @Override
+    protected void doExecute(final StoreSpecRequest request, final ActionListener<StoreSpecResponse> listener) {
+        final Map<String, Object> spec;
+        final XContentBuilder document;
+        try {
+            spec = parseSpec(XContentHelper.convertToMap(request.source(), true).v2());
+            document = jsonBuilder().startObject().field("spec", spec).endObject();
+        } catch (Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+        if (clusterService.state().metaData().hasIndex(StoreSpecAction.SPEC_INDEX)) {
+            storeSpec(request.id(), spec, document, listener);
+            return;
+        }
+        try {
+            client.admin().indices().prepareCreate(StoreSpecAction.SPEC_INDEX)
+                    .setSettings(Settings.builder()
+                            .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                            .put(IndexMetaData.SETTING_AUTO_EXPAND_REPLICAS, "0-all"))
+                    .addMapping(StoreSpecAction.SPEC_TYPE, specMapping())
+                    .execute(new ActionListener<CreateIndexResponse>() {
+                        @Override
+                        public void onResponse(CreateIndexResponse createIndexResponse) {
+                            storeSpec(request.id(), spec, document, listener);
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException) {
+                                // another request created it in the meantime
+                                storeSpec(request.id(), spec, document, listener);
+                            } else {
+                                listener.onFailure(e);
+                            }
+                        }
+                    });
+        } catch (IOException e) {
+            listener.onFailure(e);
+        }
+    }
+
+    private void storeSpec(final String id, Map<String, Object> spec, XContentBuilder document,
+                           final ActionListener<StoreSpecResponse> listener) {
+        client.prepareIndex(StoreSpecAction.SPEC_INDEX, StoreSpecAction.SPEC_TYPE, id).setSource(document)
+                .execute(new ActionListener<IndexResponse>() {
+                    @Override
+                    public void onResponse(final IndexResponse indexResponse) {
+                        final StoreSpecResponse response = new StoreSpecResponse(id, indexResponse.getVersion(),
+                                indexResponse.getResult() == DocWriteResponse.Result.CREATED);
+                        client.execute(ClearSpecCacheAction.INSTANCE, new ClearSpecCacheRequest(id).spec(spec),
+                                new ActionListener<ClearSpecCacheResponse>() {
+                                    @Override
+                                    public void onResponse(ClearSpecCacheResponse clearSpecCacheResponse) {
+                                        if (clearSpecCacheResponse.hasFailures()) {
+                                            logger.warn("failed to cache the vectorizer of spec [{}] on some nodes: {}", id,
+                                                    clearSpecCacheResponse.failures());
+                                        }
+                                        listener.onResponse(response);
+                                    }
+
+                                    @Override
+                                    public void onFailure(Exception e) {
+                                        listener.onFailure(e);
+                                    }
+                                });
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        listener.onFailure(e);
+                    }
+                });
+    }
+
+    /**
+     * Returns the spec from the body of a store spec request, which is either a spec or a whole _prepare_spec response.
+     * Throws an {@link IllegalArgumentException} if the spec is incomplete.
+     */
+    static Map<String, Object> parseSpec(Map<String, Object> source) {
+        Map<String, Object> spec = source;
+        if (source.containsKey("features") == false && source.containsKey("spec")) {
+            spec = XContentMapValues.nodeMapValue(source.get("spec"), "spec");
+        }
+        if (spec.get("features") instanceof List == false) {
+            throw new IllegalArgumentException("spec must have a list of features");
+        }
+        for (Object feature : (List<?>) spec.get("features")) {
+            Map<String, Object> featureMap = XContentMapValues.nodeMapValue(feature, "feature");
+            for (String key : new String[]{"field", "type", "number"}) {
+                if (featureMap.get(key) instanceof String == false) {
+                    throw new IllegalArgumentException("feature " + featureMap.keySet() + " of spec must have a [" + key + "]");
+                }
+            }
+            if (featureMap.get("terms") instanceof List == false) {
+                throw new IllegalArgumentException("feature [" + featureMap.get("field") + "] of spec must have a list of terms");
+            }
+            for (String key : new String[]{"k1", "b"}) {
+                if (featureMap.containsKey(key) && featureMap.get(key) instanceof Number == false) {
+                    throw new IllegalArgumentException("[" + key + "] of feature [" + featureMap.get("field") + "] must be a number");
+                }
+            }
+        }
+        // fails early on anything else that the vectorizer can't handle
+        new VectorRangesToVectorJSON(spec);
+        return spec;
+    }
+
+    private static XContentBuilder specMapping() throws IOException {
+        // specs can have a lot of terms, they are only ever loaded by id
+        return jsonBuilder().startObject()
+                .startObject(StoreSpecAction.SPEC_TYPE)
+                .field("dynamic", "strict")
+                .startObject("properties")
+                .startObject("spec")
+                .field("type", "object")
+                .field("enabled", false)
+                .endObject()
+                .endObject()
+                .endObject()
+                .endObject();
+    }
+}
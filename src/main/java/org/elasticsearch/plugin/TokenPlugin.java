@@ -22,15 +22,25 @@ package org.elasticsearch.plugin;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.action.allterms.AllTermsAction;
+import org.elasticsearch.action.allterms.SegmentTermsCache;
 import org.elasticsearch.action.allterms.TransportAllTermsAction;
 import org.elasticsearch.action.allterms.TransportAllTermsShardAction;
+import org.elasticsearch.action.cachestats.CacheStatsAction;
+import org.elasticsearch.action.cachestats.TransportCacheStatsAction;
 import org.elasticsearch.action.preparespec.PrepareSpecAction;
 import org.elasticsearch.action.preparespec.TransportPrepareSpecAction;
+import org.elasticsearch.action.storespec.ClearSpecCacheAction;
+import org.elasticsearch.action.storespec.StoreSpecAction;
+import org.elasticsearch.action.storespec.TransportClearSpecCacheAction;
+import org.elasticsearch.action.storespec.TransportStoreSpecAction;
 import org.elasticsearch.action.trainnaivebayes.TrainNaiveBayesAction;
 import org.elasticsearch.action.trainnaivebayes.TransportTrainNaiveBayesAction;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.ScriptPlugin;
@@ -39,16 +49,27 @@ import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.rest.action.allterms.RestAllTermsAction;
 import org.elasticsearch.rest.action.preparespec.RestPrepareSpecAction;
 import org.elasticsearch.rest.action.storemodel.RestStoreModelAction;
+import org.elasticsearch.rest.action.storespec.RestStoreSpecAction;
+import org.elasticsearch.rest.action.cachestats.RestCacheStatsAction;
 import org.elasticsearch.rest.action.trainnaivebayes.RestTrainNaiveBayesAction;
 import org.elasticsearch.script.NativeScriptFactory;
 import org.elasticsearch.script.ScriptEngineService;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.modelinput.IdfCache;
 import org.elasticsearch.script.pmml.PMMLModelScriptEngineService;
 import org.elasticsearch.script.pmml.VectorScriptFactory;
+import org.elasticsearch.script.pmml.VectorizerCache;
 import org.elasticsearch.search.fetch.FetchSubPhase;
 import org.elasticsearch.search.fetch.analyzedtext.AnalyzedTextFetchSubPhase;
+import org.elasticsearch.search.fetch.modelfields.ModelFieldsFetchSubPhase;
 import org.elasticsearch.search.fetch.termvectors.TermVectorsFetchSubPhase;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -59,21 +80,48 @@ public class TokenPlugin extends Plugin implements ScriptPlugin, ActionPlugin, S
 
     private final Settings settings;
     private final boolean transportClientMode;
+    private final VectorizerCache vectorizerCache;
+    private final IdfCache idfCache;
 
 
     public TokenPlugin(Settings settings) {
         this.settings = settings;
         this.transportClientMode = TransportClient.CLIENT_TYPE.equals(settings.get(Client.CLIENT_TYPE_SETTING_S.getKey()));;
+        // native scripts are registered before components are created, so the cache can't be created in createComponents
+        this.vectorizerCache = new VectorizerCache(settings);
+        this.idfCache = new IdfCache();
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        int size = Math.max(1, EsExecutors.boundedNumberOfProcessors(settings) / 2);
+        return Collections.singletonList(new FixedExecutorBuilder(settings, AllTermsAction.THREAD_POOL_NAME, size, 1000,
+                "thread_pool." + AllTermsAction.THREAD_POOL_NAME));
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService) {
+        vectorizerCache.setClient(client, threadPool);
+        clusterService.add(vectorizerCache);
+        return Arrays.asList(new SegmentTermsCache(settings), vectorizerCache);
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(SegmentTermsCache.CACHE_SIZE_SETTING, SegmentTermsCache.MAX_TERMS_PER_ENTRY_SETTING,
+                VectorizerCache.CACHE_MAX_SIZE_SETTING, VectorizerCache.CACHE_EXPIRE_SETTING,
+                PMMLModelScriptEngineService.COEFFICIENT_FORMAT_SETTING, PMMLModelScriptEngineService.MMAP_COEFFICIENTS_SETTING);
     }
 
     @Override
     public ScriptEngineService getScriptEngineService(Settings settings) {
-        return new PMMLModelScriptEngineService(settings);
+        return new PMMLModelScriptEngineService(settings, idfCache);
     }
 
     @Override
     public List<NativeScriptFactory> getNativeScripts() {
-        return Collections.singletonList(new VectorScriptFactory());
+        return Collections.singletonList(new VectorScriptFactory(vectorizerCache, idfCache));
     }
 
     @Override
@@ -81,18 +129,21 @@ public class TokenPlugin extends Plugin implements ScriptPlugin, ActionPlugin, S
         return Arrays.asList(new ActionHandler<>(AllTermsAction.INSTANCE, TransportAllTermsAction.class,
                         TransportAllTermsShardAction.class),
                 new ActionHandler<>(PrepareSpecAction.INSTANCE, TransportPrepareSpecAction.class),
-                new ActionHandler<>(TrainNaiveBayesAction.INSTANCE, TransportTrainNaiveBayesAction.class));
+                new ActionHandler<>(TrainNaiveBayesAction.INSTANCE, TransportTrainNaiveBayesAction.class),
+                new ActionHandler<>(CacheStatsAction.INSTANCE, TransportCacheStatsAction.class),
+                new ActionHandler<>(StoreSpecAction.INSTANCE, TransportStoreSpecAction.class),
+                new ActionHandler<>(ClearSpecCacheAction.INSTANCE, TransportClearSpecCacheAction.class));
 
     }
 
     @Override
     public List<Class<? extends RestHandler>> getRestHandlers() {
         return Arrays.asList(RestAllTermsAction.class, RestPrepareSpecAction.class, RestStoreModelAction.class,
-                RestTrainNaiveBayesAction.class);
+                RestTrainNaiveBayesAction.class, RestCacheStatsAction.class, RestStoreSpecAction.class);
     }
 
     @Override
     public List<FetchSubPhase> getFetchSubPhases(FetchPhaseConstructionContext context) {
-        return Arrays.asList(new TermVectorsFetchSubPhase(), new AnalyzedTextFetchSubPhase());
+        return Arrays.asList(new TermVectorsFetchSubPhase(), new AnalyzedTextFetchSubPhase(), new ModelFieldsFetchSubPhase());
     }
 }
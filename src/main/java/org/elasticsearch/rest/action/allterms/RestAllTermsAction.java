@@ -22,7 +22,9 @@ package org.elasticsearch.rest.action.allterms;
 import org.elasticsearch.action.allterms.AllTermsAction;
 import org.elasticsearch.action.allterms.AllTermsRequest;
 import org.elasticsearch.action.allterms.AllTermsResponse;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -42,6 +44,8 @@ import static org.elasticsearch.rest.RestStatus.OK;
  */
 public class RestAllTermsAction extends BaseRestHandler {
 
+    private static final String RANDOM_FROM = "random";
+
     @Inject
     public RestAllTermsAction(Settings settings, RestController controller) {
         super(settings);
@@ -51,11 +55,32 @@ public class RestAllTermsAction extends BaseRestHandler {
     @Override
     public void handleRequest(final RestRequest request, final RestChannel channel, final NodeClient client) {
         final AllTermsRequest allTermsRequest = new AllTermsRequest();
-        allTermsRequest.index(request.param("index"));
+        allTermsRequest.indices(Strings.splitStringByCommaToArray(request.param("index")));
+        allTermsRequest.indicesOptions(IndicesOptions.fromRequest(request, allTermsRequest.indicesOptions()));
+        allTermsRequest.timeout(request.paramAsTime("timeout", null));
         allTermsRequest.field(request.param("field"));
         allTermsRequest.size(request.paramAsInt("size", 10));
-        allTermsRequest.from(request.param("from"));
+        if (RANDOM_FROM.equals(request.param("from"))) {
+            // shorthand for sort=random
+            allTermsRequest.sort(AllTermsRequest.Sort.RANDOM);
+        } else {
+            allTermsRequest.from(request.param("from"));
+        }
         allTermsRequest.minDocFreq(request.paramAsLong("min_doc_freq", 0));
+        allTermsRequest.cursor(request.param("cursor"));
+        allTermsRequest.prefix(request.param("prefix"));
+        allTermsRequest.include(request.param("include"));
+        allTermsRequest.exclude(request.param("exclude"));
+        if (request.hasParam("sort")) {
+            allTermsRequest.sort(AllTermsRequest.Sort.fromString(request.param("sort")));
+        }
+        allTermsRequest.shardSize(request.paramAsInt("shard_size", allTermsRequest.shardSize()));
+        if (request.hasParam("seed")) {
+            allTermsRequest.seed(request.paramAsLong("seed", 0));
+        }
+        if (request.hasParam("min_doc_freq_mode")) {
+            allTermsRequest.minDocFreqMode(AllTermsRequest.MinDocFreqMode.fromString(request.param("min_doc_freq_mode")));
+        }
 
         client.execute(AllTermsAction.INSTANCE, allTermsRequest, new RestBuilderListener<AllTermsResponse>(channel) {
             @Override
@@ -0,0 +1,63 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.rest.action.cachestats;
+
+import org.elasticsearch.action.cachestats.CacheStatsAction;
+import org.elasticsearch.action.cachestats.CacheStatsRequest;
+import org.elasticsearch.action.cachestats.CacheStatsResponse;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.action.support.RestActions;
+import org.elasticsearch.rest.action.support.RestBuilderListener;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Returns the statistics of the caches of the plugin on every node
+ */
+public class RestCacheStatsAction extends BaseRestHandler {
+
+    @Inject
+    public RestCacheStatsAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(GET, "/_token_plugin/_cache/stats", this);
+        controller.registerHandler(GET, "/_nodes/{nodeId}/_token_plugin/_cache/stats", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel, final NodeClient client) {
+        CacheStatsRequest statsRequest = new CacheStatsRequest(Strings.splitStringByCommaToArray(request.param("nodeId")));
+        statsRequest.timeout(request.param("timeout"));
+        client.execute(CacheStatsAction.INSTANCE, statsRequest, new RestBuilderListener<CacheStatsResponse>(channel) {
+            @Override
+            public RestResponse buildResponse(CacheStatsResponse response, XContentBuilder builder) throws Exception {
+                return RestActions.nodesResponse(builder, channel.request(), response);
+            }
+        });
+    }
+}
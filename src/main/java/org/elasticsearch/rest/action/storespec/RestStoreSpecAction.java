@@ -0,0 +1,79 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.rest.action.storespec;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.storespec.StoreSpecAction;
+import org.elasticsearch.action.storespec.StoreSpecRequest;
+import org.elasticsearch.action.storespec.StoreSpecResponse;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.action.support.RestBuilderListener;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.elasticsearch.rest.RestRequest.Method.PUT;
+import static org.elasticsearch.rest.RestStatus.CREATED;
+import static org.elasticsearch.rest.RestStatus.OK;
+
+/**
+ *
+ */
+public class RestStoreSpecAction extends BaseRestHandler {
+
+    @Inject
+    public RestStoreSpecAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(POST, "/_store_spec", this);
+        controller.registerHandler(POST, "/_store_spec/{id}", this);
+        controller.registerHandler(PUT, "/_store_spec/{id}", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel, final NodeClient client) {
+        final String id;
+        if (request.hasParam("id")) {
+            id = request.param("id");
+        } else {
+            id = UUIDs.randomBase64UUID();
+        }
+        if (request.content() == null || request.content().length() == 0) {
+            throw new ElasticsearchException("_store_spec request must have a body");
+        }
+        client.execute(StoreSpecAction.INSTANCE, new StoreSpecRequest(id, request.content()),
+                new RestBuilderListener<StoreSpecResponse>(channel) {
+                    @Override
+                    public RestResponse buildResponse(StoreSpecResponse response, XContentBuilder builder) throws Exception {
+                        builder.startObject();
+                        response.toXContent(builder, request);
+                        builder.endObject();
+                        return new BytesRestResponse(response.isCreated() ? CREATED : OK, builder);
+                    }
+                });
+    }
+}
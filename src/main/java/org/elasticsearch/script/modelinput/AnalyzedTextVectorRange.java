@@ -21,7 +21,6 @@ package org.elasticsearch.script.modelinput;
 
 import org.elasticsearch.common.collect.Tuple;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -30,6 +29,21 @@ public abstract class AnalyzedTextVectorRange extends VectorRange {
 
     public static final EsSparseNumericVector EMPTY_SPARSE = new EsSparseNumericVector(new Tuple<>(new int[]{}, new double[]{}));
 
+    /**
+     * Defaults of the BM25 parameters, the same as the defaults of the BM25 similarity
+     */
+    public static final double DEFAULT_BM25_K1 = 1.2;
+    public static final double DEFAULT_BM25_B = 0.75;
+
+    public static void checkBm25Parameters(double k1, double b) {
+        if (k1 < 0 || Double.isFinite(k1) == false) {
+            throw new IllegalArgumentException("k1 must be a non-negative number but was [" + k1 + "]");
+        }
+        if (b < 0 || b > 1 || Double.isNaN(b)) {
+            throw new IllegalArgumentException("b must be between 0 and 1 but was [" + b + "]");
+        }
+    }
+
     public AnalyzedTextVectorRange(String field, String type) {
         super(field, field, type);
     }
@@ -70,37 +84,120 @@ public abstract class AnalyzedTextVectorRange extends VectorRange {
         }
     }
 
+    /**
+     * Computes the numbers of a term vector range. There is one implementation per {@link FeatureType}, so that the type of a
+     * range is resolved once when the range is created instead of for every document.
+     */
+    abstract static class TermWeighting {
+
+        abstract double[] dense(DataSource dataSource, String[] terms, TermIndexMap termIndices, String field);
+
+        abstract void sparse(DataSource dataSource, TermIndexMap wordMap, String field, VectorBuffer buffer);
+
+        static TermWeighting forNumber(String number, double k1, double b) {
+            switch (FeatureType.fromString(number)) {
+                case OCCURRENCE:
+                    return new OccurrenceWeighting();
+                case TF:
+                    return new TfWeighting();
+                case TF_IDF:
+                    return new TfIdfWeighting();
+                case BM25:
+                    return new Bm25Weighting(k1, b);
+                default:
+                    throw new IllegalArgumentException(number + " not implemented yet");
+            }
+        }
+    }
+
+    static final class OccurrenceWeighting extends TermWeighting {
+
+        @Override
+        double[] dense(DataSource dataSource, String[] terms, TermIndexMap termIndices, String field) {
+            return dataSource.getOccurrenceDense(terms, termIndices, field);
+        }
+
+        @Override
+        void sparse(DataSource dataSource, TermIndexMap wordMap, String field, VectorBuffer buffer) {
+            dataSource.getOccurrenceSparse(wordMap, field, buffer);
+        }
+    }
+
+    static final class TfWeighting extends TermWeighting {
+
+        @Override
+        double[] dense(DataSource dataSource, String[] terms, TermIndexMap termIndices, String field) {
+            return dataSource.getTfDense(terms, termIndices, field);
+        }
+
+        @Override
+        void sparse(DataSource dataSource, TermIndexMap wordMap, String field, VectorBuffer buffer) {
+            dataSource.getTfSparse(wordMap, field, buffer);
+        }
+    }
+
+    static final class TfIdfWeighting extends TermWeighting {
+
+        @Override
+        double[] dense(DataSource dataSource, String[] terms, TermIndexMap termIndices, String field) {
+            return dataSource.getTfIdfDense(terms, termIndices, field);
+        }
+
+        @Override
+        void sparse(DataSource dataSource, TermIndexMap wordMap, String field, VectorBuffer buffer) {
+            dataSource.getTfIdfSparse(wordMap, field, buffer);
+        }
+    }
+
+    static final class Bm25Weighting extends TermWeighting {
+        private final double k1;
+        private final double b;
+
+        Bm25Weighting(double k1, double b) {
+            checkBm25Parameters(k1, b);
+            this.k1 = k1;
+            this.b = b;
+        }
+
+        @Override
+        double[] dense(DataSource dataSource, String[] terms, TermIndexMap termIndices, String field) {
+            return dataSource.getBm25Dense(terms, termIndices, field, k1, b);
+        }
+
+        @Override
+        void sparse(DataSource dataSource, TermIndexMap wordMap, String field, VectorBuffer buffer) {
+            dataSource.getBm25Sparse(wordMap, field, k1, b, buffer);
+        }
+    }
+
     public static class SparseTermVectorRange extends AnalyzedTextVectorRange {
-        private String number;
-        Map<String, Integer> wordMap;
+        TermIndexMap wordMap;
+        private final TermWeighting weighting;
 
         public SparseTermVectorRange(String field, String type, String[] terms, String number, int offset) {
+            this(field, type, terms, number, offset, DEFAULT_BM25_K1, DEFAULT_BM25_B);
+        }
+
+        public SparseTermVectorRange(String field, String type, String[] terms, String number, int offset, double k1, double b) {
             super(field, type);
-            this.number = number;
+            this.weighting = TermWeighting.forNumber(number, k1, b);
             this.field = field;
-            wordMap = new HashMap<>();
-            for (int i = 0; i < terms.length; i++) {
-                wordMap.put(terms[i], i + offset);
-            }
+            wordMap = new TermIndexMap(terms, offset);
         }
 
         @Override
         public EsVector getVector(DataSource dataSource) {
-            Tuple<int[], double[]> indicesAndValues;
-            if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.TF)) {
-                indicesAndValues = dataSource.getTfSparse(wordMap, field);
-            } else if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.OCCURRENCE)) {
-                indicesAndValues = dataSource.getOccurrenceSparse(wordMap, field);
-            } else if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.TF_IDF)) {
-                indicesAndValues = dataSource.getTfIdfSparse(wordMap, field);
-            } else {
-                throw new IllegalArgumentException(number + " not implemented yet for sparse vector");
-            }
-            if (indicesAndValues != null) {
-                return new EsSparseNumericVector(indicesAndValues);
-            } else {
+            VectorBuffer buffer = new VectorBuffer();
+            addVector(dataSource, buffer);
+            if (buffer.getSize() == 0) {
                 return EMPTY_SPARSE;
             }
+            return new EsSparseNumericVector(new Tuple<>(buffer.copyIndices(), buffer.copyValues()));
+        }
+
+        @Override
+        public void addVector(DataSource dataSource, VectorBuffer buffer) {
+            weighting.sparse(dataSource, wordMap, field, buffer);
         }
 
         @Override
@@ -117,27 +214,25 @@ public abstract class AnalyzedTextVectorRange extends VectorRange {
 
     public static class DenseTermVectorRange extends AnalyzedTextVectorRange {
         String[] terms;
-        String number;
+        TermIndexMap termIndices;
+        private final TermWeighting weighting;
 
         public DenseTermVectorRange(String field, String type, String[] terms, String number, int offset) {
+            this(field, type, terms, number, offset, DEFAULT_BM25_K1, DEFAULT_BM25_B);
+        }
+
+        public DenseTermVectorRange(String field, String type, String[] terms, String number, int offset, double k1, double b) {
             super(field, type);
+            this.weighting = TermWeighting.forNumber(number, k1, b);
             this.terms = terms;
-            this.number = number;
+            this.termIndices = new TermIndexMap(terms, 0);
             this.offset = offset;
             this.field = field;
         }
 
         @Override
         public EsVector getVector(DataSource dataSource) {
-            if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.TF)) {
-                return new EsDenseNumericVector(dataSource.getTfDense(terms, field));
-            } else if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.OCCURRENCE)) {
-                return new EsDenseNumericVector(dataSource.getOccurrenceDense(terms, field));
-            } else if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.TF_IDF)) {
-                return new EsDenseNumericVector(dataSource.getTfIdfDense(terms, field));
-            } else {
-                throw new IllegalArgumentException(number + " not implemented yet for dense vector");
-            }
+            return new EsDenseNumericVector(weighting.dense(dataSource, terms, termIndices, field));
         }
 
         @Override
@@ -19,11 +19,7 @@
 
 package org.elasticsearch.script.modelinput;
 
-import org.elasticsearch.common.collect.Tuple;
-
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Represents an abstract data source that could provide information about a single record.
@@ -36,51 +32,52 @@ public interface DataSource {
 
     /**
      * Returns an array of 0s and 1s. 1 if the corresponding term in the terms array is present in the field and 0 otherwise.
+     * {@code termIndices} maps each term to its position in the terms array.
      */
-    double[] getOccurrenceDense(String[] terms, String field);
+    double[] getOccurrenceDense(String[] terms, TermIndexMap termIndices, String field);
 
     /**
      * Returns an array of TF/IDF values for the terms in the specified field
      */
-    double[] getTfIdfDense(String[] terms, String field);
+    double[] getTfIdfDense(String[] terms, TermIndexMap termIndices, String field);
 
     /**
      * Returns an array of TF values for the terms in the specified field
      */
-    double[] getTfDense(String[] terms, String field);
+    double[] getTfDense(String[] terms, TermIndexMap termIndices, String field);
 
     /**
-     * Returns a sparse array of 0s and 1s. 1 if the corresponding term in the wordMap is present in the field and 0 otherwise.
+     * Returns an array of BM25 weights for the terms in the specified field, the score a term query on the term would give
+     * the document with the given k1 and b
      */
-    default Tuple<int[], double[]> getOccurrenceSparse(Map<String, Integer> wordMap, String field) {
-        List<String> docValues = getValues(field);
-        Tuple<int[], double[]> indicesAndValues;
-        List<Integer> indices = new ArrayList<>();
+    double[] getBm25Dense(String[] terms, TermIndexMap termIndices, String field, double k1, double b);
 
+    /**
+     * Appends a 1 for every term of the wordMap that is present in the field to the buffer.
+     */
+    default void getOccurrenceSparse(TermIndexMap wordMap, String field, VectorBuffer buffer) {
+        List<String> docValues = getValues(field);
         for (String value : docValues) {
-            Integer index = wordMap.get(value);
-            if (index != null) {
-                indices.add(index);
+            int index = wordMap.get(value);
+            if (index >= 0) {
+                buffer.add(index, 1);
             }
         }
-        int[] indicesArray = new int[indices.size()];
-        double[] valuesArray = new double[indices.size()];
-        for (int i = 0; i < indices.size(); i++) {
-            indicesArray[i] = indices.get(i);
-            valuesArray[i] = 1;
-        }
-        indicesAndValues = new Tuple<>(indicesArray, valuesArray);
-        return indicesAndValues;
     }
 
     /**
-     * Returns a sparse array of TF/IDF values for the terms in the specified field
+     * Appends the TF/IDF values of the terms of the wordMap that are present in the specified field to the buffer
+     */
+    void getTfIdfSparse(TermIndexMap wordMap, String field, VectorBuffer buffer);
+
+    /**
+     * Appends the TF values of the terms of the wordMap that are present in the specified field to the buffer
      */
-    Tuple<int[], double[]> getTfIdfSparse(Map<String, Integer> wordMap, String field);
+    void getTfSparse(TermIndexMap wordMap, String field, VectorBuffer buffer);
 
     /**
-     * Returns a sparse array of TF values for the terms in the specified field
+     * Appends the BM25 weights of the terms of the wordMap that are present in the specified field to the buffer
      */
-    Tuple<int[], double[]> getTfSparse(Map<String, Integer> wordMap, String field);
+    void getBm25Sparse(TermIndexMap wordMap, String field, double k1, double b, VectorBuffer buffer);
 
 }
@@ -19,28 +19,53 @@
 
 package org.elasticsearch.script.modelinput;
 
+import com.carrotsearch.hppc.IntArrayList;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.util.BytesRef;
-import org.elasticsearch.common.collect.Tuple;
+import org.apache.lucene.util.SmallFloat;
 import org.elasticsearch.search.lookup.IndexField;
 import org.elasticsearch.search.lookup.IndexFieldTerm;
 import org.elasticsearch.search.lookup.LeafDocLookup;
 import org.elasticsearch.search.lookup.LeafIndexLookup;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Elasticsearch Data Source
  */
 public abstract class EsDataSource implements DataSource {
 
+    // the lengths the BM25 similarity decodes from the one byte norms
+    private static final float[] NORM_LENGTHS = new float[256];
+
+    static {
+        for (int i = 0; i < NORM_LENGTHS.length; i++) {
+            float f = SmallFloat.byte315ToFloat((byte) i);
+            NORM_LENGTHS[i] = 1f / (f * f);
+        }
+    }
+
+    private final IdfCache idfCache;
+    private IndexReader idfReader;
+    private IndexReader fieldInfosReader;
+    private FieldInfos fieldInfos;
+    // scratch space of bm25, reused for every document
+    private final IntArrayList bm25Ords = new IntArrayList();
+    private final IntArrayList bm25Freqs = new IntArrayList();
+
+    protected EsDataSource(IdfCache idfCache) {
+        this.idfCache = idfCache;
+    }
+
     protected abstract LeafDocLookup getDocLookup();
 
     protected abstract LeafIndexLookup getLeafIndexLookup();
@@ -52,38 +77,157 @@ public abstract class EsDataSource implements DataSource {
     }
 
     @Override
-    public double[] getOccurrenceDense(String[] terms, String field) {
+    public double[] getOccurrenceDense(String[] terms, TermIndexMap termIndices, String field) {
+        if (readsTermVectors(field)) {
+            return getDenseFromTermVector(terms.length, termIndices, field, (docsEnum, ord) -> 1);
+        }
         return getDense(terms, field, (indexField, indexFieldTerm) -> indexFieldTerm.tf() > 0 ? 1 : 0);
     }
 
     @Override
-    public double[] getTfIdfDense(String[] terms, String field) {
-        return getDense(terms, field, (indexField, indexFieldTerm) -> {
-            double tf = indexFieldTerm.tf();
-            double df = indexFieldTerm.df();
-            double numDocs = indexField.docCount();
-            return tf * Math.log((numDocs + 1) / (df + 1));
-        });
+    public double[] getTfIdfDense(String[] terms, TermIndexMap termIndices, String field) {
+        IndexField indexField = getLeafIndexLookup().get(field);
+        if (readsTermVectors(field)) {
+            double[] idfs = idfTable(termIndices);
+            return getDenseFromTermVector(terms.length, termIndices, field,
+                    (docsEnum, ord) -> docsEnum.freq() * idf(idfs, termIndices, ord, field, df -> tfIdf(indexField.docCount(), df)));
+        }
+        return getDense(terms, field, (termField, indexFieldTerm) -> indexFieldTerm.tf() * tfIdf(indexField.docCount(),
+                indexFieldTerm.df()));
     }
 
     @Override
-    public double[] getTfDense(String[] terms, String field) {
+    public double[] getTfDense(String[] terms, TermIndexMap termIndices, String field) {
+        if (readsTermVectors(field)) {
+            return getDenseFromTermVector(terms.length, termIndices, field, (docsEnum, ord) -> docsEnum.freq());
+        }
         return getDense(terms, field, (indexField, indexFieldTerm) -> indexFieldTerm.tf());
     }
 
     @Override
-    public Tuple<int[], double[]> getTfSparse(Map<String, Integer> wordMap, String field) {
-        return getSparse(wordMap, field, (docsEnum, term) -> (double) docsEnum.freq());
+    public double[] getBm25Dense(String[] terms, TermIndexMap termIndices, String field, double k1, double b) {
+        double[] values = new double[terms.length];
+        getBm25(termIndices, field, k1, b, (index, value) -> values[index] = value);
+        return values;
+    }
+
+    @Override
+    public void getTfSparse(TermIndexMap wordMap, String field, VectorBuffer buffer) {
+        getSparse(wordMap, field, (docsEnum, ord) -> (double) docsEnum.freq(), buffer);
     }
 
     @Override
-    public Tuple<int[], double[]> getTfIdfSparse(Map<String, Integer> wordMap, String field) {
-        return getSparse(wordMap, field, (docsEnum, term) -> {
-            double docFreq = getLeafIndexLookup().getParentReader().docFreq(new Term(field, term));
-            double freq = docsEnum.freq();
-            double docCount = getLeafIndexLookup().getParentReader().numDocs();
-            return freq * Math.log((docCount + 1) / (docFreq + 1));
-        });
+    public void getTfIdfSparse(TermIndexMap wordMap, String field, VectorBuffer buffer) {
+        double[] idfs = idfTable(wordMap);
+        double docCount = getLeafIndexLookup().getParentReader().numDocs();
+        getSparse(wordMap, field, (docsEnum, ord) -> docsEnum.freq() * idf(idfs, wordMap, ord, field, df -> tfIdf(docCount, df)),
+                buffer);
+    }
+
+    @Override
+    public void getBm25Sparse(TermIndexMap wordMap, String field, double k1, double b, VectorBuffer buffer) {
+        getBm25(wordMap, field, k1, b, buffer::add);
+    }
+
+    private static double tfIdf(double numDocs, double docFreq) {
+        return Math.log((numDocs + 1) / (docFreq + 1));
+    }
+
+    /**
+     * Computes the weights of the terms of the current document that are in the map like the BM25 similarity scores a term
+     * query on each of them. Term frequencies and the length of the field come from the term vector of the document, the
+     * length is rounded the same way the similarity rounds the length it stores in the norms. Idfs and the average length of
+     * the field are taken from the top level reader, like the statistics of a search on a single shard.
+     */
+    private void getBm25(TermIndexMap termIndices, String field, double k1, double b, TermVectorConsumer consumer) {
+        try {
+            double[] idfs = idfTable(termIndices);
+            FieldInfo fieldInfo = fieldInfo(field);
+            if (fieldInfo != null && fieldInfo.hasVectors() == false) {
+                throw new IllegalArgumentException("number [bm25] needs term vectors but field [" + field + "] has none");
+            }
+            Fields fields = getLeafIndexLookup().termVectors();
+            Terms terms = fields == null ? null : fields.terms(field);
+            if (terms == null) {
+                return;
+            }
+            IntArrayList ords = bm25Ords;
+            IntArrayList freqs = bm25Freqs;
+            ords.clear();
+            freqs.clear();
+            long length = 0;
+            TermsEnum termsEnum = terms.iterator();
+            BytesRef t;
+            while ((t = termsEnum.next()) != null) {
+                // the total term freq of a term vector is the freq of the term in the document
+                int freq = (int) termsEnum.totalTermFreq();
+                length += freq;
+                int ord = termIndices.ord(t);
+                if (ord >= 0) {
+                    ords.add(ord);
+                    freqs.add(freq);
+                }
+            }
+            IndexField indexField = getLeafIndexLookup().get(field);
+            long docCount = indexField.docCount() == -1 ? idfReader.maxDoc() : indexField.docCount();
+            long sumTotalTermFreq = indexField.sumttf();
+            double averageLength = sumTotalTermFreq <= 0 ? 1 : sumTotalTermFreq / (double) docCount;
+            double normLength = NORM_LENGTHS[SmallFloat.floatToByte315(1f / (float) Math.sqrt(length)) & 0xFF];
+            double norm = k1 * (1 - b + b * normLength / averageLength);
+            for (int i = 0; i < ords.size(); i++) {
+                int ord = ords.get(i);
+                double freq = freqs.get(i);
+                double idf = idf(idfs, termIndices, ord, field, df -> Math.log(1 + (docCount - df + 0.5) / (df + 0.5)));
+                consumer.accept(termIndices.index(ord), idf * (k1 + 1) * freq / (freq + norm));
+            }
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("cannot get bm25 vector for field " + field, ex);
+        }
+    }
+
+    /**
+     * Returns the field info of the field in the top level reader, or null if no segment has the field
+     */
+    private FieldInfo fieldInfo(String field) {
+        IndexReader reader = getLeafIndexLookup().getParentReader();
+        if (reader != fieldInfosReader) {
+            fieldInfos = MultiFields.getMergedFieldInfos(reader);
+            fieldInfosReader = reader;
+        }
+        return fieldInfos.fieldInfo(field);
+    }
+
+    /**
+     * Whether dense vectors of the field are read from the term vectors of the documents. If the field has term vectors, a
+     * document without a term vector doesn't have the field and gets a vector of zeros. Only fields without term vectors are
+     * read with a lookup per term of the vector. Fields that no document has don't have terms to look up either.
+     */
+    private boolean readsTermVectors(String field) {
+        FieldInfo fieldInfo = fieldInfo(field);
+        return fieldInfo == null || fieldInfo.hasVectors();
+    }
+
+    /**
+     * Returns the idf table of the given terms, one entry per term ordinal. The idfs only depend on the top level reader, so
+     * the tables are shared through the {@link IdfCache} by all segments and searches of the reader and the idf of each term
+     * is computed the first time it is needed. Terms of large vectors that no document contains are never looked up.
+     */
+    private double[] idfTable(TermIndexMap termIndices) {
+        idfReader = getLeafIndexLookup().getParentReader();
+        return idfCache.idfTable(idfReader, termIndices);
+    }
+
+    private interface IdfFunction {
+        double idf(double docFreq) throws IOException;
+    }
+
+    private double idf(double[] idfs, TermIndexMap termIndices, int ord, String field, IdfFunction function) throws IOException {
+        double idf = idfs[ord];
+        if (Double.isNaN(idf)) {
+            idf = function.idf(idfReader.docFreq(new Term(field, termIndices.term(ord))));
+            idfs[ord] = idf;
+        }
+        return idf;
     }
 
     private interface IndexFieldTermFunction {
@@ -106,45 +250,60 @@ public abstract class EsDataSource implements DataSource {
     }
 
     private interface DocsEnumFunction {
-        double apply(PostingsEnum docsEnum, BytesRef term) throws IOException;
+        double apply(PostingsEnum docsEnum, int ord) throws IOException;
     }
 
-    private Tuple<int[], double[]> getSparse(Map<String, Integer> wordMap, String field, DocsEnumFunction function) {
-        try {
-            Fields fields = getLeafIndexLookup().termVectors();
-            if (fields == null) {
-                return null;
-            } else {
-                List<Integer> indices = new ArrayList<>();
-                List<Double> values = new ArrayList<>();
-                Terms terms = fields.terms(field);
-                TermsEnum termsEnum = terms.iterator();
-                BytesRef t;
-                PostingsEnum docsEnum = null;
-                int numTerms = 0;
-                indices.clear();
-                values.clear();
-                while ((t = termsEnum.next()) != null) {
-                    Integer termIndex = wordMap.get(t.utf8ToString());
-                    if (termIndex != null) {
-                        indices.add(termIndex);
-                        docsEnum = termsEnum.postings(docsEnum, PostingsEnum.FREQS);
-                        int nextDoc = docsEnum.nextDoc();
-                        assert nextDoc != PostingsEnum.NO_MORE_DOCS;
-                        values.add(function.apply(docsEnum, t));
-                        nextDoc = docsEnum.nextDoc();
-                        assert nextDoc == PostingsEnum.NO_MORE_DOCS;
-                        numTerms++;
-                    }
-                }
-                int[] indicesArray = new int[numTerms];
-                double[] valuesArray = new double[numTerms];
-                for (int i = 0; i < numTerms; i++) {
-                    indicesArray[i] = indices.get(i);
-                    valuesArray[i] = values.get(i);
-                }
-                return new Tuple<>(indicesArray, valuesArray);
+    private interface TermVectorConsumer {
+        void accept(int index, double value);
+    }
+
+    /**
+     * Looks up every term of the term vector of the field in the current document and passes the index and value of the
+     * terms that are in the map to the consumer. Does nothing if the field has no term vector in the document.
+     */
+    private void visitTermVector(TermIndexMap wordMap, String field, DocsEnumFunction function, TermVectorConsumer consumer)
+            throws IOException {
+        Fields fields = getLeafIndexLookup().termVectors();
+        if (fields == null) {
+            return;
+        }
+        Terms terms = fields.terms(field);
+        if (terms == null) {
+            return;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        BytesRef t;
+        PostingsEnum docsEnum = null;
+        while ((t = termsEnum.next()) != null) {
+            int ord = wordMap.ord(t);
+            if (ord >= 0) {
+                docsEnum = termsEnum.postings(docsEnum, PostingsEnum.FREQS);
+                int nextDoc = docsEnum.nextDoc();
+                assert nextDoc != PostingsEnum.NO_MORE_DOCS;
+                consumer.accept(wordMap.index(ord), function.apply(docsEnum, ord));
+                nextDoc = docsEnum.nextDoc();
+                assert nextDoc == PostingsEnum.NO_MORE_DOCS;
             }
+        }
+    }
+
+    /**
+     * Builds a dense vector out of the term vector of the document, so that only the terms of the document are looked up
+     * instead of every term of the vector. All values are zero if the field has no term vector in the document.
+     */
+    private double[] getDenseFromTermVector(int length, TermIndexMap termIndices, String field, DocsEnumFunction function) {
+        double[] values = new double[length];
+        try {
+            visitTermVector(termIndices, field, function, (index, value) -> values[index] = value);
+            return values;
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("cannot get dense vector for field " + field, ex);
+        }
+    }
+
+    private void getSparse(TermIndexMap wordMap, String field, DocsEnumFunction function, VectorBuffer buffer) {
+        try {
+            visitTermVector(wordMap, field, function, buffer::add);
         } catch (IOException ex) {
             throw new IllegalArgumentException("cannot get sparse tf/idf vector for field "+ field, ex);
         }
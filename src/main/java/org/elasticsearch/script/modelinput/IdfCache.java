@@ -0,0 +1,115 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.script.modelinput;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.common.lucene.index.ElasticsearchDirectoryReader;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Node level cache of the idf tables of vector ranges.
+ * <p>
+ * Idfs only depend on the top level reader of a search and the terms of a range, so the table of a {@link TermIndexMap} is
+ * shared by the scripts of every segment and every search that read from the same top level reader. Entries are keyed by
+ * the combined core and deletes key of the reader and the identity of the map, and are invalidated as soon as the reader is
+ * closed. A refresh opens a new top level reader, so a table never outlives the statistics it was computed from.
+ * <p>
+ * The entries of a table are NaN until the idf of the term is first needed and are then filled by whichever script needs
+ * it. Threads that race on an entry compute and write the same idf.
+ */
+public class IdfCache {
+
+    private final ConcurrentMap<Key, double[]> tables = ConcurrentCollections.newConcurrentMap();
+    private final Set<Object> registeredReaders = ConcurrentCollections.newConcurrentSet();
+
+    /**
+     * Returns the idf table of the terms of the map for the top level reader, one entry per term ordinal
+     */
+    public double[] idfTable(IndexReader reader, TermIndexMap termIndices) {
+        Key key = new Key(reader.getCombinedCoreAndDeletesKey(), termIndices);
+        double[] idfs = tables.get(key);
+        if (idfs != null) {
+            return idfs;
+        }
+        if (registeredReaders.add(key.readerKey)) {
+            addClosedListener(reader, key.readerKey);
+        }
+        return tables.computeIfAbsent(key, k -> {
+            double[] table = new double[termIndices.size()];
+            Arrays.fill(table, Double.NaN);
+            return table;
+        });
+    }
+
+    private void addClosedListener(IndexReader reader, Object readerKey) {
+        IndexReader.ReaderClosedListener listener = closed -> onClose(readerKey);
+        // searchers can wrap the reader of the shard, only the reader of the shard is guaranteed to be closed
+        if (reader instanceof DirectoryReader
+                && ElasticsearchDirectoryReader.getElasticsearchDirectoryReader((DirectoryReader) reader) != null) {
+            ElasticsearchDirectoryReader.addReaderCloseListener((DirectoryReader) reader, listener);
+        } else {
+            reader.addReaderClosedListener(listener);
+        }
+    }
+
+    private void onClose(Object readerKey) {
+        registeredReaders.remove(readerKey);
+        tables.keySet().removeIf(key -> key.readerKey == readerKey);
+    }
+
+    /**
+     * The number of tables in the cache
+     */
+    int count() {
+        return tables.size();
+    }
+
+    private static final class Key {
+        private final Object readerKey;
+        private final TermIndexMap termIndices;
+
+        Key(Object readerKey, TermIndexMap termIndices) {
+            this.readerKey = readerKey;
+            this.termIndices = termIndices;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return readerKey == key.readerKey && termIndices == key.termIndices;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(readerKey) + System.identityHashCode(termIndices);
+        }
+    }
+}
@@ -19,9 +19,32 @@
 
 package org.elasticsearch.script.modelinput;
 
+import java.util.function.IntConsumer;
+
 /**
  *
  */
 public interface ModelInputEvaluator<T extends ModelInput> {
     T convert(DataSource dataSource);
+
+    /**
+     * Converts the current document and may use the buffer as scratch space or as the result, so the result is only valid
+     * until the buffer is used again.
+     */
+    default T convert(DataSource dataSource, VectorBuffer buffer) {
+        return convert(dataSource);
+    }
+
+    /**
+     * Converts the first count documents of a segment, setDocument moves the data source to a document. Each input may use
+     * the buffer with the same position, so the inputs are only valid until the buffers are used again. By default the
+     * documents are converted one by one.
+     */
+    default void convert(DataSource dataSource, IntConsumer setDocument, int[] docs, int count, VectorBuffer[] buffers,
+                         T[] inputs) {
+        for (int i = 0; i < count; i++) {
+            setDocument.accept(docs[i]);
+            inputs[i] = convert(dataSource, buffers[i]);
+        }
+    }
 }
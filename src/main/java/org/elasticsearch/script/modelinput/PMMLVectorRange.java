@@ -64,6 +64,13 @@ public abstract class PMMLVectorRange extends VectorRange {
         return processedValues;
     }
 
+    protected Object applyPreProcessing(Object value) {
+        for (int i = 0; i < preProcessingSteps.length; i++) {
+            value = preProcessingSteps[i].apply(value);
+        }
+        return value;
+    }
+
     public PMMLVectorRange(DataField dataField, MiningField miningField, DerivedField[] derivedFields) {
         super(dataField.getName().getValue(),
                 derivedFields.length == 0 ? dataField.getName().getValue() : derivedFields[derivedFields.length - 1].getName().getValue(),
@@ -128,6 +135,26 @@ public abstract class PMMLVectorRange extends VectorRange {
             return new EsSparseNumericVector(indicesAndValues);
         }
 
+        @Override
+        public void addVector(Map<String, List<Object>> fieldValues, VectorBuffer buffer) {
+            List<Object> values = fieldValues.get(field);
+            if (values == null || values.isEmpty()) {
+                addCategory(applyPreProcessing((Object) null), buffer);
+            } else {
+                for (Object value : values) {
+                    addCategory(applyPreProcessing(value), buffer);
+                }
+            }
+        }
+
+        private void addCategory(Object category, VectorBuffer buffer) {
+            Integer index = categoryToIndexHashMap.get(category);
+            if (index != null) {
+                assert buffer.getSize() == 0 || buffer.getIndex(buffer.getSize() - 1) < index;
+                buffer.add(index, 1.0);
+            }
+        }
+
         @Override
         public void addVectorEntry(int indexCounter, String value) {
             categoryToIndexHashMap.put(value, indexCounter);
@@ -172,6 +199,13 @@ public abstract class PMMLVectorRange extends VectorRange {
             }
         }
 
+        @Override
+        public void addVector(Map<String, List<Object>> fieldValues, VectorBuffer buffer) {
+            List<Object> values = fieldValues.get(field);
+            Object value = values == null || values.isEmpty() ? null : values.get(0);
+            buffer.add(index, ((Number) applyPreProcessing(value)).doubleValue());
+        }
+
         @Override
         public void addVectorEntry(int indexCounter, String value) {
             index = indexCounter;
@@ -257,6 +291,16 @@ public abstract class PMMLVectorRange extends VectorRange {
         public EsVector getVector(Map<String, List<Object>> fieldValues) {
             return new EsSparseNumericVector(new Tuple<>(new int[]{index}, new double[]{1.0}));
         }
+
+        @Override
+        public void addVector(DataSource dataSource, VectorBuffer buffer) {
+            buffer.add(index, 1.0);
+        }
+
+        @Override
+        public void addVector(Map<String, List<Object>> fieldValues, VectorBuffer buffer) {
+            buffer.add(index, 1.0);
+        }
     }
 
     public static class FieldToValue extends PMMLVectorRange {
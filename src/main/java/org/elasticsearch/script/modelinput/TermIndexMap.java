@@ -0,0 +1,163 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.script.modelinput;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Maps the terms of a vector range to their index in the vector.
+ * <p>
+ * The utf-8 bytes of all terms are kept in a single array and looked up through an open addressing hash table of int
+ * ordinals, so that looking up a term of a term vector neither needs a {@link String} nor boxes the index, and a dictionary
+ * of a million terms takes little more than the bytes of its terms. The map is immutable and can be shared by threads.
+ */
+public final class TermIndexMap implements Accountable {
+
+    private static final int NOT_FOUND = -1;
+
+    private final byte[] bytes;
+    // term i is bytes[starts[i]] to bytes[starts[i + 1]]
+    private final int[] starts;
+    private final int[] indices;
+    // ordinal + 1 of the term in the slot, 0 for empty slots
+    private final int[] table;
+    private final int mask;
+    private final int numTerms;
+
+    /**
+     * Creates a map that maps {@code terms[i]} to {@code offset + i}. If a term is given more than once its first index is
+     * used.
+     */
+    public TermIndexMap(String[] terms, int offset) {
+        BytesRef[] utf8 = new BytesRef[terms.length];
+        int numBytes = 0;
+        for (int i = 0; i < terms.length; i++) {
+            utf8[i] = new BytesRef(terms[i]);
+            numBytes += utf8[i].length;
+        }
+        bytes = new byte[numBytes];
+        starts = new int[terms.length + 1];
+        indices = new int[terms.length];
+        table = new int[tableSize(terms.length)];
+        mask = table.length - 1;
+        int ord = 0;
+        int start = 0;
+        for (int i = 0; i < utf8.length; i++) {
+            BytesRef term = utf8[i];
+            int slot = findSlot(term.bytes, term.offset, term.length);
+            if (table[slot] != 0) {
+                continue;
+            }
+            System.arraycopy(term.bytes, term.offset, bytes, start, term.length);
+            starts[ord] = start;
+            start += term.length;
+            starts[ord + 1] = start;
+            indices[ord] = offset + i;
+            table[slot] = ++ord;
+        }
+        numTerms = ord;
+    }
+
+    private static int tableSize(int numTerms) {
+        // at most half full
+        return Math.max(2, Integer.highestOneBit(Math.max(1, numTerms) * 2 - 1) << 1);
+    }
+
+    /**
+     * Returns the slot of the given term or the empty slot where it would be inserted
+     */
+    private int findSlot(byte[] termBytes, int termOffset, int termLength) {
+        int slot = StringHelper.murmurhash3_x86_32(termBytes, termOffset, termLength, StringHelper.GOOD_FAST_HASH_SEED) & mask;
+        while (true) {
+            int ord = table[slot] - 1;
+            if (ord < 0) {
+                return slot;
+            }
+            int start = starts[ord];
+            int length = starts[ord + 1] - start;
+            if (length == termLength && equals(termBytes, termOffset, start, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean equals(byte[] termBytes, int termOffset, int start, int length) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[start + i] != termBytes[termOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the term or -1 if the term is not in the map
+     */
+    public int get(BytesRef term) {
+        int ord = ord(term);
+        return ord < 0 ? NOT_FOUND : indices[ord];
+    }
+
+    /**
+     * Returns the ordinal of the term, a number between 0 and {@link #size()} that identifies the term, or -1 if the term is
+     * not in the map. Ordinals are assigned in the order of the terms, so per term data can be kept in arrays.
+     */
+    public int ord(BytesRef term) {
+        return table[findSlot(term.bytes, term.offset, term.length)] - 1;
+    }
+
+    /**
+     * Returns the index of the term with the given ordinal
+     */
+    public int index(int ord) {
+        return indices[ord];
+    }
+
+    /**
+     * Returns the term with the given ordinal. The returned bytes are shared with the map and must not be modified.
+     */
+    public BytesRef term(int ord) {
+        return new BytesRef(bytes, starts[ord], starts[ord + 1] - starts[ord]);
+    }
+
+    /**
+     * Returns the index of the term or -1 if the term is not in the map
+     */
+    public int get(String term) {
+        return get(new BytesRef(term));
+    }
+
+    /**
+     * The number of distinct terms in the map
+     */
+    public int size() {
+        return numTerms;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(bytes) + RamUsageEstimator.sizeOf(starts) + RamUsageEstimator.sizeOf(indices)
+                + RamUsageEstimator.sizeOf(table);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.script.modelinput;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Growable indices and values that sparse vector ranges append their entries to.
+ * <p>
+ * Vectorizers are shared by all searches, so a buffer belongs to a single script and is reused for every document the
+ * script sees. Once it has grown to the size of the largest vector, assembling a vector doesn't allocate anything. The
+ * buffer is also the model input that is passed to the model, which must not keep it after the document is evaluated.
+ */
+public final class VectorBuffer extends VectorModelInput {
+
+    private int[] indices = new int[16];
+    private double[] values = new double[16];
+    private int size;
+    // values of the fields of the current document, the same keys are used for every document
+    private final Map<String, List<Object>> fieldValues = new HashMap<>();
+    private final MapView mapView = new MapView(this);
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Appends an entry
+     */
+    public void add(int index, double value) {
+        if (size == indices.length) {
+            indices = ArrayUtil.grow(indices, size + 1);
+            // grow would over allocate doubles less than ints, both arrays must have the same length
+            values = Arrays.copyOf(values, indices.length);
+        }
+        indices[size] = index;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Scratch map for the field values of the current document
+     */
+    Map<String, List<Object>> fieldValues() {
+        return fieldValues;
+    }
+
+    /**
+     * The buffer as input of models that take maps, like tree models
+     */
+    public MapModelInput asMapModelInput() {
+        return mapView;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public double getValue(int i) {
+        assert i < size;
+        return values[i];
+    }
+
+    @Override
+    public int getIndex(int i) {
+        assert i < size;
+        return indices[i];
+    }
+
+    /**
+     * Returns a copy of the indices of the entries
+     */
+    public int[] copyIndices() {
+        return Arrays.copyOf(indices, size);
+    }
+
+    /**
+     * Returns a copy of the values of the entries
+     */
+    public double[] copyValues() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Returns a copy of the entries, the map doesn't change when the buffer is reused
+     */
+    @Override
+    public Map<String, Object> getAsMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("values", copyValues());
+        map.put("indices", copyIndices());
+        return map;
+    }
+
+    /**
+     * Map model input backed by a buffer. Models that know about buffers read the entries of the buffer directly, others
+     * get a copy of the entries.
+     */
+    public static final class MapView extends MapModelInput {
+
+        private final VectorBuffer buffer;
+
+        private MapView(VectorBuffer buffer) {
+            super(null);
+            this.buffer = buffer;
+        }
+
+        public VectorBuffer buffer() {
+            return buffer;
+        }
+
+        @Override
+        public Map<String, Object> getAsMap() {
+            return buffer.getAsMap();
+        }
+    }
+}
@@ -19,9 +19,9 @@
 
 package org.elasticsearch.script.modelinput;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
 
 /**
  * Converts data source to a sparse vector data input
@@ -39,9 +39,14 @@ public class VectorModelInputEvaluator implements ModelInputEvaluator<VectorMode
     }
 
     @Override
-    public SparseVectorModelInput convert(DataSource dataSource) {
-        // TODO: Optimize!!!
-        HashMap<String, List<Object>> fieldValues = new HashMap<>();
+    public VectorModelInput convert(DataSource dataSource) {
+        return convert(dataSource, new VectorBuffer());
+    }
+
+    @Override
+    public VectorModelInput convert(DataSource dataSource, VectorBuffer buffer) {
+        buffer.clear();
+        Map<String, List<Object>> fieldValues = buffer.fieldValues();
         for (VectorRange vectorRange : this.vectorRangeList) {
             // TODO: vector range can depend on several fields
             String field = vectorRange.getField();
@@ -49,25 +54,34 @@ public class VectorModelInputEvaluator implements ModelInputEvaluator<VectorMode
                 fieldValues.put(field, dataSource.getValues(field));
             }
         }
-        int length = 0;
-        List<EsSparseNumericVector> sparseNumericVectors = new ArrayList<>();
         for (VectorRange vectorRange : this.vectorRangeList) {
-            EsVector entries = vectorRange.getVector(fieldValues);
-            assert entries instanceof EsSparseNumericVector;
-            sparseNumericVectors.add((EsSparseNumericVector) entries);
-            length += ((EsSparseNumericVector) entries).values.v1().length;
+            vectorRange.addVector(fieldValues, buffer);
         }
-        double[] values = new double[length];
-        int[] indices = new int[length];
-        int i = 0;
-        for (EsSparseNumericVector esSparseNumericVector : sparseNumericVectors) {
-            for (int j = 0; j < esSparseNumericVector.values.v1().length; j++) {
-                indices[i] = esSparseNumericVector.values.v1()[j];
-                values[i] = esSparseNumericVector.values.v2()[j];
-                i++;
+        return buffer;
+    }
+
+    /**
+     * Fills the vectors range by range, so that the values of a field are read for all documents of the block before the
+     * next field.
+     */
+    @Override
+    public void convert(DataSource dataSource, IntConsumer setDocument, int[] docs, int count, VectorBuffer[] buffers,
+                        VectorModelInput[] inputs) {
+        for (int i = 0; i < count; i++) {
+            buffers[i].clear();
+            inputs[i] = buffers[i];
+        }
+        for (VectorRange vectorRange : this.vectorRangeList) {
+            String field = vectorRange.getField();
+            for (int i = 0; i < count; i++) {
+                Map<String, List<Object>> fieldValues = buffers[i].fieldValues();
+                if (field != null) {
+                    setDocument.accept(docs[i]);
+                    fieldValues.put(field, dataSource.getValues(field));
+                }
+                vectorRange.addVector(fieldValues, buffers[i]);
             }
         }
-        return new SparseVectorModelInput(values, indices);
     }
 
 }
@@ -19,6 +19,8 @@
 
 package org.elasticsearch.script.modelinput;
 
+import org.elasticsearch.common.collect.Tuple;
+
 import java.util.List;
 import java.util.Map;
 
@@ -45,6 +47,28 @@ public abstract class VectorRange {
 
     public abstract EsVector getVector(Map<String, List<Object>> fieldValues);
 
+    /**
+     * Appends the entries of a sparse range for the current document to the buffer
+     */
+    public void addVector(DataSource dataSource, VectorBuffer buffer) {
+        addEntries(getVector(dataSource), buffer);
+    }
+
+    /**
+     * Appends the entries of a sparse range for the given field values to the buffer
+     */
+    public void addVector(Map<String, List<Object>> fieldValues, VectorBuffer buffer) {
+        addEntries(getVector(fieldValues), buffer);
+    }
+
+    private static void addEntries(EsVector vector, VectorBuffer buffer) {
+        assert vector instanceof EsSparseNumericVector;
+        Tuple<int[], double[]> indicesAndValues = ((EsSparseNumericVector) vector).values;
+        for (int i = 0; i < indicesAndValues.v1().length; i++) {
+            buffer.add(indicesAndValues.v1()[i], indicesAndValues.v2()[i]);
+        }
+    }
+
     public String getField() {
         return field;
     }
@@ -42,12 +42,25 @@ public abstract class VectorRangesToVector implements ModelInputEvaluator<MapMod
 
     protected abstract Object vector(DataSource dataSource);
 
+    /**
+     * Same as {@link #vector(DataSource)} but may use the buffer as scratch space
+     */
+    protected Object vector(DataSource dataSource, VectorBuffer buffer) {
+        return vector(dataSource);
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public MapModelInput convert(DataSource dataSource) {
         return new MapModelInput((Map<String, Object>)vector(dataSource));
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public MapModelInput convert(DataSource dataSource, VectorBuffer buffer) {
+        return new MapModelInput((Map<String, Object>)vector(dataSource, buffer));
+    }
+
     protected int numEntries;
 }
 
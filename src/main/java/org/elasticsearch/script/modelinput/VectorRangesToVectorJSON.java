@@ -44,14 +44,16 @@ public class VectorRangesToVectorJSON extends VectorRangesToVector {
             assert feature.get("type").equals("terms"); // nothing else implemented yet
             assert feature.get("terms") != null;
             assert feature.get("number") != null;
+            double k1 = getDouble(feature.get("k1"), AnalyzedTextVectorRange.DEFAULT_BM25_K1);
+            double b = getDouble(feature.get("b"), AnalyzedTextVectorRange.DEFAULT_BM25_B);
             if (sparse) {
                 vectorRangeList.add(new AnalyzedTextVectorRange.SparseTermVectorRange((String) feature.get("field"), "int",
                         getTerms(feature.get("terms")),
                         (String) feature.get("number"),
-                        offset));
+                        offset, k1, b));
             } else {
                 vectorRangeList.add(new AnalyzedTextVectorRange.DenseTermVectorRange((String) feature.get("field"), "int", getTerms
-                        (feature.get("terms")), (String) feature.get("number"), offset));
+                        (feature.get("terms")), (String) feature.get("number"), offset, k1, b));
             }
             offset += vectorRangeList.get(vectorRangeList.size() - 1).size();
             numEntries += vectorRangeList.get(vectorRangeList.size() - 1).size();
@@ -59,6 +61,11 @@ public class VectorRangesToVectorJSON extends VectorRangesToVector {
     }
 
 
+    private static double getDouble(Object value, double defaultValue) {
+        assert value == null || value instanceof Number;
+        return value == null ? defaultValue : ((Number) value).doubleValue();
+    }
+
     private String[] getTerms(Object terms) {
         assert terms instanceof ArrayList;
         @SuppressWarnings("unchecked") ArrayList<String> termsList = (ArrayList<String>) terms;
@@ -72,28 +79,20 @@ public class VectorRangesToVectorJSON extends VectorRangesToVector {
     }
 
     public Object vector(DataSource dataSource) {
+        return vector(dataSource, new VectorBuffer());
+    }
+
+    @Override
+    public Object vector(DataSource dataSource, VectorBuffer buffer) {
         if (sparse) {
-            int length = 0;
-            List<EsSparseNumericVector> entries = new ArrayList<>();
+            buffer.clear();
             for (VectorRange fieldEntry : vectorRangeList) {
-                EsSparseNumericVector vec = (EsSparseNumericVector) fieldEntry.getVector(dataSource);
-                entries.add(vec);
-                length += vec.values.v1().length;
+                fieldEntry.addVector(dataSource, buffer);
             }
+            // the vector is returned to the caller, so it must not share the arrays of the buffer
             Map<String, Object> finalVector = new HashMap<>();
-
-
-            double[] values = new double[length];
-            int[] indices = new int[length];
-            int curPos = 0;
-            for (EsSparseNumericVector vector : entries) {
-                int numValues = vector.values.v1().length;
-                System.arraycopy(vector.values.v1(), 0, indices, curPos, numValues);
-                System.arraycopy(vector.values.v2(), 0, values, curPos, numValues);
-                curPos += numValues;
-            }
-            finalVector.put("values", values);
-            finalVector.put("indices", indices);
+            finalVector.put("values", buffer.copyValues());
+            finalVector.put("indices", buffer.copyIndices());
             finalVector.put("length", numEntries);
             return finalVector;
 
@@ -19,7 +19,8 @@
 
 package org.elasticsearch.script.modelinput;
 
-import java.util.ArrayList;
+import org.elasticsearch.script.models.EsTreeModel;
+
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -49,27 +50,13 @@ public class VectorRangesToVectorPMML extends VectorRangesToVector {
     }
 
     public Object vector(Map<String, List<Object>> fieldValues) {
-        int length = 0;
-        List<EsSparseNumericVector> sparseNumericVectors = new ArrayList<>();
+        VectorBuffer buffer = new VectorBuffer();
         for (VectorRange vectorRange : this.vectorRangeList) {
-            EsVector entries = vectorRange.getVector(fieldValues);
-            assert entries instanceof EsSparseNumericVector;
-            sparseNumericVectors.add((EsSparseNumericVector) entries);
-            length += ((EsSparseNumericVector) entries).values.v1().length;
+            vectorRange.addVector(fieldValues, buffer);
         }
         Map<String, Object> finalVector = new HashMap<>();
-        double[] values = new double[length];
-        int[] indices = new int[length];
-        int i = 0;
-        for (EsSparseNumericVector esSparseNumericVector : sparseNumericVectors) {
-            for (int j = 0; j < esSparseNumericVector.values.v1().length; j++) {
-                indices[i] = esSparseNumericVector.values.v1()[j];
-                values[i] = esSparseNumericVector.values.v2()[j];
-                i++;
-            }
-        }
-        finalVector.put("values", values);
-        finalVector.put("indices", indices);
+        finalVector.put("values", buffer.copyValues());
+        finalVector.put("indices", buffer.copyIndices());
         finalVector.put("length", numEntries);
         return finalVector;
     }
@@ -90,8 +77,15 @@ public class VectorRangesToVectorPMML extends VectorRangesToVector {
 
     public static class VectorRangesToVectorPMMLTreeModel extends VectorRangesToVectorPMML {
 
-        public VectorRangesToVectorPMMLTreeModel(List<VectorRange> fieldsToVectors) {
+        private final EsTreeModel treeModel;
+
+        /**
+         * @param fieldsToVectors one {@link PMMLVectorRange.FieldToValue} per slot of the tree model
+         */
+        public VectorRangesToVectorPMMLTreeModel(List<VectorRange> fieldsToVectors, EsTreeModel treeModel) {
             super(fieldsToVectors, fieldsToVectors.size());
+            assert treeModel.numSlots() == fieldsToVectors.size();
+            this.treeModel = treeModel;
         }
 
         @Override
@@ -103,6 +97,35 @@ public class VectorRangesToVectorPMML extends VectorRangesToVector {
             }
             return values;
         }
+
+        /**
+         * Writes the row of the tree model to the buffer: the encoded values of the field of every slot, without duplicates.
+         */
+        @Override
+        public MapModelInput convert(DataSource dataSource, VectorBuffer buffer) {
+            buffer.clear();
+            for (int slot = 0; slot < vectorRangeList.size(); slot++) {
+                PMMLVectorRange vectorRange = (PMMLVectorRange) vectorRangeList.get(slot);
+                List<Object> values = dataSource.getValues(vectorRange.getField());
+                if (values == null || values.isEmpty()) {
+                    buffer.add(slot, treeModel.encode(slot, vectorRange.applyPreProcessing((Object) null)));
+                } else {
+                    int start = buffer.getSize();
+                    for (Object value : values) {
+                        addUnique(buffer, start, slot, treeModel.encode(slot, vectorRange.applyPreProcessing(value)));
+                    }
+                }
+            }
+            return buffer.asMapModelInput();
+        }
+
+        private static void addUnique(VectorBuffer buffer, int start, int slot, double value) {
+            for (int i = start; i < buffer.getSize(); i++) {
+                if (Double.compare(buffer.getValue(i), value) == 0) {
+                    return;
+                }
+            }
+            buffer.add(slot, value);
+        }
     }
 }
-
@@ -0,0 +1,277 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.script.models;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ElasticsearchException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Locale;
+
+/**
+ * The coefficients of a linear model, stored as doubles, floats or bytes.
+ * <p>
+ * Large text models have millions of coefficients per class. Floats halve their heap and bytes cut it by almost 8: every
+ * block of {@link #QUANTIZATION_BLOCK_SIZE} coefficients is scaled to [-127, 127] by the largest absolute value in the block,
+ * so the error of a coefficient is at most half a step of its block. Any format can also be kept off heap in a memory mapped
+ * temporary file, which is deleted right away and unmapped when the model is garbage collected.
+ */
+public abstract class Coefficients {
+
+    public static final int QUANTIZATION_BLOCK_SIZE = 128;
+
+    public enum Format {
+        DOUBLE(Double.BYTES), FLOAT(Float.BYTES), INT8(Byte.BYTES);
+
+        private final int bytes;
+
+        Format(int bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        public static Format fromString(String s) {
+            for (Format format : values()) {
+                if (format.toString().equals(s)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("coefficient format must be one of [double, float, int8] but was [" + s + "]");
+        }
+    }
+
+    public abstract double get(int i);
+
+    public abstract int size();
+
+    public abstract Format format();
+
+    /**
+     * The heap used by the coefficients, memory mapped coefficients only count their scales
+     */
+    public abstract long ramBytesUsed();
+
+    public static Coefficients of(double[] values) {
+        return new DoubleArrayCoefficients(values);
+    }
+
+    /**
+     * Stores the values in the given format, on heap or in a memory mapped file
+     */
+    public static Coefficients of(double[] values, Format format, boolean mmap) {
+        if (format == Format.DOUBLE && mmap == false) {
+            return of(values);
+        }
+        long size = (long) values.length * format.bytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("cannot store [" + values.length + "] coefficients as " + format);
+        }
+        ByteBuffer bytes = mmap ? map((int) size).order(ByteOrder.nativeOrder()) : null;
+        switch (format) {
+            case DOUBLE:
+                DoubleBuffer doubles = bytes.asDoubleBuffer();
+                doubles.put(values);
+                return new DoubleBufferCoefficients(doubles);
+            case FLOAT:
+                FloatBuffer floats = mmap ? bytes.asFloatBuffer() : FloatBuffer.wrap(new float[values.length]);
+                for (int i = 0; i < values.length; i++) {
+                    floats.put(i, (float) values[i]);
+                }
+                return new FloatCoefficients(floats);
+            case INT8:
+                if (bytes == null) {
+                    bytes = ByteBuffer.wrap(new byte[values.length]);
+                }
+                float[] scales = new float[(values.length + QUANTIZATION_BLOCK_SIZE - 1) / QUANTIZATION_BLOCK_SIZE];
+                for (int block = 0; block < scales.length; block++) {
+                    int start = block * QUANTIZATION_BLOCK_SIZE;
+                    int end = Math.min(start + QUANTIZATION_BLOCK_SIZE, values.length);
+                    double max = 0;
+                    for (int i = start; i < end; i++) {
+                        max = Math.max(max, Math.abs(values[i]));
+                    }
+                    scales[block] = (float) (max / 127);
+                    for (int i = start; i < end; i++) {
+                        bytes.put(i, scales[block] == 0 ? 0 : (byte) Math.round(values[i] / scales[block]));
+                    }
+                }
+                return new QuantizedCoefficients(bytes, scales, values.length);
+            default:
+                throw new IllegalArgumentException("unknown coefficient format [" + format + "]");
+        }
+    }
+
+    /**
+     * Maps a new temporary file of the given size. The file is deleted once it is mapped, the mapping stays valid until the
+     * buffer is garbage collected.
+     */
+    private static ByteBuffer map(int size) {
+        return AccessController.doPrivileged(new PrivilegedAction<ByteBuffer>() {
+            public ByteBuffer run() {
+                try {
+                    Path file = Files.createTempFile("pmml-coefficients", ".bin");
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                    } finally {
+                        try {
+                            Files.delete(file);
+                        } catch (IOException e) {
+                            // mapped files cannot be deleted on windows
+                            file.toFile().deleteOnExit();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new ElasticsearchException("could not map coefficients to a file", e);
+                }
+            }
+        });
+    }
+
+    private static final class DoubleArrayCoefficients extends Coefficients {
+        private final double[] values;
+
+        DoubleArrayCoefficients(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public double get(int i) {
+            return values[i];
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public Format format() {
+            return Format.DOUBLE;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return RamUsageEstimator.sizeOf(values);
+        }
+    }
+
+    private static final class DoubleBufferCoefficients extends Coefficients {
+        private final DoubleBuffer values;
+
+        DoubleBufferCoefficients(DoubleBuffer values) {
+            this.values = values;
+        }
+
+        @Override
+        public double get(int i) {
+            return values.get(i);
+        }
+
+        @Override
+        public int size() {
+            return values.capacity();
+        }
+
+        @Override
+        public Format format() {
+            return Format.DOUBLE;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return values.isDirect() ? 0 : (long) values.capacity() * Double.BYTES;
+        }
+    }
+
+    private static final class FloatCoefficients extends Coefficients {
+        private final FloatBuffer values;
+
+        FloatCoefficients(FloatBuffer values) {
+            this.values = values;
+        }
+
+        @Override
+        public double get(int i) {
+            return values.get(i);
+        }
+
+        @Override
+        public int size() {
+            return values.capacity();
+        }
+
+        @Override
+        public Format format() {
+            return Format.FLOAT;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return values.isDirect() ? 0 : (long) values.capacity() * Float.BYTES;
+        }
+    }
+
+    private static final class QuantizedCoefficients extends Coefficients {
+        private final ByteBuffer values;
+        private final float[] scales;
+        private final int size;
+
+        QuantizedCoefficients(ByteBuffer values, float[] scales, int size) {
+            this.values = values;
+            this.scales = scales;
+            this.size = size;
+        }
+
+        @Override
+        public double get(int i) {
+            return values.get(i) * scales[i / QUANTIZATION_BLOCK_SIZE];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Format format() {
+            return Format.INT8;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return (values.isDirect() ? 0 : size) + RamUsageEstimator.sizeOf(scales);
+        }
+    }
+}
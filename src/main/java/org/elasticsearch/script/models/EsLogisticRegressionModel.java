@@ -24,52 +24,178 @@ import org.elasticsearch.script.modelinput.VectorModelInput;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Logistic regression with any number of classes. The probabilities of the classes are the softmax of their linear scores.
+ * <p>
+ * The coefficients are stored feature by feature: the coefficients of feature i for all classes are at
+ * {@code coefficients[i * numColumns]..coefficients[(i + 1) * numColumns - 1]}. A sparse document is thus scored for all
+ * classes in one pass over its non-zero features, and the inner loop over the classes reads adjacent values. Like the
+ * multinomialLogistic models of PMML, the last class can be a reference class that has no coefficients and a score of 0, so
+ * binary models only have a single column.
+ */
 public class EsLogisticRegressionModel extends EsModelEvaluator<VectorModelInput, String> {
 
-    private final double[] coefficients;
-    private final double intercept;
+    private final Coefficients coefficients;
+    private final double[] intercepts;
     private final String[] classes;
+    // the number of classes with coefficients, either all classes or all but the reference class
+    private final int numColumns;
 
+    /**
+     * A binary model, the first class has the probability sigmoid(intercept + x * coefficients)
+     */
     public EsLogisticRegressionModel(double[] coefficients,
                                      double intercept, String[] classes) {
+        this(coefficients, new double[]{intercept}, classes);
+    }
+
+    /**
+     * @param coefficients the coefficients of feature i for class c are at {@code i * intercepts.length + c}
+     * @param intercepts   the intercept of each class that has coefficients, the classes without them come last and have a
+     *                     score of 0
+     */
+    public EsLogisticRegressionModel(double[] coefficients, double[] intercepts, String[] classes) {
+        this(Coefficients.of(coefficients), intercepts, classes);
+    }
+
+    public EsLogisticRegressionModel(Coefficients coefficients, double[] intercepts, String[] classes) {
+        if (intercepts.length != classes.length && intercepts.length != classes.length - 1) {
+            throw new IllegalArgumentException("expected coefficients for [" + classes.length + "] or [" + (classes.length - 1)
+                    + "] classes but got [" + intercepts.length + "]");
+        }
+        if (coefficients.size() % intercepts.length != 0) {
+            throw new IllegalArgumentException("[" + coefficients.size() + "] coefficients cannot be split into ["
+                    + intercepts.length + "] classes");
+        }
         this.coefficients = coefficients;
-        this.intercept = intercept;
+        this.intercepts = intercepts;
         this.classes = classes;
+        this.numColumns = intercepts.length;
     }
 
     @Override
     public Map<String, Object> evaluateDebug(VectorModelInput modelInput) {
-        double val = linearFunction(modelInput, intercept, coefficients);
-        return prepareResult(val);
+        double[] scores = new double[classes.length];
+        scores(modelInput, scores, 0);
+        return prepareResult(scores, 0);
     }
 
     @Override
     public String evaluate(VectorModelInput modelInput) {
-        double val = linearFunction(modelInput, intercept, coefficients);
-        double prob = 1 / (1 + Math.exp(-1.0 * val));
-        return prob > 0.5 ? classes[0] : classes[1];
+        if (numColumns == 1 && classes.length == 2) {
+            return binaryScore(modelInput) > 0 ? classes[0] : classes[1];
+        }
+        double[] scores = new double[classes.length];
+        scores(modelInput, scores, 0);
+        return classes[argMax(scores, 0)];
     }
 
-    private Map<String, Object> prepareResult(double val) {
-        // TODO: this should be several classes really...
-        double prob = 1 / (1 + Math.exp(-1.0 * val));
-        String classValue = prob > 0.5 ? classes[0] : classes[1];
-        Map<String, Object> result = new HashMap<>();
-        result.put("class", classValue);
-        Map<String, Object> probs = new HashMap<>();
-        probs.put(classes[0], prob);
-        probs.put(classes[1], 1.0 - prob);
-        result.put("probs", probs);
-        return result;
+    @Override
+    public void evaluate(VectorModelInput[] inputs, int count, boolean debug, Object[] results) {
+        // the block is a sparse matrix with one row per document, multiply it with the coefficients first
+        double[] scores = new double[count * classes.length];
+        for (int i = 0; i < count; i++) {
+            scores(inputs[i], scores, i * classes.length);
+        }
+        for (int i = 0; i < count; i++) {
+            if (debug) {
+                results[i] = prepareResult(scores, i * classes.length);
+            } else {
+                results[i] = classes[argMax(scores, i * classes.length)];
+            }
+        }
+    }
+
+    @Override
+    public int classOrd(String className) {
+        return classOrd(className, classes);
+    }
+
+    /**
+     * The probability of the class, which defaults to the first one
+     */
+    @Override
+    public double evaluateAsDouble(VectorModelInput modelInput, int classOrd) {
+        int target = classOrd == -1 ? 0 : classOrd;
+        if (numColumns == 1 && classes.length == 2) {
+            double prob = 1 / (1 + Math.exp(-1.0 * binaryScore(modelInput)));
+            return target == 1 ? 1.0 - prob : prob;
+        }
+        double[] scores = new double[classes.length];
+        scores(modelInput, scores, 0);
+        // 1 / sum(exp(s_j - s_target)) is the softmax of the target and cannot overflow to NaN
+        double sum = 0;
+        for (int i = 0; i < scores.length; i++) {
+            sum += Math.exp(scores[i] - scores[target]);
+        }
+        return 1 / sum;
+    }
+
+    @Override
+    public EsLogisticRegressionModel withCoefficients(Coefficients.Format format, boolean mmap) {
+        if (format == coefficients.format() && mmap == false) {
+            return this;
+        }
+        double[] values = new double[coefficients.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = coefficients.get(i);
+        }
+        return new EsLogisticRegressionModel(Coefficients.of(values, format, mmap), intercepts, classes);
+    }
+
+    /**
+     * Writes the scores of all classes for the input to scores, starting at offset
+     */
+    private void scores(VectorModelInput modelInput, double[] scores, int offset) {
+        System.arraycopy(intercepts, 0, scores, offset, numColumns);
+        for (int i = 0; i < modelInput.getSize(); i++) {
+            double value = modelInput.getValue(i);
+            int base = modelInput.getIndex(i) * numColumns;
+            for (int c = 0; c < numColumns; c++) {
+                scores[offset + c] += value * coefficients.get(base + c);
+            }
+        }
+        if (numColumns < classes.length) {
+            scores[offset + numColumns] = 0;
+        }
     }
 
-    private double linearFunction(VectorModelInput modelInput, double intercept, double[] coefficients) {
-        double val = 0.0;
-        val += intercept;
+    private double binaryScore(VectorModelInput modelInput) {
+        double val = intercepts[0];
         for (int i = 0; i < modelInput.getSize(); i++) {
-            val += modelInput.getValue(i) * coefficients[modelInput.getIndex(i)];
+            val += modelInput.getValue(i) * coefficients.get(modelInput.getIndex(i));
         }
         return val;
     }
 
+    /**
+     * The class with the highest score, ties go to the later class like the reference class of binary models
+     */
+    private int argMax(double[] scores, int offset) {
+        int best = 0;
+        for (int c = 1; c < classes.length; c++) {
+            if (scores[offset + c] >= scores[offset + best]) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private Map<String, Object> prepareResult(double[] scores, int offset) {
+        int best = argMax(scores, offset);
+        double max = scores[offset + best];
+        double sum = 0;
+        for (int c = 0; c < classes.length; c++) {
+            sum += Math.exp(scores[offset + c] - max);
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("class", classes[best]);
+        Map<String, Object> probs = new HashMap<>();
+        for (int c = 0; c < classes.length; c++) {
+            probs.put(classes[c], Math.exp(scores[offset + c] - max) / sum);
+        }
+        result.put("probs", probs);
+        return result;
+    }
+
 }
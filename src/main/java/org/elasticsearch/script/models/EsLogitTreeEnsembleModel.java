@@ -0,0 +1,118 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.script.models;
+
+import org.elasticsearch.script.modelinput.MapModelInput;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary classification with boosted trees: the logistic function of the rescaled sum of the trees is the probability of
+ * the first class. This is the modelChain that PMML exporters write for gradient boosting classifiers, a sum MiningModel
+ * followed by a RegressionModel with logit normalization.
+ */
+public class EsLogitTreeEnsembleModel extends EsModelEvaluator<MapModelInput, Object> {
+
+    private final EsTreeEnsembleModel decisionFunction;
+    private final double intercept;
+    private final double coefficient;
+    private final String[] classes;
+
+    /**
+     * @param decisionFunction the ensemble that computes the decision function, usually a sum with a rescaled Target
+     * @param intercept the intercept of the logit
+     * @param coefficient the coefficient of the decision function in the logit
+     * @param classes the class whose probability is the logit and the other class
+     */
+    public EsLogitTreeEnsembleModel(EsTreeEnsembleModel decisionFunction, double intercept, double coefficient, String[] classes) {
+        if (classes.length != 2) {
+            throw new IllegalArgumentException("expected [2] classes but got [" + classes.length + "]");
+        }
+        this.decisionFunction = decisionFunction;
+        this.intercept = intercept;
+        this.coefficient = coefficient;
+        this.classes = classes;
+    }
+
+    @Override
+    public Map<String, Object> evaluateDebug(MapModelInput modelInput) {
+        Map<String, Object> result = new HashMap<>();
+        Object value = decisionFunction.evaluate(modelInput);
+        if (value == null) {
+            result.put("class", null);
+            return result;
+        }
+        double probability = probability((Double) value);
+        result.put("class", winner(probability));
+        Map<String, Double> probs = new HashMap<>();
+        probs.put(classes[0], probability);
+        probs.put(classes[1], 1 - probability);
+        result.put("probs", probs);
+        return result;
+    }
+
+    /**
+     * The more likely class, the first one if both are equally likely. Null if none of the trees has a score.
+     */
+    @Override
+    public Object evaluate(MapModelInput modelInput) {
+        Object value = decisionFunction.evaluate(modelInput);
+        return value == null ? null : winner(probability((Double) value));
+    }
+
+    @Override
+    public int classOrd(String className) {
+        return classOrd(className, classes);
+    }
+
+    /**
+     * The probability of the class, -1 stands for the first class
+     */
+    @Override
+    public double evaluateAsDouble(MapModelInput modelInput, int classOrd) {
+        double probability = probability(decisionFunction.evaluateAsDouble(modelInput, -1));
+        return classOrd == 1 ? 1 - probability : probability;
+    }
+
+    /**
+     * Evaluates the trees of the block tree by tree, see {@link EsTreeEnsembleModel#evaluate(MapModelInput[], int, boolean, Object[])}
+     */
+    @Override
+    public void evaluate(MapModelInput[] inputs, int count, boolean debug, Object[] results) {
+        if (debug) {
+            super.evaluate(inputs, count, debug, results);
+            return;
+        }
+        decisionFunction.evaluate(inputs, count, false, results);
+        for (int i = 0; i < count; i++) {
+            results[i] = results[i] == null ? null : winner(probability((Double) results[i]));
+        }
+    }
+
+    private double probability(double value) {
+        return 1 / (1 + Math.exp(-(intercept + coefficient * value)));
+    }
+
+    private String winner(double probability) {
+        return probability >= 0.5 ? classes[0] : classes[1];
+    }
+}
@@ -21,6 +21,7 @@ package org.elasticsearch.script.models;
 
 import org.elasticsearch.script.modelinput.ModelInput;
 
+import java.util.Arrays;
 import java.util.Map;
 
 
@@ -28,6 +29,49 @@ public abstract class EsModelEvaluator<Input extends ModelInput, Output> {
 
     public abstract Map<String, Object> evaluateDebug(Input modelInput);
     public abstract Output evaluate(Input modelInput);
+
+    /**
+     * Returns the number that {@link #evaluateAsDouble(ModelInput, int)} uses for the class with the given name, so that
+     * the name is resolved once per search and not for every document.
+     */
+    public int classOrd(String className) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " has no numeric output");
+    }
+
+    /**
+     * Evaluates the model to a single number so that it can be used for scoring and sorting: the probability of the class
+     * with the given ord, see {@link #classOrd(String)}. -1 stands for the default class of the model.
+     */
+    public double evaluateAsDouble(Input modelInput, int classOrd) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " has no numeric output");
+    }
+
+    /**
+     * Returns an evaluator of the same model that stores its coefficients in the given format, on heap or memory mapped, see
+     * the pmml.coefficient_format setting. Models without coefficients return themselves.
+     */
+    public EsModelEvaluator<Input, Output> withCoefficients(Coefficients.Format format, boolean mmap) {
+        return this;
+    }
+
+    static int classOrd(String className, String[] classes) {
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i].equals(className)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unknown class [" + className + "], the model has the classes " + Arrays.toString(classes));
+    }
+
+    /**
+     * Evaluates the first count inputs and stores the results. Models that can share work between the inputs of a block
+     * override this, by default the inputs are evaluated one by one.
+     */
+    public void evaluate(Input[] inputs, int count, boolean debug, Object[] results) {
+        for (int i = 0; i < count; i++) {
+            results[i] = debug ? evaluateDebug(inputs[i]) : evaluate(inputs[i]);
+        }
+    }
 }
 
 
@@ -69,6 +69,29 @@ public class EsNaiveBayesModelWithMixedInput extends EsModelEvaluator<VectorMode
 
     }
 
+    @Override
+    public int classOrd(String className) {
+        return classOrd(className, classLabels);
+    }
+
+    /**
+     * The probability of the class, which defaults to the first one
+     */
+    @Override
+    public double evaluateAsDouble(VectorModelInput modelInput, int classOrd) {
+        double[] classProbs = getClassProbs(modelInput);
+        double max = Double.NEGATIVE_INFINITY;
+        for (double classProb : classProbs) {
+            max = Math.max(max, classProb);
+        }
+        // the class probs are logs, shift them before exp so that none of them underflows to 0
+        double sumProb = 0;
+        for (double classProb : classProbs) {
+            sumProb += Math.exp(classProb - max);
+        }
+        return Math.exp(classProbs[classOrd == -1 ? 0 : classOrd] - max) / sumProb;
+    }
+
     private Map<String, Object> prepareResult(double... val) {
         int bestClass = 0;
         // sum the values to get the actual probs
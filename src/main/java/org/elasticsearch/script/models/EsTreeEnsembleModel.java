@@ -0,0 +1,306 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.script.models;
+
+import org.elasticsearch.script.modelinput.MapModelInput;
+import org.elasticsearch.script.modelinput.VectorModelInput;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Combines the predictions of several trees, like random forests and boosted trees.
+ * <p>
+ * The trees are packed into the arrays of a single {@link EsTreeModel}, so the fields of a document are read and encoded
+ * once for all trees. Blocks of documents are evaluated tree by tree, which keeps the nodes of a tree in the cache while
+ * they are used for all documents of the block.
+ */
+public class EsTreeEnsembleModel extends EsModelEvaluator<MapModelInput, Object> {
+
+    /**
+     * How the predictions of the trees are combined, the names are the multipleModelMethod values of PMML
+     */
+    public enum Method {
+        SUM(false), AVERAGE(false), WEIGHTED_AVERAGE(false), MAJORITY_VOTE(true), WEIGHTED_MAJORITY_VOTE(true);
+
+        private final boolean vote;
+
+        Method(boolean vote) {
+            this.vote = vote;
+        }
+
+        public static Method fromPMML(String multipleModelMethod) {
+            for (Method method : values()) {
+                if (method.toString().equals(multipleModelMethod)) {
+                    return method;
+                }
+            }
+            throw new UnsupportedOperationException("multipleModelMethod " + multipleModelMethod + " for MiningModel not implemented yet.");
+        }
+
+        @Override
+        public String toString() {
+            // majorityVote, weightedAverage...
+            String[] words = name().toLowerCase(Locale.ROOT).split("_");
+            StringBuilder name = new StringBuilder(words[0]);
+            for (int i = 1; i < words.length; i++) {
+                name.append(Character.toUpperCase(words[i].charAt(0))).append(words[i].substring(1));
+            }
+            return name.toString();
+        }
+    }
+
+    private final EsTreeModel trees;
+    private final Method method;
+    private final double[] weights;
+    // the Target of the model maps the combined score x to rescaleFactor * x + rescaleConstant
+    private final double rescaleFactor;
+    private final double rescaleConstant;
+    // the scores of the trees as numbers, NaN if a score is not a number
+    private final double[] numericScores;
+
+    /**
+     * @param weights the weight of each tree, only weighted methods use them
+     */
+    public EsTreeEnsembleModel(EsTreeModel trees, Method method, double[] weights) {
+        this(trees, method, weights, 1, 0);
+    }
+
+    /**
+     * @param weights the weight of each tree, only weighted methods use them
+     * @param rescaleFactor the combined score is multiplied with the rescaleFactor of the Target of the model
+     * @param rescaleConstant and then the rescaleConstant is added, like the initial score of boosted trees
+     */
+    public EsTreeEnsembleModel(EsTreeModel trees, Method method, double[] weights, double rescaleFactor, double rescaleConstant) {
+        if (trees.numTrees() != weights.length) {
+            throw new IllegalArgumentException("expected [" + trees.numTrees() + "] weights but got [" + weights.length + "]");
+        }
+        if (method.vote && (rescaleFactor != 1 || rescaleConstant != 0)) {
+            throw new IllegalArgumentException("cannot rescale the votes of " + method);
+        }
+        this.trees = trees;
+        this.method = method;
+        this.weights = weights;
+        this.rescaleFactor = rescaleFactor;
+        this.rescaleConstant = rescaleConstant;
+        String[] classes = trees.classes();
+        this.numericScores = new double[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            try {
+                numericScores[i] = Double.parseDouble(classes[i]);
+            } catch (NumberFormatException e) {
+                if (method.vote == false) {
+                    throw new IllegalArgumentException("score [" + classes[i] + "] is not a number, " + method + " needs numbers");
+                }
+                numericScores[i] = Double.NaN;
+            }
+        }
+    }
+
+    @Override
+    public Map<String, Object> evaluateDebug(MapModelInput modelInput) {
+        VectorModelInput row = trees.row(modelInput);
+        Map<String, Object> result = new HashMap<>();
+        if (method.vote) {
+            String[] classes = trees.classes();
+            double[] votes = new double[classes.length];
+            double totalVotes = vote(row, votes, 0);
+            result.put("class", winner(votes, 0));
+            Map<String, Double> probs = new HashMap<>();
+            for (int i = 0; i < classes.length; i++) {
+                probs.put(classes[i], totalVotes == 0 ? 0 : votes[i] / totalVotes);
+            }
+            result.put("probs", probs);
+        } else {
+            result.put("value", value(row));
+        }
+        return result;
+    }
+
+    /**
+     * The class with the most votes for vote methods, the combined score of the trees otherwise. Ties are won by the class
+     * with the lowest ordinal, see {@link EsTreeModel.Builder#addClass(String)}.
+     */
+    @Override
+    public Object evaluate(MapModelInput modelInput) {
+        VectorModelInput row = trees.row(modelInput);
+        if (method.vote) {
+            double[] votes = new double[trees.classes().length];
+            vote(row, votes, 0);
+            return winner(votes, 0);
+        }
+        return value(row);
+    }
+
+    @Override
+    public int classOrd(String className) {
+        if (method.vote == false) {
+            throw new UnsupportedOperationException(method + " ensembles have no classes");
+        }
+        return classOrd(className, trees.classes());
+    }
+
+    /**
+     * The share of the votes for the class, or the combined score if the trees don't vote
+     */
+    @Override
+    public double evaluateAsDouble(MapModelInput modelInput, int classOrd) {
+        VectorModelInput row = trees.row(modelInput);
+        if (method.vote == false) {
+            Double value = value(row);
+            if (value == null) {
+                throw new IllegalArgumentException("none of the trees has a score for the document");
+            }
+            return value;
+        }
+        int target = classOrd == -1 ? 0 : classOrd;
+        double classVotes = 0;
+        double totalVotes = 0;
+        for (int tree = 0; tree < trees.numTrees(); tree++) {
+            int score = trees.scoreOrd(tree, row);
+            if (score != -1) {
+                double weight = method == Method.WEIGHTED_MAJORITY_VOTE ? weights[tree] : 1;
+                totalVotes += weight;
+                if (score == target) {
+                    classVotes += weight;
+                }
+            }
+        }
+        return totalVotes == 0 ? 0 : classVotes / totalVotes;
+    }
+
+    /**
+     * Evaluates the block tree by tree
+     */
+    @Override
+    public void evaluate(MapModelInput[] inputs, int count, boolean debug, Object[] results) {
+        if (debug) {
+            super.evaluate(inputs, count, debug, results);
+            return;
+        }
+        VectorModelInput[] rows = new VectorModelInput[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = trees.row(inputs[i]);
+        }
+        if (method.vote) {
+            int numClasses = trees.classes().length;
+            double[] votes = new double[count * numClasses];
+            for (int tree = 0; tree < trees.numTrees(); tree++) {
+                double weight = method == Method.WEIGHTED_MAJORITY_VOTE ? weights[tree] : 1;
+                for (int i = 0; i < count; i++) {
+                    int score = trees.scoreOrd(tree, rows[i]);
+                    if (score != -1) {
+                        votes[i * numClasses + score] += weight;
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                results[i] = winner(votes, i * numClasses);
+            }
+        } else {
+            double[] sums = new double[count];
+            int[] counts = new int[count];
+            double[] totalWeights = new double[count];
+            for (int tree = 0; tree < trees.numTrees(); tree++) {
+                for (int i = 0; i < count; i++) {
+                    int score = trees.scoreOrd(tree, rows[i]);
+                    if (score != -1) {
+                        double weight = method == Method.WEIGHTED_AVERAGE ? weights[tree] : 1;
+                        sums[i] += weight * numericScores[score];
+                        counts[i]++;
+                        totalWeights[i] += weight;
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                results[i] = combine(sums[i], counts[i], totalWeights[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds the votes of the trees for the row to votes, starting at offset. Returns the sum of the votes.
+     */
+    private double vote(VectorModelInput row, double[] votes, int offset) {
+        double totalVotes = 0;
+        for (int tree = 0; tree < trees.numTrees(); tree++) {
+            int score = trees.scoreOrd(tree, row);
+            if (score != -1) {
+                double weight = method == Method.WEIGHTED_MAJORITY_VOTE ? weights[tree] : 1;
+                votes[offset + score] += weight;
+                totalVotes += weight;
+            }
+        }
+        return totalVotes;
+    }
+
+    private String winner(double[] votes, int offset) {
+        String[] classes = trees.classes();
+        int winner = -1;
+        for (int i = 0; i < classes.length; i++) {
+            if (votes[offset + i] > 0 && (winner == -1 || votes[offset + i] > votes[offset + winner])) {
+                winner = i;
+            }
+        }
+        return winner == -1 ? null : classes[winner];
+    }
+
+    private Double value(VectorModelInput row) {
+        double sum = 0;
+        int count = 0;
+        double totalWeight = 0;
+        for (int tree = 0; tree < trees.numTrees(); tree++) {
+            int score = trees.scoreOrd(tree, row);
+            if (score != -1) {
+                double weight = method == Method.WEIGHTED_AVERAGE ? weights[tree] : 1;
+                sum += weight * numericScores[score];
+                count++;
+                totalWeight += weight;
+            }
+        }
+        return combine(sum, count, totalWeight);
+    }
+
+    /**
+     * Combines the (weighted) sum of the scores of the trees that have a prediction and rescales it, null if none has
+     */
+    private Double combine(double sum, int count, double totalWeight) {
+        if (count == 0) {
+            return null;
+        }
+        double combined;
+        switch (method) {
+            case SUM:
+                combined = sum;
+                break;
+            case AVERAGE:
+                combined = sum / count;
+                break;
+            case WEIGHTED_AVERAGE:
+                combined = sum / totalWeight;
+                break;
+            default:
+                throw new IllegalStateException("cannot combine scores with " + method);
+        }
+        return combined * rescaleFactor + rescaleConstant;
+    }
+}
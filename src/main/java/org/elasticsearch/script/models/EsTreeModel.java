@@ -17,170 +17,594 @@
  * under the License.
  */
 
+
 package org.elasticsearch.script.models;
 
+import com.carrotsearch.hppc.ByteArrayList;
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.script.modelinput.MapModelInput;
+import org.elasticsearch.script.modelinput.VectorBuffer;
+import org.elasticsearch.script.modelinput.VectorModelInput;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
+/**
+ * A decision tree that is stored in flat arrays.
+ * <p>
+ * The tree is evaluated over a row of feature values: a vector whose indices are the slots of the fields the predicates use,
+ * sorted by slot. A slot without entries is a field the row doesn't have, a slot with several entries a field with several
+ * values and a NaN value a missing value. Values of numeric and boolean fields are numbers, values of string fields are the
+ * ordinals of the strings the predicates compare to, see {@link #encode(int, Object)}. Evaluating a row doesn't allocate.
+ * <p>
+ * The arrays can hold several trees over the same slots, which {@link EsTreeEnsembleModel} uses to evaluate all trees of
+ * an ensemble over a single row. The methods of the model itself evaluate the first tree.
+ */
 public class EsTreeModel extends EsModelEvaluator<MapModelInput, String> {
 
-    private final EsTreeNode startNode;
+    /**
+     * Encoded value of strings that no predicate of the tree compares to
+     */
+    public static final double UNKNOWN_CATEGORY = -1;
+
+    private static final byte TRUE = 0;
+    private static final byte FALSE = 1;
+    private static final byte EQUAL = 2;
+    private static final byte NOT_EQUAL = 3;
+    private static final byte LESS_THAN = 4;
+    private static final byte LESS_OR_EQUAL = 5;
+    private static final byte GREATER_THAN = 6;
+    private static final byte GREATER_OR_EQUAL = 7;
+    private static final byte IS_MISSING = 8;
+    private static final byte IS_NOT_MISSING = 9;
+    private static final byte IS_IN = 10;
+    private static final byte IS_NOT_IN = 11;
+    private static final byte AND = 12;
+    private static final byte OR = 13;
+    private static final byte XOR = 14;
+    private static final byte SURROGATE = 15;
+
+    private final String[] slotFields;
+    // ordinals of the strings of string fields, null for other fields
+    private final List<Map<String, Integer>> dictionaries;
+
+    // nodes of every tree in depth first order, the trees one after the other
+    private final int[] roots;
+    private final int[] nodePredicates;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    // ordinal of the score in classes, -1 if the node has no score
+    private final int[] nodeScores;
+    // the scores of the nodes, in the order they first appear in the trees
+    private final String[] classes;
+
+    private final byte[] operators;
+    private final int[] predicateSlots;
+    private final double[] thresholds;
+    // set predicates use the sorted values from start to end in setValues, compound predicates the children from start to
+    // end in childPredicates
+    private final int[] operandStarts;
+    private final int[] operandEnds;
+    private final double[] setValues;
+    private final int[] childPredicates;
+
+    private EsTreeModel(Builder builder) {
+        this.slotFields = builder.slotFields;
+        this.dictionaries = builder.dictionaries;
+        this.roots = builder.roots.toArray();
+        this.nodePredicates = builder.nodePredicates.toArray();
+        this.firstChildren = builder.firstChildren.toArray();
+        this.nextSiblings = builder.nextSiblings.toArray();
+        this.nodeScores = builder.nodeScores.toArray();
+        this.classes = builder.classes.keySet().toArray(new String[builder.classes.size()]);
+        this.operators = builder.operators.toArray();
+        this.predicateSlots = builder.predicateSlots.toArray();
+        this.thresholds = builder.thresholds.toArray();
+        this.operandStarts = builder.operandStarts.toArray();
+        this.operandEnds = builder.operandEnds.toArray();
+        this.setValues = builder.setValues.toArray();
+        this.childPredicates = builder.childPredicates.toArray();
+    }
+
+    /**
+     * The number of slots of a row
+     */
+    public int numSlots() {
+        return slotFields.length;
+    }
 
-    public EsTreeModel(EsTreeNode startNode) {
-        this.startNode = startNode;
+    /**
+     * Encodes a pre processed value of the field of a slot as a value of a row
+     */
+    public double encode(int slot, @Nullable Object value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        Map<String, Integer> dictionary = dictionaries.get(slot);
+        if (dictionary != null) {
+            Integer ord = dictionary.get(value.toString());
+            return ord == null ? UNKNOWN_CATEGORY : ord;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        return ((Number) value).doubleValue();
     }
 
     @Override
     public Map<String, Object> evaluateDebug(MapModelInput modelInput) {
-        Map<String, Object> vector = modelInput.getAsMap();
-        assert startNode.predicate.match(vector);
-        return startNode.evaluate(vector);
+        Map<String, Object> result = new HashMap<>();
+        result.put("class", evaluate(modelInput));
+        return result;
     }
 
     @Override
     public String evaluate(MapModelInput modelInput) {
-        Map<String, Object> vector = modelInput.getAsMap();
-        assert startNode.predicate.match(vector);
-        return (String)startNode.evaluate(vector).get("class");
+        int score = scoreOrd(0, row(modelInput));
+        return score == -1 ? null : classes[score];
     }
 
-    public static class EsTreeNode {
-        EsPredicate predicate;
-        java.util.List<EsTreeNode> childNodes = new ArrayList<>();
-        String score;
-
-        public EsTreeNode(List<EsTreeNode> childNodes, EsPredicate predicate, String score) {
-            this.predicate = predicate;
-            this.childNodes = childNodes;
-            this.score = score;
-        }
-
+    @Override
+    public int classOrd(String className) {
+        return classOrd(className, classes);
+    }
 
-        private Map<String, Object> evaluate(Map<String, Object> vector) {
-            for (EsTreeNode childNode : childNodes) {
-                if (childNode.predicate.match(vector)) {
-                    return childNode.evaluate(vector);
-                }
+    /**
+     * 1 if the tree predicts the class and 0 otherwise. Without a class the score of the leaf is parsed as a number, which
+     * is the predicted value of regression trees.
+     */
+    @Override
+    public double evaluateAsDouble(MapModelInput modelInput, int classOrd) {
+        int score = scoreOrd(0, row(modelInput));
+        if (classOrd == -1) {
+            if (score == -1) {
+                throw new IllegalArgumentException("the tree has no score for the document, choose a class");
+            }
+            try {
+                return Double.parseDouble(classes[score]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("score [" + classes[score] + "] of the tree is not a number, choose a class", e);
             }
-            Map<String, Object> result = new HashMap<>();
-            result.put("class", score);
-            return result;
         }
+        return score == classOrd ? 1.0 : 0.0;
     }
 
-    public interface EsPredicate {
-        boolean match(Map<String, Object> vector);
-
-        boolean notEnoughValues(Map<String, Object> vector);
+    /**
+     * The number of trees
+     */
+    int numTrees() {
+        return roots.length;
     }
 
-    public abstract static class EsSimplePredicate<T extends Comparable<T>> implements EsPredicate {
-
-        protected final T value;
-        protected String field;
+    /**
+     * The scores of the nodes, scoreOrd returns positions in this array
+     */
+    String[] classes() {
+        return classes;
+    }
 
-        protected EsSimplePredicate(T value, String field) {
+    /**
+     * The ordinal of the score that a tree predicts for a row, -1 for no prediction
+     */
+    int scoreOrd(int tree, VectorModelInput row) {
+        return nodeScores[leaf(tree, row)];
+    }
 
-            this.value = value;
-            this.field = field;
+    /**
+     * The row of a model input, the input is either a buffer written by the tree vectorizer or maps field names to values
+     */
+    VectorModelInput row(MapModelInput modelInput) {
+        if (modelInput instanceof VectorBuffer.MapView) {
+            return ((VectorBuffer.MapView) modelInput).buffer();
         }
-
-        public abstract boolean match(T fieldValue);
-
-        @SuppressWarnings("unchecked")
-        public boolean match(Map<String, Object> vector) {
-            Object fieldValue = vector.get(field);
-            if (fieldValue instanceof HashSet) {
-                fieldValue = new ComparableSet<>((HashSet<Comparable<T>>) fieldValue);
-            }
-            if (fieldValue == null) {
-                return false;
+        // field name to the set of values like VectorRangesToVectorPMMLTreeModel#vector returns them
+        Map<String, Object> vector = modelInput.getAsMap();
+        VectorBuffer row = new VectorBuffer();
+        for (int slot = 0; slot < slotFields.length; slot++) {
+            Object values = vector.get(slotFields[slot]);
+            if (values instanceof Collection) {
+                for (Object value : (Collection<?>) values) {
+                    row.add(slot, encode(slot, value));
+                }
+            } else if (values != null) {
+                row.add(slot, encode(slot, values));
             }
-            return match((T) fieldValue);
         }
+        return row;
+    }
 
-        @Override
-        public boolean notEnoughValues(Map<String, Object> vector) {
-            return vector.containsKey(field) == false;
+    /**
+     * Returns the node whose score is the prediction for the row: the deepest node reached by following the first child
+     * whose predicate matches
+     */
+    private int leaf(int tree, VectorModelInput row) {
+        int node = roots[tree];
+        assert match(nodePredicates[node], row);
+        int child = firstChildren[node];
+        while (child != -1) {
+            if (match(nodePredicates[child], row)) {
+                node = child;
+                child = firstChildren[child];
+            } else {
+                child = nextSiblings[child];
+            }
         }
+        return node;
     }
 
-    public abstract static class EsCompoundPredicate implements EsPredicate {
+    private boolean match(int predicate, VectorModelInput row) {
+        byte operator = operators[predicate];
+        switch (operator) {
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case AND:
+                for (int i = operandStarts[predicate]; i < operandEnds[predicate]; i++) {
+                    if (match(childPredicates[i], row) == false) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (int i = operandStarts[predicate]; i < operandEnds[predicate]; i++) {
+                    if (match(childPredicates[i], row)) {
+                        return true;
+                    }
+                }
+                return false;
+            case XOR:
+                boolean result = false;
+                for (int i = operandStarts[predicate]; i < operandEnds[predicate]; i++) {
+                    if (match(childPredicates[i], row)) {
+                        if (result) {
+                            // we had true already, xor must return false
+                            return false;
+                        }
+                        result = true;
+                    }
+                }
+                return result;
+            case SURROGATE:
+                // the first predicate that has values decides
+                for (int i = operandStarts[predicate]; i < operandEnds[predicate]; i++) {
+                    if (notEnoughValues(childPredicates[i], row) == false) {
+                        return match(childPredicates[i], row);
+                    }
+                }
+                return false;
+        }
+        int slot = predicateSlots[predicate];
+        int first = firstEntry(row, slot);
+        int end = first;
+        while (end < row.getSize() && row.getIndex(end) == slot) {
+            end++;
+        }
+        switch (operator) {
+            case IS_MISSING:
+                return end == first || (end == first + 1 && Double.isNaN(row.getValue(first)));
+            case IS_NOT_MISSING:
+                return (end == first || (end == first + 1 && Double.isNaN(row.getValue(first)))) == false;
+            case IS_IN:
+            case IS_NOT_IN:
+                boolean found = false;
+                boolean hasValue = false;
+                for (int i = first; i < end; i++) {
+                    double value = row.getValue(i);
+                    hasValue |= Double.isNaN(value) == false;
+                    found |= Arrays.binarySearch(setValues, operandStarts[predicate], operandEnds[predicate], value) >= 0;
+                }
+                return operator == IS_IN ? found : hasValue && found == false;
+        }
+        if (end == first) {
+            return false;
+        }
+        if (end > first + 1) {
+            throw new UnsupportedOperationException("cannot compare the " + (end - first) + " values of field ["
+                    + slotFields[slot] + "] to a single value");
+        }
+        double value = row.getValue(first);
+        double threshold = thresholds[predicate];
+        switch (operator) {
+            case EQUAL:
+                return value == threshold;
+            case NOT_EQUAL:
+                // missing values are unknown, not different
+                return value != threshold && Double.isNaN(value) == false;
+            case LESS_THAN:
+                return value < threshold;
+            case LESS_OR_EQUAL:
+                return value <= threshold;
+            case GREATER_THAN:
+                return value > threshold;
+            case GREATER_OR_EQUAL:
+                return value >= threshold;
+            default:
+                throw new IllegalStateException("unknown operator [" + operator + "]");
+        }
+    }
 
-        protected List<EsPredicate> predicates;
+    /**
+     * True if the row doesn't have the fields the predicate needs
+     */
+    private boolean notEnoughValues(int predicate, VectorModelInput row) {
+        switch (operators[predicate]) {
+            case TRUE:
+            case FALSE:
+                return false;
+            case AND:
+            case OR:
+            case XOR:
+                for (int i = operandStarts[predicate]; i < operandEnds[predicate]; i++) {
+                    if (notEnoughValues(childPredicates[i], row)) {
+                        return true;
+                    }
+                }
+                return false;
+            case SURROGATE:
+                // only one needs to have enough values and then the predicate is defined
+                for (int i = operandStarts[predicate]; i < operandEnds[predicate]; i++) {
+                    if (notEnoughValues(childPredicates[i], row) == false) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                int slot = predicateSlots[predicate];
+                int first = firstEntry(row, slot);
+                return first == row.getSize() || row.getIndex(first) != slot;
+        }
+    }
 
-        protected EsCompoundPredicate(List<EsPredicate> predicates) {
-            this.predicates = predicates;
+    /**
+     * Position of the first entry of the row whose index is at least the slot
+     */
+    private static int firstEntry(VectorModelInput row, int slot) {
+        int low = 0;
+        int high = row.getSize();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (row.getIndex(mid) < slot) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
+        return low;
+    }
 
-        public boolean match(Map<String, Object> vector) {
-            return matchList(vector);
+    /**
+     * Builds a tree node by node in depth first order. Predicates are added before the node or compound predicate that uses
+     * them.
+     */
+    public static class Builder {
+
+        private final String[] slotFields;
+        private final Map<String, Integer> slots = new HashMap<>();
+        private final List<Map<String, Integer>> dictionaries = new ArrayList<>();
+
+        private final IntArrayList roots = new IntArrayList();
+        private final IntArrayList nodePredicates = new IntArrayList();
+        private final IntArrayList firstChildren = new IntArrayList();
+        private final IntArrayList nextSiblings = new IntArrayList();
+        private final IntArrayList nodeScores = new IntArrayList();
+        private final Map<String, Integer> classes = new LinkedHashMap<>();
+        // the open nodes and their last child
+        private final IntArrayList openNodes = new IntArrayList();
+        private final IntArrayList lastChildren = new IntArrayList();
+
+        private final ByteArrayList operators = new ByteArrayList();
+        private final IntArrayList predicateSlots = new IntArrayList();
+        private final DoubleArrayList thresholds = new DoubleArrayList();
+        private final IntArrayList operandStarts = new IntArrayList();
+        private final IntArrayList operandEnds = new IntArrayList();
+        private final DoubleArrayList setValues = new DoubleArrayList();
+        private final IntArrayList childPredicates = new IntArrayList();
+
+        /**
+         * @param slotFields the fields of the slots of the rows
+         * @param slotTypes  the data types of the fields: string, double, float, integer or boolean
+         */
+        public Builder(String[] slotFields, String[] slotTypes) {
+            assert slotFields.length == slotTypes.length;
+            this.slotFields = slotFields;
+            for (int slot = 0; slot < slotFields.length; slot++) {
+                slots.put(slotFields[slot], slot);
+                switch (slotTypes[slot]) {
+                    case "string":
+                        dictionaries.add(new HashMap<>());
+                        break;
+                    case "double":
+                    case "float":
+                    case "integer":
+                    case "int":
+                    case "boolean":
+                        dictionaries.add(null);
+                        break;
+                    default:
+                        throw new UnsupportedOperationException("Data type " + slotTypes[slot] + " for TreeModel not implemented yet.");
+                }
+            }
         }
 
-        protected abstract boolean matchList(Map<String, Object> vector);
+        public int constantPredicate(boolean value) {
+            return addPredicate(value ? TRUE : FALSE, -1, Double.NaN, 0, 0);
+        }
 
-        @Override
-        public boolean notEnoughValues(Map<String, Object> vector) {
-            boolean valuesMissing = false;
-            for (EsPredicate predicate : predicates) {
-                valuesMissing = predicate.notEnoughValues(vector) || valuesMissing;
+        /**
+         * @param operator a PMML operator like lessThan or isMissing
+         */
+        public int simplePredicate(String field, String operator, @Nullable String value) {
+            int slot = slot(field);
+            byte op;
+            switch (operator) {
+                case "equal":
+                    op = EQUAL;
+                    break;
+                case "notEqual":
+                    op = NOT_EQUAL;
+                    break;
+                case "lessThan":
+                    op = LESS_THAN;
+                    break;
+                case "lessOrEqual":
+                    op = LESS_OR_EQUAL;
+                    break;
+                case "greaterThan":
+                    op = GREATER_THAN;
+                    break;
+                case "greaterOrEqual":
+                    op = GREATER_OR_EQUAL;
+                    break;
+                case "isMissing":
+                    return addPredicate(IS_MISSING, slot, Double.NaN, 0, 0);
+                case "isNotMissing":
+                    return addPredicate(IS_NOT_MISSING, slot, Double.NaN, 0, 0);
+                default:
+                    throw new UnsupportedOperationException("Operator " + operator + " not supported for Predicate in TreeModel.");
             }
-            return valuesMissing;
+            if (dictionaries.get(slot) != null && op != EQUAL && op != NOT_EQUAL) {
+                throw new UnsupportedOperationException("Operator " + operator + " not supported for string field [" + field
+                        + "] in TreeModel.");
+            }
+            return addPredicate(op, slot, parse(slot, value), 0, 0);
         }
-    }
-
-    public static class EsSimpleSetPredicate<T> implements EsPredicate {
 
-        protected HashSet<T> values;
-        private String field;
+        /**
+         * @param isIn true for isIn, false for isNotIn
+         */
+        public int setPredicate(String field, boolean isIn, String[] values) {
+            int slot = slot(field);
+            double[] encoded = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                encoded[i] = parse(slot, values[i]);
+            }
+            Arrays.sort(encoded);
+            int start = setValues.size();
+            setValues.add(encoded, 0, encoded.length);
+            return addPredicate(isIn ? IS_IN : IS_NOT_IN, slot, Double.NaN, start, setValues.size());
+        }
 
-        public EsSimpleSetPredicate(HashSet<T> values, String field) {
-            this.values = values;
-            this.field = field;
+        /**
+         * @param operator and, or, xor or surrogate
+         */
+        public int compoundPredicate(String operator, int[] children) {
+            byte op;
+            switch (operator) {
+                case "and":
+                    op = AND;
+                    break;
+                case "or":
+                    op = OR;
+                    break;
+                case "xor":
+                    op = XOR;
+                    break;
+                case "surrogate":
+                    op = SURROGATE;
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Operator " + operator + " not supported for CompoundPredicate in TreeModel.");
+            }
+            int start = childPredicates.size();
+            childPredicates.add(children, 0, children.length);
+            return addPredicate(op, -1, Double.NaN, start, childPredicates.size());
         }
 
+        /**
+         * Gives a score the next ordinal, scores that are not added are numbered in the order they first appear in the trees
+         */
+        public void addClass(String score) {
+            if (classes.containsKey(score) == false) {
+                classes.put(score, classes.size());
+            }
+        }
 
-        @Override
-        public boolean match(Map<String, Object> vector) {
-            // we do not check for null because HashSet allows null values.
-            for (Object value : (Set)vector.get(field))  {
-                if (values.contains(value)) {
-                    return true;
+        /**
+         * Adds a node as the next child of the open node, the children of the node follow until {@link #endNode()} is called.
+         * Without an open node the node is the root of the next tree.
+         */
+        public void startNode(int predicate, @Nullable String score) {
+            int node = nodePredicates.size();
+            nodePredicates.add(predicate);
+            firstChildren.add(-1);
+            nextSiblings.add(-1);
+            if (score == null) {
+                nodeScores.add(-1);
+            } else {
+                Integer ord = classes.get(score);
+                if (ord == null) {
+                    ord = classes.size();
+                    classes.put(score, ord);
                 }
+                nodeScores.add(ord);
             }
-            return false;
+            if (openNodes.isEmpty() == false) {
+                int parent = openNodes.size() - 1;
+                int lastChild = lastChildren.get(parent);
+                if (lastChild == -1) {
+                    firstChildren.set(openNodes.get(parent), node);
+                } else {
+                    nextSiblings.set(lastChild, node);
+                }
+                lastChildren.set(parent, node);
+            } else {
+                roots.add(node);
+            }
+            openNodes.add(node);
+            lastChildren.add(-1);
         }
 
-        @Override
-        public boolean notEnoughValues(Map<String, Object> vector) {
-            return vector.containsKey(field) == false;
+        public void endNode() {
+            openNodes.remove(openNodes.size() - 1);
+            lastChildren.remove(lastChildren.size() - 1);
         }
-    }
 
-    public static class ComparableSet<T> extends HashSet<Comparable<T>> implements Comparable<T> {
+        public EsTreeModel build() {
+            if (roots.isEmpty() || openNodes.isEmpty() == false) {
+                throw new IllegalStateException("the tree is not complete");
+            }
+            return new EsTreeModel(this);
+        }
 
-        public ComparableSet(HashSet<Comparable<T>> set) {
-            this.addAll(set);
+        private int slot(String field) {
+            Integer slot = slots.get(field);
+            if (slot == null) {
+                throw new IllegalArgumentException("no slot for field [" + field + "]");
+            }
+            return slot;
         }
 
-        @SuppressWarnings("unchecked")
-        @Override
-        public int compareTo(T o) {
-            if (this.size()!= 1) {
-                throw new UnsupportedOperationException("cannot really compare sets, I am just pretending!");
+        private double parse(int slot, String value) {
+            Map<String, Integer> dictionary = dictionaries.get(slot);
+            if (dictionary != null) {
+                Integer ord = dictionary.get(value);
+                if (ord == null) {
+                    ord = dictionary.size();
+                    dictionary.put(value, ord);
+                }
+                return ord;
             }
-            if (o instanceof Comparable == false) {
-                throw new UnsupportedOperationException("cannot compare to object " + o.getClass().getName());
+            if (value.equals("true") || value.equals("false")) {
+                return value.equals("true") ? 1 : 0;
             }
-            //noinspection unchecked
-            Comparable<T> first = this.iterator().next();
-            return first.compareTo(o);
+            return Double.parseDouble(value);
+        }
+
+        private int addPredicate(byte operator, int slot, double threshold, int operandStart, int operandEnd) {
+            operators.add(operator);
+            predicateSlots.add(slot);
+            thresholds.add(threshold);
+            operandStarts.add(operandStart);
+            operandEnds.add(operandEnd);
+            return operators.size() - 1;
         }
     }
 }
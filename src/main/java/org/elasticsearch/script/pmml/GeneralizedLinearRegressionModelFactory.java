@@ -43,8 +43,8 @@ import org.elasticsearch.script.modelinput.ModelAndModelInputEvaluator;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -204,19 +204,20 @@ public class GeneralizedLinearRegressionModelFactory extends ModelFactory<Vector
             // first: sort all by target class
             Map<String, List<PCell>> targetClassPCellMap = mapParametersToTargetCategory(grModel);
 
-            if (targetClassPCellMap.size() != 1) {
-                throw new UnsupportedOperationException("We do not support more than two classes for GeneralizedRegression for " +
-                        "classification");
+            if (targetClassPCellMap.size() != 1 && grModel.getModelType().value().equals("multinomialLogistic") == false) {
+                throw new UnsupportedOperationException("We do not support more than two classes for binomial GeneralizedRegression " +
+                        "for classification");
             }
 
             double[] coefficients = getGLMCoefficients(orderedParameterList, targetClassPCellMap);
 
-            //get the target class values. one we can get from the Pmatrix but the other one we have to find in the data dictionary
+            //get the target class values. the ones with coefficients we can get from the Pmatrix but the reference class we have to
+            // find in the data dictionary
             String targetVariable = findTargetVariableName(grModel);
 
-            // this need to be more if we implement more than two class
-            String[] targetCategories = findTargetCategories(dataDictionary, targetClassPCellMap, targetVariable);
-            EsLogisticRegressionModel logisticRegressionModel = new EsLogisticRegressionModel(coefficients, 0.0, targetCategories);
+            String[] targetCategories = findTargetCategories(grModel, dataDictionary, targetClassPCellMap, targetVariable);
+            EsLogisticRegressionModel logisticRegressionModel = new EsLogisticRegressionModel(coefficients,
+                    new double[targetClassPCellMap.size()], targetCategories);
             return new ModelAndModelInputEvaluator<>(vectorEntries, logisticRegressionModel);
 
         } else {
@@ -225,7 +226,8 @@ public class GeneralizedLinearRegressionModelFactory extends ModelFactory<Vector
     }
 
     private Map<String, List<PCell>> mapParametersToTargetCategory(GeneralRegressionModel grModel) {
-        Map<String, List<PCell>> targetClassPCellMap = new HashMap<>();
+        // the classes keep the order of the param matrix
+        Map<String, List<PCell>> targetClassPCellMap = new LinkedHashMap<>();
         for (PCell pCell : grModel.getParamMatrix().getPCells()) {
             String targetClassName = pCell.getTargetCategory();
             if (targetClassPCellMap.containsKey(targetClassName) == false) {
@@ -236,26 +238,33 @@ public class GeneralizedLinearRegressionModelFactory extends ModelFactory<Vector
         return targetClassPCellMap;
     }
 
-    private String[] findTargetCategories(DataDictionary dataDictionary, Map<String, List<PCell>> targetClassPCellMap,
-                                          String targetVariable) {
-        String[] targetCategories = new String[2];
-        String class1 = targetClassPCellMap.keySet().iterator().next();
-        targetCategories[0] = class1;
-        // find it in the datafields
-        for (DataField dataField : dataDictionary.getDataFields()) {
-            if (dataField.getName().toString().equals(targetVariable)) {
-                for (Value value : dataField.getValues()) {
-                    String valueString = value.getValue();
-                    if (valueString.equals(class1) == false) {
-                        targetCategories[1] = valueString;
+    // the classes with coefficients followed by the reference class
+    private String[] findTargetCategories(GeneralRegressionModel grModel, DataDictionary dataDictionary,
+                                          Map<String, List<PCell>> targetClassPCellMap, String targetVariable) {
+        String[] targetCategories = targetClassPCellMap.keySet().toArray(new String[targetClassPCellMap.size() + 1]);
+        String referenceCategory = grModel.getTargetReferenceCategory();
+        if (referenceCategory == null) {
+            // find it in the datafields
+            for (DataField dataField : dataDictionary.getDataFields()) {
+                if (dataField.getName().toString().equals(targetVariable)) {
+                    for (Value value : dataField.getValues()) {
+                        String valueString = value.getValue();
+                        if (targetClassPCellMap.containsKey(valueString) == false) {
+                            if (referenceCategory != null) {
+                                throw new ElasticsearchParseException("found several target classes without parameters: [{}] and [{}]",
+                                        referenceCategory, valueString);
+                            }
+                            referenceCategory = valueString;
+                        }
                     }
+                    break;
                 }
-                if (targetCategories[1] == null) {
-                    throw new ElasticsearchParseException("could not find target class");
-                }
-                break;
             }
         }
+        if (referenceCategory == null || targetClassPCellMap.containsKey(referenceCategory)) {
+            throw new ElasticsearchParseException("could not find target class");
+        }
+        targetCategories[targetCategories.length - 1] = referenceCategory;
         return targetCategories;
     }
 
@@ -284,22 +293,27 @@ public class GeneralizedLinearRegressionModelFactory extends ModelFactory<Vector
         return targetVariable;
     }
 
-    // get the model coefficients ad return them in the order defined by orderedParameterList
+    // get the model coefficients and return them in the order defined by orderedParameterList, the coefficients of a parameter for
+    // all classes are next to each other
     private double[] getGLMCoefficients(List<String> orderedParameterList, Map<String, List<PCell>> targetClassPCellMap) {
-        List<PCell> coefficientCells = targetClassPCellMap.values().iterator().next();
-        if (coefficientCells.size() > orderedParameterList.size()) {
-            throw new ElasticsearchParseException("Parameter list contains more entries than parameters");
-        }
-        double[] coefficients = new double[orderedParameterList.size()];
+        int numClasses = targetClassPCellMap.size();
+        double[] coefficients = new double[orderedParameterList.size() * numClasses];
         Arrays.fill(coefficients, 0.0);
-        for (int i = 0; i < coefficients.length; i++) {
-            String parameter = orderedParameterList.get(i);
-            for (PCell pCell : coefficientCells) {
-                if (pCell.getParameterName().equals(parameter)) {
-                    coefficients[i] = pCell.getBeta();
-                    // TODO: what to do with df? I don't get the documentation: http://dmg.org/pmml/v4-2-1/GeneralRegression.html
+        int classIndex = 0;
+        for (List<PCell> coefficientCells : targetClassPCellMap.values()) {
+            if (coefficientCells.size() > orderedParameterList.size()) {
+                throw new ElasticsearchParseException("Parameter list contains more entries than parameters");
+            }
+            for (int i = 0; i < orderedParameterList.size(); i++) {
+                String parameter = orderedParameterList.get(i);
+                for (PCell pCell : coefficientCells) {
+                    if (pCell.getParameterName().equals(parameter)) {
+                        coefficients[i * numClasses + classIndex] = pCell.getBeta();
+                        // TODO: what to do with df? I don't get the documentation: http://dmg.org/pmml/v4-2-1/GeneralRegression.html
+                    }
                 }
             }
+            classIndex++;
         }
         return coefficients;
     }
@@ -0,0 +1,266 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.script.pmml;
+
+import org.dmg.pmml.DataDictionary;
+import org.dmg.pmml.DataField;
+import org.dmg.pmml.FeatureType;
+import org.dmg.pmml.FieldUsageType;
+import org.dmg.pmml.MiningField;
+import org.dmg.pmml.MiningFunctionType;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.Model;
+import org.dmg.pmml.MultipleModelMethodType;
+import org.dmg.pmml.NumericPredictor;
+import org.dmg.pmml.Output;
+import org.dmg.pmml.OutputField;
+import org.dmg.pmml.RegressionModel;
+import org.dmg.pmml.RegressionNormalizationMethodType;
+import org.dmg.pmml.RegressionTable;
+import org.dmg.pmml.Segment;
+import org.dmg.pmml.Segmentation;
+import org.dmg.pmml.Target;
+import org.dmg.pmml.Targets;
+import org.dmg.pmml.TransformationDictionary;
+import org.dmg.pmml.TreeModel;
+import org.dmg.pmml.True;
+import org.dmg.pmml.Value;
+import org.elasticsearch.script.modelinput.MapModelInput;
+import org.elasticsearch.script.modelinput.ModelAndModelInputEvaluator;
+import org.elasticsearch.script.modelinput.VectorRange;
+import org.elasticsearch.script.modelinput.VectorRangesToVectorPMML;
+import org.elasticsearch.script.models.EsLogitTreeEnsembleModel;
+import org.elasticsearch.script.models.EsTreeEnsembleModel;
+import org.elasticsearch.script.models.EsTreeModel;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tree ensembles like random forests and boosted trees: mining models whose segments are all tree models. The only
+ * modelChain that is supported is the one of binary gradient boosting classifiers, see {@link EsLogitTreeEnsembleModel}.
+ */
+public class MiningModelFactory extends ModelFactory<MapModelInput, Object, MiningModel> {
+
+    public MiningModelFactory() {
+        super(MiningModel.class);
+    }
+
+    @Override
+    public ModelAndModelInputEvaluator<MapModelInput, Object> buildFromPMML(MiningModel miningModel, DataDictionary dataDictionary,
+                                                                            TransformationDictionary transformationDictionary) {
+        Segmentation segmentation = getSegmentation(miningModel);
+        if (segmentation.getMultipleModelMethod() == MultipleModelMethodType.MODEL_CHAIN) {
+            return buildLogitChain(miningModel, dataDictionary, transformationDictionary);
+        }
+        checkOutput(miningModel);
+        return buildEnsemble(miningModel, dataDictionary, transformationDictionary, true);
+    }
+
+    private static Segmentation getSegmentation(MiningModel miningModel) {
+        Segmentation segmentation = miningModel.getSegmentation();
+        if (segmentation == null) {
+            throw new UnsupportedOperationException("MiningModel without Segmentation not implemented yet.");
+        }
+        for (Segment segment : segmentation.getSegments()) {
+            if (segment.getPredicate() instanceof True == false) {
+                throw new UnsupportedOperationException("Segment predicate " + segment.getPredicate().getClass().getName()
+                        + " for MiningModel not implemented yet.");
+            }
+        }
+        return segmentation;
+    }
+
+    /**
+     * Builds the ensemble of a mining model whose segments are trees. If addClasses is true the classes are numbered like the
+     * values of the predicted field, which also decides ties of votes.
+     */
+    private static ModelAndModelInputEvaluator<MapModelInput, Object> buildEnsemble(MiningModel miningModel,
+                                                                                     DataDictionary dataDictionary,
+                                                                                     TransformationDictionary transformationDictionary,
+                                                                                     boolean addClasses) {
+        Segmentation segmentation = getSegmentation(miningModel);
+        EsTreeEnsembleModel.Method method = EsTreeEnsembleModel.Method.fromPMML(segmentation.getMultipleModelMethod().value());
+        List<TreeModel> treeModels = new ArrayList<>();
+        double[] weights = new double[segmentation.getSegments().size()];
+        for (Segment segment : segmentation.getSegments()) {
+            Model model = segment.getModel();
+            if (model instanceof TreeModel == false) {
+                throw new UnsupportedOperationException("Segment model " + model.getClass().getName()
+                        + " for MiningModel not implemented yet.");
+            }
+            TreeModelFactory.checkSupported((TreeModel) model);
+            weights[treeModels.size()] = segment.getWeight() == null ? 1 : segment.getWeight();
+            treeModels.add((TreeModel) model);
+        }
+        double[] rescaling = getRescaling(miningModel);
+        // the trees share one row, so each field is read and pre processed once for all trees
+        Set<String> fieldNames = new HashSet<>();
+        for (TreeModel treeModel : treeModels) {
+            TreeModelFactory.getFieldNamesFromNode(fieldNames, treeModel.getNode());
+        }
+        // the transformations and mining fields of the raw fields are defined by the mining model
+        List<VectorRange> fields = TreeModelFactory.getFieldValuesList(fieldNames, miningModel, dataDictionary,
+                transformationDictionary);
+        EsTreeModel.Builder builder = TreeModelFactory.newBuilder(fields);
+        if (addClasses) {
+            for (MiningField miningField : miningModel.getMiningSchema().getMiningFields()) {
+                if (miningField.getUsageType() == FieldUsageType.PREDICTED || miningField.getUsageType() == FieldUsageType.TARGET) {
+                    DataField dataField = ProcessPMMLHelper.getRawDataField(dataDictionary, miningField.getName().getValue());
+                    for (Value value : dataField.getValues()) {
+                        if (value.getProperty() == Value.Property.VALID) {
+                            builder.addClass(value.getValue());
+                        }
+                    }
+                }
+            }
+        }
+        for (TreeModel treeModel : treeModels) {
+            TreeModelFactory.addTree(builder, treeModel);
+        }
+        EsTreeModel trees = builder.build();
+        VectorRangesToVectorPMML.VectorRangesToVectorPMMLTreeModel fieldsToVector =
+                new VectorRangesToVectorPMML.VectorRangesToVectorPMMLTreeModel(fields, trees);
+        return new ModelAndModelInputEvaluator<>(fieldsToVector,
+                new EsTreeEnsembleModel(trees, method, weights, rescaling[0], rescaling[1]));
+    }
+
+    /**
+     * Returns the rescaleFactor and rescaleConstant of the Target of the model, 1 and 0 if it has none. Targets that do more
+     * than rescaling are rejected.
+     */
+    static double[] getRescaling(Model model) {
+        double[] rescaling = new double[]{1, 0};
+        Targets targets = model.getTargets();
+        if (targets == null || targets.getTargets().isEmpty()) {
+            return rescaling;
+        }
+        if (targets.getTargets().size() > 1) {
+            throw new UnsupportedOperationException("MiningModel with more than one Target not implemented yet.");
+        }
+        Target target = targets.getTargets().get(0);
+        if (target.getCastInteger() != null || target.getMin() != null || target.getMax() != null
+                || target.getTargetValues().isEmpty() == false) {
+            throw new UnsupportedOperationException("Target of MiningModel does not support the following parameters yet: "
+                    + " castInteger:" + target.getCastInteger()
+                    + " min:" + target.getMin()
+                    + " max:" + target.getMax()
+                    + " targetValues:" + target.getTargetValues().size());
+        }
+        if (target.getRescaleFactor() != null) {
+            rescaling[0] = target.getRescaleFactor();
+        }
+        if (target.getRescaleConstant() != null) {
+            rescaling[1] = target.getRescaleConstant();
+        }
+        return rescaling;
+    }
+
+    /**
+     * The results of the model are always the predicted value and the probabilities of the classes, output fields that
+     * compute anything else are rejected.
+     */
+    private static void checkOutput(Model model) {
+        if (model.getOutput() == null) {
+            return;
+        }
+        for (OutputField outputField : model.getOutput().getOutputFields()) {
+            FeatureType feature = outputField.getFeature();
+            if (outputField.getExpression() != null
+                    || (feature != null && feature != FeatureType.PREDICTED_VALUE && feature != FeatureType.PROBABILITY)) {
+                throw new UnsupportedOperationException("OutputField " + outputField.getName().getValue() + " with feature "
+                        + feature + " for MiningModel not implemented yet.");
+            }
+        }
+    }
+
+    /**
+     * Builds binary gradient boosting classifiers. Their modelChain has two segments: a MiningModel that sums and rescales
+     * the scores of the trees into a decision function it outputs, and a RegressionModel with logit normalization whose
+     * first table turns the decision function into the probability of its class. All other chains are rejected, including
+     * the softmax chains of multi class boosting.
+     */
+    private static ModelAndModelInputEvaluator<MapModelInput, Object> buildLogitChain(MiningModel miningModel,
+                                                                                       DataDictionary dataDictionary,
+                                                                                       TransformationDictionary transformationDictionary) {
+        List<Segment> segments = miningModel.getSegmentation().getSegments();
+        if (segments.size() != 2 || segments.get(0).getModel() instanceof MiningModel == false
+                || segments.get(1).getModel() instanceof RegressionModel == false) {
+            throw new UnsupportedOperationException("modelChain for MiningModel is only implemented for a MiningModel "
+                    + "followed by a RegressionModel.");
+        }
+        double[] rescaling = getRescaling(miningModel);
+        if (rescaling[0] != 1 || rescaling[1] != 0) {
+            throw new UnsupportedOperationException("Target of modelChain for MiningModel not implemented yet.");
+        }
+        MiningModel decisionFunction = (MiningModel) segments.get(0).getModel();
+        RegressionModel logit = (RegressionModel) segments.get(1).getModel();
+        if (decisionFunction.getFunctionName() != MiningFunctionType.REGRESSION
+                || logit.getFunctionName() != MiningFunctionType.CLASSIFICATION
+                || logit.getNormalizationMethod() != RegressionNormalizationMethodType.LOGIT
+                || logit.getRegressionTables().size() != 2) {
+            throw new UnsupportedOperationException("modelChain for MiningModel is only implemented for a regression followed "
+                    + "by a binary classification with logit normalization.");
+        }
+        String decisionFunctionName = getPredictedValueOutput(decisionFunction);
+        RegressionTable first = logit.getRegressionTables().get(0);
+        RegressionTable second = logit.getRegressionTables().get(1);
+        if (first.getNumericPredictors().size() != 1 || hasPredictors(second)
+                || first.getCategoricalPredictors().isEmpty() == false || first.getPredictorTerms().isEmpty() == false) {
+            throw new UnsupportedOperationException("modelChain for MiningModel is only implemented if the first RegressionTable "
+                    + "has the decision function as only predictor and the second has no predictors.");
+        }
+        NumericPredictor predictor = first.getNumericPredictors().get(0);
+        if (predictor.getName().getValue().equals(decisionFunctionName) == false
+                || (predictor.getExponent() != null && predictor.getExponent() != 1)) {
+            throw new UnsupportedOperationException("NumericPredictor " + predictor.getName().getValue()
+                    + " of modelChain must be the output field " + decisionFunctionName + " of the first segment.");
+        }
+        ModelAndModelInputEvaluator<MapModelInput, Object> ensemble = buildEnsemble(decisionFunction, dataDictionary,
+                transformationDictionary, false);
+        EsTreeEnsembleModel sum = (EsTreeEnsembleModel) ensemble.getModel();
+        String[] classes = new String[]{first.getTargetCategory(), second.getTargetCategory()};
+        return new ModelAndModelInputEvaluator<>(ensemble.getVectorRangesToVector(),
+                new EsLogitTreeEnsembleModel(sum, first.getIntercept(), predictor.getCoefficient(), classes));
+    }
+
+    private static String getPredictedValueOutput(MiningModel miningModel) {
+        Output output = miningModel.getOutput();
+        if (output == null || output.getOutputFields().size() != 1) {
+            throw new UnsupportedOperationException("modelChain for MiningModel is only implemented if the first segment "
+                    + "has exactly one OutputField.");
+        }
+        OutputField outputField = output.getOutputFields().get(0);
+        if (outputField.getExpression() != null
+                || (outputField.getFeature() != null && outputField.getFeature() != FeatureType.PREDICTED_VALUE)) {
+            throw new UnsupportedOperationException("OutputField " + outputField.getName().getValue() + " with feature "
+                    + outputField.getFeature() + " for modelChain not implemented yet.");
+        }
+        return outputField.getName().getValue();
+    }
+
+    private static boolean hasPredictors(RegressionTable table) {
+        return table.getNumericPredictors().isEmpty() == false || table.getCategoricalPredictors().isEmpty() == false
+                || table.getPredictorTerms().isEmpty() == false;
+    }
+}
@@ -21,10 +21,14 @@ package org.elasticsearch.script.pmml;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.dmg.pmml.PMML;
 import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.script.CompiledScript;
 import org.elasticsearch.script.ExecutableScript;
@@ -33,10 +37,13 @@ import org.elasticsearch.script.ScriptEngineService;
 import org.elasticsearch.script.SearchScript;
 import org.elasticsearch.script.modelinput.DataSource;
 import org.elasticsearch.script.modelinput.EsDataSource;
+import org.elasticsearch.script.modelinput.IdfCache;
+import org.elasticsearch.script.models.Coefficients;
 import org.elasticsearch.script.models.EsModelEvaluator;
 import org.elasticsearch.script.modelinput.ModelAndModelInputEvaluator;
 import org.elasticsearch.script.modelinput.ModelInput;
 import org.elasticsearch.script.modelinput.ModelInputEvaluator;
+import org.elasticsearch.script.modelinput.VectorBuffer;
 import org.elasticsearch.search.lookup.LeafDocLookup;
 import org.elasticsearch.search.lookup.LeafIndexLookup;
 import org.elasticsearch.search.lookup.LeafSearchLookup;
@@ -54,9 +61,29 @@ public class PMMLModelScriptEngineService extends AbstractComponent implements S
 
     public static final ModelFactories factories = ModelFactories.createDefaultModelFactories();
 
+    /**
+     * How compiled models store their coefficients, see {@link Coefficients}
+     */
+    public static final Setting<Coefficients.Format> COEFFICIENT_FORMAT_SETTING =
+            new Setting<>("pmml.coefficient_format", Coefficients.Format.DOUBLE.toString(), Coefficients.Format::fromString,
+                    Property.NodeScope);
+
+    /**
+     * Whether compiled models keep their coefficients off heap in memory mapped files
+     */
+    public static final Setting<Boolean> MMAP_COEFFICIENTS_SETTING =
+            Setting.boolSetting("pmml.mmap_coefficients", false, Property.NodeScope);
+
+    private final Coefficients.Format coefficientFormat;
+    private final boolean mmapCoefficients;
+    private final IdfCache idfCache;
+
     @Inject
-    public PMMLModelScriptEngineService(Settings settings) {
+    public PMMLModelScriptEngineService(Settings settings, IdfCache idfCache) {
         super(settings);
+        this.idfCache = idfCache;
+        this.coefficientFormat = COEFFICIENT_FORMAT_SETTING.get(settings);
+        this.mmapCoefficients = MMAP_COEFFICIENTS_SETTING.get(settings);
     }
 
     @Override
@@ -96,7 +123,7 @@ public class PMMLModelScriptEngineService extends AbstractComponent implements S
         public Factory(String spec) {
             ModelAndModelInputEvaluator<Input, Output> fieldsToVectorAndModel = parsePMML(spec);
             features = fieldsToVectorAndModel.getVectorRangesToVector();
-            model = fieldsToVectorAndModel.getModel();
+            model = fieldsToVectorAndModel.getModel().withCoefficients(coefficientFormat, mmapCoefficients);
         }
 
         private ModelAndModelInputEvaluator<Input, Output> parsePMML(final String pmmlString) {
@@ -108,13 +135,20 @@ public class PMMLModelScriptEngineService extends AbstractComponent implements S
         }
 
         public PMMLModel<Input, Output> newScript(LeafSearchLookup lookup, boolean debug) {
-            return new PMMLModel<>(features, model, lookup, debug);
+            return newScript(lookup, debug, -1);
+        }
+
+        public PMMLModel<Input, Output> newScript(LeafSearchLookup lookup, boolean debug, int classOrd) {
+            return new PMMLModel<>(features, model, lookup, debug, classOrd, idfCache);
         }
     }
 
     @SuppressWarnings({"unchecked"})
     @Override
     public SearchScript search(final CompiledScript compiledScript, final SearchLookup lookup, @Nullable final Map<String, Object> vars) {
+        final Factory factory = (Factory) compiledScript.compiled();
+        // the class whose probability runAsDouble returns, resolved once for all segments
+        final int classOrd = vars != null && vars.get("class") != null ? factory.getModel().classOrd(vars.get("class").toString()) : -1;
         return new SearchScript() {
 
             @Override
@@ -124,7 +158,7 @@ public class PMMLModelScriptEngineService extends AbstractComponent implements S
                 if (vars != null && vars.containsKey("debug")) {
                     debug = (Boolean)vars.get("debug");
                 }
-                return ((Factory) compiledScript.compiled()).newScript(leafLookup, debug);
+                return factory.newScript(leafLookup, debug, classOrd);
             }
 
             @Override
@@ -141,10 +175,16 @@ public class PMMLModelScriptEngineService extends AbstractComponent implements S
         private final ModelInputEvaluator<Input> features;
         private LeafSearchLookup lookup;
         private DataSource dataSource;
+        // reused for every document, the model is done with the vector before the next one is built
+        private final VectorBuffer buffer = new VectorBuffer();
+        // scratch space of block evaluation
+        private VectorBuffer[] buffers = new VectorBuffer[0];
+        private Input[] inputs;
+        private final int classOrd;
 
         private PMMLModel(ModelInputEvaluator<Input> features, EsModelEvaluator<Input, Output> model,
-                          LeafSearchLookup lookup, boolean debug) {
-            this.dataSource = new EsDataSource() {
+                          LeafSearchLookup lookup, boolean debug, int classOrd, IdfCache idfCache) {
+            this.dataSource = new EsDataSource(idfCache) {
                 @Override
                 protected LeafDocLookup getDocLookup() {
                     return lookup.doc();
@@ -159,6 +199,7 @@ public class PMMLModelScriptEngineService extends AbstractComponent implements S
             this.features = features;
             this.model = model;
             this.debug = debug;
+            this.classOrd = classOrd;
         }
 
         @Override
@@ -168,7 +209,7 @@ public class PMMLModelScriptEngineService extends AbstractComponent implements S
         @SuppressWarnings("unchecked")
         @Override
         public Object run() {
-            Input vector = features.convert(dataSource);
+            Input vector = features.convert(dataSource, buffer);
             if (debug) {
                 return model.evaluateDebug(vector);
             } else {
@@ -176,6 +217,26 @@ public class PMMLModelScriptEngineService extends AbstractComponent implements S
             }
         }
 
+        /**
+         * Evaluates the model for the first count documents, the documents must belong to the segment of this script and be
+         * sorted. Converting a whole block at once lets vectorizers read each field for all documents in one go and lets the
+         * model share work between the documents.
+         */
+        @SuppressWarnings("unchecked")
+        public void run(int[] docs, int count, Object[] results) {
+            if (buffers.length < count) {
+                VectorBuffer[] newBuffers = new VectorBuffer[ArrayUtil.oversize(count, RamUsageEstimator.NUM_BYTES_OBJECT_REF)];
+                System.arraycopy(buffers, 0, newBuffers, 0, buffers.length);
+                for (int i = buffers.length; i < newBuffers.length; i++) {
+                    newBuffers[i] = new VectorBuffer();
+                }
+                buffers = newBuffers;
+                inputs = (Input[]) new ModelInput[newBuffers.length];
+            }
+            features.convert(dataSource, this::setDocument, docs, count, buffers, inputs);
+            model.evaluate(inputs, count, debug, results);
+        }
+
         @Override
         public Object unwrap(Object o) {
             return o;
@@ -197,12 +258,16 @@ public class PMMLModelScriptEngineService extends AbstractComponent implements S
 
         @Override
         public long runAsLong() {
-            throw new UnsupportedOperationException("model script not supported in this context!");
+            return (long) runAsDouble();
         }
 
+        /**
+         * Evaluates the model to a number, see {@link EsModelEvaluator#evaluateAsDouble(ModelInput, int)}. The class is taken
+         * from the class parameter.
+         */
         @Override
         public double runAsDouble() {
-            throw new UnsupportedOperationException("model script not supported in this context!");
+            return model.evaluateAsDouble(features.convert(dataSource, buffer), classOrd);
         }
 
         @Override
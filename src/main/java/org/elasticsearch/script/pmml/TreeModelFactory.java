@@ -26,6 +26,7 @@ import org.dmg.pmml.DataField;
 import org.dmg.pmml.DerivedField;
 import org.dmg.pmml.False;
 import org.dmg.pmml.MiningField;
+import org.dmg.pmml.Model;
 import org.dmg.pmml.Node;
 import org.dmg.pmml.Predicate;
 import org.dmg.pmml.SimplePredicate;
@@ -41,7 +42,6 @@ import org.elasticsearch.script.modelinput.MapModelInput;
 import org.elasticsearch.script.modelinput.ModelAndModelInputEvaluator;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -57,21 +57,27 @@ public class TreeModelFactory extends ModelFactory<MapModelInput, String, TreeMo
     @Override
     public ModelAndModelInputEvaluator<MapModelInput, String> buildFromPMML(TreeModel treeModel, DataDictionary dataDictionary,
                                                                     TransformationDictionary transformationDictionary) {
-        if (treeModel.getFunctionName().value().equals("classification")
-                && treeModel.getSplitCharacteristic().value().equals("binarySplit")
-                && treeModel.getMissingValueStrategy().value().equals("defaultChild")
-                && treeModel.getNoTrueChildStrategy().value().equals("returnLastPrediction")) {
+        checkSupported(treeModel);
+        List<VectorRange> fields = getFieldValuesList(treeModel, dataDictionary, transformationDictionary);
+        EsTreeModel esTreeModel = getEsTreeModel(treeModel, fields);
+        VectorRangesToVectorPMML.VectorRangesToVectorPMMLTreeModel fieldsToVector =
+                new VectorRangesToVectorPMML.VectorRangesToVectorPMMLTreeModel(fields, esTreeModel);
+        return new ModelAndModelInputEvaluator<>(fieldsToVector, esTreeModel);
+    }
 
-            List<VectorRange> fields = getFieldValuesList(treeModel, dataDictionary, transformationDictionary);
-            VectorRangesToVectorPMML.VectorRangesToVectorPMMLTreeModel fieldsToVector =
-                    new VectorRangesToVectorPMML.VectorRangesToVectorPMMLTreeModel(fields);
-            Map<String, String> fieldToTypeMap = getFieldToTypeMap(fields);
-            EsTreeModel esTreeModel = getEsTreeModel(treeModel, fieldToTypeMap);
-            return new ModelAndModelInputEvaluator<>(fieldsToVector, esTreeModel);
-        } else {
+    /**
+     * Throws an exception if the tree uses features of PMML trees that are not implemented. The children of a node are
+     * always tested in order and missing values are handled by surrogate predicates.
+     */
+    static void checkSupported(TreeModel treeModel) {
+        String functionName = treeModel.getFunctionName().value();
+        String missingValueStrategy = treeModel.getMissingValueStrategy().value();
+        if ((functionName.equals("classification") || functionName.equals("regression")) == false
+                || (missingValueStrategy.equals("defaultChild") || missingValueStrategy.equals("none")) == false) {
             throw new UnsupportedOperationException("TreeModel does not support the following parameters yet: "
+                    + " functionName:" + functionName
                     + " splitCharacteristic:" + treeModel.getSplitCharacteristic().value()
-                    + " missingValueStrategy:" + treeModel.getMissingValueStrategy().value()
+                    + " missingValueStrategy:" + missingValueStrategy
                     + " noTrueChildStrategy:" + treeModel.getNoTrueChildStrategy().value());
         }
     }
@@ -82,14 +88,23 @@ public class TreeModelFactory extends ModelFactory<MapModelInput, String, TreeMo
         Set<String> fieldNames = new HashSet<>();
         Node startNode = treeModel.getNode();
         getFieldNamesFromNode(fieldNames, startNode);
+        return getFieldValuesList(fieldNames, treeModel, dataDictionary, transformationDictionary);
+    }
+
+    /**
+     * Creates one {@link PMMLVectorRange.FieldToValue} per field name, derived fields and mining fields are taken from the
+     * given model
+     */
+    static List<VectorRange> getFieldValuesList(Set<String> fieldNames, Model model, DataDictionary dataDictionary,
+                                                TransformationDictionary transformationDictionary) {
         // create the actual VectorRange objects, copy paste much from GLMHelper
         List<VectorRange> fieldsToValues = new ArrayList<>();
-        List<DerivedField> allDerivedFields = ProcessPMMLHelper.getAllDerivedFields(treeModel, transformationDictionary);
+        List<DerivedField> allDerivedFields = ProcessPMMLHelper.getAllDerivedFields(model, transformationDictionary);
         for(String fieldName : fieldNames) {
             List<DerivedField> derivedFields = new ArrayList<>();
             String rawFieldName = ProcessPMMLHelper.getDerivedFields(fieldName, allDerivedFields, derivedFields);
             DataField rawField = ProcessPMMLHelper.getRawDataField(dataDictionary, rawFieldName);
-            MiningField miningField = ProcessPMMLHelper.getMiningField(treeModel, rawFieldName);
+            MiningField miningField = ProcessPMMLHelper.getMiningField(model, rawFieldName);
             fieldsToValues.add(new PMMLVectorRange.FieldToValue(rawField, miningField, derivedFields.toArray(new
                     DerivedField[derivedFields.size()])));
         }
@@ -119,8 +134,31 @@ public class TreeModelFactory extends ModelFactory<MapModelInput, String, TreeMo
         }
     }
 
-    protected EsTreeModel getEsTreeModel(TreeModel treeModel, Map<String, String> fieldToTypeMap) {
-        return new EsTreeModel(convertToEsTreeNode(treeModel.getNode(), fieldToTypeMap));
+    /**
+     * Compiles the tree, the slots of the rows are the fields in the given order
+     */
+    protected EsTreeModel getEsTreeModel(TreeModel treeModel, List<VectorRange> fields) {
+        EsTreeModel.Builder builder = newBuilder(fields);
+        addTree(builder, treeModel);
+        return builder.build();
+    }
+
+    /**
+     * Creates a builder for trees whose rows have one slot per field, in the given order
+     */
+    static EsTreeModel.Builder newBuilder(List<VectorRange> fields) {
+        String[] slotFields = new String[fields.size()];
+        String[] slotTypes = new String[fields.size()];
+        for (int slot = 0; slot < fields.size(); slot++) {
+            slotFields[slot] = fields.get(slot).getLastDerivedFieldName();
+            slotTypes[slot] = fields.get(slot).getType();
+        }
+        return new EsTreeModel.Builder(slotFields, slotTypes);
+    }
+
+    static void addTree(EsTreeModel.Builder builder, TreeModel treeModel) {
+        boolean returnNullPrediction = treeModel.getNoTrueChildStrategy().value().equals("returnNullPrediction");
+        addNode(builder, treeModel.getNode(), returnNullPrediction);
     }
 
     public static Map<String,String> getFieldToTypeMap(java.util.List<VectorRange> vectorRangeList) {
@@ -132,273 +170,84 @@ public class TreeModelFactory extends ModelFactory<MapModelInput, String, TreeMo
     }
 
 
-    private EsTreeModel.EsTreeNode convertToEsTreeNode(Node node, Map<String, String> fieldTypeMap) {
-        List<EsTreeModel.EsTreeNode> childNodes = new ArrayList<>();
-        EsTreeModel.EsPredicate predicate = createPredicate(node.getPredicate(), fieldTypeMap);
+    private static void addNode(EsTreeModel.Builder builder, Node node, boolean returnNullPrediction) {
+        // the score of an inner node is only used if none of the children match
+        String score = returnNullPrediction && node.hasNodes() ? null : node.getScore();
+        builder.startNode(addPredicate(builder, node.getPredicate()), score);
         for (Node childNode : node.getNodes()) {
-            childNodes.add(convertToEsTreeNode(childNode, fieldTypeMap));
+            addNode(builder, childNode, returnNullPrediction);
         }
-        return new EsTreeModel.EsTreeNode(Collections.unmodifiableList(childNodes), predicate, node.getScore());
+        builder.endNode();
     }
 
-
-    private static EsTreeModel.EsPredicate createPredicate(final Predicate predicate, Map<String, String> fieldTypeMap) {
+    private static int addPredicate(EsTreeModel.Builder builder, Predicate predicate) {
         if (predicate instanceof SimplePredicate) {
             SimplePredicate simplePredicate = (SimplePredicate) predicate;
-            String field = simplePredicate.getField().getValue();
-            String type = fieldTypeMap.get(field);
-            String value = simplePredicate.getValue();
-            if (type == "string") {
-                return getSimplePredicate(value, field, simplePredicate.getOperator().value());
-            }
-            if (type == "double") {
-                return getSimplePredicate(Double.parseDouble(value), field, simplePredicate.getOperator().value());
-            }
-            if (type == "float") {
-                return getSimplePredicate(Float.parseFloat(value), field, simplePredicate.getOperator().value());
-            }
-            if (type == "int") {
-                return getSimplePredicate(Integer.parseInt(value), field, simplePredicate.getOperator().value());
-            }
-            if (type == "boolean") {
-                return getSimplePredicate(Boolean.parseBoolean(value), field, simplePredicate.getOperator().value());
-            }
-            throw new UnsupportedOperationException("Data type " + type + " for TreeModel not implemented yet.");
+            return builder.simplePredicate(simplePredicate.getField().getValue(), simplePredicate.getOperator().value(),
+                    simplePredicate.getValue());
         }
         if (predicate instanceof True) {
-            return new EsTreeModel.EsPredicate() {
-                @Override
-                public boolean match(Map<String, Object> vector) {
-                    return true;
-                }
-
-                @Override
-                public boolean notEnoughValues(Map<String, Object> vector) {
-                    return false;
-                }
-            };
-
+            return builder.constantPredicate(true);
         }
         if (predicate instanceof False) {
-            return new EsTreeModel.EsPredicate() {
-                @Override
-                public boolean match(Map<String, Object> vector) {
-                    return false;
-                }
-
-                @Override
-                public boolean notEnoughValues(Map<String, Object> vector) {
-                    return false;
-                }
-            };
+            return builder.constantPredicate(false);
         }
         if (predicate instanceof CompoundPredicate) {
             CompoundPredicate compoundPredicate = (CompoundPredicate) predicate;
-            List<EsTreeModel.EsPredicate> predicates = new ArrayList<>();
-            for (Predicate childPredicate : ((CompoundPredicate) predicate).getPredicates()) {
-                predicates.add(createPredicate(childPredicate, fieldTypeMap));
-            }
-            if (compoundPredicate.getBooleanOperator().value().equals("and")) {
-                return new EsTreeModel.EsCompoundPredicate(predicates) {
-
-                    @Override
-                    protected boolean matchList(Map<String, Object> vector) {
-                        boolean result = true;
-                        for (EsTreeModel.EsPredicate childPredicate : predicates) {
-                            result = result && childPredicate.match(vector);
-                        }
-                        return result;
-                    }
-                };
-            }
-            if (compoundPredicate.getBooleanOperator().value().equals("or")) {
-                return new EsTreeModel.EsCompoundPredicate(predicates) {
-
-                    @Override
-                    protected boolean matchList(Map<String, Object> vector) {
-                        boolean result = false;
-                        for (EsTreeModel.EsPredicate childPredicate : predicates) {
-                            result = result || childPredicate.match(vector);
-                        }
-                        return result;
-                    }
-                };
-            }
-            if (compoundPredicate.getBooleanOperator().value().equals("xor")) {
-                return new EsTreeModel.EsCompoundPredicate(predicates) {
-
-                    @Override
-                    protected boolean matchList(Map<String, Object> vector) {
-                        boolean result = false;
-                        for (EsTreeModel.EsPredicate childPredicate : predicates) {
-                            if (result == false) {
-                                result = result || childPredicate.match(vector);
-                            } else {
-                                if (childPredicate.match(vector)) {
-                                    // we had true already, xor must return false
-                                    return false;
-                                }
-                            }
-                        }
-                        return result;
-                    }
-                };
-            }
-            if (compoundPredicate.getBooleanOperator().value().equals("surrogate")) {
-                return new EsTreeModel.EsCompoundPredicate(predicates) {
-
-                    @Override
-                    protected boolean matchList(Map<String, Object> vector) {
-                        for (EsTreeModel.EsPredicate childPredicate : predicates) {
-                            if (childPredicate.notEnoughValues(vector) == false) {
-                                return childPredicate.match(vector);
-
-                            }
-                        }
-                        return false;
-                    }
-
-                    @Override
-                    public boolean notEnoughValues(Map<String, Object> vector) {
-                        boolean notEnoughValues = true;
-                        for (EsTreeModel.EsPredicate predicate : predicates) {
-                            // only one needs to have enough values and then the predicate is defined
-                            notEnoughValues = predicate.notEnoughValues(vector) && notEnoughValues;
-                        }
-                        return notEnoughValues;
-                    }
-                };
-
+            List<Predicate> childPredicates = compoundPredicate.getPredicates();
+            int[] children = new int[childPredicates.size()];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = addPredicate(builder, childPredicates.get(i));
             }
+            return builder.compoundPredicate(compoundPredicate.getBooleanOperator().value(), children);
         }
         if (predicate instanceof SimpleSetPredicate) {
             SimpleSetPredicate simpleSetPredicate = (SimpleSetPredicate) predicate;
-            Array setArray = simpleSetPredicate.getArray();
-            String field = simpleSetPredicate.getField().getValue();
-            if (setArray.getType().equals(Array.Type.STRING)) {
-                HashSet<String> valuesSet = new HashSet<>();
-                String[] values = setArray.getValue().split("\" \"");
-                // trimm beginning and end quotes
-                values[0] = values[0].substring(1, values[0].length());
-                values[values.length - 1] = values[values.length - 1].substring(0, values[values.length - 1].length() - 1);
-                if (values.length != setArray.getN()) {
-                    throw new UnsupportedOperationException("Could not infer values from array value " + setArray.getValue());
-                }
-                for (String value : values) {
-                    valuesSet.add(value);
-                }
-                return new EsTreeModel.EsSimpleSetPredicate<>(valuesSet, field);
-            }
-
-            if (setArray.getType().equals(Array.Type.STRING)) {
-                HashSet<Double> valuesSet = new HashSet<>();
-                String[] values = setArray.getValue().split(" ");
-                if (values.length != setArray.getN()) {
-                    throw new UnsupportedOperationException("Could not infer values from array value " + setArray.getValue());
-                }
-                for (String value : values) {
-                    valuesSet.add(Double.parseDouble(value));
-                }
-                return new EsTreeModel.EsSimpleSetPredicate<>(valuesSet, field);
-            }
-            if (setArray.getType().equals(Array.Type.INT)) {
-                HashSet<Integer> valuesSet = new HashSet<>();
-                String[] values = setArray.getValue().split(" ");
-                if (values.length != setArray.getN()) {
-                    throw new UnsupportedOperationException("Could not infer values from array value " + setArray.getValue());
-                }
-                for (String value : values) {
-                    valuesSet.add(Integer.parseInt(value));
-                }
-                return new EsTreeModel.EsSimpleSetPredicate<>(valuesSet, field);
-            }
+            String[] values = parseArray(simpleSetPredicate.getArray());
+            boolean isIn = simpleSetPredicate.getBooleanOperator() == SimpleSetPredicate.BooleanOperator.IS_IN;
+            return builder.setPredicate(simpleSetPredicate.getField().getValue(), isIn, values);
         }
         throw new UnsupportedOperationException("Predicate Type " + predicate.getClass().getName() + " for TreeModel not implemented yet.");
     }
 
-    protected static <T extends Comparable<T>> EsTreeModel.EsSimplePredicate<T> getSimplePredicate(T value, String field, String operator) {
-        if (operator.equals("equal")) {
-            return new EsTreeModel.EsSimplePredicate<T>(value, field) {
-                @Override
-                public boolean match(T fieldValue) {
-                    return value.equals(fieldValue);
-                }
-            };
-        }
-        if (operator.equals("notEqual")) {
-            return new EsTreeModel.EsSimplePredicate<T>(value, field) {
-                @Override
-                public boolean match(T fieldValue) {
-                    return value.equals(fieldValue) == false;
-                }
-            };
-        }
-        if (operator.equals("lessThan")) {
-            return new EsTreeModel.EsSimplePredicate<T>(value, field) {
-                @Override
-                public boolean match(T fieldValue) {
-                    return fieldValue.compareTo(value) < 0;
-                }
-            };
-        }
-        if (operator.equals("lessOrEqual")) {
-            return new EsTreeModel.EsSimplePredicate<T>(value, field) {
-                @Override
-                public boolean match(T fieldValue) {
-                    return fieldValue.compareTo(value) <= 0;
-                }
-            };
-        }
-        if (operator.equals("greaterThan")) {
-            return new EsTreeModel.EsSimplePredicate<T>(value, field) {
-                @Override
-                public boolean match(T fieldValue) {
-                    return fieldValue.compareTo(value) > 0;
-                }
-            };
-        }
-        if (operator.equals("greaterOrEqual")) {
-            return new EsTreeModel.EsSimplePredicate<T>(value, field) {
-                @Override
-                public boolean match(T fieldValue) {
-                    return fieldValue.compareTo(value) >= 0;
-                }
-            };
-        }
-        if (operator.equals("isMissing")) {
-            return new EsTreeModel.EsSimplePredicate<T>(value, field) {
-                @Override
-                public boolean match(T fieldValue) {
-                    throw new UnsupportedOperationException("We should never get here!");
-                }
-
-                @Override
-                public boolean match(Map<String, Object> vector) {
-                    Object fieldValue = vector.get(field);
-                    if (fieldValue == null) {
-                        return true;
+    /**
+     * Splits the value of a PMML array into its elements. Elements are separated by any amount of white space, strings may
+     * be quoted and contain escaped quotes.
+     */
+    static String[] parseArray(Array array) {
+        if ((array.getType() == Array.Type.STRING || array.getType() == Array.Type.REAL || array.getType() == Array.Type.INT) == false) {
+            throw new UnsupportedOperationException("Array type " + array.getType() + " for TreeModel not implemented yet.");
+        }
+        List<String> values = new ArrayList<>();
+        String value = array.getValue();
+        int i = 0;
+        while (i < value.length()) {
+            if (Character.isWhitespace(value.charAt(i))) {
+                i++;
+            } else if (value.charAt(i) == '"') {
+                StringBuilder element = new StringBuilder();
+                i++;
+                while (i < value.length() && value.charAt(i) != '"') {
+                    if (value.charAt(i) == '\\' && i + 1 < value.length() && value.charAt(i + 1) == '"') {
+                        i++;
                     }
-                    return false;
-                }
-            };
+                    element.append(value.charAt(i));
+                    i++;
+                }
+                values.add(element.toString());
+                // the closing quote
+                i++;
+            } else {
+                int start = i;
+                while (i < value.length() && Character.isWhitespace(value.charAt(i)) == false) {
+                    i++;
+                }
+                values.add(value.substring(start, i));
+            }
         }
-        if (operator.equals("isNotMissing")) {
-            return new EsTreeModel.EsSimplePredicate<T>(value, field) {
-                @Override
-                public boolean match(T fieldValue) {
-                    throw new UnsupportedOperationException("We should never get here!");
-                }
-
-                @Override
-                public boolean match(Map<String, Object> vector) {
-                    Object fieldValue = vector.get(field);
-                    if (fieldValue == null) {
-                        return false;
-                    }
-                    return true;
-                }
-            };
+        if (array.getN() != null && values.size() != array.getN()) {
+            throw new UnsupportedOperationException("Could not infer values from array value " + array.getValue());
         }
-        throw new UnsupportedOperationException("OOperator " + operator + "  not supported for Predicate in TreeModel.");
+        return values.toArray(new String[values.size()]);
     }
 }
@@ -27,8 +27,9 @@ import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.NativeScriptFactory;
 import org.elasticsearch.script.modelinput.DataSource;
 import org.elasticsearch.script.modelinput.EsDataSource;
+import org.elasticsearch.script.modelinput.IdfCache;
+import org.elasticsearch.script.modelinput.VectorBuffer;
 import org.elasticsearch.script.modelinput.VectorRangesToVector;
-import org.elasticsearch.script.modelinput.VectorRangesToVectorJSON;
 import org.elasticsearch.search.lookup.LeafDocLookup;
 import org.elasticsearch.search.lookup.LeafIndexLookup;
 
@@ -42,19 +43,28 @@ public class VectorScriptFactory implements NativeScriptFactory {
 
     public static final String NAME = "doc_to_vector";
 
-    public VectorScriptFactory() {
+    private final VectorizerCache vectorizerCache;
+    private final IdfCache idfCache;
 
+    public VectorScriptFactory(VectorizerCache vectorizerCache, IdfCache idfCache) {
+        this.vectorizerCache = vectorizerCache;
+        this.idfCache = idfCache;
     }
 
     @Override
     public ExecutableScript newScript(@Nullable Map<String, Object> params) {
-        if (params == null || params.containsKey("spec") == false) {
-            throw new IllegalArgumentException("the spec parameter is required");
+        if (params == null || (params.containsKey("spec") == false && params.containsKey("spec_id") == false)) {
+            throw new IllegalArgumentException("the spec or the spec_id parameter is required");
+        }
+        if (params.containsKey("spec") && params.containsKey("spec_id")) {
+            throw new IllegalArgumentException("only one of the spec and the spec_id parameters can be set");
+        }
+        if (params.containsKey("spec_id")) {
+            return new VectorizerScript(vectorizerCache.vectorizer(XContentMapValues.nodeStringValue(params.get("spec_id"), null)),
+                    idfCache);
         }
         Map<String, Object> spec = XContentMapValues.nodeMapValue(params.get("spec"), "spec");
-        // TODO: Add caching mechanism
-        VectorRangesToVector features = new VectorRangesToVectorJSON(spec);
-        return new VectorizerScript(features);
+        return new VectorizerScript(vectorizerCache.vectorizer(spec), idfCache);
     }
 
     @Override
@@ -74,15 +84,17 @@ public class VectorScriptFactory implements NativeScriptFactory {
 
         private DataSource dataSource;
 
+        private final VectorBuffer buffer = new VectorBuffer();
+
         /**
          * Factory that is registered in
          * {@link TokenPlugin#onModule(org.elasticsearch.script.ScriptModule)}
          * method when the plugin is loaded.
          */
 
-        private VectorizerScript(VectorRangesToVector features) {
+        private VectorizerScript(VectorRangesToVector features, IdfCache idfCache) {
             this.features = features;
-            dataSource = new EsDataSource() {
+            dataSource = new EsDataSource(idfCache) {
                 @Override
                 protected LeafDocLookup getDocLookup() {
                     return doc();
@@ -97,7 +109,7 @@ public class VectorScriptFactory implements NativeScriptFactory {
 
         @Override
         public Object run() {
-            return features.convert(dataSource).getAsMap();
+            return features.convert(dataSource, buffer).getAsMap();
         }
     }
 
@@ -0,0 +1,399 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.script.pmml;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.storespec.StoreSpecAction;
+import org.elasticsearch.action.support.ThreadedActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.modelinput.VectorRangesToVector;
+import org.elasticsearch.script.modelinput.VectorRangesToVectorJSON;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Node level cache of the vectorizers that the doc_to_vector script builds from the spec in its params.
+ * <p>
+ * Building a vectorizer creates a term to index map for every field of the spec, which takes long for specs with many terms,
+ * while searches usually pass the same spec over and over again. Vectorizers are immutable once built, so they are cached by
+ * a hash of the content of the spec and shared between all scripts and threads. Like compiled scripts, these entries are
+ * evicted least recently used first when {@link #CACHE_MAX_SIZE_SETTING} is reached or when they were not used for
+ * {@link #CACHE_EXPIRE_SETTING}.
+ * <p>
+ * Vectorizers of specs stored with _store_spec are kept by the id of the spec instead and are never evicted. Every node
+ * builds them when the spec is stored, they are only replaced when the spec is stored again and dropped when the spec cache
+ * is cleared or the spec index is deleted. Nodes that miss a stored spec load it in the background, see
+ * {@link #vectorizer(String)}.
+ */
+public class VectorizerCache extends AbstractComponent implements ClusterStateListener {
+
+    public static final Setting<Integer> CACHE_MAX_SIZE_SETTING =
+            Setting.intSetting("doc_to_vector.cache.max_size", 100, 0, Property.NodeScope);
+    public static final Setting<TimeValue> CACHE_EXPIRE_SETTING =
+            Setting.positiveTimeSetting("doc_to_vector.cache.expire", TimeValue.timeValueMillis(0), Property.NodeScope);
+
+    private static final TimeValue FAILED_LOAD_EXPIRE = TimeValue.timeValueSeconds(1);
+
+    private final Cache<String, VectorRangesToVector> cache;
+    private final ConcurrentMap<String, VectorRangesToVector> storedSpecs = ConcurrentCollections.newConcurrentMap();
+    private final SetOnce<Client> client = new SetOnce<>();
+    private final SetOnce<ThreadPool> threadPool = new SetOnce<>();
+    // ids of stored specs that are being loaded, mapped to the token of the load
+    private final ConcurrentMap<String, Object> pendingSpecs = ConcurrentCollections.newConcurrentMap();
+    // why stored specs failed to load, all scripts get the failure for a while before the spec is loaded again
+    private final Cache<String, Exception> failedSpecs = CacheBuilder.<String, Exception>builder()
+            .setExpireAfterWrite(FAILED_LOAD_EXPIRE.nanos())
+            .setMaximumWeight(1000)
+            .build();
+    // scripts are created once per segment with the same params, so the hash of the last spec of every search thread is kept
+    private final ThreadLocal<SpecKey> lastSpecKey = new ThreadLocal<>();
+    private final CounterMetric hits = new CounterMetric();
+    private final CounterMetric misses = new CounterMetric();
+    private final CounterMetric evictions = new CounterMetric();
+
+    public VectorizerCache(Settings settings) {
+        super(settings);
+        CacheBuilder<String, VectorRangesToVector> cacheBuilder = CacheBuilder.<String, VectorRangesToVector>builder()
+                .setMaximumWeight(CACHE_MAX_SIZE_SETTING.get(settings))
+                .removalListener(this::onRemoval);
+        TimeValue expire = CACHE_EXPIRE_SETTING.get(settings);
+        if (expire.nanos() != 0) {
+            cacheBuilder.setExpireAfterAccess(expire.nanos());
+        }
+        this.cache = cacheBuilder.build();
+    }
+
+    /**
+     * Sets the client that loads stored specs and the thread pool that builds their vectorizers. The cache is created before
+     * the node has a client.
+     */
+    public void setClient(Client client, ThreadPool threadPool) {
+        this.client.set(client);
+        this.threadPool.set(threadPool);
+    }
+
+    /**
+     * Returns the vectorizer for the spec, building it only if no spec with the same content was seen before.
+     */
+    public VectorRangesToVector vectorizer(Map<String, Object> spec) {
+        String key = specKey(spec);
+        VectorRangesToVector vectorizer = cache.get(key);
+        if (vectorizer != null) {
+            hits.inc();
+            return vectorizer;
+        }
+        misses.inc();
+        try {
+            return cache.computeIfAbsent(key, k -> new VectorRangesToVectorJSON(spec));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ElasticsearchException("failed to build vectorizer", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the vectorizer for the spec that was stored under the given id.
+     * <p>
+     * Scripts are created on search threads, so a spec that is not cached is never loaded while the script waits. The spec
+     * is loaded in the background instead and the script fails with a {@link RestStatus#SERVICE_UNAVAILABLE} status until
+     * it is loaded. This only happens on nodes that didn't get the spec when it was stored, like nodes that joined or were
+     * restarted since, or after the spec cache was cleared. If the spec fails to load, scripts fail with the cause for a
+     * second before the spec is loaded again.
+     */
+    public VectorRangesToVector vectorizer(String specId) {
+        VectorRangesToVector vectorizer = storedSpecs.get(specId);
+        if (vectorizer != null) {
+            hits.inc();
+            return vectorizer;
+        }
+        misses.inc();
+        if (failedSpecs.get(specId) == null && pendingSpecs.containsKey(specId) == false) {
+            startLoading(specId);
+            // loadSpec may have completed without forking
+            vectorizer = storedSpecs.get(specId);
+            if (vectorizer != null) {
+                return vectorizer;
+            }
+        }
+        Exception failure = failedSpecs.get(specId);
+        if (failure != null) {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            throw new ElasticsearchException("failed to load spec [{}]", failure, specId);
+        }
+        throw new ElasticsearchStatusException("spec [{}] is being loaded on this node, retry later", RestStatus.SERVICE_UNAVAILABLE,
+                specId);
+    }
+
+    private void startLoading(String specId) {
+        // the token tells a load that completes after the spec was stored again that it is stale
+        Object token = new Object();
+        if (pendingSpecs.putIfAbsent(specId, token) != null) {
+            return;
+        }
+        loadSpec(specId, new ActionListener<Map<String, Object>>() {
+            @Override
+            public void onResponse(Map<String, Object> spec) {
+                VectorRangesToVector vectorizer;
+                try {
+                    vectorizer = new VectorRangesToVectorJSON(spec);
+                } catch (Exception e) {
+                    onFailure(e);
+                    return;
+                }
+                if (pendingSpecs.remove(specId, token)) {
+                    storedSpecs.put(specId, vectorizer);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                logger.debug("failed to load spec [{}]", e, specId);
+                if (pendingSpecs.remove(specId, token)) {
+                    failedSpecs.put(specId, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the stored spec with the given id without blocking and passes it to the listener on the generic thread pool,
+     * where its vectorizer is built
+     */
+    protected void loadSpec(String specId, ActionListener<Map<String, Object>> listener) {
+        if (client.get() == null) {
+            listener.onFailure(new IllegalStateException("cannot load spec [" + specId + "] before the node is started"));
+            return;
+        }
+        ActionListener<Map<String, Object>> threadedListener = new ThreadedActionListener<>(logger, threadPool.get(),
+                ThreadPool.Names.GENERIC, listener, false);
+        client.get().prepareGet(StoreSpecAction.SPEC_INDEX, StoreSpecAction.SPEC_TYPE, specId).execute(new ActionListener<GetResponse>() {
+            @Override
+            public void onResponse(GetResponse response) {
+                if (response.isExists() == false) {
+                    threadedListener.onFailure(new ResourceNotFoundException("spec [{}] not found", specId));
+                    return;
+                }
+                threadedListener.onResponse(XContentMapValues.nodeMapValue(response.getSourceAsMap().get("spec"), "spec"));
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                threadedListener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * Caches the vectorizer of a spec that was just stored, replacing the vectorizer of the previous version
+     */
+    public void putStoredSpec(String specId, Map<String, Object> spec) {
+        VectorRangesToVector vectorizer = new VectorRangesToVectorJSON(spec);
+        // loads of the previous version that are still running must not overwrite it
+        pendingSpecs.remove(specId);
+        failedSpecs.invalidate(specId);
+        storedSpecs.put(specId, vectorizer);
+    }
+
+    /**
+     * Drops the vectorizer of a stored spec, the next script that uses the spec loads it again
+     */
+    public void invalidateStoredSpec(String specId) {
+        pendingSpecs.remove(specId);
+        failedSpecs.invalidate(specId);
+        storedSpecs.remove(specId);
+    }
+
+    /**
+     * Drops the vectorizers of all stored specs when the spec index is deleted
+     */
+    @Override
+    public void clusterChanged(ClusterChangedEvent event) {
+        for (Index index : event.indicesDeleted()) {
+            if (StoreSpecAction.SPEC_INDEX.equals(index.getName())) {
+                invalidateStoredSpecs();
+            }
+        }
+    }
+
+    void invalidateStoredSpecs() {
+        pendingSpecs.clear();
+        failedSpecs.invalidateAll();
+        storedSpecs.clear();
+    }
+
+    /**
+     * Returns the hash of the spec, which is only computed again if the spec is not the one this thread looked up last. The
+     * spec must not be modified after it was looked up.
+     */
+    String specKey(Map<String, Object> spec) {
+        SpecKey last = lastSpecKey.get();
+        if (last != null && last.spec.get() == spec) {
+            return last.key;
+        }
+        String key = specHash(spec);
+        lastSpecKey.set(new SpecKey(spec, key));
+        return key;
+    }
+
+    /**
+     * Returns the hex encoded SHA-256 of the json representation of the spec
+     */
+    static String specHash(Map<String, Object> spec) {
+        MessageDigest digest = MessageDigests.sha256();
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            builder.map(spec);
+            BytesRef bytes = builder.bytes().toBytesRef();
+            digest.update(bytes.bytes, bytes.offset, bytes.length);
+        } catch (IOException e) {
+            throw new ElasticsearchException("failed to hash spec", e);
+        }
+        return MessageDigests.toHexString(digest.digest());
+    }
+
+    private static final class SpecKey {
+        // the spec of a finished search must not be kept alive by the thread that ran it
+        private final WeakReference<Map<String, Object>> spec;
+        private final String key;
+
+        SpecKey(Map<String, Object> spec, String key) {
+            this.spec = new WeakReference<>(spec);
+            this.key = key;
+        }
+    }
+
+    private void onRemoval(RemovalNotification<String, VectorRangesToVector> notification) {
+        if (notification.getRemovalReason() == RemovalNotification.RemovalReason.EVICTED) {
+            evictions.inc();
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(cache.count() + storedSpecs.size(), hits.count(), misses.count(), evictions.count());
+    }
+
+    public static class Stats implements Writeable, ToXContent {
+
+        private final long count;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        public Stats(long count, long hits, long misses, long evictions) {
+            this.count = count;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public Stats(StreamInput in) throws IOException {
+            count = in.readVLong();
+            hits = in.readVLong();
+            misses = in.readVLong();
+            evictions = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(count);
+            out.writeVLong(hits);
+            out.writeVLong(misses);
+            out.writeVLong(evictions);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * The share of scripts that got their vectorizer from the cache
+         */
+        public double getHitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field(Fields.COUNT, count);
+            builder.field(Fields.HITS, hits);
+            builder.field(Fields.MISSES, misses);
+            builder.field(Fields.HIT_RATE, getHitRate());
+            builder.field(Fields.EVICTIONS, evictions);
+            return builder;
+        }
+
+        static final class Fields {
+            static final String COUNT = "count";
+            static final String HITS = "hits";
+            static final String MISSES = "misses";
+            static final String HIT_RATE = "hit_rate";
+            static final String EVICTIONS = "evictions";
+        }
+    }
+}
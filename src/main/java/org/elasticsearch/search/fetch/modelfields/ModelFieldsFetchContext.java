@@ -0,0 +1,47 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.search.fetch.modelfields;
+
+
+import org.elasticsearch.script.SearchScript;
+import org.elasticsearch.search.fetch.FetchSubPhaseContext;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ModelFieldsFetchContext extends FetchSubPhaseContext {
+
+    private final Map<String, SearchScript> modelFields = new LinkedHashMap<>();
+
+    public ModelFieldsFetchContext() {
+    }
+
+    /**
+     * The scripts to evaluate by the name of the field that holds their results
+     */
+    public Map<String, SearchScript> getModelFields() {
+        return modelFields;
+    }
+
+    public void addModelField(String name, SearchScript script) {
+        modelFields.put(name, script);
+    }
+}
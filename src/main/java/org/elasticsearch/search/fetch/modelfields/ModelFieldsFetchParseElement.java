@@ -0,0 +1,81 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.search.fetch.modelfields;
+
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptContext;
+import org.elasticsearch.script.SearchScript;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.search.fetch.FetchSubPhaseParseElement;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.util.Collections;
+
+/**
+ * Parses
+ * <pre>
+ * "model_fields": {
+ *     "field_name": {
+ *         "script": {"id": "model", "lang": "pmml_model", "params": {"debug": false}}
+ *     }
+ * }
+ * </pre>
+ */
+public class ModelFieldsFetchParseElement extends FetchSubPhaseParseElement<ModelFieldsFetchContext> {
+    @Override
+    protected void innerParse(XContentParser parser, ModelFieldsFetchContext modelFieldsFetchContext, SearchContext searchContext)
+            throws Exception {
+        XContentParser.Token token;
+        String currentFieldName = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                String fieldName = currentFieldName;
+                Script script = null;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        currentFieldName = parser.currentName();
+                    } else if ("script".equals(currentFieldName)) {
+                        script = Script.parse(parser, searchContext.parseFieldMatcher());
+                    } else {
+                        throw new IllegalArgumentException("unknown parameter [" + currentFieldName + "] of model field [" + fieldName
+                                + "]");
+                    }
+                }
+                if (script == null) {
+                    throw new IllegalArgumentException("model field [" + fieldName + "] needs a script");
+                }
+                SearchScript searchScript = searchContext.scriptService().search(searchContext.lookup(), script,
+                        ScriptContext.Standard.SEARCH, Collections.emptyMap());
+                modelFieldsFetchContext.addModelField(fieldName, searchScript);
+            } else {
+                throw new IllegalArgumentException("model field [" + currentFieldName + "] must be an object");
+            }
+        }
+    }
+
+    @Override
+    protected FetchSubPhase.ContextFactory<ModelFieldsFetchContext> getContextFactory() {
+        return ModelFieldsFetchSubPhase.CONTEXT_FACTORY;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.search.fetch.modelfields;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.script.LeafSearchScript;
+import org.elasticsearch.script.SearchScript;
+import org.elasticsearch.script.pmml.PMMLModelScriptEngineService;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchParseElement;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Like script fields, but evaluates the scripts for all hits of a segment at once instead of hit by hit. pmml_model scripts
+ * vectorize and evaluate the hits of a segment in blocks, other scripts are run for one hit after the other.
+ */
+public class ModelFieldsFetchSubPhase implements FetchSubPhase {
+
+    public static final ContextFactory<ModelFieldsFetchContext> CONTEXT_FACTORY = new ContextFactory<ModelFieldsFetchContext>() {
+
+        @Override
+        public String getName() {
+            return NAMES[0];
+        }
+
+        @Override
+        public ModelFieldsFetchContext newContextInstance() {
+            return new ModelFieldsFetchContext();
+        }
+    };
+
+    public static final String[] NAMES = {"model_fields"};
+
+    static final int BLOCK_SIZE = 256;
+
+    public ModelFieldsFetchSubPhase() {
+    }
+
+    @Override
+    public Map<String, ? extends SearchParseElement> parseElements() {
+        return Collections.singletonMap(NAMES[0], new ModelFieldsFetchParseElement());
+    }
+
+    @Override
+    public void hitExecute(SearchContext context, HitContext hitContext) {
+    }
+
+    @Override
+    public void hitsExecute(SearchContext context, InternalSearchHit[] hits) {
+        if (context.getFetchSubPhaseContext(CONTEXT_FACTORY).hitExecutionNeeded() == false || hits.length == 0) {
+            return;
+        }
+        // visit the hits in doc id order, the upper half is the doc id and the lower half the position of the hit
+        long[] docsAndPositions = new long[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            docsAndPositions[i] = ((long) hits[i].docId() << 32) | i;
+        }
+        Arrays.sort(docsAndPositions);
+        List<LeafReaderContext> leaves = context.searcher().getIndexReader().leaves();
+        int[] docs = new int[Math.min(hits.length, BLOCK_SIZE)];
+        Object[] results = new Object[docs.length];
+        for (Map.Entry<String, SearchScript> modelField : context.getFetchSubPhaseContext(CONTEXT_FACTORY).getModelFields().entrySet()) {
+            int start = 0;
+            while (start < hits.length) {
+                LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId(docsAndPositions[start]), leaves));
+                int end = start + 1;
+                while (end < hits.length && docId(docsAndPositions[end]) < leaf.docBase + leaf.reader().maxDoc()) {
+                    end++;
+                }
+                LeafSearchScript script;
+                try {
+                    script = modelField.getValue().getLeafSearchScript(leaf);
+                } catch (IOException e) {
+                    throw new ElasticsearchException("failed to evaluate model field [{}]", e, modelField.getKey());
+                }
+                for (int blockStart = start; blockStart < end; blockStart += docs.length) {
+                    int count = Math.min(docs.length, end - blockStart);
+                    for (int i = 0; i < count; i++) {
+                        docs[i] = docId(docsAndPositions[blockStart + i]) - leaf.docBase;
+                    }
+                    evaluate(script, docs, count, results);
+                    for (int i = 0; i < count; i++) {
+                        addValue(hits[(int) docsAndPositions[blockStart + i]], modelField.getKey(), results[i]);
+                        results[i] = null;
+                    }
+                }
+                start = end;
+            }
+        }
+    }
+
+    private static int docId(long docAndPosition) {
+        return (int) (docAndPosition >>> 32);
+    }
+
+    private static void evaluate(LeafSearchScript script, int[] docs, int count, Object[] results) {
+        if (script instanceof PMMLModelScriptEngineService.PMMLModel) {
+            ((PMMLModelScriptEngineService.PMMLModel<?, ?>) script).run(docs, count, results);
+        } else {
+            for (int i = 0; i < count; i++) {
+                script.setDocument(docs[i]);
+                results[i] = script.run();
+            }
+        }
+    }
+
+    private static void addValue(InternalSearchHit hit, String name, Object value) {
+        if (hit.fieldsOrNull() == null) {
+            hit.fields(new HashMap<String, SearchHitField>());
+        }
+        SearchHitField hitField = hit.fields().get(name);
+        if (hitField == null) {
+            hitField = new InternalSearchHitField(name, new ArrayList<>(1));
+            hit.fields().put(name, hitField);
+        }
+        hitField.values().add(value);
+    }
+}
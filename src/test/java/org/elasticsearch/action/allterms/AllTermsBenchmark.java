@@ -0,0 +1,116 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.allterms;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the per term cost of merging segment term dictionaries depending on the number of segments.
+ * <p>
+ * Run with {@code java -cp <test classpath> org.elasticsearch.action.allterms.AllTermsBenchmark [numTerms] [iterations]}.
+ */
+public class AllTermsBenchmark {
+
+    private static final String FIELD = "field";
+
+    public static void main(String[] args) throws IOException {
+        int numTerms = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int[] segmentCounts = new int[]{1, 5, 10, 20, 40, 80};
+        System.out.println(String.format(Locale.ROOT, "%10s %12s %12s %12s", "segments", "terms", "ns/term", "total ms"));
+        for (int numSegments : segmentCounts) {
+            try (RAMDirectory dir = new RAMDirectory()) {
+                index(dir, numTerms, numSegments);
+                try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                    AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, FIELD, Integer.MAX_VALUE,
+                            null, 0);
+                    // warm up
+                    long count = merge(request, reader);
+                    long best = Long.MAX_VALUE;
+                    for (int i = 0; i < iterations; i++) {
+                        long start = System.nanoTime();
+                        count = merge(request, reader);
+                        best = Math.min(best, System.nanoTime() - start);
+                    }
+                    System.out.println(String.format(Locale.ROOT, "%10d %12d %12.1f %12d", reader.leaves().size(), count,
+                            (double) best / count, best / 1000000));
+                }
+            }
+        }
+    }
+
+    private static long merge(AllTermsShardRequest request, DirectoryReader reader) throws IOException {
+        List<TermsEnum> termsEnums = TransportAllTermsShardAction.getTermsEnums(request, reader.leaves());
+        SegmentTermsMerger merger = new SegmentTermsMerger(termsEnums, null);
+        long count = 0;
+        long docFreq = 0;
+        while (merger.next() != null) {
+            docFreq += merger.docFreq();
+            count++;
+        }
+        if (docFreq == 0) {
+            throw new IllegalStateException("no terms found");
+        }
+        return count;
+    }
+
+    /**
+     * Spreads numTerms random terms over numSegments segments, every term is added to about three segments so that
+     * dictionaries overlap the way they do on a real shard.
+     */
+    private static void index(RAMDirectory dir, int numTerms, int numSegments) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new KeywordAnalyzer());
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        config.setRAMBufferSizeMB(256);
+        Random random = new Random(0);
+        List<String> terms = new ArrayList<>(numTerms);
+        for (int i = 0; i < numTerms; i++) {
+            terms.add(Long.toString(random.nextLong() & Long.MAX_VALUE, Character.MAX_RADIX));
+        }
+        try (IndexWriter writer = new IndexWriter(dir, config)) {
+            for (int segment = 0; segment < numSegments; segment++) {
+                for (int i = 0; i < numTerms; i++) {
+                    if (numSegments <= 3 || random.nextInt(numSegments) < 3) {
+                        Document document = new Document();
+                        document.add(new StringField(FIELD, terms.get(i), Field.Store.NO));
+                        writer.addDocument(document);
+                    }
+                }
+                writer.commit();
+            }
+        }
+    }
+}
@@ -26,9 +26,16 @@ import org.elasticsearch.test.ESIntegTestCase;
 import org.elasticsearch.test.junit.annotations.TestLogging;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 
 /**
  *
@@ -89,8 +96,115 @@ public class AllTermsIT extends ESIntegTestCase {
         assertArrayEquals(response.allTerms.toArray(new String[1]), expected2);
     }
 
+    public void testPrefixAndRegexFilters() throws Exception {
+        indexDocs();
+        refresh();
+        AllTermsResponse response = new AllTermsRequestBuilder(client()).index("test").field("field").size(10).prefix("c").execute()
+                .actionGet(10000);
+        assertThat(response.getAllTerms(), equalTo(Collections.singletonList("careful")));
+
+        response = new AllTermsRequestBuilder(client()).index("test").field("field").size(10).include(".*e.*").exclude("be|ever")
+                .execute().actionGet(10000);
+        assertThat(response.getAllTerms(), equalTo(Arrays.asList("careful", "forget")));
+
+        response = new AllTermsRequestBuilder(client()).index("test").field("field").size(10).exclude(".*e.*").from("always")
+                .execute().actionGet(10000);
+        assertThat(response.getAllTerms(), equalTo(Collections.singletonList("don't")));
+    }
+
+    public void testSortByDocFreq() throws Exception {
+        indexDocs();
+        refresh();
+        AllTermsResponse response = new AllTermsRequestBuilder(client()).index("test").field("field").size(2)
+                .sort(AllTermsRequest.Sort.DOC_FREQ).execute().actionGet(10000);
+        assertThat(response.getAllTerms(), equalTo(Arrays.asList("be", "always")));
+        assertArrayEquals(new long[]{3, 2}, response.getDocFreqs());
+        // the default shard size is large enough for every shard to return all of its terms
+        assertThat(response.getDocFreqErrorUpperBound(), equalTo(0L));
+        assertThat(response.getCursor(), nullValue());
+
+        response = new AllTermsRequestBuilder(client()).index("test").field("field").size(10).minDocFreq(3)
+                .minDocFreqMode(AllTermsRequest.MinDocFreqMode.INDEX).sort(AllTermsRequest.Sort.DOC_FREQ).execute().actionGet(10000);
+        assertThat(response.getAllTerms(), equalTo(Collections.singletonList("be")));
+    }
+
+    public void testRandomSample() throws Exception {
+        indexDocs();
+        refresh();
+        List<String> all = Arrays.asList("always", "be", "careful", "don't", "ever", "forget");
+        long seed = randomLong();
+        AllTermsResponse response = new AllTermsRequestBuilder(client()).index("test").field("field").size(3)
+                .sort(AllTermsRequest.Sort.RANDOM).seed(seed).execute().actionGet(10000);
+        assertThat(response.getAllTerms().size(), equalTo(3));
+        assertTrue(all.containsAll(response.getAllTerms()));
+        assertThat(response.getCursor(), nullValue());
+        AllTermsResponse again = new AllTermsRequestBuilder(client()).index("test").field("field").size(3)
+                .sort(AllTermsRequest.Sort.RANDOM).seed(seed).execute().actionGet(10000);
+        assertThat(again.getAllTerms(), equalTo(response.getAllTerms()));
+
+        response = new AllTermsRequestBuilder(client()).index("test").field("field").size(10).sort(AllTermsRequest.Sort.RANDOM)
+                .execute().actionGet(10000);
+        assertThat(response.getAllTerms(), equalTo(all));
+    }
+
     private void createIndex() {
         client().admin().indices().prepareCreate("test").setSettings(Settings.builder().put("index.number_of_shards", 1)).get();
         ensureYellow("test");
     }
+
+    public void testPagingWithCursor() throws Exception {
+        indexDocs();
+        refresh();
+        List<String> terms = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            AllTermsResponse response = new AllTermsRequestBuilder(client()).index("test").field("field").size(2).cursor(cursor).execute()
+                    .actionGet(10000);
+            assertThat(response.getAllTerms().size(), lessThanOrEqualTo(2));
+            terms.addAll(response.getAllTerms());
+            cursor = response.getCursor();
+            pages++;
+        } while (cursor != null && pages < 10);
+        assertThat(cursor, nullValue());
+        String[] expected = {"always", "be", "careful", "don't", "ever", "forget"};
+        assertArrayEquals(terms.toArray(new String[6]), expected);
+    }
+
+    public void testIndexWideMinDocFreq() throws Exception {
+        client().admin().indices().prepareCreate("test").setSettings(Settings.builder().put("index.number_of_shards", between(1, 5)))
+                .get();
+        ensureYellow("test");
+        indexDocs();
+        refresh();
+        AllTermsResponse response = new AllTermsRequestBuilder(client()).index("test").field("field").size(10).minDocFreq(3)
+                .minDocFreqMode(AllTermsRequest.MinDocFreqMode.INDEX).execute().actionGet(10000);
+        assertArrayEquals(response.allTerms.toArray(new String[1]), new String[]{"be"});
+        assertArrayEquals(response.getDocFreqs(), new long[]{3});
+
+        response = new AllTermsRequestBuilder(client()).index("test").field("field").size(4).minDocFreq(2)
+                .minDocFreqMode(AllTermsRequest.MinDocFreqMode.INDEX).execute().actionGet(10000);
+        assertArrayEquals(response.allTerms.toArray(new String[4]), new String[]{"always", "be", "careful", "don't"});
+        assertThat(response.getCursor(), notNullValue());
+
+        response = new AllTermsRequestBuilder(client()).index("test").field("field").size(4).minDocFreq(2)
+                .minDocFreqMode(AllTermsRequest.MinDocFreqMode.INDEX).cursor(response.getCursor()).execute().actionGet(10000);
+        assertArrayEquals(response.allTerms.toArray(new String[2]), new String[]{"ever", "forget"});
+        assertThat(response.getCursor(), nullValue());
+    }
+
+    public void testMultipleIndices() throws Exception {
+        client().prepareIndex("test_1", "type", "1").setSource("field", "always be").get();
+        client().prepareIndex("test_2", "type", "1").setSource("field", "careful be").get();
+        refresh();
+        AllTermsResponse response = new AllTermsRequestBuilder(client()).indices("test_*").field("field").size(10).minDocFreq(2)
+                .minDocFreqMode(AllTermsRequest.MinDocFreqMode.INDEX).execute().actionGet(10000);
+        assertArrayEquals(response.allTerms.toArray(new String[1]), new String[]{"be"});
+        assertThat(response.getFailedShards(), equalTo(0));
+        assertThat(response.getSuccessfulShards(), equalTo(response.getTotalShards()));
+        assertThat(response.getTotalShards(), equalTo(getNumShards("test_1").numPrimaries + getNumShards("test_2").numPrimaries));
+
+        response = new AllTermsRequestBuilder(client()).indices("test_1", "test_2").field("field").size(10).execute().actionGet(10000);
+        assertArrayEquals(response.allTerms.toArray(new String[3]), new String[]{"always", "be", "careful"});
+    }
 }
@@ -19,6 +19,7 @@
 
 package org.elasticsearch.action.allterms;
 
+import com.carrotsearch.hppc.LongArrayList;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
@@ -26,22 +27,38 @@ import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.NoMergePolicy;
 import org.apache.lucene.index.NoMergeScheduler;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.memory.MemoryIndex;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.MemoryCircuitBreaker;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.shard.ShardId;
 import org.elasticsearch.test.ESTestCase;
 import org.junit.After;
 import org.junit.Before;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.elasticsearch.action.allterms.TransportAllTermsShardAction.getTermsEnums;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.IsEqual.equalTo;
 
 public class AllTermsTests extends ESTestCase {
@@ -93,179 +110,556 @@ public class AllTermsTests extends ESTestCase {
         assertThat(reader.leaves().size(), equalTo(4));
     }
 
-    public void testFindSmallestTermAfterExistingTerm() throws IOException {
-        SmallestTermAndExhausted smallestTermAndExhausted = getSmallestTermAndExhausted("careful");
-        BytesRef smallestTerm = smallestTermAndExhausted.getSmallestTerm();
-        int[] exhausted = smallestTermAndExhausted.getExhausted();
-        assertThat(smallestTerm.utf8ToString(), equalTo("don't"));
-        int i = -1;
-        int numExhausted = 0;
-        for (TermsEnum termsEnum : smallestTermAndExhausted.getTermsIters()) {
-            i++;
-            if (exhausted[i] == 1) {
-                numExhausted++;
-            } else {
-                assertThat(termsEnum.term().utf8ToString().compareTo("careful"), greaterThan(0));
-            }
+    public void testMergeFromBeginning() throws IOException {
+        SegmentTermsMerger merger = getMerger(null);
+        assertNextTerm(merger, "always", 2);
+        assertNextTerm(merger, "be", 3);
+        assertNextTerm(merger, "careful", 2);
+        assertNextTerm(merger, "don't", 2);
+        assertNextTerm(merger, "ever", 2);
+        assertNextTerm(merger, "forget", 2);
+        assertThat(merger.next(), nullValue());
+        assertThat(merger.next(), nullValue());
+    }
+
+    public void testMergeAfterExistingTerm() throws IOException {
+        SegmentTermsMerger merger = getMerger("careful");
+        assertNextTerm(merger, "don't", 2);
+        assertNextTerm(merger, "ever", 2);
+        assertNextTerm(merger, "forget", 2);
+        assertThat(merger.next(), nullValue());
+    }
+
+    public void testMergeFromNotExistentTerm() throws IOException {
+        SegmentTermsMerger merger = getMerger("foo");
+        assertNextTerm(merger, "forget", 2);
+        assertThat(merger.next(), nullValue());
+    }
+
+    public void testMergeAllExhausted() throws IOException {
+        SegmentTermsMerger merger = getMerger("zonk");
+        assertThat(merger.next(), nullValue());
+    }
+
+    public void testMergeNoSegments() throws IOException {
+        SegmentTermsMerger merger = new SegmentTermsMerger(Collections.emptyList(), null);
+        assertThat(merger.next(), nullValue());
+    }
+
+    public void testTermsEnumsSkipSegmentsWithoutField() throws IOException {
+        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "missing", 1, null, 0);
+        assertThat(getTermsEnums(request, reader.leaves()).size(), equalTo(0));
+    }
+
+    private SegmentTermsMerger getMerger(String from) throws IOException {
+        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 1, null, 0);
+        List<TermsEnum> termIters = getTermsEnums(request, reader.leaves());
+        assertThat(termIters.size(), equalTo(4));
+        return new SegmentTermsMerger(termIters, from == null ? null : new BytesRef(from));
+    }
+
+    private static void assertNextTerm(SegmentTermsMerger merger, String term, long docFreq) throws IOException {
+        BytesRef next = merger.next();
+        assertThat(next, notNullValue());
+        assertThat(next.utf8ToString(), equalTo(term));
+        assertThat(merger.docFreq(), equalTo(docFreq));
+    }
+
+    public void testGetAllTermsFromBeginning() throws IOException {
+        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 10, null, 0);
+        List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves()).shardTerms);
+        assertArrayEquals(terms.toArray(new String[6]), new String[]{"always", "be", "careful", "don't", "ever", "forget"});
+    }
+
+    public void testGetAllTermsFromBeginningExact() throws IOException {
+        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 6, null, 0);
+        List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves()).shardTerms);
+        assertArrayEquals(terms.toArray(new String[6]), new String[]{"always", "be", "careful", "don't", "ever", "forget"});
+    }
+
+    public void testGetSomeTerms() throws IOException {
+        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 3, null, 0);
+        List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves()).shardTerms);
+        assertArrayEquals(terms.toArray(new String[3]), new String[]{"always", "be", "careful"});
+    }
+
+    public void testGetSomeTermsFrom() throws IOException {
+        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 3, new BytesRef("careful"), 0);
+        List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves()).shardTerms);
+        assertArrayEquals(terms.toArray(new String[3]), new String[]{"don't", "ever", "forget"});
+    }
+
+    public void testGetTermsWithMinDocFreq() throws IOException {
+        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 10, null, 3);
+        List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves()).shardTerms);
+        assertArrayEquals(terms.toArray(new String[1]), new String[]{"be"});
+    }
+
+    public void testCursorRoundTrip() {
+        ShardId[] shardIds = shardIds(4);
+        AllTermsCursor cursor = AllTermsCursor.decode(new AllTermsCursor(new BytesRef("don't"),
+                new ShardId[]{shardIds[3], shardIds[0]}).encode());
+        assertThat(cursor.lastTerm().utf8ToString(), equalTo("don't"));
+        assertTrue(cursor.isExhausted(shardIds[0]));
+        assertFalse(cursor.isExhausted(shardIds[1]));
+        assertTrue(cursor.isExhausted(shardIds[3]));
+        assertFalse(cursor.isExhausted(new ShardId("other", "_na_", 0)));
+        expectThrows(IllegalArgumentException.class, () -> AllTermsCursor.decode("not a cursor"));
+    }
+
+    public void testNextCursor() {
+        AllTermsSingleShardResponse[] responses = new AllTermsSingleShardResponse[]{
+                shardResponse("always", "be", "careful"),
+                shardResponse("be"),
+                shardResponse("be", "ever"),
+                null};
+        AllTermsResponse response = new AllTermsResponse(responses, 3);
+        assertThat(response.getAllTerms(), equalTo(Arrays.asList("always", "be", "careful")));
+        boolean[] exhausted = new boolean[4];
+        ShardId[] shardIds = shardIds(4);
+        AllTermsCursor cursor = AllTermsCursor.decode(TransportAllTermsAction.nextCursor(exhausted, shardIds, responses,
+                new BytesRef("careful"), 3));
+        assertThat(cursor.lastTerm().utf8ToString(), equalTo("careful"));
+        // the first shard might have more terms, the third one has a term that was not returned yet and the last one failed
+        assertFalse(cursor.isExhausted(shardIds[0]));
+        assertTrue(cursor.isExhausted(shardIds[1]));
+        assertFalse(cursor.isExhausted(shardIds[2]));
+        assertFalse(cursor.isExhausted(shardIds[3]));
+
+        responses = new AllTermsSingleShardResponse[]{
+                shardResponse(),
+                null,
+                shardResponse("ever"),
+                shardResponse()};
+        exhausted[1] = true;
+        assertThat(TransportAllTermsAction.nextCursor(exhausted, shardIds, responses, new BytesRef("ever"), 3), nullValue());
+    }
+
+    public void testGetTermsReturnsDocFreqs() throws IOException {
+        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 10, new BytesRef("ever"), 0);
+        AllTermsSingleShardResponse response = TransportAllTermsShardAction.getTerms(request, reader.leaves());
+        assertThat(termsAsStrings(response.shardTerms), equalTo(Collections.singletonList("forget")));
+        assertThat(response.shardTerms.docFreq(0), equalTo(2L));
+    }
+
+    public void testMergeShardResponses() {
+        AllTermsSingleShardResponse[] responses = new AllTermsSingleShardResponse[]{
+                shardResponse("be", "don't"),
+                shardResponse("always", "be", "forget"),
+                null,
+                shardResponse(),
+                shardResponse("careful", "forget")};
+        AllTermsResponse response = new AllTermsResponse(responses, 10);
+        assertThat(response.getAllTerms(), equalTo(Arrays.asList("always", "be", "careful", "don't", "forget")));
+        assertArrayEquals(response.getDocFreqs(), new long[]{1, 2, 1, 1, 2});
+
+        response = new AllTermsResponse(responses, 2);
+        assertThat(response.getAllTerms(), equalTo(Arrays.asList("always", "be")));
+        assertArrayEquals(response.getDocFreqs(), new long[]{1, 2});
+
+        response = new AllTermsResponse(responses, 0);
+        assertThat(response.getAllTerms().size(), equalTo(0));
+    }
+
+    // every term has a doc freq of 1 per shard so that the merged doc freq is the number of shards that have the term
+    private static AllTermsSingleShardResponse shardResponse(String... terms) {
+        TermsWithDocFreqs shardTerms = new TermsWithDocFreqs();
+        for (String term : terms) {
+            shardTerms.add(new BytesRef(term), 1);
         }
-        assertThat(numExhausted, equalTo(1));
-    }
-
-
-    public void testFindSmallestTermFromBeginning() throws IOException {
-        SmallestTermAndExhausted smallestTermAndExhausted = getSmallestTermAndExhausted(null);
-        BytesRef smallestTerm = smallestTermAndExhausted.getSmallestTerm();
-        int[] exhausted = smallestTermAndExhausted.getExhausted();
-        assertThat(smallestTerm.utf8ToString(), equalTo("always"));
-        int i = -1;
-        int numExhausted = 0;
-        for (TermsEnum termsEnum : smallestTermAndExhausted.getTermsIters()) {
-            i++;
-            if (exhausted[i] == 1) {
-                numExhausted++;
-            } else {
-                assertThat(termsEnum.term().utf8ToString().compareTo("always"), greaterThanOrEqualTo(0));
-            }
+        return new AllTermsSingleShardResponse(shardTerms);
+    }
+
+    private static ShardId[] shardIds(int numShards) {
+        ShardId[] shardIds = new ShardId[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shardIds[i] = new ShardId("index", "_na_", i);
         }
-        assertThat(numExhausted, equalTo(0));
-    }
-
-    public void testFindSmallestTermFromNotExistentTerm() throws IOException {
-        SmallestTermAndExhausted smallestTermAndExhausted = getSmallestTermAndExhausted("foo");
-        BytesRef smallestTerm = smallestTermAndExhausted.getSmallestTerm();
-        int[] exhausted = smallestTermAndExhausted.getExhausted();
-        assertThat(smallestTerm.utf8ToString(), equalTo("forget"));
-        int i = -1;
-        int numExhausted = 0;
-        for (TermsEnum termsEnum : smallestTermAndExhausted.getTermsIters()) {
-            i++;
-            if (exhausted[i] == 1) {
-                numExhausted++;
-            } else {
-                assertThat(termsEnum.term().utf8ToString().compareTo("foo"), greaterThanOrEqualTo(0));
-            }
+        return shardIds;
+    }
+
+    private static List<String> termsAsStrings(TermsWithDocFreqs terms) {
+        List<String> strings = new ArrayList<>();
+        BytesRef spare = new BytesRef();
+        for (int i = 0; i < terms.size(); i++) {
+            strings.add(terms.term(i, spare).utf8ToString());
         }
-        assertThat(numExhausted, equalTo(2));
+        return strings;
     }
 
-    public void testFindSmallestAllExhausted() throws IOException {
-        SmallestTermAndExhausted smallestTermAndExhausted = getSmallestTermAndExhausted("zonk");
-        BytesRef smallestTerm = smallestTermAndExhausted.getSmallestTerm();
-        int[] exhausted = smallestTermAndExhausted.getExhausted();
-        assertThat(smallestTerm, equalTo(null));
-        for (int i = 0; i < 4; i++) {
-            assertThat(exhausted[i], equalTo(1));
+    public void testMergeUpToWithMinDocFreq() {
+        AllTermsSingleShardResponse[] responses = new AllTermsSingleShardResponse[]{
+                shardResponse("always", "be", "careful", "ever"),
+                shardResponse("be", "careful", "don't"),
+                shardResponse("always", "careful", "forget")};
+        List<String> terms = new ArrayList<>();
+        LongArrayList docFreqs = new LongArrayList();
+        BytesRef lastAdded = AllTermsResponse.merge(responses, new BytesRef("don't"), 2, 10, terms, docFreqs);
+        assertThat(lastAdded.utf8ToString(), equalTo("careful"));
+        assertThat(terms, equalTo(Arrays.asList("always", "be", "careful")));
+        assertArrayEquals(docFreqs.toArray(), new long[]{2, 2, 3});
+
+        terms.clear();
+        docFreqs.clear();
+        AllTermsResponse.merge(responses, null, 3, 10, terms, docFreqs);
+        assertThat(terms, equalTo(Collections.singletonList("careful")));
+    }
+
+    public void testMarkExhausted() {
+        AllTermsSingleShardResponse[] responses = new AllTermsSingleShardResponse[]{
+                shardResponse("always", "be"),
+                shardResponse("be"),
+                shardResponse("ever"),
+                shardResponse(),
+                null};
+        boolean[] exhausted = new boolean[5];
+        TransportAllTermsAction.markExhausted(exhausted, responses, new BytesRef("careful"), 2);
+        assertArrayEquals(new boolean[]{false, true, false, true, false}, exhausted);
+    }
+
+    public void testTermsWithDocFreqsSerialization() throws IOException {
+        String[] terms = new String[]{"", "care", "careful", "carefully", "caring", "d\u00e9j\u00e0", "d\u00e9j\u00e0 vu", "zonk"};
+        TermsWithDocFreqs original = new TermsWithDocFreqs();
+        for (int i = 0; i < terms.length; i++) {
+            original.add(new BytesRef(terms[i]), i * 1000L);
+        }
+        BytesStreamOutput out = new BytesStreamOutput();
+        original.writeTo(out);
+        TermsWithDocFreqs read = new TermsWithDocFreqs(out.bytes().streamInput());
+        assertThat(termsAsStrings(read), equalTo(Arrays.asList(terms)));
+        for (int i = 0; i < terms.length; i++) {
+            assertThat(read.docFreq(i), equalTo(i * 1000L));
         }
     }
 
-    private SmallestTermAndExhausted getSmallestTermAndExhausted(String from) throws IOException {
-        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 1, from, 0);
-        List<TermsEnum> termIters = getTermsEnums(request, reader.leaves());
-        assertThat(termIters.size(), equalTo(4));
-        BytesRef smallestTerm = null;
-        int[] exhausted = new int[termIters.size()];
-        smallestTerm = TransportAllTermsShardAction.findSmallestTermAfter(request, termIters, smallestTerm, exhausted);
-        return new SmallestTermAndExhausted(smallestTerm, exhausted, termIters);
+    public void testGetTermsWithPrefix() throws IOException {
+        AllTermsRequest parent = new AllTermsRequest();
+        parent.prefix("c");
+        AllTermsShardRequest request = new AllTermsShardRequest(parent, "index", 0, "field", 10, null, 0);
+        AllTermsSingleShardResponse response = TransportAllTermsShardAction.getTerms(request, reader.leaves());
+        assertThat(termsAsStrings(response.shardTerms), equalTo(Collections.singletonList("careful")));
+        assertThat(response.shardTerms.docFreq(0), equalTo(2L));
     }
 
-    private class SmallestTermAndExhausted {
-        private BytesRef smallestTerm;
-        private int[] exhausted;
-        private List<TermsEnum> termsIters;
+    public void testGetTermsWithIncludeAndExclude() throws IOException {
+        AllTermsRequest parent = new AllTermsRequest();
+        parent.include(".*e.*");
+        parent.exclude("be|ever");
+        AllTermsShardRequest request = new AllTermsShardRequest(parent, "index", 0, "field", 10, null, 0);
+        List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves()).shardTerms);
+        assertThat(terms, equalTo(Arrays.asList("careful", "forget")));
+    }
+
+    public void testGetTermsWithExcludeFrom() throws IOException {
+        AllTermsRequest parent = new AllTermsRequest();
+        parent.exclude(".*e.*");
+        AllTermsShardRequest request = new AllTermsShardRequest(parent, "index", 0, "field", 10, new BytesRef("always"), 0);
+        List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves()).shardTerms);
+        assertThat(terms, equalTo(Collections.singletonList("don't")));
+        // from doesn't have to match the filter
+        request = new AllTermsShardRequest(parent, "index", 0, "field", 10, new BytesRef("b"), 0);
+        terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves()).shardTerms);
+        assertThat(terms, equalTo(Collections.singletonList("don't")));
+    }
 
-        public BytesRef getSmallestTerm() {
-            return smallestTerm;
+    public void testGetTermsWithExcludeFromSeveralBlocks() throws IOException {
+        // enough terms that the terms with the prefix "be" get a block of their own
+        StringBuilder text = new StringBuilder();
+        for (char c1 = 'a'; c1 <= 'c'; c1++) {
+            for (char c2 = 'a'; c2 <= 'z'; c2++) {
+                for (char c3 = 'a'; c3 <= 'z'; c3++) {
+                    text.append(c1).append(c2).append(c3).append(' ');
+                }
+            }
+        }
+        try (Directory blocksDir = newDirectory()) {
+            try (IndexWriter writer = new IndexWriter(blocksDir, newIndexWriterConfig(new WhitespaceAnalyzer()))) {
+                Document d = new Document();
+                d.add(new TextField(FIELD, text.toString(), Field.Store.NO));
+                writer.addDocument(d);
+            }
+            try (DirectoryReader blocksReader = DirectoryReader.open(blocksDir)) {
+                AllTermsRequest parent = new AllTermsRequest();
+                parent.exclude(".*e.*");
+                AllTermsShardRequest request = new AllTermsShardRequest(parent, "index", 0, "field", 3, new BytesRef("be"), 0);
+                List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, blocksReader.leaves()).shardTerms);
+                assertThat(terms, equalTo(Arrays.asList("bfa", "bfb", "bfc")));
+                parent.include("b.*");
+                request = new AllTermsShardRequest(parent, "index", 0, "field", 3, new BytesRef("bzy"), 0);
+                terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, blocksReader.leaves()).shardTerms);
+                assertThat(terms, equalTo(Collections.singletonList("bzz")));
+            }
         }
+    }
 
-        public int[] getExhausted() {
-            return exhausted;
+    public void testAfterAutomaton() {
+        CharacterRunAutomaton after = new CharacterRunAutomaton(TransportAllTermsShardAction.after("b\u00e9c"));
+        for (String term : new String[]{"b\u00e9ca", "b\u00e9d", "b\u00ea", "c", "\u4e00"}) {
+            assertTrue(term, after.run(term));
+        }
+        for (String term : new String[]{"", "a", "b", "b\u00e9", "b\u00e9c", "b\u00e9bz", "bz"}) {
+            assertFalse(term, after.run(term));
         }
+    }
+
+    public void testGetTermsWithPrefixAndSize() throws IOException {
+        AllTermsRequest parent = new AllTermsRequest();
+        parent.prefix("e");
+        parent.include("[a-z]*");
+        AllTermsShardRequest request = new AllTermsShardRequest(parent, "index", 0, "field", 1, null, 0);
+        List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves()).shardTerms);
+        assertThat(terms, equalTo(Collections.singletonList("ever")));
+    }
+
+    public void testInvalidRegexFailsValidation() {
+        AllTermsRequest request = new AllTermsRequest();
+        request.field("field");
+        request.include("[a-z");
+        assertThat(request.validate(), notNullValue());
+        request.include("[a-z]*");
+        assertThat(request.validate(), nullValue());
+    }
 
-        SmallestTermAndExhausted(BytesRef smallestTerm, int[] exhausted, List<TermsEnum> termsIters) {
+    public void testNegativeSizeFailsValidationWithRandomSort() {
+        AllTermsRequest request = new AllTermsRequest();
+        request.field("field");
+        request.size(-1);
+        assertThat(request.validate(), nullValue());
+        request.sort(AllTermsRequest.Sort.RANDOM);
+        assertThat(request.validate(), notNullValue());
+        request.size(0);
+        assertThat(request.validate(), nullValue());
+    }
+
+    public void testGetTopTermsByDocFreq() throws IOException {
+        AllTermsRequest parent = new AllTermsRequest();
+        parent.sort(AllTermsRequest.Sort.DOC_FREQ);
+        AllTermsShardRequest request = new AllTermsShardRequest(parent, "index", 0, "field", 2, null, 0);
+        AllTermsSingleShardResponse response = TransportAllTermsShardAction.getTerms(request, reader.leaves());
+        // the most frequent terms, ties are broken by term, returned in term order
+        assertThat(termsAsStrings(response.shardTerms), equalTo(Arrays.asList("always", "be")));
+        assertThat(response.shardTerms.docFreq(0), equalTo(2L));
+        assertThat(response.shardTerms.docFreq(1), equalTo(3L));
+
+        request = new AllTermsShardRequest(parent, "index", 0, "field", 100, new BytesRef("be"), 0);
+        response = TransportAllTermsShardAction.getTerms(request, reader.leaves());
+        assertThat(termsAsStrings(response.shardTerms), equalTo(Arrays.asList("careful", "don't", "ever", "forget")));
+    }
 
-            this.smallestTerm = smallestTerm;
-            this.exhausted = exhausted;
-            this.termsIters = termsIters;
+    public void testMergeTopTerms() {
+        AllTermsSingleShardResponse[] responses = new AllTermsSingleShardResponse[]{
+                shardResponse(new String[]{"a", "b"}, new long[]{5, 3}),
+                shardResponse(new String[]{"b"}, new long[]{4}),
+                shardResponse(new String[]{"a", "c"}, new long[]{1, 6}),
+                null};
+        List<String> terms = new ArrayList<>();
+        LongArrayList docFreqs = new LongArrayList();
+        long error = AllTermsResponse.mergeTopTerms(responses, 2, 0, 2, terms, docFreqs);
+        assertThat(terms, equalTo(Arrays.asList("b", "a")));
+        assertArrayEquals(new long[]{7, 6}, docFreqs.toArray());
+        // the first and the third shard might have left out terms with a doc freq up to their least frequent returned term
+        assertThat(error, equalTo(4L));
+
+        terms.clear();
+        docFreqs.clear();
+        error = AllTermsResponse.mergeTopTerms(responses, 3, 7, 10, terms, docFreqs);
+        assertThat(terms, equalTo(Collections.singletonList("b")));
+        assertThat(error, equalTo(0L));
+    }
+
+    public void testTopTermsQueue() {
+        TopTermsQueue queue = new TopTermsQueue(3, -1);
+        String[] terms = {"d", "a", "c", "b", "e"};
+        long[] docFreqs = {1, 2, 2, 5, 2};
+        for (int i = 0; i < terms.length; i++) {
+            queue.insert(new BytesRef(terms[i]), docFreqs[i]);
         }
+        TopTermsQueue.Entry[] entries = queue.drain();
+        assertThat(entries.length, equalTo(3));
+        assertThat(entries[0].term.get().utf8ToString(), equalTo("b"));
+        assertThat(entries[1].term.get().utf8ToString(), equalTo("a"));
+        assertThat(entries[2].term.get().utf8ToString(), equalTo("c"));
+        assertThat(new TopTermsQueue(Integer.MAX_VALUE, 2).drain().length, equalTo(0));
+    }
 
-        public List<TermsEnum> getTermsIters() {
-            return termsIters;
+    private static AllTermsSingleShardResponse shardResponse(String[] terms, long[] docFreqs) {
+        TermsWithDocFreqs shardTerms = new TermsWithDocFreqs();
+        for (int i = 0; i < terms.length; i++) {
+            shardTerms.add(new BytesRef(terms[i]), docFreqs[i]);
         }
+        return new AllTermsSingleShardResponse(shardTerms);
     }
 
-    public void testDocFreqForExistingTerm() throws IOException {
-        SmallestTermAndExhausted smallestTermAndExhausted = getSmallestTermAndExhausted("careful");
-        BytesRef smallestTerm = smallestTermAndExhausted.getSmallestTerm();
-        int[] exhausted = smallestTermAndExhausted.getExhausted();
-        assertThat(TransportAllTermsShardAction.getDocFreq(smallestTermAndExhausted.getTermsIters(), smallestTerm, exhausted), equalTo(2L));
+    public void testSampleTerms() throws IOException {
+        AllTermsRequest parent = new AllTermsRequest();
+        parent.sort(AllTermsRequest.Sort.RANDOM);
+        AllTermsShardRequest request = new AllTermsShardRequest(parent, "index", 0, "field", 2, null, 0);
+        request.seed(randomLong());
+        AllTermsSingleShardResponse response = TransportAllTermsShardAction.getTerms(request, reader.leaves());
+        List<String> sample = termsAsStrings(response.shardTerms);
+        assertThat(sample.size(), equalTo(2));
+        assertThat(response.sampledFrom, equalTo(6L));
+        for (int i = 0; i < sample.size(); i++) {
+            assertThat(response.shardTerms.docFreq(i), equalTo(sample.get(i).equals("be") ? 3L : 2L));
+        }
+        // same seed, same sample
+        assertThat(termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves()).shardTerms), equalTo(sample));
+
+        request = new AllTermsShardRequest(parent, "index", 0, "field", 10, null, 3);
+        response = TransportAllTermsShardAction.getTerms(request, reader.leaves());
+        assertThat(termsAsStrings(response.shardTerms), equalTo(Collections.singletonList("be")));
+        assertThat(response.sampledFrom, equalTo(1L));
     }
 
-    public void testDocFreqForNotExistingTerm() throws IOException {
-        SmallestTermAndExhausted smallestTermAndExhausted = getSmallestTermAndExhausted("careful");
-        BytesRef smallestTerm = new BytesRef("do");
-        int[] exhausted = smallestTermAndExhausted.getExhausted();
-        assertThat(TransportAllTermsShardAction.getDocFreq(smallestTermAndExhausted.getTermsIters(), smallestTerm, exhausted), equalTo(0L));
+    public void testSampleSizeLargerThanTheTerms() throws IOException {
+        AllTermsRequest parent = new AllTermsRequest();
+        parent.sort(AllTermsRequest.Sort.RANDOM);
+        // the sample only allocates what the terms need
+        AllTermsShardRequest request = new AllTermsShardRequest(parent, "index", 0, "field", Integer.MAX_VALUE, null, 0);
+        request.seed(randomLong());
+        AllTermsSingleShardResponse response = TransportAllTermsShardAction.getTerms(request, reader.leaves());
+        assertThat(termsAsStrings(response.shardTerms), equalTo(Arrays.asList("always", "be", "careful", "don't", "ever", "forget")));
+        assertThat(new TermsSampler(Integer.MAX_VALUE, 0, random()).sampleByOrd(Arrays.asList(memoryIndexTerms("a b c"),
+                memoryIndexTerms("c d"))).size(), equalTo(4));
     }
 
-    public void testMoveIterators() throws IOException {
-        SmallestTermAndExhausted smallestTermAndExhausted = getSmallestTermAndExhausted("a");
-        BytesRef smallestTerm = new BytesRef(smallestTermAndExhausted.getSmallestTerm().utf8ToString());
-        TransportAllTermsShardAction.moveIterators(smallestTermAndExhausted.exhausted, smallestTermAndExhausted.getTermsIters(),
-                smallestTerm);
-        for (int i = 0; i < 4; i++) {
-            assertThat(smallestTermAndExhausted.getTermsIters().get(i).term(), greaterThan(smallestTerm));
+    public void testSampleByOrd() throws IOException {
+        // the default terms dictionary can't seek by ord
+        List<Terms> segments = new ArrayList<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            segments.add(leaf.reader().terms(FIELD));
         }
+        assertThat(new TermsSampler(2, 0, random()).sampleByOrd(segments), nullValue());
+
+        segments = Arrays.asList(memoryIndexTerms("a b c d"), memoryIndexTerms("c d e"), memoryIndexTerms("a e f g h"));
+        TermsSampler sampler = new TermsSampler(3, 0, random());
+        TermsWithDocFreqs sample = sampler.sampleByOrd(segments);
+        assertThat(sample.size(), equalTo(3));
+        // estimated from the share of accepted ords
+        assertThat(sampler.numCandidates(), greaterThanOrEqualTo(3L));
+        List<String> terms = termsAsStrings(sample);
+        for (int i = 0; i < terms.size(); i++) {
+            assertThat(sample.docFreq(i), equalTo("bfgh".contains(terms.get(i)) ? 1L : 2L));
+        }
+
+        // all ords are tried, terms in more than one segment are only counted once
+        sampler = new TermsSampler(10, 0, random());
+        assertThat(sampler.sampleByOrd(segments).size(), equalTo(8));
+        assertThat(sampler.numCandidates(), equalTo(8L));
+
+        sampler = new TermsSampler(10, 2, random());
+        assertThat(termsAsStrings(sampler.sampleByOrd(segments)), equalTo(Arrays.asList("a", "c", "d", "e")));
+        assertThat(sampler.numCandidates(), equalTo(4L));
     }
 
-    public void testMoveIteratorsWithSomeExhaustion() throws IOException {
-        SmallestTermAndExhausted smallestTermAndExhausted = getSmallestTermAndExhausted("careful");
-        BytesRef smallestTerm = new BytesRef(smallestTermAndExhausted.getSmallestTerm().utf8ToString());
-        TransportAllTermsShardAction.moveIterators(smallestTermAndExhausted.exhausted, smallestTermAndExhausted.getTermsIters(),
-                smallestTerm);
-        int exhausted = 0;
-        for (int i = 0; i < 4; i++) {
-            if (smallestTermAndExhausted.getExhausted()[i] != 1) {
-                assertThat(smallestTermAndExhausted.getTermsIters().get(i).term(), greaterThan(smallestTerm));
-            } else {
-                exhausted++;
+    public void testTermsCache() throws IOException {
+        SegmentTermsCache cache = new SegmentTermsCache(Settings.EMPTY);
+        CircuitBreaker breaker = new MemoryCircuitBreaker(new ByteSizeValue(1, ByteSizeUnit.MB), 1.0, logger);
+        try (DirectoryReader directoryReader = DirectoryReader.open(dir)) {
+            List<LeafReaderContext> leaves = directoryReader.leaves();
+            AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 10, null, 0);
+            AllTermsSingleShardResponse uncached = TransportAllTermsShardAction.getTerms(request, leaves);
+            AllTermsSingleShardResponse response = TransportAllTermsShardAction.getTerms(request, leaves, cache, breaker);
+            assertThat(termsAsStrings(response.shardTerms), equalTo(termsAsStrings(uncached.shardTerms)));
+            assertThat(cache.stats().getMisses(), equalTo(4L));
+            assertThat(cache.stats().getHits(), equalTo(0L));
+            assertThat(cache.stats().getCount(), equalTo(4L));
+            assertThat(cache.stats().getMemorySizeInBytes(), greaterThan(0L));
+            assertThat(breaker.getUsed(), equalTo(cache.stats().getMemorySizeInBytes()));
+
+            response = TransportAllTermsShardAction.getTerms(request, leaves, cache, breaker);
+            assertThat(termsAsStrings(response.shardTerms), equalTo(termsAsStrings(uncached.shardTerms)));
+            for (int i = 0; i < response.shardTerms.size(); i++) {
+                assertThat(response.shardTerms.docFreq(i), equalTo(uncached.shardTerms.docFreq(i)));
             }
+            assertThat(cache.stats().getHits(), equalTo(4L));
+
+            // filters and from work the same way on cached segments
+            AllTermsRequest parent = new AllTermsRequest();
+            parent.exclude(".*e.*");
+            request = new AllTermsShardRequest(parent, "index", 0, "field", 10, new BytesRef("b"), 0);
+            assertThat(termsAsStrings(TransportAllTermsShardAction.getTerms(request, leaves, cache, breaker).shardTerms),
+                    equalTo(Collections.singletonList("don't")));
+            request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 3, new BytesRef("careful"), 0);
+            assertThat(termsAsStrings(TransportAllTermsShardAction.getTerms(request, leaves, cache, breaker).shardTerms),
+                    equalTo(Arrays.asList("don't", "ever", "forget")));
+
+            // cached segments can seek by ord, so all terms are sampled by ord
+            parent = new AllTermsRequest();
+            parent.sort(AllTermsRequest.Sort.RANDOM);
+            request = new AllTermsShardRequest(parent, "index", 0, "field", 10, null, 0);
+            request.seed(randomLong());
+            AllTermsSingleShardResponse sample = TransportAllTermsShardAction.getTerms(request, leaves, cache, breaker);
+            assertThat(termsAsStrings(sample.shardTerms), equalTo(termsAsStrings(uncached.shardTerms)));
+            assertThat(sample.sampledFrom, equalTo(6L));
+
+            // unknown fields are not cached
+            assertThat(cache.terms(leaves.get(0).reader(), "unknown", breaker), nullValue());
+            assertThat(cache.stats().getCount(), equalTo(4L));
         }
-        assertThat(exhausted, equalTo(2));
+        // closing the segments invalidates their entries and releases their memory
+        assertThat(cache.stats().getCount(), equalTo(0L));
+        assertThat(cache.stats().getEvictions(), equalTo(0L));
+        assertThat(breaker.getUsed(), equalTo(0L));
     }
 
-    public void testFindSmallestTerm() throws IOException {
-        SmallestTermAndExhausted smallestTermAndExhausted = getSmallestTermAndExhausted("careful");
-        BytesRef smallestTerm = new BytesRef(smallestTermAndExhausted.getSmallestTerm().utf8ToString());
-        BytesRef newSmallestTerm = TransportAllTermsShardAction.findMinimum(smallestTermAndExhausted.exhausted,
-                smallestTermAndExhausted.getTermsIters());
-        assertThat(newSmallestTerm.utf8ToString(), equalTo(smallestTerm.utf8ToString()));
+    public void testTermsCacheRespectsCircuitBreaker() throws IOException {
+        SegmentTermsCache cache = new SegmentTermsCache(Settings.EMPTY);
+        CircuitBreaker breaker = new MemoryCircuitBreaker(new ByteSizeValue(1), 1.0, logger);
+        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 10, null, 0);
+        List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves(), cache, breaker)
+                .shardTerms);
+        // segments that don't fit are read directly
+        assertThat(terms, equalTo(Arrays.asList("always", "be", "careful", "don't", "ever", "forget")));
+        assertThat(cache.stats().getCount(), equalTo(0L));
+        assertThat(breaker.getTrippedCount(), equalTo(4L));
+        assertThat(breaker.getUsed(), equalTo(0L));
     }
 
-    public void testGetAllTermsFromBeginning() throws IOException {
+    public void testTermsCacheSkipsEntriesLargerThanTheCache() throws IOException {
+        SegmentTermsCache cache = new SegmentTermsCache(Settings.builder()
+                .put(SegmentTermsCache.CACHE_SIZE_SETTING.getKey(), "16b").build());
+        CircuitBreaker breaker = new MemoryCircuitBreaker(new ByteSizeValue(1, ByteSizeUnit.MB), 1.0, logger);
         AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 10, null, 0);
-        List<String> terms = new ArrayList<>();
-        TransportAllTermsShardAction.getTerms(request, terms, reader.leaves());
-        assertArrayEquals(terms.toArray(new String[6]), new String[]{"always", "be", "careful", "don't", "ever", "forget"});
+        List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves(), cache, breaker)
+                .shardTerms);
+        assertThat(terms, equalTo(Arrays.asList("always", "be", "careful", "don't", "ever", "forget")));
+        assertThat(cache.stats().getCount(), equalTo(0L));
+        assertThat(breaker.getTrippedCount(), equalTo(0L));
+        assertThat(breaker.getUsed(), equalTo(0L));
     }
 
-    public void testGetAllTermsFromBeginningExact() throws IOException {
-        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 6, null, 0);
-        List<String> terms = new ArrayList<>();
-        TransportAllTermsShardAction.getTerms(request, terms, reader.leaves());
-        assertArrayEquals(terms.toArray(new String[6]), new String[]{"always", "be", "careful", "don't", "ever", "forget"});
+    public void testTermsCacheSkipsLargeSegments() throws IOException {
+        SegmentTermsCache cache = new SegmentTermsCache(Settings.builder()
+                .put(SegmentTermsCache.MAX_TERMS_PER_ENTRY_SETTING.getKey(), 2).build());
+        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 10, null, 0);
+        List<String> terms = termsAsStrings(TransportAllTermsShardAction.getTerms(request, reader.leaves(), cache,
+                new NoopCircuitBreaker(CircuitBreaker.FIELDDATA)).shardTerms);
+        assertThat(terms, equalTo(Arrays.asList("always", "be", "careful", "don't", "ever", "forget")));
+        // only the segments of the first and the third document have at most 2 terms
+        assertThat(cache.stats().getCount(), equalTo(2L));
     }
 
-    public void testGetSomeTerms() throws IOException {
-        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 3, null, 0);
-        List<String> terms = new ArrayList<>();
-        TransportAllTermsShardAction.getTerms(request, terms, reader.leaves());
-        assertArrayEquals(terms.toArray(new String[3]), new String[]{"always", "be", "careful"});
+    private static Terms memoryIndexTerms(String text) throws IOException {
+        MemoryIndex memoryIndex = new MemoryIndex();
+        memoryIndex.addField(FIELD, text, new WhitespaceAnalyzer());
+        return memoryIndex.createSearcher().getIndexReader().leaves().get(0).reader().terms(FIELD);
     }
 
-    public void testGetSomeTermsFrom() throws IOException {
-        AllTermsShardRequest request = new AllTermsShardRequest(new AllTermsRequest(), "index", 0, "field", 3, "careful", 0);
+    public void testMergeSamples() {
+        AllTermsSingleShardResponse[] responses = new AllTermsSingleShardResponse[]{
+                new AllTermsSingleShardResponse(shardResponse("always", "be").shardTerms, 2),
+                null,
+                new AllTermsSingleShardResponse(shardResponse("be", "ever").shardTerms, 100)};
         List<String> terms = new ArrayList<>();
-        TransportAllTermsShardAction.getTerms(request, terms, reader.leaves());
-        assertArrayEquals(terms.toArray(new String[3]), new String[]{"don't", "ever", "forget"});
+        LongArrayList docFreqs = new LongArrayList();
+        AllTermsResponse.mergeSamples(responses, 10, random(), terms, docFreqs);
+        assertThat(terms, equalTo(Arrays.asList("always", "be", "ever")));
+        assertArrayEquals(new long[]{1, 2, 1}, docFreqs.toArray());
+
+        terms.clear();
+        docFreqs.clear();
+        AllTermsResponse.mergeSamples(responses, 2, random(), terms, docFreqs);
+        assertThat(terms.size(), equalTo(2));
     }
 }
@@ -19,14 +19,17 @@
 
 package org.elasticsearch.action.preparespec;
 
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
 import org.elasticsearch.common.ParseFieldMatcher;
 import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.ParseFieldRegistry;
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.indices.query.IndicesQueriesRegistry;
 import org.elasticsearch.plugin.TokenPlugin;
@@ -44,11 +47,14 @@ import org.elasticsearch.test.ESIntegTestCase;
 import org.elasticsearch.test.ESTestCase;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 
 public class PrepareSpecTests extends ESTestCase {
@@ -84,6 +90,83 @@ public class PrepareSpecTests extends ESTestCase {
         assertThat(fieldSpecRequests.v2().size(), equalTo(1));
     }
 
+    public void testParseFieldSpecRequestsWithMostFrequentTerms() throws IOException {
+        XContentBuilder source = jsonBuilder();
+        source.startObject()
+                .startArray("features")
+                .startObject()
+                .field("field", "text")
+                .field("tokens", "all_terms")
+                .field("index", "index")
+                .field("min_doc_freq", 2)
+                .field("size", 100)
+                .field("number", "tf")
+                .field("type", "string")
+                .endObject()
+                .endArray()
+                .field("sparse", false)
+                .endObject();
+        Tuple<Boolean,List<FieldSpecRequest>> fieldSpecRequests = TransportPrepareSpecAction.parseFieldSpecRequests(
+                queryRegistry, aggParsers, suggesters, parseFieldMatcher, source.string());
+        assertThat(fieldSpecRequests.v2().size(), equalTo(1));
+        assertThat(((StringFieldAllTermsSpecRequest) fieldSpecRequests.v2().get(0)).size, equalTo(100));
+    }
+
+    public void testParseFieldSpecRequestsWithBm25Parameters() throws IOException {
+        XContentBuilder source = jsonBuilder();
+        source.startObject()
+                .startArray("features")
+                .startObject()
+                .field("field", "text")
+                .field("tokens", "given")
+                .field("terms", new String[]{"a", "b"})
+                .field("number", "bm25")
+                .field("k1", 1.5)
+                .field("b", 0.5)
+                .field("type", "string")
+                .endObject()
+                .endArray()
+                .field("sparse", false)
+                .endObject();
+        Tuple<Boolean,List<FieldSpecRequest>> fieldSpecRequests = TransportPrepareSpecAction.parseFieldSpecRequests(
+                queryRegistry, aggParsers, suggesters, parseFieldMatcher, source.string());
+        StringFieldSpecRequest request = (StringFieldSpecRequest) fieldSpecRequests.v2().get(0);
+        assertThat(request.k1, equalTo(1.5));
+        assertThat(request.b, equalTo(0.5));
+        StringFieldSpec spec = request.createSpec(new String[]{"a", "b"});
+        Map<String, Object> specAsMap = XContentHelper.convertToMap(spec.toXContent(jsonBuilder(), ToXContent.EMPTY_PARAMS).bytes(),
+                false).v2();
+        assertThat(specAsMap.get("k1"), equalTo(1.5));
+        assertThat(specAsMap.get("b"), equalTo(0.5));
+    }
+
+    public void testParseFieldSpecRequestsWithInvalidBm25Parameters() throws IOException {
+        for (Tuple<String, Object[]> invalid : Arrays.asList(new Tuple<>("tf", new Object[]{"k1", 1.5}),
+                new Tuple<>("bm25", new Object[]{"k1", -1}), new Tuple<>("bm25", new Object[]{"b", 1.5}))) {
+            XContentBuilder source = jsonBuilder();
+            source.startObject()
+                    .startArray("features")
+                    .startObject()
+                    .field("field", "text")
+                    .field("tokens", "given")
+                    .field("terms", new String[]{"a", "b"})
+                    .field("number", invalid.v1())
+                    .field((String) invalid.v2()[0], invalid.v2()[1])
+                    .field("type", "string")
+                    .endObject()
+                    .endArray()
+                    .field("sparse", false)
+                    .endObject();
+            try {
+                TransportPrepareSpecAction.parseFieldSpecRequests(queryRegistry, aggParsers, suggesters, parseFieldMatcher,
+                        source.string());
+                fail("invalid bm25 parameter " + Arrays.toString(invalid.v2()) + " for number [" + invalid.v1() + "] must be rejected");
+            } catch (ElasticsearchException | IllegalArgumentException e) {
+                assertThat(e.getMessage(), containsString((String) invalid.v2()[0]));
+            }
+        }
+    }
+
     public void testParseFieldSpecRequestsWithGivenTerms() throws IOException {
         XContentBuilder source = getTextFieldRequestSourceWithGivenTerms();
         Tuple<Boolean,List<FieldSpecRequest>> fieldSpecRequests = TransportPrepareSpecAction.parseFieldSpecRequests(
@@ -21,9 +21,12 @@ package org.elasticsearch.script;
 
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.lucene.search.function.CombineFunction;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.plugin.TokenPlugin;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.script.pmml.PMMLModelScriptEngineService;
 import org.elasticsearch.search.SearchHit;
@@ -43,6 +46,7 @@ import static org.elasticsearch.test.StreamsUtils.copyToStringFromClasspath;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchResponse;
+import static org.hamcrest.Matchers.closeTo;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.instanceOf;
 
@@ -93,6 +97,25 @@ public class FullPMMLIT extends ESIntegTestCase {
         assertThat((String)searchResponse.getHits().getAt(0).fields().get("pmml").getValue(), equalTo(">50K"));
     }
 
+    public void testSingleAdultFunctionScore() throws IOException, ExecutionException, InterruptedException {
+
+        indexAdultData("/org/elasticsearch/script/singlevalueforintegtest.txt", this);
+        indexAdultModel("/org/elasticsearch/script/naive-bayes-adult-full-r.xml");
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("class", ">50K");
+        SearchResponse searchResponse = client().prepareSearch("test")
+                .setQuery(QueryBuilders.functionScoreQuery(ScoreFunctionBuilders.scriptFunction(new Script("1", ScriptService
+                        .ScriptType.STORED, PMMLModelScriptEngineService.NAME, params))).boostMode(CombineFunction.REPLACE))
+                .addScriptField("pmml", new Script("1", ScriptService.ScriptType.STORED, PMMLModelScriptEngineService.NAME,
+                        new HashMap<String, Object>()))
+                .get();
+        assertSearchResponse(searchResponse);
+        SearchHit hit = searchResponse.getHits().getAt(0);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> probs = (Map<String, Object>) ((Map<String, Object>) hit.field("pmml").getValue()).get("probs");
+        assertThat((double) hit.getScore(), closeTo((Double) probs.get(">50K"), 1.e-6));
+    }
+
     private void checkClassificationCorrect(String resultFile) throws IOException {
         final String testData = copyToStringFromClasspath(resultFile);
         String resultLines[] = testData.split("\\r?\\n");
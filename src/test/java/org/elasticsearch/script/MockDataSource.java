@@ -19,8 +19,9 @@
 
 package org.elasticsearch.script;
 
-import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.script.modelinput.DataSource;
+import org.elasticsearch.script.modelinput.TermIndexMap;
+import org.elasticsearch.script.modelinput.VectorBuffer;
 
 import java.util.List;
 import java.util.Map;
@@ -43,7 +44,7 @@ public class MockDataSource implements DataSource {
     }
 
     @Override
-    public double[] getOccurrenceDense(String[] terms, String field) {
+    public double[] getOccurrenceDense(String[] terms, TermIndexMap termIndices, String field) {
         double[] values = new double[terms.length];
         List<Object> fieldValues = data.get(field);
         for (int i = 0; i < terms.length; i++) {
@@ -57,22 +58,32 @@ public class MockDataSource implements DataSource {
     }
 
     @Override
-    public double[] getTfIdfDense(String[] terms, String field) {
+    public double[] getTfIdfDense(String[] terms, TermIndexMap termIndices, String field) {
         throw new UnsupportedOperationException("not implemented yet");
     }
 
     @Override
-    public double[] getTfDense(String[] terms, String field) {
+    public double[] getTfDense(String[] terms, TermIndexMap termIndices, String field) {
         throw new UnsupportedOperationException("not implemented yet");
     }
 
     @Override
-    public Tuple<int[], double[]> getTfIdfSparse(Map<String, Integer> wordMap, String field) {
+    public double[] getBm25Dense(String[] terms, TermIndexMap termIndices, String field, double k1, double b) {
         throw new UnsupportedOperationException("not implemented yet");
     }
 
     @Override
-    public Tuple<int[], double[]> getTfSparse(Map<String, Integer> wordMap, String field) {
+    public void getTfIdfSparse(TermIndexMap wordMap, String field, VectorBuffer buffer) {
+        throw new UnsupportedOperationException("not implemented yet");
+    }
+
+    @Override
+    public void getTfSparse(TermIndexMap wordMap, String field, VectorBuffer buffer) {
+        throw new UnsupportedOperationException("not implemented yet");
+    }
+
+    @Override
+    public void getBm25Sparse(TermIndexMap wordMap, String field, double k1, double b, VectorBuffer buffer) {
         throw new UnsupportedOperationException("not implemented yet");
     }
 }
@@ -24,6 +24,10 @@ import org.dmg.pmml.MiningField;
 import org.dmg.pmml.Model;
 import org.dmg.pmml.PMML;
 import org.dmg.pmml.RegressionModel;
+import org.elasticsearch.script.modelinput.SparseVectorModelInput;
+import org.elasticsearch.script.modelinput.VectorModelInput;
+import org.elasticsearch.script.models.Coefficients;
+import org.elasticsearch.script.models.EsLogisticRegressionModel;
 import org.elasticsearch.test.ESTestCase;
 import org.jpmml.model.ImportFilter;
 import org.jpmml.model.JAXBUtil;
@@ -36,9 +40,13 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.TreeSet;
 
+import static org.hamcrest.Matchers.closeTo;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 
 /**
  */
@@ -140,6 +148,88 @@ public class ModelTests extends ESTestCase {
         compareModels(truePMML, hopefullyCorrectPMML);
     }
 
+    public void testCoefficientFormats() {
+        double[] values = new double[randomIntBetween(1, 1000)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = randomBoolean() ? 0 : randomDoubleBetween(-10, 10, true);
+        }
+        for (Coefficients.Format format : Coefficients.Format.values()) {
+            boolean mmap = randomBoolean();
+            Coefficients coefficients = Coefficients.of(values, format, mmap);
+            assertThat(coefficients.format(), equalTo(format));
+            assertThat(coefficients.size(), equalTo(values.length));
+            for (int i = 0; i < values.length; i++) {
+                switch (format) {
+                    case DOUBLE:
+                        assertThat(coefficients.get(i), equalTo(values[i]));
+                        break;
+                    case FLOAT:
+                        assertThat(coefficients.get(i), equalTo((double) (float) values[i]));
+                        break;
+                    case INT8:
+                        int start = i - i % Coefficients.QUANTIZATION_BLOCK_SIZE;
+                        double max = 0;
+                        for (int j = start; j < Math.min(start + Coefficients.QUANTIZATION_BLOCK_SIZE, values.length); j++) {
+                            max = Math.max(max, Math.abs(values[j]));
+                        }
+                        // at most half a step
+                        assertThat(coefficients.get(i), closeTo(values[i], max / 254 * 1.0001));
+                        break;
+                }
+            }
+            if (mmap == false) {
+                assertThat(coefficients.ramBytesUsed(), lessThanOrEqualTo(Coefficients.of(values).ramBytesUsed()));
+            }
+        }
+    }
+
+    public void testCompressedLogisticRegressionAccuracy() {
+        int numFeatures = randomIntBetween(1, 10000);
+        String[] classes = new String[randomIntBetween(2, 5)];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = "class_" + i;
+        }
+        double[] intercepts = new double[classes.length - 1];
+        double[] coefficients = new double[numFeatures * intercepts.length];
+        for (int i = 0; i < intercepts.length; i++) {
+            intercepts[i] = randomDoubleBetween(-1, 1, true);
+        }
+        for (int i = 0; i < coefficients.length; i++) {
+            coefficients[i] = randomGaussian() / 2;
+        }
+        EsLogisticRegressionModel model = new EsLogisticRegressionModel(coefficients, intercepts, classes);
+        EsLogisticRegressionModel floats = model.withCoefficients(Coefficients.Format.FLOAT, randomBoolean());
+        EsLogisticRegressionModel bytes = model.withCoefficients(Coefficients.Format.INT8, randomBoolean());
+        for (int doc = 0; doc < 100; doc++) {
+            TreeSet<Integer> features = new TreeSet<>();
+            int numValues = randomIntBetween(0, Math.min(numFeatures, 50));
+            while (features.size() < numValues) {
+                features.add(randomInt(numFeatures - 1));
+            }
+            int[] indices = new int[numValues];
+            double[] values = new double[numValues];
+            int i = 0;
+            for (int feature : features) {
+                indices[i] = feature;
+                values[i] = randomDouble();
+                i++;
+            }
+            VectorModelInput vector = new SparseVectorModelInput(values, indices);
+            double[] probs = new double[classes.length];
+            for (int c = 0; c < classes.length; c++) {
+                probs[c] = model.evaluateAsDouble(vector, c);
+                assertThat(floats.evaluateAsDouble(vector, c), closeTo(probs[c], 1e-6));
+                assertThat(bytes.evaluateAsDouble(vector, c), closeTo(probs[c], 0.05));
+            }
+            double[] sorted = probs.clone();
+            Arrays.sort(sorted);
+            if (sorted[sorted.length - 1] - sorted[sorted.length - 2] > 0.1) {
+                assertThat(floats.evaluate(vector), equalTo(model.evaluate(vector)));
+                assertThat(bytes.evaluate(vector), equalTo(model.evaluate(vector)));
+            }
+        }
+    }
+
     public void compareModels(PMML model1, PMML model2) {
         assertThat(model1.getDataDictionary().getNumberOfFields(), equalTo(model2.getDataDictionary().getNumberOfFields()));
         int i = 0;
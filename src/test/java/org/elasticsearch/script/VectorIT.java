@@ -19,18 +19,27 @@
 
 package org.elasticsearch.script;
 
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.cachestats.CacheStatsAction;
+import org.elasticsearch.action.cachestats.CacheStatsRequest;
+import org.elasticsearch.action.cachestats.CacheStatsResponse;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.preparespec.PrepareSpecAction;
 import org.elasticsearch.action.preparespec.PrepareSpecRequest;
 import org.elasticsearch.action.preparespec.PrepareSpecResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.storespec.StoreSpecAction;
+import org.elasticsearch.action.storespec.StoreSpecRequest;
+import org.elasticsearch.action.storespec.StoreSpecResponse;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.plugin.TokenPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.sort.SortOrder;
 import org.elasticsearch.test.ESIntegTestCase;
 import org.junit.Test;
@@ -45,7 +54,10 @@ import java.util.concurrent.ExecutionException;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchResponse;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.lessThan;
 
 /**
@@ -96,6 +108,96 @@ public class VectorIT extends ESIntegTestCase {
 
     }
 
+    public void testVectorScriptReusesCachedVectorizer() throws IOException, ExecutionException, InterruptedException {
+        client().admin().indices().prepareCreate("index").setSettings(Settings.builder().put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1))
+                .get();
+        client().prepareIndex().setId("1").setIndex("index").setType("type").setSource("text", "the quick brown fox is quick").get();
+        ensureGreen("index");
+        refresh();
+        Map<String, Object> params = new HashMap<>();
+        params.put("spec", createSpecWithGivenTerms("tf", true).getSpecAsMap());
+        long hitsBefore = vectorizerCacheHits();
+        for (int i = 0; i < 2; i++) {
+            SearchResponse searchResponse = client().prepareSearch("index").setPreference("_primary")
+                    .addScriptField("vector", new Script("doc_to_vector", ScriptService.ScriptType.INLINE, "native", params)).get();
+            assertSearchResponse(searchResponse);
+        }
+        // the second search runs on the same primary and finds the vectorizer the first one built
+        assertThat(vectorizerCacheHits(), greaterThan(hitsBefore));
+    }
+
+    private long vectorizerCacheHits() {
+        long hits = 0;
+        for (CacheStatsResponse.NodeStats nodeStats : client().execute(CacheStatsAction.INSTANCE, new CacheStatsRequest()).actionGet()
+                .getNodes()) {
+            hits += nodeStats.getVectorizerCacheStats().getHits();
+        }
+        return hits;
+    }
+
+    public void testVectorScriptWithStoredSpec() throws Exception {
+        client().prepareIndex().setId("1").setIndex("index").setType("type").setSource("text", "the quick brown fox is quick").get();
+        ensureGreen("index");
+        refresh();
+        StoreSpecResponse storeSpecResponse = client().execute(StoreSpecAction.INSTANCE,
+                new StoreSpecRequest("my_spec", createSpecWithGivenTerms("tf", false).getSpec())).get();
+        assertTrue(storeSpecResponse.isCreated());
+        Map<String, Object> params = new HashMap<>();
+        params.put("spec_id", "my_spec");
+        assertArrayEquals(new double[]{1, 2, 1, 0}, vectorOfFirstHit(params), 0);
+
+        // storing the spec again replaces the cached vectorizer on all nodes
+        XContentBuilder source = jsonBuilder();
+        source.startObject()
+                .startArray("features")
+                .startObject()
+                .field("field", "text")
+                .field("tokens", "given")
+                .field("terms", new String[]{"quick"})
+                .field("number", "tf")
+                .field("type", "string")
+                .endObject()
+                .endArray()
+                .field("sparse", false)
+                .endObject();
+        PrepareSpecResponse specResponse = client().execute(PrepareSpecAction.INSTANCE, new PrepareSpecRequest(source.string())).get();
+        storeSpecResponse = client().execute(StoreSpecAction.INSTANCE, new StoreSpecRequest("my_spec", specResponse.getSpec())).get();
+        assertFalse(storeSpecResponse.isCreated());
+        assertThat(storeSpecResponse.getVersion(), equalTo(2L));
+        assertArrayEquals(new double[]{2}, vectorOfFirstHit(params), 0);
+
+        params.put("spec_id", "missing_spec");
+        // nodes load the spec in the background and fail with a retryable status until the get returns
+        assertBusy(() -> {
+            try {
+                client().prepareSearch("index").addScriptField("vector", new Script("doc_to_vector", ScriptService.ScriptType.INLINE,
+                        "native", params)).get();
+                fail("search with a missing spec must fail");
+            } catch (Exception e) {
+                assertThat(ExceptionsHelper.detailedMessage(e), containsString("spec [missing_spec] not found"));
+            }
+        });
+    }
+
+    public void testStoreInvalidSpec() throws IOException, ExecutionException, InterruptedException {
+        try {
+            client().execute(StoreSpecAction.INSTANCE, new StoreSpecRequest("my_spec",
+                    jsonBuilder().startObject().field("sparse", true).endObject().bytes())).get();
+            fail("spec without features must be rejected");
+        } catch (ExecutionException e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("spec must have a list of features"));
+        }
+    }
+
+    private double[] vectorOfFirstHit(Map<String, Object> params) {
+        SearchResponse searchResponse = client().prepareSearch("index").addScriptField("vector", new Script("doc_to_vector",
+                ScriptService.ScriptType.INLINE, "native", params)).get();
+        assertSearchResponse(searchResponse);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> vector = (Map<String, Object>) (searchResponse.getHits().getAt(0).field("vector").values().get(0));
+        return (double[]) vector.get("values");
+    }
+
     public void testVectorScriptSparseOccurence() throws IOException, ExecutionException, InterruptedException {
         client().admin().indices().prepareCreate("index").setSettings().addMapping("type", getMapping()).get();
         client().prepareIndex().setId("1").setIndex("index").setType("type").setSource("text", "the quick brown fox is quick").get();
@@ -172,6 +274,42 @@ public class VectorIT extends ESIntegTestCase {
 
     }
 
+    public void testDenseVectorScriptWithMissingField() throws IOException, ExecutionException, InterruptedException {
+        createIndexWithTermVectors();
+        client().prepareIndex().setId("1").setIndex("index").setType("type").setSource("text", "the quick brown fox is quick").get();
+        client().prepareIndex().setId("2").setIndex("index").setType("type").setSource("other", "the quick fox").get();
+        ensureGreen("index");
+        refresh();
+        XContentBuilder source = jsonBuilder();
+        source.startObject()
+                .startArray("features")
+                .startObject()
+                .field("field", "text")
+                .field("tokens", "given")
+                .field("terms", new String[]{"fox", "lame", "quick", "the"})
+                .field("number", "tf")
+                .field("type", "string")
+                .endObject()
+                .endArray()
+                .field("sparse", false)
+                .endObject();
+        PrepareSpecResponse specResponse = client().execute(PrepareSpecAction.INSTANCE, new PrepareSpecRequest(source.string())).get();
+        Map<String, Object> params = new HashMap<>();
+        params.put("spec", specResponse.getSpecAsMap());
+        SearchResponse searchResponse = client().prepareSearch("index").addScriptField("vector", new Script("doc_to_vector",
+                ScriptService.ScriptType.INLINE, "native", params)).get();
+        assertSearchResponse(searchResponse);
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(2L));
+        for (SearchHit hit : searchResponse.getHits().getHits()) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> vector = (Map<String, Object>) (hit.field("vector").values().get(0));
+            double[] values = (double[]) vector.get("values");
+            // a document without the field gets zeros, the field has term vectors
+            double[] expected = hit.getId().equals("1") ? new double[]{1, 0, 2, 1} : new double[]{0, 0, 0, 0};
+            assertArrayEquals(expected, values, 0);
+        }
+    }
+
     public void testSparseVectorScript() throws IOException, ExecutionException, InterruptedException {
         createIndexWithTermVectors();
         client().prepareIndex().setId("1").setIndex("index").setType("type").setSource("text", "the quick brown fox is quick").get();
@@ -459,6 +597,127 @@ public class VectorIT extends ESIntegTestCase {
 
     }
 
+    @SuppressWarnings("unchecked")
+    public void testDenseVectorWithTermVectors() throws IOException, ExecutionException, InterruptedException {
+        createIndexWithTermVectors();
+        assertAcked(client().admin().indices().prepareCreate("index_without_term_vectors").setSettings(Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)));
+        String[] texts = new String[]{"the quick brown fox is quick", "the quick fox is brown", "the brown fox is lame",
+                "the zonk is quick", "nothing to see here"};
+        for (String index : new String[]{"index", "index_without_term_vectors"}) {
+            for (int i = 0; i < texts.length; i++) {
+                client().prepareIndex(index, "type", Integer.toString(i)).setSource("text", texts[i]).get();
+            }
+        }
+        refresh();
+        ensureGreen("index", "index_without_term_vectors");
+        for (String number : new String[]{"tf", "occurrence", "tf_idf"}) {
+            Map<String, Object> params = new HashMap<>();
+            params.put("spec", createSpecWithGivenTerms(number, false).getSpecAsMap());
+            SearchResponse withTermVectors = client().prepareSearch("index").addSort("_uid", SortOrder.ASC)
+                    .addScriptField("vector", new Script("doc_to_vector", ScriptService.ScriptType.INLINE, "native", params)).get();
+            assertSearchResponse(withTermVectors);
+            SearchResponse withoutTermVectors = client().prepareSearch("index_without_term_vectors").addSort("_uid", SortOrder.ASC)
+                    .addScriptField("vector", new Script("doc_to_vector", ScriptService.ScriptType.INLINE, "native", params)).get();
+            assertSearchResponse(withoutTermVectors);
+            assertThat(withTermVectors.getHits().getHits().length, equalTo(texts.length));
+            for (int i = 0; i < texts.length; i++) {
+                Map<String, Object> expected = (Map<String, Object>) withoutTermVectors.getHits().getAt(i).field("vector").values().get(0);
+                Map<String, Object> actual = (Map<String, Object>) withTermVectors.getHits().getAt(i).field("vector").values().get(0);
+                assertArrayEquals(number, (double[]) expected.get("values"), (double[]) actual.get("values"), 0.0);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testBm25VectorMatchesScores() throws IOException, ExecutionException, InterruptedException {
+        double k1 = randomFrom(0.5, 1.2, 2.0);
+        double b = randomFrom(0.0, 0.4, 0.75, 1.0);
+        XContentBuilder mapping = jsonBuilder().startObject()
+                .startObject("type")
+                .startObject("properties")
+                .startObject("text")
+                .field("type", "text")
+                .field("term_vector", "yes")
+                .field("similarity", "my_bm25")
+                .endObject()
+                .endObject()
+                .endObject()
+                .endObject();
+        assertAcked(client().admin().indices().prepareCreate("index").addMapping("type", mapping).setSettings(Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put("index.similarity.my_bm25.type", "BM25")
+                .put("index.similarity.my_bm25.k1", k1)
+                .put("index.similarity.my_bm25.b", b)));
+        indexRandom(true,
+                client().prepareIndex().setId("1").setIndex("index").setType("type").setSource("text", "the quick brown fox is quick"),
+                client().prepareIndex().setId("2").setIndex("index").setType("type").setSource("text", "the quick fox is brown"),
+                client().prepareIndex().setId("3").setIndex("index").setType("type").setSource("text",
+                        "the brown fox is lame and the text about it is a lot longer than the others"),
+                client().prepareIndex().setId("4").setIndex("index").setType("type").setSource("text", "the zonk is quick"));
+        ensureGreen("index");
+        String[] terms = new String[]{"fox", "lame", "quick", "the", "zonk"};
+        XContentBuilder source = jsonBuilder();
+        source.startObject()
+                .startArray("features")
+                .startObject()
+                .field("field", "text")
+                .field("tokens", "given")
+                .field("terms", terms)
+                .field("number", "bm25")
+                .field("k1", k1)
+                .field("b", b)
+                .field("type", "string")
+                .endObject()
+                .endArray()
+                .field("sparse", randomBoolean())
+                .endObject();
+        PrepareSpecResponse specResponse = client().execute(PrepareSpecAction.INSTANCE, new PrepareSpecRequest(source.string())).get();
+        Map<String, Object> params = new HashMap<>();
+        params.put("spec", specResponse.getSpecAsMap());
+        SearchResponse searchResponse = client().prepareSearch("index").addScriptField("vector",
+                new Script("doc_to_vector", ScriptService.ScriptType.INLINE, "native", params)).setSize(10).get();
+        assertSearchResponse(searchResponse);
+        assertThat(searchResponse.getHits().getHits().length, equalTo(4));
+        for (SearchHit hit : searchResponse.getHits()) {
+            Map<String, Object> vector = (Map<String, Object>) hit.field("vector").values().get(0);
+            double[] values = new double[terms.length];
+            if (vector.containsKey("indices")) {
+                int[] indices = (int[]) vector.get("indices");
+                for (int i = 0; i < indices.length; i++) {
+                    values[indices[i]] = ((double[]) vector.get("values"))[i];
+                }
+            } else {
+                values = (double[]) vector.get("values");
+            }
+            for (int i = 0; i < terms.length; i++) {
+                // the weight of a term is the score of a term query on it
+                SearchResponse termQueryResponse = client().prepareSearch("index")
+                        .setQuery(QueryBuilders.boolQuery().must(QueryBuilders.termQuery("text", terms[i]))
+                                .filter(QueryBuilders.idsQuery("type").addIds(hit.getId()))).get();
+                assertSearchResponse(termQueryResponse);
+                double score = termQueryResponse.getHits().getTotalHits() == 0 ? 0 : termQueryResponse.getHits().getAt(0).getScore();
+                assertThat("term [" + terms[i] + "] of doc [" + hit.getId() + "]", values[i], closeTo(score, 1e-5));
+            }
+        }
+    }
+
+    public void testBm25NeedsTermVectors() throws IOException, ExecutionException, InterruptedException {
+        assertAcked(client().admin().indices().prepareCreate("index").setSettings(Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)));
+        client().prepareIndex().setId("1").setIndex("index").setType("type").setSource("text", "the quick brown fox is quick").get();
+        refresh();
+        Map<String, Object> params = new HashMap<>();
+        params.put("spec", createSpecWithGivenTerms("bm25", false).getSpecAsMap());
+        try {
+            client().prepareSearch("index").addScriptField("vector",
+                    new Script("doc_to_vector", ScriptService.ScriptType.INLINE, "native", params)).get();
+            fail("bm25 without term vectors must fail");
+        } catch (Exception e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("needs term vectors"));
+        }
+    }
+
     public PrepareSpecResponse createSpecWithGivenTerms(String number, boolean sparse) throws IOException, InterruptedException,
             ExecutionException {
         XContentBuilder source = jsonBuilder();
@@ -0,0 +1,105 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.script.modelinput;
+
+import org.elasticsearch.script.MockDataSource;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+
+public class AnalyzedTextVectorRangeTests extends ESTestCase {
+
+    public void testWeightingForNumber() {
+        assertThat(AnalyzedTextVectorRange.TermWeighting.forNumber("occurrence", 1.2, 0.75),
+                instanceOf(AnalyzedTextVectorRange.OccurrenceWeighting.class));
+        assertThat(AnalyzedTextVectorRange.TermWeighting.forNumber("tf", 1.2, 0.75),
+                instanceOf(AnalyzedTextVectorRange.TfWeighting.class));
+        assertThat(AnalyzedTextVectorRange.TermWeighting.forNumber("tf_idf", 1.2, 0.75),
+                instanceOf(AnalyzedTextVectorRange.TfIdfWeighting.class));
+        assertThat(AnalyzedTextVectorRange.TermWeighting.forNumber("bm25", 1.2, 0.75),
+                instanceOf(AnalyzedTextVectorRange.Bm25Weighting.class));
+    }
+
+    public void testUnknownNumberFailsOnCreation() {
+        try {
+            new AnalyzedTextVectorRange.DenseTermVectorRange("text", "int", new String[]{"a"}, "idf", 0);
+            fail("unknown number must be rejected when the range is created");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("Don't know what idf is - choose one of occurrence tf tf_idf bm25"));
+        }
+    }
+
+    public void testOccurrence() {
+        Map<String, List<Object>> data = Collections.singletonMap("text", Arrays.asList("c", "b"));
+        DataSource dataSource = new MockDataSource(data);
+        String[] terms = new String[]{"a", "b", "c"};
+        EsDenseNumericVector dense = (EsDenseNumericVector) new AnalyzedTextVectorRange.DenseTermVectorRange("text", "int", terms,
+                "occurrence", 0).getVector(dataSource);
+        assertArrayEquals(new double[]{0, 1, 1}, dense.values, 0);
+        EsSparseNumericVector sparse = (EsSparseNumericVector) new AnalyzedTextVectorRange.SparseTermVectorRange("text", "int", terms,
+                "occurrence", 2).getVector(dataSource);
+        assertArrayEquals(new int[]{4, 3}, sparse.values.v1());
+        assertArrayEquals(new double[]{1, 1}, sparse.values.v2(), 0);
+    }
+
+    public void testSparseRangesAppendToBuffer() {
+        String[] terms = new String[]{"a", "b", "c"};
+        AnalyzedTextVectorRange.SparseTermVectorRange first = new AnalyzedTextVectorRange.SparseTermVectorRange("text", "int",
+                terms, "occurrence", 0);
+        AnalyzedTextVectorRange.SparseTermVectorRange second = new AnalyzedTextVectorRange.SparseTermVectorRange("text", "int",
+                terms, "occurrence", 3);
+        VectorBuffer buffer = new VectorBuffer();
+        int numDocs = randomIntBetween(1, 40);
+        for (int doc = 0; doc < numDocs; doc++) {
+            DataSource dataSource = new MockDataSource(Collections.singletonMap("text", Arrays.asList("c", "a")));
+            buffer.clear();
+            first.addVector(dataSource, buffer);
+            second.addVector(dataSource, buffer);
+            assertArrayEquals(new int[]{2, 0, 5, 3}, buffer.copyIndices());
+            assertArrayEquals(new double[]{1, 1, 1, 1}, buffer.copyValues(), 0);
+        }
+    }
+
+    public void testSparseVectorGrowsBuffer() {
+        int numTerms = randomIntBetween(17, 1000);
+        String[] terms = new String[numTerms];
+        List<Object> document = new ArrayList<>();
+        for (int i = 0; i < numTerms; i++) {
+            terms[i] = "term" + i;
+            document.add(terms[i]);
+        }
+        DataSource dataSource = new MockDataSource(Collections.singletonMap("text", document));
+        EsSparseNumericVector sparse = (EsSparseNumericVector) new AnalyzedTextVectorRange.SparseTermVectorRange("text", "int", terms,
+                "occurrence", 0).getVector(dataSource);
+        assertThat(sparse.values.v1().length, equalTo(numTerms));
+        assertThat(sparse.values.v2().length, equalTo(numTerms));
+        for (int i = 0; i < numTerms; i++) {
+            assertThat(sparse.values.v1()[i], equalTo(i));
+            assertThat(sparse.values.v2()[i], equalTo(1.0));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.script.modelinput;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class IdfCacheTests extends ESTestCase {
+
+    public void testTablesAreSharedUntilTheReaderIsClosed() throws IOException {
+        IdfCache cache = new IdfCache();
+        TermIndexMap terms = new TermIndexMap(new String[]{"quick", "fox"}, 0);
+        TermIndexMap otherTerms = new TermIndexMap(new String[]{"quick", "fox"}, 0);
+        try (Directory dir = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            Document doc = new Document();
+            doc.add(new TextField("text", "the quick fox", Field.Store.NO));
+            writer.addDocument(doc);
+            writer.commit();
+            double[] idfs;
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                idfs = cache.idfTable(reader, terms);
+                assertThat(idfs.length, equalTo(2));
+                assertTrue(Double.isNaN(idfs[0]));
+                idfs[0] = 1;
+                // the scripts of all segments and searches of the reader share the table
+                assertThat(cache.idfTable(reader, terms), sameInstance(idfs));
+                // maps are compared by identity, equal terms of another range get their own table
+                assertThat(cache.idfTable(reader, otherTerms), not(sameInstance(idfs)));
+                assertThat(cache.count(), equalTo(2));
+            }
+            // closing the reader invalidates its tables
+            assertThat(cache.count(), equalTo(0));
+
+            writer.addDocument(doc);
+            writer.commit();
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                double[] newIdfs = cache.idfTable(reader, terms);
+                assertThat(newIdfs, not(sameInstance(idfs)));
+                assertTrue(Double.isNaN(newIdfs[0]));
+                assertThat(cache.count(), equalTo(1));
+            }
+            assertThat(cache.count(), equalTo(0));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.script.modelinput;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class TermIndexMapTests extends ESTestCase {
+
+    public void testGet() {
+        TermIndexMap map = new TermIndexMap(new String[]{"fox", "quick", "the", "über"}, 3);
+        assertThat(map.size(), equalTo(4));
+        assertThat(map.get("fox"), equalTo(3));
+        assertThat(map.get(new BytesRef("quick")), equalTo(4));
+        assertThat(map.get("über"), equalTo(6));
+        assertThat(map.get("brown"), equalTo(-1));
+        assertThat(map.get(""), equalTo(-1));
+        // terms don't have to start at the beginning of their bytes
+        BytesRef term = new BytesRef("xxthe");
+        term.offset = 2;
+        term.length = 3;
+        assertThat(map.get(term), equalTo(5));
+    }
+
+    public void testOrds() {
+        TermIndexMap map = new TermIndexMap(new String[]{"b", "a", "b", "c"}, 2);
+        assertThat(map.ord(new BytesRef("b")), equalTo(0));
+        assertThat(map.ord(new BytesRef("a")), equalTo(1));
+        assertThat(map.ord(new BytesRef("c")), equalTo(2));
+        assertThat(map.ord(new BytesRef("d")), equalTo(-1));
+        for (int ord = 0; ord < map.size(); ord++) {
+            assertThat(map.ord(map.term(ord)), equalTo(ord));
+            assertThat(map.get(map.term(ord)), equalTo(map.index(ord)));
+        }
+        assertThat(map.index(2), equalTo(5));
+        assertThat(map.term(1).utf8ToString(), equalTo("a"));
+    }
+
+    public void testEmpty() {
+        TermIndexMap map = new TermIndexMap(new String[0], 0);
+        assertThat(map.size(), equalTo(0));
+        assertThat(map.get("a"), equalTo(-1));
+    }
+
+    public void testDuplicateTerms() {
+        TermIndexMap map = new TermIndexMap(new String[]{"a", "b", "a"}, 0);
+        assertThat(map.size(), equalTo(2));
+        assertThat(map.get("a"), equalTo(0));
+    }
+
+    public void testRandomTerms() {
+        int offset = randomIntBetween(0, 100);
+        String[] terms = new String[randomIntBetween(0, 1000)];
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = randomRealisticUnicodeOfLengthBetween(0, 10);
+            expected.putIfAbsent(terms[i], offset + i);
+        }
+        TermIndexMap map = new TermIndexMap(terms, offset);
+        assertThat(map.size(), equalTo(expected.size()));
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertThat(map.get(new BytesRef(entry.getKey())), equalTo(entry.getValue()));
+        }
+        for (int i = 0; i < 100; i++) {
+            String term = randomRealisticUnicodeOfLengthBetween(11, 20);
+            assertThat(map.get(term), equalTo(-1));
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.script.modelinput;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.store.RAMDirectory;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.search.lookup.LeafDocLookup;
+import org.elasticsearch.search.lookup.LeafIndexLookup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the per document cost of the term vector ranges for each number, sparse and dense, on an index with term
+ * vectors. Every combination is run through the {@link AnalyzedTextVectorRange.TermWeighting} of the range and through a
+ * copy of the former dispatch, which compared the result of {@link AnalyzedTextVectorRange.FeatureType#fromString(String)}
+ * with each type for every document. With the {@code arrays} source the numbers come from precomputed arrays instead of
+ * the term vectors, which leaves the dispatch and the allocation of the vectors.
+ * <p>
+ * Run with {@code java -cp <test classpath> org.elasticsearch.script.modelinput.TermWeightingBenchmark [index|arrays] [numDocs]
+ * [numTerms] [iterations]}.
+ */
+public class TermWeightingBenchmark {
+
+    private static final String FIELD = "text";
+    private static final String[] NUMBERS = new String[]{"occurrence", "tf", "tf_idf", "bm25"};
+    private static final int VOCABULARY_SIZE = 20_000;
+    private static final int DOC_LENGTH = 100;
+
+    public static void main(String[] args) throws IOException {
+        boolean arrays = args.length > 0 && args[0].equals("arrays");
+        int numDocs = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int numTerms = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        String[] terms = new String[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            // every other frequent word, so that documents contain terms of the vector and terms that are not
+            terms[i] = word(2 * i);
+        }
+        try (RAMDirectory dir = new RAMDirectory()) {
+            List<List<Object>> tokens = index(dir, numDocs);
+            ArraysDataSource arraysSource = arrays ? new ArraysDataSource(tokens, terms) : null;
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                System.out.println(String.format(Locale.ROOT, "%8s %12s %16s %16s", "range", "number", "ns/doc weighting",
+                        "ns/doc per doc"));
+                for (boolean sparse : new boolean[]{true, false}) {
+                    for (String number : NUMBERS) {
+                        AnalyzedTextVectorRange range = sparse ? new AnalyzedTextVectorRange.SparseTermVectorRange(FIELD, "string",
+                                terms, number, 0) : new AnalyzedTextVectorRange.DenseTermVectorRange(FIELD, "string", terms, number, 0);
+                        LegacyDispatch legacy = new LegacyDispatch(sparse, terms, number);
+                        // warm up
+                        run(reader, tokens, arraysSource, range, null);
+                        run(reader, tokens, arraysSource, null, legacy);
+                        long bestWeighting = Long.MAX_VALUE;
+                        long bestLegacy = Long.MAX_VALUE;
+                        for (int i = 0; i < iterations; i++) {
+                            bestWeighting = Math.min(bestWeighting, run(reader, tokens, arraysSource, range, null));
+                            bestLegacy = Math.min(bestLegacy, run(reader, tokens, arraysSource, null, legacy));
+                        }
+                        System.out.println(String.format(Locale.ROOT, "%8s %12s %16.1f %16.1f", sparse ? "sparse" : "dense", number,
+                                (double) bestWeighting / numDocs, (double) bestLegacy / numDocs));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the vector of every document with the range or, if it is null, with the legacy dispatch and returns the
+     * elapsed nanos. The numbers come from the arraysSource if it is not null and from the index otherwise.
+     */
+    private static long run(DirectoryReader reader, List<List<Object>> tokens, ArraysDataSource arraysSource,
+                            AnalyzedTextVectorRange range, LegacyDispatch legacy) {
+        double checksum = 0;
+        long elapsed = 0;
+        // a new cache per run, so that every run computes its idfs like the first search on the reader
+        IdfCache idfCache = new IdfCache();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            LeafIndexLookup indexLookup = new LeafIndexLookup(leaf);
+            int docBase = leaf.docBase;
+            DataSource dataSource = arraysSource != null ? arraysSource : new EsDataSource(idfCache) {
+                @Override
+                protected LeafDocLookup getDocLookup() {
+                    throw new UnsupportedOperationException("the benchmark has no mappings");
+                }
+
+                @Override
+                protected LeafIndexLookup getLeafIndexLookup() {
+                    return indexLookup;
+                }
+
+                @SuppressWarnings("unchecked")
+                @Override
+                public <T> List<T> getValues(String field) {
+                    // the tokens of the document, like the doc values of a keyword field
+                    return (List<T>) tokens.get(docBase + indexLookup.getDocId());
+                }
+            };
+            long start = System.nanoTime();
+            for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+                if (arraysSource != null) {
+                    arraysSource.doc = docBase + doc;
+                } else {
+                    indexLookup.setDocument(doc);
+                }
+                EsVector vector = range != null ? range.getVector(dataSource) : legacy.getVector(dataSource);
+                checksum += checksum(vector);
+            }
+            elapsed += System.nanoTime() - start;
+        }
+        if (checksum == 0) {
+            throw new IllegalStateException("no terms found");
+        }
+        return elapsed;
+    }
+
+    /**
+     * Returns the same precomputed numbers for every number: the counts of the terms in the document
+     */
+    private static final class ArraysDataSource implements DataSource {
+        private final List<List<Object>> tokens;
+        private final double[][] dense;
+        private final int[][] sparseIndices;
+        private final double[][] sparseValues;
+        int doc;
+
+        ArraysDataSource(List<List<Object>> tokens, String[] terms) {
+            this.tokens = tokens;
+            TermIndexMap termIndices = new TermIndexMap(terms, 0);
+            dense = new double[tokens.size()][];
+            sparseIndices = new int[tokens.size()][];
+            sparseValues = new double[tokens.size()][];
+            for (int i = 0; i < tokens.size(); i++) {
+                dense[i] = new double[terms.length];
+                VectorBuffer buffer = new VectorBuffer();
+                for (Object token : tokens.get(i)) {
+                    int index = termIndices.get((String) token);
+                    if (index >= 0) {
+                        if (dense[i][index] == 0) {
+                            buffer.add(index, 1);
+                        }
+                        dense[i][index]++;
+                    }
+                }
+                sparseIndices[i] = buffer.copyIndices();
+                sparseValues[i] = buffer.copyValues();
+                for (int j = 0; j < sparseIndices[i].length; j++) {
+                    sparseValues[i][j] = dense[i][sparseIndices[i][j]];
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> List<T> getValues(String field) {
+            return (List<T>) tokens.get(doc);
+        }
+
+        @Override
+        public double[] getOccurrenceDense(String[] terms, TermIndexMap termIndices, String field) {
+            return dense[doc];
+        }
+
+        @Override
+        public double[] getTfIdfDense(String[] terms, TermIndexMap termIndices, String field) {
+            return dense[doc];
+        }
+
+        @Override
+        public double[] getTfDense(String[] terms, TermIndexMap termIndices, String field) {
+            return dense[doc];
+        }
+
+        @Override
+        public double[] getBm25Dense(String[] terms, TermIndexMap termIndices, String field, double k1, double b) {
+            return dense[doc];
+        }
+
+        @Override
+        public void getOccurrenceSparse(TermIndexMap wordMap, String field, VectorBuffer buffer) {
+            sparse(buffer);
+        }
+
+        @Override
+        public void getTfIdfSparse(TermIndexMap wordMap, String field, VectorBuffer buffer) {
+            sparse(buffer);
+        }
+
+        @Override
+        public void getTfSparse(TermIndexMap wordMap, String field, VectorBuffer buffer) {
+            sparse(buffer);
+        }
+
+        @Override
+        public void getBm25Sparse(TermIndexMap wordMap, String field, double k1, double b, VectorBuffer buffer) {
+            sparse(buffer);
+        }
+
+        private void sparse(VectorBuffer buffer) {
+            int[] indices = sparseIndices[doc];
+            double[] values = sparseValues[doc];
+            for (int i = 0; i < indices.length; i++) {
+                buffer.add(indices[i], values[i]);
+            }
+        }
+    }
+
+    private static double checksum(EsVector vector) {
+        if (vector instanceof EsDenseNumericVector) {
+            double[] values = ((EsDenseNumericVector) vector).values;
+            return values[0] + values[values.length - 1];
+        }
+        Tuple<int[], double[]> values = ((EsSparseNumericVector) vector).values;
+        return values.v2().length == 0 ? 0 : values.v2()[0];
+    }
+
+    /**
+     * The dispatch of the ranges before the number was resolved to a {@link AnalyzedTextVectorRange.TermWeighting}
+     */
+    private static final class LegacyDispatch {
+        private final boolean sparse;
+        private final String[] terms;
+        private final TermIndexMap termIndices;
+        private final String number;
+
+        LegacyDispatch(boolean sparse, String[] terms, String number) {
+            this.sparse = sparse;
+            this.terms = terms;
+            this.termIndices = new TermIndexMap(terms, 0);
+            this.number = number;
+        }
+
+        EsVector getVector(DataSource dataSource) {
+            if (sparse) {
+                VectorBuffer buffer = new VectorBuffer();
+                if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.TF)) {
+                    dataSource.getTfSparse(termIndices, FIELD, buffer);
+                } else if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.OCCURRENCE)) {
+                    dataSource.getOccurrenceSparse(termIndices, FIELD, buffer);
+                } else if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.TF_IDF)) {
+                    dataSource.getTfIdfSparse(termIndices, FIELD, buffer);
+                } else if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.BM25)) {
+                    dataSource.getBm25Sparse(termIndices, FIELD, AnalyzedTextVectorRange.DEFAULT_BM25_K1,
+                            AnalyzedTextVectorRange.DEFAULT_BM25_B, buffer);
+                } else {
+                    throw new IllegalArgumentException(number + " not implemented yet for sparse vector");
+                }
+                if (buffer.getSize() == 0) {
+                    return AnalyzedTextVectorRange.EMPTY_SPARSE;
+                }
+                return new EsSparseNumericVector(new Tuple<>(buffer.copyIndices(), buffer.copyValues()));
+            }
+            if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.TF)) {
+                return new EsDenseNumericVector(dataSource.getTfDense(terms, termIndices, FIELD));
+            } else if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.OCCURRENCE)) {
+                return new EsDenseNumericVector(dataSource.getOccurrenceDense(terms, termIndices, FIELD));
+            } else if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.TF_IDF)) {
+                return new EsDenseNumericVector(dataSource.getTfIdfDense(terms, termIndices, FIELD));
+            } else if (AnalyzedTextVectorRange.FeatureType.fromString(number).equals(AnalyzedTextVectorRange.FeatureType.BM25)) {
+                return new EsDenseNumericVector(dataSource.getBm25Dense(terms, termIndices, FIELD, AnalyzedTextVectorRange.DEFAULT_BM25_K1,
+                        AnalyzedTextVectorRange.DEFAULT_BM25_B));
+            } else {
+                throw new IllegalArgumentException(number + " not implemented yet for dense vector");
+            }
+        }
+    }
+
+    private static String word(int rank) {
+        return "w" + Integer.toString(rank, Character.MAX_RADIX);
+    }
+
+    /**
+     * Indexes numDocs documents of words drawn from a Zipf distribution with term vectors and returns the words of each
+     * document
+     */
+    private static List<List<Object>> index(RAMDirectory dir, int numDocs) throws IOException {
+        double[] cumulative = new double[VOCABULARY_SIZE];
+        double sum = 0;
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        FieldType fieldType = new FieldType(TextField.TYPE_NOT_STORED);
+        fieldType.setStoreTermVectors(true);
+        fieldType.freeze();
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        config.setRAMBufferSizeMB(256);
+        Random random = new Random(0);
+        List<List<Object>> tokens = new ArrayList<>(numDocs);
+        try (IndexWriter writer = new IndexWriter(dir, config)) {
+            for (int i = 0; i < numDocs; i++) {
+                List<Object> docTokens = new ArrayList<>(DOC_LENGTH);
+                StringBuilder text = new StringBuilder();
+                for (int j = 0; j < DOC_LENGTH; j++) {
+                    int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                    String word = word(rank < 0 ? Math.min(-rank - 1, VOCABULARY_SIZE - 1) : rank);
+                    docTokens.add(word);
+                    text.append(word).append(' ');
+                }
+                tokens.add(docTokens);
+                Document document = new Document();
+                document.add(new Field(FIELD, text.toString(), fieldType));
+                writer.addDocument(document);
+            }
+            writer.forceMerge(1);
+        }
+        return tokens;
+    }
+}
@@ -22,18 +22,24 @@ package org.elasticsearch.script.pmml;
 import org.dmg.pmml.PMML;
 import org.dmg.pmml.TreeModel;
 import org.elasticsearch.script.MockDataSource;
+import org.elasticsearch.script.modelinput.VectorBuffer;
 import org.elasticsearch.script.modelinput.VectorModelInput;
 import org.elasticsearch.script.modelinput.VectorModelInputEvaluator;
 import org.elasticsearch.script.modelinput.VectorRange;
 import org.elasticsearch.script.modelinput.VectorRangesToVectorPMML;
 import org.elasticsearch.script.modelinput.MapModelInput;
 import org.elasticsearch.script.modelinput.ModelAndModelInputEvaluator;
+import org.elasticsearch.script.models.EsLogitTreeEnsembleModel;
+import org.elasticsearch.script.models.EsModelEvaluator;
+import org.elasticsearch.script.models.EsTreeEnsembleModel;
+import org.elasticsearch.script.models.EsTreeModel;
 import org.elasticsearch.test.ESTestCase;
 import org.hamcrest.Matchers;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -43,7 +49,10 @@ import java.util.Set;
 import static org.elasticsearch.script.pmml.ProcessPMMLHelper.parsePmml;
 import static org.elasticsearch.test.StreamsUtils.copyToStringFromClasspath;
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.Matchers.closeTo;
 
 public class PMMLParsingTests extends ESTestCase {
 
@@ -162,6 +171,71 @@ public class PMMLParsingTests extends ESTestCase {
                 "/org/elasticsearch/script/singleresultforintegtest.txt");
     }
 
+    public void testMultinomialGLM() throws IOException {
+        ModelFactories factories = ModelFactories.createDefaultModelFactories();
+        final String pmmlString = copyToStringFromClasspath("/org/elasticsearch/script/lr_model_three_classes.xml");
+        ModelAndModelInputEvaluator<VectorModelInput, String> fieldsToVectorAndModel = factories.buildFromPMML(parsePmml(pmmlString), 0);
+        EsModelEvaluator<VectorModelInput, String> model = fieldsToVectorAndModel.getModel();
+        // the classes with parameters in the order of the param matrix, then the reference class
+        assertThat(model.classOrd("low"), equalTo(0));
+        assertThat(model.classOrd("medium"), equalTo(1));
+        assertThat(model.classOrd("high"), equalTo(2));
+        // betas of the vector entries age**, [work=Private], [work=Self-emp-inc], [work=State-gov], intercept
+        double[][] betas = new double[][]{
+                {-0.30845493083495035, 0.13771708280083522, -2.138917238221307, -0.49862386517796264, 0.9807956889114153},
+                {0.1, -0.4, 0.7, 0.3, 0.2},
+                {0, 0, 0, 0, 0}};
+        String[] classes = new String[]{"low", "medium", "high"};
+        String[] testDataLines = copyToStringFromClasspath("/org/elasticsearch/script/test.data").split("\\r?\\n");
+        VectorModelInput[] block = new VectorModelInput[testDataLines.length];
+        for (int i = 0; i < testDataLines.length; i++) {
+            String[] testDataValues = testDataLines[i].split(",");
+            Map<String, List<Object>> input = new HashMap<>();
+            input.put("age", new ArrayList<>());
+            if (testDataValues[0].equals("") == false) {
+                input.get("age").add(Double.parseDouble(testDataValues[0]));
+            }
+            input.put("work", new ArrayList<>());
+            if (testDataValues[1].trim().equals("") == false) {
+                input.get("work").add(testDataValues[1].trim());
+            }
+            VectorModelInput vector = fieldsToVectorAndModel.getVectorRangesToVector().convert(new MockDataSource(input));
+            block[i] = vector;
+            double[] expectedProbs = new double[classes.length];
+            double sum = 0;
+            for (int c = 0; c < classes.length; c++) {
+                double score = 0;
+                for (int j = 0; j < vector.getSize(); j++) {
+                    score += vector.getValue(j) * betas[c][vector.getIndex(j)];
+                }
+                expectedProbs[c] = Math.exp(score);
+                sum += expectedProbs[c];
+            }
+            int expectedClass = 0;
+            for (int c = 0; c < classes.length; c++) {
+                expectedProbs[c] /= sum;
+                if (expectedProbs[c] > expectedProbs[expectedClass]) {
+                    expectedClass = c;
+                }
+            }
+            Map<String, Object> resultValues = model.evaluateDebug(vector);
+            @SuppressWarnings("unchecked")
+            Map<String, Double> probs = (Map<String, Double>) resultValues.get("probs");
+            for (int c = 0; c < classes.length; c++) {
+                assertThat("line " + i + " has wrong probability for class " + classes[c], probs.get(classes[c]),
+                        closeTo(expectedProbs[c], 1.e-10));
+                assertThat(model.evaluateAsDouble(vector, c), closeTo(expectedProbs[c], 1.e-10));
+            }
+            assertThat(resultValues.get("class"), equalTo(classes[expectedClass]));
+            assertThat(model.evaluate(vector), equalTo(classes[expectedClass]));
+        }
+        Object[] results = new Object[block.length];
+        model.evaluate(block, block.length, false, results);
+        for (int i = 0; i < block.length; i++) {
+            assertThat(results[i], equalTo(model.evaluate(block[i])));
+        }
+    }
+
     private void assertModelCorrect(ModelAndModelInputEvaluator<VectorModelInput, String> fieldsToVectorAndModel) throws IOException {
         final String testData = copyToStringFromClasspath("/org/elasticsearch/script/test.data");
         final String expectedResults = copyToStringFromClasspath("/org/elasticsearch/script/lr_result.txt");
@@ -237,6 +311,10 @@ public class PMMLParsingTests extends ESTestCase {
             assertThat("result " + i + " had wrong probability for class " + ">50K", prob1,
                     Matchers.closeTo(Double.parseDouble(expectedResult[1]), 1.e-7));
             assertThat(expectedClass, equalTo(resultValues.get("class")));
+            assertThat(fieldsToVectorAndModel.getModel().evaluateAsDouble(vectorModelInput, classOrd("<=50K", fieldsToVectorAndModel)),
+                    Matchers.closeTo(prob0, 1.e-7));
+            assertThat(fieldsToVectorAndModel.getModel().evaluateAsDouble(vectorModelInput, classOrd(">50K", fieldsToVectorAndModel)),
+                    Matchers.closeTo(prob1, 1.e-7));
         }
     }
 
@@ -255,6 +333,7 @@ public class PMMLParsingTests extends ESTestCase {
 
     private void assertTreeModelModelCorrect(ModelAndModelInputEvaluator<MapModelInput, String> fieldsToVectorAndModel, String inputData,
                                              String resultData) throws IOException {
+        VectorBuffer buffer = new VectorBuffer();
         assertThat(fieldsToVectorAndModel.getModel(), notNullValue());
 
         final String testData = copyToStringFromClasspath(inputData);
@@ -295,6 +374,198 @@ public class PMMLParsingTests extends ESTestCase {
             @SuppressWarnings("unchecked")
             Map<String, Object> resultValues = fieldsToVectorAndModel.getModel().evaluateDebug(new MapModelInput(result));
             assertThat("result " + i + " has wrong prediction", expectedClass, equalTo(resultValues.get("class")));
+            assertThat(fieldsToVectorAndModel.getModel().evaluateAsDouble(new MapModelInput(result),
+                    classOrd(expectedClass, fieldsToVectorAndModel)), equalTo(1.0));
+            MapModelInput row = fieldsToVectorAndModel.getVectorRangesToVector().convert(new MockDataSource(input), buffer);
+            assertThat("row " + i + " has wrong prediction", fieldsToVectorAndModel.getModel().evaluate(row), equalTo(expectedClass));
+        }
+    }
+
+    public void testTreeModelRows() {
+        EsTreeModel.Builder builder = new EsTreeModel.Builder(new String[]{"age", "color"}, new String[]{"double", "string"});
+        builder.startNode(builder.constantPredicate(true), "root");
+        int missingAge = builder.simplePredicate("age", "isMissing", null);
+        builder.startNode(missingAge, "missing");
+        builder.endNode();
+        int young = builder.simplePredicate("age", "lessThan", "30");
+        int red = builder.simplePredicate("color", "equal", "red");
+        builder.startNode(builder.compoundPredicate("and", new int[]{young, red}), "young and red");
+        builder.endNode();
+        int blueOrGreen = builder.setPredicate("color", true, new String[]{"green", "blue"});
+        builder.startNode(builder.compoundPredicate("surrogate", new int[]{blueOrGreen, builder.constantPredicate(true)}), "other");
+        builder.startNode(builder.simplePredicate("age", "greaterOrEqual", "60"), "old");
+        builder.endNode();
+        builder.endNode();
+        builder.endNode();
+        EsTreeModel model = builder.build();
+
+        assertThat(model.evaluate(row(model, 20.0, "red")), equalTo("young and red"));
+        assertThat(model.evaluate(row(model, null, "red")), equalTo("missing"));
+        assertThat(model.evaluate(row(model, 40.0, "blue")), equalTo("other"));
+        assertThat(model.evaluate(row(model, 70.0, "green")), equalTo("old"));
+        assertThat(model.evaluate(row(model, 40.0, "yellow")), equalTo("root"));
+        assertThat(model.evaluate(row(model, 40.0, "yellow", "blue")), equalTo("other"));
+        assertThat(model.evaluateAsDouble(row(model, 20.0, "red"), model.classOrd("young and red")), equalTo(1.0));
+        assertThat(model.evaluateAsDouble(row(model, 20.0, "red"), model.classOrd("root")), equalTo(0.0));
+        // without the color the surrogate falls back to its second predicate
+        Map<String, Object> vector = new HashMap<>();
+        vector.put("age", Collections.singleton(40.0));
+        assertThat(model.evaluate(new MapModelInput(vector)), equalTo("other"));
+        try {
+            model.evaluate(row(model, 20.0, "red", "blue"));
+            fail("comparing several values to a single value must fail");
+        } catch (UnsupportedOperationException e) {
+            assertThat(e.getMessage(), equalTo("cannot compare the 2 values of field [color] to a single value"));
+        }
+    }
+
+    public void testGradientBoostingModel() throws IOException {
+        // 30 trees of depth 3 trained with binomial deviance on adult.data, exported as a modelChain of a sum MiningModel
+        // with rescaled Target and a logit RegressionModel. The model and the reference predictions of the trainer are
+        // generated by src/test/resources/python-scripts/gbm-adult.py, which also tells how to regenerate them.
+        ModelFactories factories = ModelFactories.createDefaultModelFactories();
+        final String pmmlString = copyToStringFromClasspath("/org/elasticsearch/script/gbm-adult-full.xml");
+        ModelAndModelInputEvaluator<MapModelInput, Object> fieldsToVectorAndModel = factories.buildFromPMML(parsePmml(pmmlString), 0);
+        assertThat(fieldsToVectorAndModel.getModel(), instanceOf(EsLogitTreeEnsembleModel.class));
+        VectorRangesToVectorPMML.VectorRangesToVectorPMMLTreeModel vectorEntries = (VectorRangesToVectorPMML
+                .VectorRangesToVectorPMMLTreeModel) fieldsToVectorAndModel.getVectorRangesToVector();
+        assertThat(vectorEntries.getEntries().size(), equalTo(7));
+        // the first RegressionTable is the class of the logit
+        assertThat(classOrd(">50K", fieldsToVectorAndModel), equalTo(0));
+        assertThat(classOrd("<=50K", fieldsToVectorAndModel), equalTo(1));
+
+        EsModelEvaluator<MapModelInput, Object> model = fieldsToVectorAndModel.getModel();
+        String[] testDataLines = copyToStringFromClasspath("/org/elasticsearch/script/adult.data").split("\\r?\\n");
+        String[] expectedResults = copyToStringFromClasspath("/org/elasticsearch/script/gbm_adult_result.csv").split("\\r?\\n");
+        assertThat(expectedResults.length, equalTo(testDataLines.length));
+        String[] fields = testDataLines[0].split(",");
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = fields[i].trim();
+            fields[i] = fields[i].substring(1, fields[i].length() - 1);
+        }
+        int blockSize = 64;
+        MapModelInput[] block = new MapModelInput[blockSize];
+        Object[] expected = new Object[blockSize];
+        Object[] results = new Object[blockSize];
+        int count = 0;
+        for (int i = 1; i < testDataLines.length; i++) {
+            String[] testDataValues = testDataLines[i].split(",");
+            Map<String, List<Object>> input = new HashMap<>();
+            for (int j = 0; j < testDataValues.length; j++) {
+                String value = testDataValues[j].trim();
+                if (value.equals("") == false) {
+                    boolean numeric = j == 0 || j == 2 || j == 4 || j == 10 || j == 11 || j == 12;
+                    input.put(fields[j], Collections.<Object>singletonList(numeric ? Double.parseDouble(value) : value));
+                }
+            }
+            String[] expectedValues = expectedResults[i].split(",");
+            double expectedProbability = Double.parseDouble(expectedValues[0]);
+            String expectedClass = expectedValues[1].substring(1, expectedValues[1].length() - 1);
+            MapModelInput row = fieldsToVectorAndModel.getVectorRangesToVector().convert(new MockDataSource(input), new VectorBuffer());
+            assertThat("row " + i + " has wrong prediction", model.evaluate(row), equalTo(expectedClass));
+            Map<String, Object> debug = model.evaluateDebug(row);
+            assertThat(debug.get("class"), equalTo(expectedClass));
+            @SuppressWarnings("unchecked")
+            Map<String, Double> probs = (Map<String, Double>) debug.get("probs");
+            assertThat("row " + i + " has wrong probability", probs.get(">50K"), closeTo(expectedProbability, 1e-9));
+            assertThat(probs.get("<=50K"), closeTo(1 - expectedProbability, 1e-9));
+            assertThat(model.evaluateAsDouble(row, -1), closeTo(expectedProbability, 1e-9));
+            assertThat(model.evaluateAsDouble(row, classOrd("<=50K", fieldsToVectorAndModel)),
+                    closeTo(1 - expectedProbability, 1e-9));
+            block[count] = row;
+            expected[count] = expectedClass;
+            count++;
+            if (count == blockSize || i == testDataLines.length - 1) {
+                model.evaluate(block, count, false, results);
+                for (int j = 0; j < count; j++) {
+                    assertThat("block prediction differs from single prediction", results[j], equalTo(expected[j]));
+                }
+                count = 0;
+            }
+        }
+    }
+
+    public void testTreeEnsembleMethods() {
+        EsTreeModel.Builder builder = new EsTreeModel.Builder(new String[]{"age"}, new String[]{"double"});
+        // first tree: 1 for young, 3 otherwise
+        builder.startNode(builder.constantPredicate(true), "3");
+        builder.startNode(builder.simplePredicate("age", "lessThan", "30"), "1");
+        builder.endNode();
+        builder.endNode();
+        // second tree: 2 for everybody
+        builder.startNode(builder.constantPredicate(true), "2");
+        builder.endNode();
+        EsTreeModel trees = builder.build();
+        MapModelInput young = row(trees, 20.0);
+        MapModelInput old = row(trees, 40.0);
+        double[] weights = new double[]{1, 3};
+        EsTreeEnsembleModel sum = new EsTreeEnsembleModel(trees, EsTreeEnsembleModel.Method.SUM, weights);
+        EsTreeEnsembleModel average = new EsTreeEnsembleModel(trees, EsTreeEnsembleModel.Method.AVERAGE, weights);
+        EsTreeEnsembleModel weightedAverage = new EsTreeEnsembleModel(trees, EsTreeEnsembleModel.Method.WEIGHTED_AVERAGE, weights);
+        EsTreeEnsembleModel vote = new EsTreeEnsembleModel(trees, EsTreeEnsembleModel.Method.MAJORITY_VOTE, weights);
+        EsTreeEnsembleModel weightedVote = new EsTreeEnsembleModel(trees, EsTreeEnsembleModel.Method.WEIGHTED_MAJORITY_VOTE,
+                weights);
+        assertThat(sum.evaluate(young), equalTo(3.0));
+        assertThat(sum.evaluate(old), equalTo(5.0));
+        assertThat(average.evaluate(old), equalTo(2.5));
+        assertThat(weightedAverage.evaluate(young), equalTo(7.0 / 4));
+        assertThat(weightedAverage.evaluateAsDouble(old, -1), equalTo(9.0 / 4));
+        // one vote each, the tie goes to the score that appears first in the trees
+        assertThat(vote.evaluate(old), equalTo("3"));
+        assertThat(vote.evaluateAsDouble(old, vote.classOrd("2")), equalTo(0.5));
+        assertThat(weightedVote.evaluate(old), equalTo("2"));
+        assertThat(weightedVote.evaluateAsDouble(old, weightedVote.classOrd("2")), equalTo(0.75));
+        Object[] results = new Object[2];
+        weightedAverage.evaluate(new MapModelInput[]{young, old}, 2, false, results);
+        assertThat(results, equalTo(new Object[]{7.0 / 4, 9.0 / 4}));
+        // the Target rescales the combined score, like the learning rate and initial score of boosted trees
+        EsTreeEnsembleModel rescaled = new EsTreeEnsembleModel(trees, EsTreeEnsembleModel.Method.SUM, weights, 0.5, -1);
+        assertThat(rescaled.evaluate(old), equalTo(1.5));
+        assertThat(rescaled.evaluateAsDouble(young, -1), equalTo(0.5));
+        rescaled.evaluate(new MapModelInput[]{young, old}, 2, false, results);
+        assertThat(results, equalTo(new Object[]{0.5, 1.5}));
+        try {
+            new EsTreeEnsembleModel(trees, EsTreeEnsembleModel.Method.MAJORITY_VOTE, weights, 2, 0);
+            fail("votes cannot be rescaled");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), equalTo("cannot rescale the votes of majorityVote"));
+        }
+        try {
+            new EsTreeEnsembleModel(trees, EsTreeEnsembleModel.Method.SUM, new double[]{1});
+            fail("the number of weights must match the number of trees");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), equalTo("expected [2] weights but got [1]"));
+        }
+    }
+
+    private static MapModelInput row(EsTreeModel model, double age) {
+        VectorBuffer buffer = new VectorBuffer();
+        buffer.add(0, model.encode(0, age));
+        return buffer.asMapModelInput();
+    }
+
+    private static MapModelInput row(EsTreeModel model, Double age, String... colors) {
+        VectorBuffer buffer = new VectorBuffer();
+        buffer.add(0, model.encode(0, age));
+        for (String color : colors) {
+            buffer.add(1, model.encode(1, color));
+        }
+        return buffer.asMapModelInput();
+    }
+
+    private static int classOrd(String className, ModelAndModelInputEvaluator<?, ?> fieldsToVectorAndModel) {
+        return fieldsToVectorAndModel.getModel().classOrd(className);
+    }
+
+    public void testUnknownClassOrd() throws IOException {
+        ModelFactories factories = ModelFactories.createDefaultModelFactories();
+        final String pmmlString = copyToStringFromClasspath("/org/elasticsearch/script/naive-bayes-adult-full-r.xml");
+        ModelAndModelInputEvaluator<VectorModelInput, String> fieldsToVectorAndModel = factories.buildFromPMML(parsePmml(pmmlString), 0);
+        try {
+            classOrd("unknown", fieldsToVectorAndModel);
+            fail("unknown classes must be rejected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), startsWith("unknown class [unknown], the model has the classes"));
         }
     }
 
@@ -0,0 +1,218 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.script.pmml;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.modelinput.VectorRangesToVector;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class VectorizerCacheTests extends ESTestCase {
+
+    public void testSameSpecIsBuiltOnce() {
+        VectorizerCache cache = new VectorizerCache(Settings.EMPTY);
+        VectorRangesToVector vectorizer = cache.vectorizer(spec("a", "b"));
+        assertThat(vectorizer.getEntries().get(0).size(), equalTo(2));
+        // equal content, different map
+        assertThat(cache.vectorizer(spec("a", "b")), sameInstance(vectorizer));
+        assertThat(cache.vectorizer(spec("a", "c")), not(sameInstance(vectorizer)));
+        VectorizerCache.Stats stats = cache.stats();
+        assertThat(stats.getCount(), equalTo(2L));
+        assertThat(stats.getHits(), equalTo(1L));
+        assertThat(stats.getMisses(), equalTo(2L));
+        assertThat(stats.getEvictions(), equalTo(0L));
+    }
+
+    public void testEviction() {
+        VectorizerCache cache = new VectorizerCache(Settings.builder()
+                .put(VectorizerCache.CACHE_MAX_SIZE_SETTING.getKey(), 2).build());
+        cache.vectorizer(spec("a"));
+        cache.vectorizer(spec("b"));
+        cache.vectorizer(spec("a"));
+        cache.vectorizer(spec("c"));
+        assertThat(cache.stats().getCount(), equalTo(2L));
+        assertThat(cache.stats().getEvictions(), equalTo(1L));
+        // b was least recently used
+        cache.vectorizer(spec("a"));
+        assertThat(cache.stats().getHits(), equalTo(2L));
+        cache.vectorizer(spec("b"));
+        assertThat(cache.stats().getMisses(), equalTo(4L));
+    }
+
+    public void testDisabled() {
+        VectorizerCache cache = new VectorizerCache(Settings.builder()
+                .put(VectorizerCache.CACHE_MAX_SIZE_SETTING.getKey(), 0).build());
+        VectorRangesToVector vectorizer = cache.vectorizer(spec("a"));
+        assertThat(cache.vectorizer(spec("a")), not(sameInstance(vectorizer)));
+        assertThat(cache.stats().getCount(), equalTo(0L));
+        assertThat(cache.stats().getHits(), equalTo(0L));
+    }
+
+    public void testStoredSpec() {
+        Map<String, Map<String, Object>> storedSpecs = new HashMap<>();
+        List<String> loads = new ArrayList<>();
+        VectorizerCache cache = new VectorizerCache(Settings.EMPTY) {
+            @Override
+            protected void loadSpec(String specId, ActionListener<Map<String, Object>> listener) {
+                loads.add(specId);
+                listener.onResponse(storedSpecs.get(specId));
+            }
+        };
+        storedSpecs.put("my_spec", spec("a", "b"));
+        VectorRangesToVector vectorizer = cache.vectorizer("my_spec");
+        assertThat(vectorizer.getEntries().get(0).size(), equalTo(2));
+        assertThat(cache.vectorizer("my_spec"), sameInstance(vectorizer));
+        assertThat(loads, equalTo(Collections.singletonList("my_spec")));
+
+        // stored specs and inline specs don't share entries
+        assertThat(cache.vectorizer(spec("a", "b")), not(sameInstance(vectorizer)));
+        assertThat(cache.stats().getCount(), equalTo(2L));
+
+        storedSpecs.put("my_spec", spec("a", "b", "c"));
+        assertThat(cache.vectorizer("my_spec"), sameInstance(vectorizer));
+        cache.invalidateStoredSpec("my_spec");
+        assertThat(cache.vectorizer("my_spec").getEntries().get(0).size(), equalTo(3));
+        assertThat(loads, equalTo(Arrays.asList("my_spec", "my_spec")));
+
+        // a stored spec replaces the vectorizer without loading it
+        cache.putStoredSpec("my_spec", spec("a"));
+        assertThat(cache.vectorizer("my_spec").getEntries().get(0).size(), equalTo(1));
+        assertThat(loads.size(), equalTo(2));
+    }
+
+    public void testStoredSpecIsLoadedInBackground() {
+        List<ActionListener<Map<String, Object>>> loads = new ArrayList<>();
+        VectorizerCache cache = new VectorizerCache(Settings.EMPTY) {
+            @Override
+            protected void loadSpec(String specId, ActionListener<Map<String, Object>> listener) {
+                loads.add(listener);
+            }
+        };
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.vectorizer("my_spec");
+                fail("scripts must not wait for the spec");
+            } catch (ElasticsearchStatusException e) {
+                assertThat(e.status(), equalTo(RestStatus.SERVICE_UNAVAILABLE));
+                assertThat(e.getMessage(), equalTo("spec [my_spec] is being loaded on this node, retry later"));
+            }
+        }
+        // the second script doesn't load the spec again
+        assertThat(loads.size(), equalTo(1));
+        loads.get(0).onResponse(spec("a", "b"));
+        assertThat(cache.vectorizer("my_spec").getEntries().get(0).size(), equalTo(2));
+
+        // scripts get the failure of a load until the spec is stored
+        try {
+            cache.vectorizer("missing_spec");
+            fail("the spec is not loaded yet");
+        } catch (ElasticsearchStatusException e) {
+            assertThat(e.status(), equalTo(RestStatus.SERVICE_UNAVAILABLE));
+        }
+        loads.get(1).onFailure(new ResourceNotFoundException("spec [{}] not found", "missing_spec"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.vectorizer("missing_spec");
+                fail("the spec doesn't exist");
+            } catch (ResourceNotFoundException e) {
+                assertThat(e.getMessage(), equalTo("spec [missing_spec] not found"));
+            }
+        }
+        assertThat(loads.size(), equalTo(2));
+        cache.putStoredSpec("missing_spec", spec("a"));
+        assertThat(cache.vectorizer("missing_spec").getEntries().get(0).size(), equalTo(1));
+
+        // a load that completes after the spec was stored again is dropped
+        expectThrows(ElasticsearchStatusException.class, () -> cache.vectorizer("other_spec"));
+        cache.putStoredSpec("other_spec", spec("a", "b", "c"));
+        loads.get(2).onResponse(spec("a"));
+        assertThat(cache.vectorizer("other_spec").getEntries().get(0).size(), equalTo(3));
+    }
+
+    public void testStoredSpecsAreNotEvicted() {
+        List<String> loads = new ArrayList<>();
+        VectorizerCache cache = new VectorizerCache(Settings.builder()
+                .put(VectorizerCache.CACHE_MAX_SIZE_SETTING.getKey(), 1).build()) {
+            @Override
+            protected void loadSpec(String specId, ActionListener<Map<String, Object>> listener) {
+                loads.add(specId);
+            }
+        };
+        cache.putStoredSpec("spec_1", spec("a"));
+        cache.putStoredSpec("spec_2", spec("a", "b"));
+        VectorRangesToVector vectorizer = cache.vectorizer("spec_1");
+        cache.vectorizer(spec("c"));
+        cache.vectorizer(spec("d"));
+        assertThat(cache.stats().getEvictions(), equalTo(1L));
+        assertThat(cache.vectorizer("spec_1"), sameInstance(vectorizer));
+        assertThat(cache.vectorizer("spec_2").getEntries().get(0).size(), equalTo(2));
+        assertThat(loads.size(), equalTo(0));
+
+        // deleting the spec index drops all stored specs
+        cache.invalidateStoredSpecs();
+        expectThrows(ElasticsearchStatusException.class, () -> cache.vectorizer("spec_1"));
+        assertThat(loads, equalTo(Collections.singletonList("spec_1")));
+        assertThat(cache.stats().getCount(), equalTo(1L));
+    }
+
+    public void testSpecHash() {
+        assertThat(VectorizerCache.specHash(spec("a", "b")), equalTo(VectorizerCache.specHash(spec("a", "b"))));
+        assertThat(VectorizerCache.specHash(spec("a", "b")), not(equalTo(VectorizerCache.specHash(spec("b", "a")))));
+        assertThat(VectorizerCache.specHash(spec("a", "b")).length(), equalTo(64));
+    }
+
+    public void testSpecKeyIsOnlyComputedOnceForTheSameSpec() {
+        VectorizerCache cache = new VectorizerCache(Settings.EMPTY);
+        Map<String, Object> spec = spec("a", "b");
+        String key = cache.specKey(spec);
+        assertThat(key, equalTo(VectorizerCache.specHash(spec)));
+        // the scripts of all segments of a search get the same params
+        assertThat(cache.specKey(spec), sameInstance(key));
+        String otherKey = cache.specKey(spec("a", "b"));
+        assertThat(otherKey, equalTo(key));
+        assertThat(otherKey, not(sameInstance(key)));
+    }
+
+    private static Map<String, Object> spec(String... terms) {
+        Map<String, Object> feature = new HashMap<>();
+        feature.put("field", "text");
+        feature.put("type", "terms");
+        feature.put("terms", new ArrayList<>(Arrays.asList(terms)));
+        feature.put("number", "tf");
+        Map<String, Object> spec = new HashMap<>();
+        spec.put("sparse", true);
+        spec.put("features", new ArrayList<>(Collections.singletonList(feature)));
+        return spec;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.search.fetch.modelfields;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.plugin.TokenPlugin;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.pmml.PMMLModelScriptEngineService;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.test.ESIntegTestCase;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.script.FullPMMLIT.indexAdultData;
+import static org.elasticsearch.script.FullPMMLIT.indexAdultModel;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchResponse;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+@ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.SUITE)
+public class ModelFieldsFetchIT extends ESIntegTestCase {
+
+    protected Collection<Class<? extends Plugin>> transportClientPlugins() {
+        return pluginList(TokenPlugin.class);
+    }
+
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins() {
+        return pluginList(TokenPlugin.class);
+    }
+
+    public void testModelFieldsMatchScriptFields() throws IOException, ExecutionException, InterruptedException {
+        indexAdultData("/org/elasticsearch/script/adult.data", this);
+        indexAdultModel("/org/elasticsearch/script/lr_model_adult_full.xml");
+        for (boolean debug : new boolean[]{true, false}) {
+            Map<String, Object> params = Collections.singletonMap("debug", debug);
+            SearchSourceBuilder searchSource = SearchSourceBuilder.searchSource()
+                    .size(randomIntBetween(1, 2000))
+                    .scriptField("pmml", new Script("1", ScriptService.ScriptType.STORED, PMMLModelScriptEngineService.NAME, params))
+                    .ext(jsonBuilder().startObject()
+                            .startObject(ModelFieldsFetchSubPhase.NAMES[0])
+                            .startObject("model")
+                            .startObject("script")
+                            .field("id", "1")
+                            .field("lang", PMMLModelScriptEngineService.NAME)
+                            .field("params", params)
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject());
+            SearchResponse response = client().prepareSearch("test").setSource(searchSource).get();
+            assertSearchResponse(response);
+            assertThat(response.getHits().getHits().length, greaterThan(0));
+            for (SearchHit hit : response.getHits().getHits()) {
+                assertThat(hit.field("model").values().size(), equalTo(1));
+                assertThat(hit.field("model").getValue(), equalTo(hit.field("pmml").getValue()));
+            }
+        }
+    }
+
+    public void testModelFieldNeedsScript() throws IOException {
+        createIndex("empty");
+        SearchSourceBuilder searchSource = SearchSourceBuilder.searchSource().ext(jsonBuilder().startObject()
+                .startObject(ModelFieldsFetchSubPhase.NAMES[0])
+                .startObject("model")
+                .endObject()
+                .endObject()
+                .endObject());
+        try {
+            client().prepareSearch("empty").setSource(searchSource).get();
+            fail("model field without script must be rejected");
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(ExceptionsHelper.stackTrace(e), containsString("model field [model] needs a script"));
+        }
+    }
+}
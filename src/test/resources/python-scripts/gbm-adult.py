@@ -0,0 +1,181 @@
+# Trains the gradient boosting classifier of gbm-adult-full.xml on adult.data and writes the reference predictions of
+# gbm_adult_result.csv, which PMMLParsingTests#testGradientBoostingModel compares the plugin against.
+#
+# The trees use binomial deviance with Newton steps in the leaves, like R gbm and sklearn. The model is exported the way
+# sklearn2pmml exports a GradientBoostingClassifier: a modelChain of a sum MiningModel with a rescaled Target and a logit
+# RegressionModel. The reference predictions are computed from the trees in memory, not from the PMML, so they check the
+# PMML against the model it was exported from. Needs Python 3 and nothing else, training is deterministic.
+#
+# Regenerate the fixtures from the root of the repository with:
+#
+#   python3 src/test/resources/python-scripts/gbm-adult.py \
+#       src/test/resources/org/elasticsearch/script/adult.data \
+#       src/test/resources/org/elasticsearch/script/gbm-adult-full.xml \
+#       src/test/resources/org/elasticsearch/script/gbm_adult_result.csv
+import csv, math, sys
+from xml.sax.saxutils import quoteattr
+
+src = sys.argv[1]
+rows = list(csv.reader(open(src)))
+header = [h.strip() for h in rows[0]]
+rows = [[v.strip() for v in r] for r in rows[1:]]
+NUM = ["age", "education_num", "capital_gain", "capital_loss", "hours_per_week"]
+CAT = ["sex", "relationship", "marital_status"]
+col = {h: i for i, h in enumerate(header)}
+X = [{f: (float(r[col[f]]) if f in NUM else r[col[f]]) for f in NUM + CAT} for r in rows]
+y = [1.0 if r[col["class"]] == ">50K" else 0.0 for r in rows]
+n = len(y)
+N_TREES, DEPTH, LR, MIN_LEAF = 30, 3, 0.1, 20
+
+order = {f: sorted(range(n), key=lambda i: X[i][f]) for f in NUM}
+
+def sigmoid(v):
+    return 1.0 / (1.0 + math.exp(-v))
+
+def best_split(idx, r):
+    inset = set(idx)
+    total, cnt = sum(r[i] for i in idx), len(idx)
+    best = None
+    base = total * total / cnt
+    for f in NUM:
+        s, c = 0.0, 0
+        seq = [i for i in order[f] if i in inset]
+        for k in range(len(seq) - 1):
+            i = seq[k]
+            s += r[i]; c += 1
+            a, b = X[i][f], X[seq[k + 1]][f]
+            if a == b or c < MIN_LEAF or cnt - c < MIN_LEAF:
+                continue
+            gain = s * s / c + (total - s) ** 2 / (cnt - c) - base
+            if best is None or gain > best[0]:
+                best = (gain, f, (a + b) / 2.0)
+    for f in CAT:
+        stats = {}
+        for i in idx:
+            st = stats.setdefault(X[i][f], [0.0, 0])
+            st[0] += r[i]; st[1] += 1
+        cats = sorted(stats, key=lambda v: (stats[v][0] / stats[v][1], v))
+        s, c = 0.0, 0
+        for k in range(len(cats) - 1):
+            s += stats[cats[k]][0]; c += stats[cats[k]][1]
+            if c < MIN_LEAF or cnt - c < MIN_LEAF:
+                continue
+            gain = s * s / c + (total - s) ** 2 / (cnt - c) - base
+            if best is None or gain > best[0]:
+                best = (gain, f, sorted(cats[:k + 1]))
+    return best
+
+def goes_left(x, f, t):
+    return x[f] <= t if f in NUM else x[f] in t
+
+def build(idx, r, p, depth):
+    split = best_split(idx, r) if depth < DEPTH else None
+    if split is None or split[0] <= 1e-12:
+        num = sum(r[i] for i in idx)
+        den = sum(p[i] * (1 - p[i]) for i in idx)
+        return {"leaf": num / den if den > 1e-12 else 0.0}
+    _, f, t = split
+    left = [i for i in idx if goes_left(X[i], f, t)]
+    right = [i for i in idx if not goes_left(X[i], f, t)]
+    return {"f": f, "t": t, "l": build(left, r, p, depth + 1), "r": build(right, r, p, depth + 1)}
+
+def predict(tree, x):
+    while "leaf" not in tree:
+        tree = tree["l"] if goes_left(x, tree["f"], tree["t"]) else tree["r"]
+    return tree["leaf"]
+
+prior = sum(y) / n
+init = math.log(prior / (1 - prior))
+raw = [init] * n
+trees = []
+for m in range(N_TREES):
+    p = [sigmoid(v) for v in raw]
+    r = [y[i] - p[i] for i in range(n)]
+    tree = build(list(range(n)), r, p, 0)
+    trees.append(tree)
+    for i in range(n):
+        raw[i] += LR * predict(tree, X[i])
+    print("tree", m, file=sys.stderr)
+
+def pmml_array(values):
+    return " ".join('"' + v.replace('"', '\\"') + '"' for v in values)
+
+def node_xml(tree, predicate, ind, ids):
+    ids[0] += 1
+    out = []
+    if "leaf" in tree:
+        out.append('%s<Node id="%d" score="%r">' % (ind, ids[0], tree["leaf"]))
+        out.append(ind + "  " + predicate)
+    else:
+        out.append('%s<Node id="%d">' % (ind, ids[0]))
+        out.append(ind + "  " + predicate)
+        f, t = tree["f"], tree["t"]
+        if f in NUM:
+            lp = '<SimplePredicate field="%s" operator="lessOrEqual" value="%r"/>' % (f, t)
+            rp = '<SimplePredicate field="%s" operator="greaterThan" value="%r"/>' % (f, t)
+        else:
+            arr = '<Array type="string" n="%d">%s</Array>' % (len(t), pmml_array(t))
+            lp = '<SimpleSetPredicate field="%s" booleanOperator="isIn">%s</SimpleSetPredicate>' % (f, arr)
+            rp = '<SimpleSetPredicate field="%s" booleanOperator="isNotIn">%s</SimpleSetPredicate>' % (f, arr)
+        out += node_xml(tree["l"], lp, ind + "  ", ids)
+        out += node_xml(tree["r"], rp, ind + "  ", ids)
+    out.append(ind + "</Node>")
+    return out
+
+def values(f):
+    return sorted(set(x[f] for x in X))
+
+fields = NUM + CAT
+out = ['<?xml version="1.0" encoding="UTF-8"?>',
+       '<PMML xmlns="http://www.dmg.org/PMML-4_2" version="4.2">',
+       '  <Header description="Gradient boosting classifier on adult.data, binomial deviance, %d trees of depth %d, learning rate %r"/>'
+       % (N_TREES, DEPTH, LR),
+       '  <DataDictionary numberOfFields="%d">' % (len(fields) + 1),
+       '    <DataField name="class" optype="categorical" dataType="string">',
+       '      <Value value="&lt;=50K"/>', '      <Value value="&gt;50K"/>', '    </DataField>']
+for f in NUM:
+    out.append('    <DataField name="%s" optype="continuous" dataType="double"/>' % f)
+for f in CAT:
+    out.append('    <DataField name="%s" optype="categorical" dataType="string">' % f)
+    out += ['      <Value value=%s/>' % quoteattr(v) for v in values(f)]
+    out.append('    </DataField>')
+out.append('  </DataDictionary>')
+schema = ['      <MiningField name="%s"/>' % f for f in fields]
+out += ['  <MiningModel functionName="classification">', '    <MiningSchema>',
+        '      <MiningField name="class" usageType="target"/>'] + schema + ['    </MiningSchema>',
+        '    <Segmentation multipleModelMethod="modelChain">',
+        '      <Segment id="1">', '        <True/>', '        <MiningModel functionName="regression">',
+        '          <MiningSchema>'] + ['    ' + s for s in schema] + ['          </MiningSchema>',
+        '          <Output>', '            <OutputField name="decisionFunction" feature="predictedValue"/>', '          </Output>',
+        '          <Targets>', '            <Target rescaleFactor="%r" rescaleConstant="%r"/>' % (LR, init), '          </Targets>',
+        '          <Segmentation multipleModelMethod="sum">']
+for k, tree in enumerate(trees):
+    used = set()
+    def collect(t):
+        if "leaf" not in t:
+            used.add(t["f"]); collect(t["l"]); collect(t["r"])
+    collect(tree)
+    out += ['            <Segment id="%d">' % (k + 1), '              <True/>',
+            '              <TreeModel functionName="regression" missingValueStrategy="none" '
+            'noTrueChildStrategy="returnLastPrediction" splitCharacteristic="binarySplit">',
+            '                <MiningSchema>'] + ['                  <MiningField name="%s"/>' % f for f in fields if f in used] + [
+            '                </MiningSchema>']
+    out += node_xml(tree, "<True/>", "                ", [0])
+    out += ['              </TreeModel>', '            </Segment>']
+out += ['          </Segmentation>', '        </MiningModel>', '      </Segment>',
+        '      <Segment id="2">', '        <True/>',
+        '        <RegressionModel functionName="classification" normalizationMethod="logit">',
+        '          <MiningSchema>', '            <MiningField name="class" usageType="target"/>',
+        '            <MiningField name="decisionFunction"/>', '          </MiningSchema>',
+        '          <RegressionTable intercept="0.0" targetCategory="&gt;50K">',
+        '            <NumericPredictor name="decisionFunction" coefficient="1.0"/>', '          </RegressionTable>',
+        '          <RegressionTable intercept="0.0" targetCategory="&lt;=50K"/>',
+        '        </RegressionModel>', '      </Segment>', '    </Segmentation>', '  </MiningModel>', '</PMML>']
+open(sys.argv[2], "w").write("\n".join(out) + "\n")
+with open(sys.argv[3], "w") as res:
+    res.write('"probability(>50K)","class"\n')
+    for v in raw:
+        p1 = sigmoid(v)
+        res.write('%.10g,"%s"\n' % (p1, ">50K" if p1 >= 0.5 else "<=50K"))
+acc = sum(1 for i in range(n) if (sigmoid(raw[i]) > 0.5) == (y[i] == 1.0)) / n
+print("accuracy", acc, file=sys.stderr)